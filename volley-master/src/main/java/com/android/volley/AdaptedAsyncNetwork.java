@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+/**
+ * An {@link AsyncNetwork} which runs a synchronous {@link Network} on the blocking executor, so
+ * that existing networks work with {@link AsyncNetworkDispatcherPool}.
+ */
+public class AdaptedAsyncNetwork extends AsyncNetwork {
+
+    private final Network mNetwork;
+
+    public AdaptedAsyncNetwork(Network network) {
+        mNetwork = network;
+    }
+
+    @Override
+    public void performRequestAsync(final Request<?> request, final OnRequestComplete callback) {
+        getBlockingExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                NetworkResponse networkResponse;
+                try {
+                    networkResponse = mNetwork.performRequest(request);
+                } catch (VolleyError volleyError) {
+                    callback.onError(volleyError);
+                    return;
+                } catch (RuntimeException e) {
+                    // NetworkDispatcher would post these as errors too, rather than lose the request.
+                    VolleyLog.e(e, "Unhandled exception %s", e.toString());
+                    callback.onError(new VolleyError(e));
+                    return;
+                }
+                callback.onSuccess(networkResponse);
+            }
+        });
+    }
+
+    @Override
+    public NetworkResponse performRequest(Request<?> request) throws VolleyError {
+        return mNetwork.performRequest(request);
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * A {@link Network} which performs requests without blocking the calling thread, reporting the
+ * outcome to a callback instead. Used by {@link AsyncNetworkDispatcherPool}, which hands off
+ * the I/O and parses the responses on a small pool of threads.
+ * <p>
+ * <p>The synchronous {@link #performRequest} waits for the asynchronous one, so an asynchronous
+ * network works with the other dispatcher pools too. Synchronous networks are used
+ * asynchronously through {@link AdaptedAsyncNetwork}.
+ */
+public abstract class AsyncNetwork implements Network {
+
+    /**
+     * Receives the outcome of an asynchronous request. Exactly one of the methods is called, on
+     * any thread; they should return quickly.
+     */
+    public interface OnRequestComplete {
+        void onSuccess(NetworkResponse networkResponse);
+
+        void onError(VolleyError volleyError);
+    }
+
+    private volatile ExecutorService mBlockingExecutor;
+
+    /**
+     * Performs the specified request, reporting its response or error to the callback.
+     *
+     * @param request  Request to process
+     * @param callback Callback to report the outcome to
+     */
+    public abstract void performRequestAsync(Request<?> request, OnRequestComplete callback);
+
+    @Override
+    public NetworkResponse performRequest(Request<?> request) throws VolleyError {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final NetworkResponse[] response = new NetworkResponse[1];
+        final VolleyError[] error = new VolleyError[1];
+        performRequestAsync(request, new OnRequestComplete() {
+            @Override
+            public void onSuccess(NetworkResponse networkResponse) {
+                response[0] = networkResponse;
+                latch.countDown();
+            }
+
+            @Override
+            public void onError(VolleyError volleyError) {
+                error[0] = volleyError;
+                latch.countDown();
+            }
+        });
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new VolleyError(e);
+        }
+        if (error[0] != null) {
+            throw error[0];
+        }
+        return response[0];
+    }
+
+    /**
+     * Sets the executor for work which blocks, such as reading a response body or running a
+     * synchronous stack. Called by the dispatcher pool before any request is performed.
+     */
+    public void setBlockingExecutor(ExecutorService executor) {
+        mBlockingExecutor = executor;
+    }
+
+    /**
+     * Returns the executor for work which blocks.
+     *
+     * @throws IllegalStateException if none was set
+     */
+    protected ExecutorService getBlockingExecutor() {
+        ExecutorService executor = mBlockingExecutor;
+        if (executor == null) {
+            throw new IllegalStateException("setBlockingExecutor() must be called first");
+        }
+        return executor;
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.support.annotation.GuardedBy;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link NetworkDispatcherPool} which doesn't tie up a thread per request in flight.
+ * <p>
+ * <p>A single dispatcher thread takes requests from the queue and hands them to an {@link
+ * AsyncNetwork}; when a response arrives, it is parsed, cached and posted on a small pool of
+ * threads sized for the CPU, so parsing never waits behind slow sockets. Up to a maximum number
+ * of requests are in flight at once; the dispatcher waits for one to finish before taking more.
+ * <p>
+ * <p>A network which isn't an {@link AsyncNetwork} is run through {@link AdaptedAsyncNetwork},
+ * which blocks a thread of the blocking executor per request just like {@link NetworkDispatcher}
+ * does. Requests aren't tagged for {@link android.net.TrafficStats}, as their I/O doesn't happen
+ * on a thread of their own.
+ */
+public class AsyncNetworkDispatcherPool implements NetworkDispatcherPool {
+
+    private static final int DEFAULT_MAX_IN_FLIGHT = 64;
+
+    private static final long IDLE_THREAD_TIMEOUT_SECONDS = 30;
+
+    private final int mMaxInFlight;
+    private final int mParseThreads;
+
+    @GuardedBy("this")
+    private Dispatcher mDispatcher;
+
+    @GuardedBy("this")
+    private ExecutorService mParseExecutor;
+
+    @GuardedBy("this")
+    private ExecutorService mBlockingExecutor;
+
+    /**
+     * Creates a pool with up to 64 requests in flight, parsing on as many threads as there are
+     * processors.
+     */
+    public AsyncNetworkDispatcherPool() {
+        this(DEFAULT_MAX_IN_FLIGHT, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param maxInFlight  Maximum number of requests performed at once
+     * @param parseThreads Number of threads parsing, caching and posting responses
+     */
+    public AsyncNetworkDispatcherPool(int maxInFlight, int parseThreads) {
+        if (maxInFlight < 1 || parseThreads < 1) {
+            throw new IllegalArgumentException("maxInFlight and parseThreads must be at least 1");
+        }
+        mMaxInFlight = maxInFlight;
+        mParseThreads = parseThreads;
+    }
+
+    @Override
+    public synchronized void start(BlockingQueue<Request<?>> queue, Network network, Cache cache, ResponseDelivery delivery) {
+        mParseExecutor = newExecutor("Volley-Parse", mParseThreads);
+        // Blocking work is bounded by the requests in flight.
+        mBlockingExecutor = newExecutor("Volley-Blocking", mMaxInFlight);
+        AsyncNetwork asyncNetwork = network instanceof AsyncNetwork
+                ? (AsyncNetwork) network : new AdaptedAsyncNetwork(network);
+        asyncNetwork.setBlockingExecutor(mBlockingExecutor);
+        mDispatcher = new Dispatcher(queue, asyncNetwork, cache, delivery, mParseExecutor);
+        mDispatcher.start();
+    }
+
+    @Override
+    public void onRequestQueued() {
+        // The dispatcher is always waiting on the queue; nothing to do.
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (mDispatcher != null) {
+            mDispatcher.quit();
+            mParseExecutor.shutdown();
+            mBlockingExecutor.shutdown();
+            mDispatcher = null;
+        }
+    }
+
+    private static ExecutorService newExecutor(final String name, int threads) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+                IDLE_THREAD_TIMEOUT_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(final Runnable runnable) {
+                        return new Thread(name + "-" + mCount.incrementAndGet()) {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                runnable.run();
+                            }
+                        };
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Takes requests from the queue and starts them, as long as fewer than the maximum are in
+     * flight.
+     */
+    private class Dispatcher extends Thread {
+        private final BlockingQueue<Request<?>> mQueue;
+        private final AsyncNetwork mNetwork;
+        private final Cache mCache;
+        private final ResponseDelivery mDelivery;
+        private final ExecutorService mParseExecutor;
+        private final Semaphore mInFlight = new Semaphore(mMaxInFlight);
+        private volatile boolean mQuit = false;
+
+        Dispatcher(BlockingQueue<Request<?>> queue, AsyncNetwork network, Cache cache,
+                   ResponseDelivery delivery, ExecutorService parseExecutor) {
+            super("Volley-AsyncNetworkDispatcher");
+            mQueue = queue;
+            mNetwork = network;
+            mCache = cache;
+            mDelivery = delivery;
+            mParseExecutor = parseExecutor;
+        }
+
+        void quit() {
+            mQuit = true;
+            interrupt();
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            while (true) {
+                try {
+                    mInFlight.acquire();
+                    Request<?> request;
+                    try {
+                        request = mQueue.take();
+                    } catch (InterruptedException e) {
+                        mInFlight.release();
+                        throw e;
+                    }
+                    dispatch(request);
+                } catch (InterruptedException e) {
+                    // We may have been interrupted because it was time to quit.
+                    if (mQuit) {
+                        return;
+                    }
+                }
+            }
+        }
+
+        private void dispatch(final Request<?> request) {
+            final long startTimeMs = SystemClock.elapsedRealtime();
+            request.addMarker("network-queue-take");
+            // If the request was cancelled already, do not perform the network request.
+            if (request.isCanceled()) {
+                request.finish("network-discard-cancelled");
+                request.notifyListenerResponseNotUsable();
+                finished(request);
+                return;
+            }
+            try {
+                mNetwork.performRequestAsync(request, new AsyncNetwork.OnRequestComplete() {
+                    @Override
+                    public void onSuccess(final NetworkResponse networkResponse) {
+                        parse(request, new Runnable() {
+                            @Override
+                            public void run() {
+                                NetworkDispatcher.handleNetworkResponse(request, networkResponse, startTimeMs, mCache, mDelivery);
+                            }
+                        });
+                    }
+
+                    @Override
+                    public void onError(final VolleyError volleyError) {
+                        parse(request, new Runnable() {
+                            @Override
+                            public void run() {
+                                NetworkDispatcher.handleNetworkError(request, volleyError, startTimeMs, mDelivery);
+                            }
+                        });
+                    }
+                });
+            } catch (RuntimeException e) {
+                NetworkDispatcher.handleUnhandledException(request, e, startTimeMs, mDelivery);
+                finished(request);
+            }
+        }
+
+        /** Handles the outcome of a request on the parse pool, then lets the next one start. */
+        private void parse(final Request<?> request, final Runnable task) {
+            try {
+                mParseExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            task.run();
+                        } finally {
+                            finished(request);
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // The pool was stopped while the request was in flight.
+                finished(request);
+            }
+        }
+
+        private void finished(Request<?> request) {
+            // Free the request's per-host and per-tag slots so other requests can go out.
+            if (mQueue instanceof HostFairBlockingQueue) {
+                ((HostFairBlockingQueue) mQueue).release(request);
+            }
+            mInFlight.release();
+        }
+    }
+}
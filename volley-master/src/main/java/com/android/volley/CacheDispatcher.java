@@ -17,6 +17,7 @@
 package com.android.volley;
 
 import android.os.Process;
+import android.support.annotation.GuardedBy;
 import android.support.annotation.VisibleForTesting;
 
 import java.util.ArrayList;
@@ -67,6 +68,11 @@ public class CacheDispatcher extends Thread {
      */
     private final WaitingRequestManager mWaitingRequestManager;
 
+    /**
+     * Initializes the cache, once for all dispatchers sharing it.
+     */
+    private final CacheInitializer mCacheInitializer;
+
     /**
      * Creates a new cache triage dispatcher thread. You must call {@link #start()} in order to
      * begin processing.
@@ -77,11 +83,20 @@ public class CacheDispatcher extends Thread {
      * @param delivery     Delivery interface to use for posting responses
      */
     public CacheDispatcher(BlockingQueue<Request<?>> cacheQueue, BlockingQueue<Request<?>> networkQueue, Cache cache, ResponseDelivery delivery) {
+        this(cacheQueue, networkQueue, cache, delivery, new WaitingRequestManager(delivery, networkQueue), new CacheInitializer(cache));
+    }
+
+    /**
+     * Creates a cache triage dispatcher thread which shares request de-duplication and cache
+     * initialization with other dispatchers serving the same queues.
+     */
+    CacheDispatcher(BlockingQueue<Request<?>> cacheQueue, BlockingQueue<Request<?>> networkQueue, Cache cache, ResponseDelivery delivery, WaitingRequestManager waitingRequestManager, CacheInitializer cacheInitializer) {
         mCacheQueue = cacheQueue;
         mNetworkQueue = networkQueue;
         mCache = cache;
         mDelivery = delivery;
-        mWaitingRequestManager = new WaitingRequestManager(this);
+        mWaitingRequestManager = waitingRequestManager;
+        mCacheInitializer = cacheInitializer;
     }
 
     /**
@@ -101,7 +116,16 @@ public class CacheDispatcher extends Thread {
         //初始化 Cache
         //initialize() 是在 CacheDispatcher 中的 run 方法进行调用的，CacheDispatcher 是处理缓存队列中请求的线程。
         // 实例化 DiskBaseCache 之后，便在 while(true) 这个无线的循环当中，不断地等请求的到来，然后执行请求。
-        mCache.initialize();
+        while (true) {
+            try {
+                mCacheInitializer.awaitInitialized();
+                break;
+            } catch (InterruptedException e) {
+                if (mQuit) {
+                    return;
+                }
+            }
+        }
         /**
          * 可以看到在初始化了 Cache 之后，有一个 while(true) 循环，说明缓存线程是始终执行的，
          * 接着会在缓存中取出响应结果，如果为 null 的话，就将其加入到网络请求队列中，
@@ -209,7 +233,11 @@ public class CacheDispatcher extends Thread {
         }
     }
 
-    private static class WaitingRequestManager implements Request.NetworkRequestCompleteListener {
+    /**
+     * De-duplicates requests with the same cache key. Thread-safe, so one instance can be shared by
+     * all cache dispatchers of a {@link RequestQueue}.
+     */
+    static class WaitingRequestManager implements Request.NetworkRequestCompleteListener {
 
         /**
          * Staging area for requests that already have a duplicate request in flight.
@@ -221,12 +249,22 @@ public class CacheDispatcher extends Thread {
          * request is <em>not</em> contained in that list. Is null if no requests are staged.
          * </ul>
          */
+        @GuardedBy("this")
         private final Map<String, List<Request<?>>> mWaitingRequests = new HashMap<>();
 
-        private final CacheDispatcher mCacheDispatcher;
+        /**
+         * For posting responses to waiting requests.
+         */
+        private final ResponseDelivery mDelivery;
+
+        /**
+         * Queue to send the next waiting request to if the in-flight one failed.
+         */
+        private final BlockingQueue<Request<?>> mNetworkQueue;
 
-        WaitingRequestManager(CacheDispatcher cacheDispatcher) {
-            mCacheDispatcher = cacheDispatcher;
+        WaitingRequestManager(ResponseDelivery delivery, BlockingQueue<Request<?>> networkQueue) {
+            mDelivery = delivery;
+            mNetworkQueue = networkQueue;
         }
 
         /**
@@ -249,7 +287,7 @@ public class CacheDispatcher extends Thread {
                 }
                 // Process all queued up requests.
                 for (Request<?> waiting : waitingRequests) {
-                    mCacheDispatcher.mDelivery.postResponse(waiting, response);
+                    mDelivery.postResponse(waiting, response);
                 }
             }
         }
@@ -269,13 +307,12 @@ public class CacheDispatcher extends Thread {
                 mWaitingRequests.put(cacheKey, waitingRequests);
                 nextInLine.setNetworkRequestCompleteListener(this);
                 try {
-                    mCacheDispatcher.mNetworkQueue.put(nextInLine);
+                    mNetworkQueue.put(nextInLine);
                 } catch (InterruptedException iex) {
                     VolleyLog.e("Couldn't add request to queue. %s", iex.toString());
                     // Restore the interrupted status of the calling thread (i.e. NetworkDispatcher)
+                    // so that it notices it is being stopped.
                     Thread.currentThread().interrupt();
-                    // Quit the current CacheDispatcher thread.
-                    mCacheDispatcher.quit();
                 }
             }
         }
@@ -288,7 +325,7 @@ public class CacheDispatcher extends Thread {
          * over the network. If true, we should put the request on hold to be processed when the
          * in-flight request finishes.
          */
-        private synchronized boolean maybeAddToWaitingRequests(Request<?> request) {
+        synchronized boolean maybeAddToWaitingRequests(Request<?> request) {
             String cacheKey = request.getCacheKey();
             // Insert request into stage if there's already a request with the same cache key
             // in flight.
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import android.os.Process;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Initializes a {@link Cache} once on behalf of all the {@link CacheDispatcher}s using it.
+ */
+class CacheInitializer {
+
+    private final Cache mCache;
+
+    /**
+     * Set by the first dispatcher to ask, which then initializes the cache.
+     */
+    private final AtomicBoolean mStarted = new AtomicBoolean(false);
+
+    /**
+     * Released once {@link Cache#initialize()} has returned.
+     */
+    private final CountDownLatch mInitialized = new CountDownLatch(1);
+
+    CacheInitializer(Cache cache) {
+        mCache = cache;
+    }
+
+    /**
+     * Returns once the calling dispatcher may use the cache. The first caller initializes the
+     * cache, and other callers wait for it to finish. A {@link ConcurrentInitCache} is instead
+     * initialized on a background thread and may be used right away.
+     */
+    void awaitInitialized() throws InterruptedException {
+        boolean concurrent = mCache instanceof ConcurrentInitCache;
+        if (mStarted.compareAndSet(false, true)) {
+            if (concurrent) {
+                // The cache can serve requests before it is fully loaded, so don't make them wait.
+                initializeInBackground();
+            } else {
+                initialize();
+            }
+        } else if (!concurrent) {
+            mInitialized.await();
+        }
+    }
+
+    private void initializeInBackground() {
+        Thread initializer = new Thread("CacheInitializer") {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                initialize();
+            }
+        };
+        initializer.start();
+    }
+
+    private void initialize() {
+        try {
+            mCache.initialize();
+        } finally {
+            mInitialized.countDown();
+        }
+    }
+}
@@ -0,0 +1,28 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+/**
+ * A {@link Cache} which may be used while {@link #initialize()} is still running on another
+ * thread.
+ * <p>
+ * <p>{@link CacheDispatcher} normally initializes the cache before it takes the first request, so
+ * everything queued at startup waits for initialization to finish. For caches implementing this
+ * interface, initialization runs on a background thread instead and requests are served right
+ * away. Entries which haven't been loaded yet must still be found by {@link #get}.
+ */
+public interface ConcurrentInitCache extends Cache {}
@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import android.os.SystemClock;
+import android.support.annotation.GuardedBy;
+import android.support.annotation.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A {@link NetworkDispatcherPool} which grows and shrinks between a minimum and a maximum number of
+ * dispatcher threads.
+ * <p>
+ * <p>A dispatcher is added whenever a request is queued while more requests are waiting than there
+ * are idle dispatchers. If requests are currently taking longer than the target queueing delay,
+ * the pool adds enough dispatchers to cover the whole backlog at once instead of one at a time, so
+ * a handful of slow uploads can't starve everything queued behind them. Dispatchers beyond the
+ * minimum exit after sitting idle for the idle timeout.
+ */
+public class ElasticNetworkDispatcherPool implements NetworkDispatcherPool {
+
+    /**
+     * Default time a dispatcher may sit idle before it exits.
+     */
+    private static final long DEFAULT_IDLE_TIMEOUT_MS = 30 * 1000;
+
+    /**
+     * Default queueing delay above which the pool grows aggressively.
+     */
+    private static final long DEFAULT_TARGET_QUEUE_DELAY_MS = 100;
+
+    /**
+     * Weight of the newest sample in the moving average of request durations.
+     */
+    private static final float LATENCY_SMOOTHING_FACTOR = 0.2f;
+
+    private final int mMinThreads;
+    private final int mMaxThreads;
+    private final long mIdleTimeoutMs;
+    private final long mTargetQueueDelayMs;
+
+    private final Object mLock = new Object();
+
+    /**
+     * All running dispatchers.
+     */
+    @GuardedBy("mLock")
+    private final List<NetworkDispatcher> mDispatchers = new ArrayList<>();
+
+    /**
+     * Start time of the request each busy dispatcher is processing. Dispatchers not in this map are
+     * idle.
+     */
+    @GuardedBy("mLock")
+    private final Map<NetworkDispatcher, Long> mRequestStartTimes = new HashMap<>();
+
+    /**
+     * Exponential moving average of how long requests took to process, or 0 if none has finished.
+     */
+    @GuardedBy("mLock")
+    private long mAverageRequestTimeMs = 0;
+
+    /**
+     * Arguments of {@link #start}; mQueue is null while the pool is stopped.
+     */
+    @GuardedBy("mLock")
+    private BlockingQueue<Request<?>> mQueue;
+    @GuardedBy("mLock")
+    private Network mNetwork;
+    @GuardedBy("mLock")
+    private Cache mCache;
+    @GuardedBy("mLock")
+    private ResponseDelivery mDelivery;
+
+    private final NetworkDispatcher.Callback mCallback = new NetworkDispatcher.Callback() {
+        @Override
+        public void onRequestStarted(NetworkDispatcher dispatcher) {
+            synchronized (mLock) {
+                mRequestStartTimes.put(dispatcher, SystemClock.elapsedRealtime());
+                // The dispatcher is no longer idle; see whether the rest of the queue needs help.
+                maybeGrowLocked();
+            }
+        }
+
+        @Override
+        public void onRequestFinished(NetworkDispatcher dispatcher) {
+            synchronized (mLock) {
+                Long startTime = mRequestStartTimes.remove(dispatcher);
+                if (startTime == null) {
+                    return;
+                }
+                long elapsed = SystemClock.elapsedRealtime() - startTime;
+                if (mAverageRequestTimeMs == 0) {
+                    mAverageRequestTimeMs = Math.max(elapsed, 1);
+                } else {
+                    mAverageRequestTimeMs += (long) ((elapsed - mAverageRequestTimeMs) * LATENCY_SMOOTHING_FACTOR);
+                }
+            }
+        }
+
+        @Override
+        public boolean onIdleTimeout(NetworkDispatcher dispatcher) {
+            synchronized (mLock) {
+                if (!mDispatchers.contains(dispatcher)) {
+                    // Left over from before a stop(); it has been told to quit already.
+                    return true;
+                }
+                // A request queued just as the poll timed out must still find a dispatcher, so
+                // only retire while no request could be taken. Requests held back by per-host or
+                // per-tag limits are taken by the dispatchers releasing their slots.
+                if (mDispatchers.size() <= mMinThreads || takeableCountLocked() > 0) {
+                    return false;
+                }
+                mDispatchers.remove(dispatcher);
+                if (VolleyLog.DEBUG) {
+                    VolleyLog.v("Retired idle network dispatcher, %d left", mDispatchers.size());
+                }
+                return true;
+            }
+        }
+    };
+
+    /**
+     * Creates a pool with the default idle timeout and target queueing delay.
+     *
+     * @param minThreads Number of dispatchers to keep even when idle
+     * @param maxThreads Upper bound on the number of dispatchers
+     */
+    public ElasticNetworkDispatcherPool(int minThreads, int maxThreads) {
+        this(minThreads, maxThreads, DEFAULT_IDLE_TIMEOUT_MS, DEFAULT_TARGET_QUEUE_DELAY_MS);
+    }
+
+    /**
+     * @param minThreads         Number of dispatchers to keep even when idle
+     * @param maxThreads         Upper bound on the number of dispatchers
+     * @param idleTimeoutMs      Time a dispatcher above the minimum may sit idle before it exits
+     * @param targetQueueDelayMs Expected queueing delay above which the pool adds dispatchers for
+     *                           the whole backlog at once
+     */
+    public ElasticNetworkDispatcherPool(int minThreads, int maxThreads, long idleTimeoutMs, long targetQueueDelayMs) {
+        if (minThreads < 0 || maxThreads < 1 || minThreads > maxThreads) {
+            throw new IllegalArgumentException("Invalid pool bounds: min=" + minThreads + ", max=" + maxThreads);
+        }
+        if (idleTimeoutMs <= 0) {
+            throw new IllegalArgumentException("idleTimeoutMs must be positive");
+        }
+        mMinThreads = minThreads;
+        mMaxThreads = maxThreads;
+        mIdleTimeoutMs = idleTimeoutMs;
+        mTargetQueueDelayMs = targetQueueDelayMs;
+    }
+
+    @Override
+    public void start(BlockingQueue<Request<?>> queue, Network network, Cache cache, ResponseDelivery delivery) {
+        synchronized (mLock) {
+            mQueue = queue;
+            mNetwork = network;
+            mCache = cache;
+            mDelivery = delivery;
+            while (mDispatchers.size() < mMinThreads) {
+                startDispatcherLocked();
+            }
+            // Requests may have been queued before we were started.
+            maybeGrowLocked();
+        }
+    }
+
+    @Override
+    public void onRequestQueued() {
+        synchronized (mLock) {
+            maybeGrowLocked();
+        }
+    }
+
+    @Override
+    public void stop() {
+        synchronized (mLock) {
+            for (NetworkDispatcher dispatcher : mDispatchers) {
+                dispatcher.quit();
+            }
+            mDispatchers.clear();
+            mRequestStartTimes.clear();
+            mQueue = null;
+        }
+    }
+
+    /**
+     * Returns the number of running dispatchers.
+     */
+    @VisibleForTesting
+    int getThreadCount() {
+        synchronized (mLock) {
+            return mDispatchers.size();
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void maybeGrowLocked() {
+        if (mQueue == null) {
+            return;
+        }
+        int threads = mDispatchers.size();
+        if (threads >= mMaxThreads) {
+            // Counting the backlog means walking the queue; don't bother if we can't grow anyway.
+            return;
+        }
+        int missing = takeableCountLocked() - (threads - mRequestStartTimes.size());
+        if (missing <= 0) {
+            return;
+        }
+        if (estimateRequestTimeLocked() < mTargetQueueDelayMs) {
+            // Requests are quick, so busy dispatchers will get to the backlog soon. One more
+            // dispatcher is enough; the next queued request will re-evaluate.
+            missing = 1;
+        }
+        int toStart = Math.min(missing, mMaxThreads - threads);
+        for (int i = 0; i < toStart; i++) {
+            startDispatcherLocked();
+        }
+        if (VolleyLog.DEBUG) {
+            VolleyLog.v("Started %d network dispatchers, %d running", toStart, mDispatchers.size());
+        }
+    }
+
+    /**
+     * Returns the number of queued requests a dispatcher could take now. Requests held back by
+     * per-host or per-tag limits don't count: more dispatchers wouldn't get them out any sooner.
+     */
+    @GuardedBy("mLock")
+    private int takeableCountLocked() {
+        if (mQueue instanceof HostFairBlockingQueue) {
+            return ((HostFairBlockingQueue) mQueue).eligibleCount();
+        }
+        return mQueue.size();
+    }
+
+    /**
+     * Estimates how long a request currently takes, taking into account requests which are still
+     * in flight and have already been running for longer than the average.
+     */
+    @GuardedBy("mLock")
+    private long estimateRequestTimeLocked() {
+        long estimate = mAverageRequestTimeMs;
+        long now = SystemClock.elapsedRealtime();
+        for (long startTime : mRequestStartTimes.values()) {
+            estimate = Math.max(estimate, now - startTime);
+        }
+        return estimate;
+    }
+
+    @GuardedBy("mLock")
+    private void startDispatcherLocked() {
+        NetworkDispatcher dispatcher = new NetworkDispatcher(mQueue, mNetwork, mCache, mDelivery, mCallback, mIdleTimeoutMs);
+        mDispatchers.add(dispatcher);
+        dispatcher.start();
+    }
+}
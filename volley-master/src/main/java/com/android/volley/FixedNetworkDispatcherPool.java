@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A {@link NetworkDispatcherPool} with a fixed number of dispatcher threads which live until the
+ * pool is stopped.
+ */
+public class FixedNetworkDispatcherPool implements NetworkDispatcherPool {
+
+    /**
+     * The network dispatchers.
+     */
+    private final NetworkDispatcher[] mDispatchers;
+
+    /**
+     * @param threadPoolSize Number of network dispatcher threads to create
+     */
+    public FixedNetworkDispatcherPool(int threadPoolSize) {
+        mDispatchers = new NetworkDispatcher[threadPoolSize];
+    }
+
+    @Override
+    public void start(BlockingQueue<Request<?>> queue, Network network, Cache cache, ResponseDelivery delivery) {
+        // Create network dispatchers (and corresponding threads) up to the pool size.
+        for (int i = 0; i < mDispatchers.length; i++) {
+            NetworkDispatcher networkDispatcher = new NetworkDispatcher(queue, network, cache, delivery);
+            mDispatchers[i] = networkDispatcher;
+            networkDispatcher.start();
+        }
+    }
+
+    @Override
+    public void onRequestQueued() {
+        // The dispatchers are always running; nothing to do.
+    }
+
+    @Override
+    public void stop() {
+        for (final NetworkDispatcher mDispatcher : mDispatchers) {
+            if (mDispatcher != null) {
+                mDispatcher.quit();
+            }
+        }
+    }
+}
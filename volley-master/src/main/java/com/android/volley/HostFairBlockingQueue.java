@@ -0,0 +1,559 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import android.net.Uri;
+import android.support.annotation.GuardedBy;
+import android.text.TextUtils;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The queue of requests going out to the network.
+ * <p>
+ * <p>Like a {@link java.util.concurrent.PriorityBlockingQueue}, requests are handed out from high
+ * to low {@link Request.Priority}. Among requests of equal priority, hosts are served round-robin
+ * (and each host in FIFO order), so a burst of requests for one host can't delay every other host.
+ * <p>
+ * <p>Optionally, the number of requests in flight per host and per request tag can be limited.
+ * Requests handed out by {@link #take()}, {@link #poll()} and {@link #drainTo} count as in flight
+ * until {@link #release(Request)} is called for them; requests whose host or tag is at its limit
+ * stay queued, and don't block requests for other hosts.
+ */
+class HostFairBlockingQueue extends AbstractQueue<Request<?>> implements BlockingQueue<Request<?>> {
+
+    /**
+     * Value for limits meaning there is no limit.
+     */
+    static final int UNLIMITED = Integer.MAX_VALUE;
+
+    private static final Request.Priority[] PRIORITIES = Request.Priority.values();
+
+    private final ReentrantLock mLock = new ReentrantLock();
+
+    /**
+     * Signalled when a request is added or an in-flight request is released.
+     */
+    private final Condition mChanged = mLock.newCondition();
+
+    /**
+     * Queued requests by priority ordinal, then by host. Within a priority, the first host with an
+     * eligible request is served next and then moved to the back, which makes the iteration order
+     * of each map the round-robin order.
+     */
+    @GuardedBy("mLock")
+    private final List<LinkedHashMap<String, List<Request<?>>>> mLanes = new ArrayList<>();
+
+    @GuardedBy("mLock")
+    private int mSize = 0;
+
+    /**
+     * Requests handed out and not yet released, with the host and tag they were counted against.
+     */
+    @GuardedBy("mLock")
+    private final Map<Request<?>, InFlight> mInFlight = new IdentityHashMap<>();
+
+    @GuardedBy("mLock")
+    private final Map<String, Integer> mInFlightByHost = new HashMap<>();
+
+    @GuardedBy("mLock")
+    private final Map<Object, Integer> mInFlightByTag = new IdentityHashMap<>();
+
+    @GuardedBy("mLock")
+    private int mMaxInFlightPerHost = UNLIMITED;
+
+    @GuardedBy("mLock")
+    private final Map<String, Integer> mMaxInFlightForHost = new HashMap<>();
+
+    /**
+     * Limits by tag. Tags are compared by identity, as in {@link RequestQueue#cancelAll(Object)}.
+     */
+    @GuardedBy("mLock")
+    private final Map<Object, Integer> mMaxInFlightForTag = new IdentityHashMap<>();
+
+    private static class InFlight {
+        final String host;
+        final Object tag;
+
+        InFlight(String host, Object tag) {
+            this.host = host;
+            this.tag = tag;
+        }
+    }
+
+    HostFairBlockingQueue() {
+        for (int i = 0; i < PRIORITIES.length; i++) {
+            mLanes.add(new LinkedHashMap<String, List<Request<?>>>());
+        }
+    }
+
+    /**
+     * Sets the maximum number of requests in flight for any single host.
+     */
+    void setMaxInFlightPerHost(int max) {
+        checkLimit(max);
+        mLock.lock();
+        try {
+            mMaxInFlightPerHost = max;
+            mChanged.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Sets the maximum number of requests in flight for the given host, overriding {@link
+     * #setMaxInFlightPerHost}. Pass {@link #UNLIMITED} to lift the limit.
+     */
+    void setMaxInFlightForHost(String host, int max) {
+        checkLimit(max);
+        mLock.lock();
+        try {
+            mMaxInFlightForHost.put(host, max);
+            mChanged.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Sets the maximum number of requests in flight with the given tag. Pass {@link #UNLIMITED} to
+     * lift the limit.
+     */
+    void setMaxInFlightForTag(Object tag, int max) {
+        if (tag == null) {
+            throw new IllegalArgumentException("Cannot limit a null tag");
+        }
+        checkLimit(max);
+        mLock.lock();
+        try {
+            if (max == UNLIMITED) {
+                mMaxInFlightForTag.remove(tag);
+            } else {
+                mMaxInFlightForTag.put(tag, max);
+            }
+            mChanged.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private static void checkLimit(int max) {
+        if (max < 1) {
+            throw new IllegalArgumentException("Limit must be at least 1: " + max);
+        }
+    }
+
+    /**
+     * Marks a request previously handed out by this queue as no longer in flight. Has no effect if
+     * the request isn't in flight.
+     */
+    void release(Request<?> request) {
+        mLock.lock();
+        try {
+            InFlight inFlight = mInFlight.remove(request);
+            if (inFlight == null) {
+                return;
+            }
+            decrement(mInFlightByHost, inFlight.host);
+            if (inFlight.tag != null) {
+                decrement(mInFlightByTag, inFlight.tag);
+            }
+            mChanged.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of requests handed out and not yet released.
+     */
+    int inFlightCount() {
+        mLock.lock();
+        try {
+            return mInFlight.size();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of queued requests which could be taken right now, given enough takers.
+     * Unlike {@link #size()}, requests held back by per-host or per-tag limits aren't counted.
+     */
+    int eligibleCount() {
+        mLock.lock();
+        try {
+            if (mSize == 0) {
+                return 0;
+            }
+            if (mMaxInFlightPerHost == UNLIMITED
+                    && mMaxInFlightForHost.isEmpty()
+                    && mMaxInFlightForTag.isEmpty()) {
+                // Nothing can be held back, so skip the walk.
+                return mSize;
+            }
+            // Hand requests out on paper, so that each counts against the limits of the next.
+            Map<String, Integer> takenByHost = new HashMap<>();
+            Map<Object, Integer> takenByTag = new IdentityHashMap<>();
+            int count = 0;
+            for (int i = mLanes.size() - 1; i >= 0; i--) {
+                for (Map.Entry<String, List<Request<?>>> entry : mLanes.get(i).entrySet()) {
+                    String host = entry.getKey();
+                    Integer hostLimit = mMaxInFlightForHost.get(host);
+                    int limit = hostLimit != null ? hostLimit : mMaxInFlightPerHost;
+                    for (Request<?> request : entry.getValue()) {
+                        if (count(mInFlightByHost, host) + count(takenByHost, host) >= limit) {
+                            break;
+                        }
+                        Object tag = mMaxInFlightForTag.isEmpty() ? null : request.getTag();
+                        Integer tagLimit = tag != null ? mMaxInFlightForTag.get(tag) : null;
+                        if (tagLimit != null) {
+                            if (count(mInFlightByTag, tag) + count(takenByTag, tag) >= tagLimit) {
+                                continue;
+                            }
+                            increment(takenByTag, tag);
+                        }
+                        increment(takenByHost, host);
+                        count++;
+                    }
+                }
+            }
+            return count;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean offer(Request<?> request) {
+        if (request == null) {
+            throw new NullPointerException();
+        }
+        String host = hostOf(request);
+        mLock.lock();
+        try {
+            Map<String, List<Request<?>>> lane = mLanes.get(priorityOf(request).ordinal());
+            List<Request<?>> requests = lane.get(host);
+            if (requests == null) {
+                requests = new ArrayList<>();
+                lane.put(host, requests);
+            }
+            insertSorted(requests, request);
+            mSize++;
+            mChanged.signal();
+            return true;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public void put(Request<?> request) {
+        offer(request); // never blocks
+    }
+
+    @Override
+    public boolean offer(Request<?> request, long timeout, TimeUnit unit) {
+        return offer(request); // never blocks
+    }
+
+    @Override
+    public Request<?> take() throws InterruptedException {
+        mLock.lockInterruptibly();
+        try {
+            Request<?> request;
+            while ((request = dequeueLocked()) == null) {
+                mChanged.await();
+            }
+            return request;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public Request<?> poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        mLock.lockInterruptibly();
+        try {
+            Request<?> request;
+            while ((request = dequeueLocked()) == null) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = mChanged.awaitNanos(nanos);
+            }
+            return request;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public Request<?> poll() {
+        mLock.lock();
+        try {
+            return dequeueLocked();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public Request<?> peek() {
+        mLock.lock();
+        try {
+            for (int i = mLanes.size() - 1; i >= 0; i--) {
+                for (Map.Entry<String, List<Request<?>>> entry : mLanes.get(i).entrySet()) {
+                    int index = firstEligibleLocked(entry.getKey(), entry.getValue());
+                    if (index >= 0) {
+                        return entry.getValue().get(index);
+                    }
+                }
+            }
+            return null;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        mLock.lock();
+        try {
+            return mSize;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (!(o instanceof Request)) {
+            return false;
+        }
+        mLock.lock();
+        try {
+            for (Map<String, List<Request<?>>> lane : mLanes) {
+                Iterator<List<Request<?>>> hosts = lane.values().iterator();
+                while (hosts.hasNext()) {
+                    List<Request<?>> requests = hosts.next();
+                    for (int i = 0; i < requests.size(); i++) {
+                        if (requests.get(i) == o) {
+                            requests.remove(i);
+                            if (requests.isEmpty()) {
+                                hosts.remove();
+                            }
+                            mSize--;
+                            return true;
+                        }
+                    }
+                }
+            }
+            return false;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public void clear() {
+        mLock.lock();
+        try {
+            for (Map<String, List<Request<?>>> lane : mLanes) {
+                lane.clear();
+            }
+            mSize = 0;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public int drainTo(Collection<? super Request<?>> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super Request<?>> c, int maxElements) {
+        if (c == this) {
+            throw new IllegalArgumentException();
+        }
+        mLock.lock();
+        try {
+            int n = 0;
+            Request<?> request;
+            while (n < maxElements && (request = dequeueLocked()) != null) {
+                c.add(request);
+                n++;
+            }
+            return n;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Returns a snapshot of the queued requests, highest priority first, which does not reflect
+     * later changes to the queue.
+     */
+    @Override
+    public Iterator<Request<?>> iterator() {
+        mLock.lock();
+        try {
+            List<Request<?>> snapshot = new ArrayList<>(mSize);
+            for (int i = mLanes.size() - 1; i >= 0; i--) {
+                for (List<Request<?>> requests : mLanes.get(i).values()) {
+                    snapshot.addAll(requests);
+                }
+            }
+            return Collections.unmodifiableList(snapshot).iterator();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Removes and returns the next request that may be sent, counting it as in flight, or returns
+     * null if there is none.
+     */
+    @GuardedBy("mLock")
+    private Request<?> dequeueLocked() {
+        if (mSize == 0) {
+            return null;
+        }
+        for (int i = mLanes.size() - 1; i >= 0; i--) {
+            LinkedHashMap<String, List<Request<?>>> lane = mLanes.get(i);
+            for (Map.Entry<String, List<Request<?>>> entry : lane.entrySet()) {
+                String host = entry.getKey();
+                List<Request<?>> requests = entry.getValue();
+                int index = firstEligibleLocked(host, requests);
+                if (index < 0) {
+                    continue;
+                }
+                Request<?> request = requests.remove(index);
+                // Move the host to the back of the rotation.
+                lane.remove(host);
+                if (!requests.isEmpty()) {
+                    lane.put(host, requests);
+                }
+                mSize--;
+                Object tag = mMaxInFlightForTag.isEmpty() ? null : request.getTag();
+                mInFlight.put(request, new InFlight(host, tag));
+                increment(mInFlightByHost, host);
+                if (tag != null) {
+                    increment(mInFlightByTag, tag);
+                }
+                return request;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the index of the first request in the given host's list which may be sent now, or
+     * -1 if there is none.
+     */
+    @GuardedBy("mLock")
+    private int firstEligibleLocked(String host, List<Request<?>> requests) {
+        Integer hostLimit = mMaxInFlightForHost.get(host);
+        int limit = hostLimit != null ? hostLimit : mMaxInFlightPerHost;
+        if (count(mInFlightByHost, host) >= limit) {
+            return -1;
+        }
+        if (mMaxInFlightForTag.isEmpty()) {
+            return 0;
+        }
+        for (int i = 0; i < requests.size(); i++) {
+            Object tag = requests.get(i).getTag();
+            Integer tagLimit = tag != null ? mMaxInFlightForTag.get(tag) : null;
+            if (tagLimit == null || count(mInFlightByTag, tag) < tagLimit) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Inserts the request after all requests which don't sort after it, keeping FIFO order among
+     * requests which compare as equal.
+     */
+    @SuppressWarnings("unchecked")
+    private static void insertSorted(List<Request<?>> requests, Request<?> request) {
+        int i = requests.size();
+        while (i > 0 && ((Request) requests.get(i - 1)).compareTo(request) > 0) {
+            i--;
+        }
+        requests.add(i, request);
+    }
+
+    private static Request.Priority priorityOf(Request<?> request) {
+        Request.Priority priority = request.getPriority();
+        return priority != null ? priority : Request.Priority.NORMAL;
+    }
+
+    /**
+     * Returns the key requests are grouped by: the host of the URL, or "" if it has none.
+     */
+    private static String hostOf(Request<?> request) {
+        String url = request.getUrl();
+        if (!TextUtils.isEmpty(url)) {
+            Uri uri = Uri.parse(url);
+            if (uri != null && uri.getHost() != null) {
+                return uri.getHost();
+            }
+        }
+        return "";
+    }
+
+    private static <K> int count(Map<K, Integer> counts, K key) {
+        Integer count = counts.get(key);
+        return count != null ? count : 0;
+    }
+
+    private static <K> void increment(Map<K, Integer> counts, K key) {
+        counts.put(key, count(counts, key) + 1);
+    }
+
+    private static <K> void decrement(Map<K, Integer> counts, K key) {
+        int count = count(counts, key) - 1;
+        if (count <= 0) {
+            counts.remove(key);
+        } else {
+            counts.put(key, count);
+        }
+    }
+}
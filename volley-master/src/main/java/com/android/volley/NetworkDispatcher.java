@@ -24,6 +24,7 @@ import android.os.SystemClock;
 import android.support.annotation.VisibleForTesting;
 
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Provides a thread for performing network dispatch from a queue of requests.
@@ -35,6 +36,28 @@ import java.util.concurrent.BlockingQueue;
  */
 public class NetworkDispatcher extends Thread {
 
+    /**
+     * Callbacks for {@link NetworkDispatcherPool}s which add and retire dispatchers at runtime.
+     */
+    interface Callback {
+        /**
+         * Called before the dispatcher starts processing a request taken from the queue.
+         */
+        void onRequestStarted(NetworkDispatcher dispatcher);
+
+        /**
+         * Called once the dispatcher has finished processing a request, successfully or not.
+         */
+        void onRequestFinished(NetworkDispatcher dispatcher);
+
+        /**
+         * Called when no request arrived within the idle timeout.
+         *
+         * @return true if the dispatcher should exit, false to keep waiting for requests
+         */
+        boolean onIdleTimeout(NetworkDispatcher dispatcher);
+    }
+
     /**
      * The queue of requests to service.
      */
@@ -55,6 +78,18 @@ public class NetworkDispatcher extends Thread {
      * Used for telling us to die.
      */
     private volatile boolean mQuit = false;
+    /**
+     * Pool callbacks, or null if this dispatcher lives until {@link #quit()} is called.
+     */
+    private final Callback mCallback;
+    /**
+     * How long to wait for a request before asking {@link #mCallback} whether to exit.
+     */
+    private final long mIdleTimeoutMs;
+    /**
+     * Set once the pool has agreed to let this dispatcher exit. Only accessed by this thread.
+     */
+    private boolean mRetired = false;
 
     /**
      * Creates a new network dispatcher thread. You must call {@link #start()} in order to begin
@@ -66,10 +101,21 @@ public class NetworkDispatcher extends Thread {
      * @param delivery Delivery interface to use for posting responses
      */
     public NetworkDispatcher(BlockingQueue<Request<?>> queue, Network network, Cache cache, ResponseDelivery delivery) {
+        this(queue, network, cache, delivery, /* callback= */ null, /* idleTimeoutMs= */ 0);
+    }
+
+    /**
+     * Creates a new network dispatcher thread which reports its activity to the given callback
+     * and offers to exit after {@code idleTimeoutMs} without a request.
+     */
+    NetworkDispatcher(BlockingQueue<Request<?>> queue, Network network, Cache cache, ResponseDelivery delivery,
+                      Callback callback, long idleTimeoutMs) {
         mQueue = queue;
         mNetwork = network;
         mCache = cache;
         mDelivery = delivery;
+        mCallback = callback;
+        mIdleTimeoutMs = idleTimeoutMs;
     }
 
     /**
@@ -92,7 +138,7 @@ public class NetworkDispatcher extends Thread {
     @Override
     public void run() {
         Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
-        while (true) {
+        while (!mRetired) {
             try {
                 /**
                  * 在 NetworkDispatcher 同样使用了 while(true)，说明网络请求线程也是不断运行的。
@@ -115,13 +161,34 @@ public class NetworkDispatcher extends Thread {
     // https://github.com/google/volley/issues/114
     private void processRequest() throws InterruptedException {
         // Take a request from the queue.
-        Request<?> request = mQueue.take();
-        processRequest(request);
+        Request<?> request;
+        if (mCallback == null) {
+            request = mQueue.take();
+        } else {
+            request = mQueue.poll(mIdleTimeoutMs, TimeUnit.MILLISECONDS);
+            if (request == null) {
+                mRetired = mCallback.onIdleTimeout(this);
+                return;
+            }
+            mCallback.onRequestStarted(this);
+        }
+        try {
+            processRequest(request);
+        } finally {
+            // Free the request's per-host and per-tag slots so other requests can go out.
+            if (mQueue instanceof HostFairBlockingQueue) {
+                ((HostFairBlockingQueue) mQueue).release(request);
+            }
+            if (mCallback != null) {
+                mCallback.onRequestFinished(this);
+            }
+        }
     }
 
     @VisibleForTesting
     void processRequest(Request<?> request) {//process处理
         long startTimeMs = SystemClock.elapsedRealtime();
+        NetworkResponse networkResponse;
         try {
             request.addMarker("network-queue-take");
             // If the request was cancelled already, do not perform the
@@ -137,7 +204,25 @@ public class NetworkDispatcher extends Thread {
 
             // Perform the network request.
             // 执行网络请求
-            NetworkResponse networkResponse = mNetwork.performRequest(request);
+            networkResponse = mNetwork.performRequest(request);
+        } catch (VolleyError volleyError) {
+            handleNetworkError(request, volleyError, startTimeMs, mDelivery);
+            return;
+        } catch (Exception e) {
+            handleUnhandledException(request, e, startTimeMs, mDelivery);
+            return;
+        }
+        handleNetworkResponse(request, networkResponse, startTimeMs, mCache, mDelivery);
+    }
+
+    /**
+     * Parses a response from the network on the calling thread, writes it to the cache if
+     * applicable and posts it, then releases its pooled buffer. Shared with {@link
+     * AsyncNetworkDispatcherPool}.
+     */
+    static void handleNetworkResponse(Request<?> request, NetworkResponse networkResponse, long startTimeMs,
+                                      Cache cache, ResponseDelivery delivery) {
+        try {
             request.addMarker("network-http-complete");
             // If the server returned 304 AND we delivered a response already,
             // we're done -- don't deliver a second identical response.
@@ -155,29 +240,44 @@ public class NetworkDispatcher extends Thread {
             // Write to cache if applicable.
             // TODO: Only update cache metadata instead of entire record for 304s.
             if (request.shouldCache() && response.cacheEntry != null) {
-                mCache.put(request.getCacheKey(), response.cacheEntry);
+                cache.put(request.getCacheKey(), response.cacheEntry);
                 request.addMarker("network-cache-written");
             }
             // Post the response back.
             // 分发响应结果
             request.markDelivered();
-            mDelivery.postResponse(request, response);
+            delivery.postResponse(request, response);
             request.notifyListenerResponseReceived(response);
-        } catch (VolleyError volleyError) {
-            volleyError.setNetworkTimeMs(SystemClock.elapsedRealtime() - startTimeMs);
-            parseAndDeliverNetworkError(request, volleyError);
-            request.notifyListenerResponseNotUsable();
         } catch (Exception e) {
-            VolleyLog.e(e, "Unhandled exception %s", e.toString());
-            VolleyError volleyError = new VolleyError(e);
-            volleyError.setNetworkTimeMs(SystemClock.elapsedRealtime() - startTimeMs);
-            mDelivery.postError(request, volleyError);
-            request.notifyListenerResponseNotUsable();
+            handleUnhandledException(request, e, startTimeMs, delivery);
+        } finally {
+            // The response has been parsed and cached, so its pooled buffer can be reused.
+            if (networkResponse != null && networkResponse.pooledData != null) {
+                networkResponse.pooledData.release();
+            }
         }
     }
 
-    private void parseAndDeliverNetworkError(Request<?> request, VolleyError error) {
-        error = request.parseNetworkError(error);
-        mDelivery.postError(request, error);
+    /**
+     * Parses and posts an error from the network. Shared with {@link AsyncNetworkDispatcherPool}.
+     */
+    static void handleNetworkError(Request<?> request, VolleyError volleyError, long startTimeMs,
+                                   ResponseDelivery delivery) {
+        volleyError.setNetworkTimeMs(SystemClock.elapsedRealtime() - startTimeMs);
+        volleyError = request.parseNetworkError(volleyError);
+        delivery.postError(request, volleyError);
+        request.notifyListenerResponseNotUsable();
+    }
+
+    /**
+     * Posts an unexpected exception as an error. Shared with {@link AsyncNetworkDispatcherPool}.
+     */
+    static void handleUnhandledException(Request<?> request, Exception e, long startTimeMs,
+                                         ResponseDelivery delivery) {
+        VolleyLog.e(e, "Unhandled exception %s", e.toString());
+        VolleyError volleyError = new VolleyError(e);
+        volleyError.setNetworkTimeMs(SystemClock.elapsedRealtime() - startTimeMs);
+        delivery.postError(request, volleyError);
+        request.notifyListenerResponseNotUsable();
     }
 }
@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A strategy for running the {@link NetworkDispatcher} threads of a {@link RequestQueue}.
+ * <p>
+ * <p>{@link FixedNetworkDispatcherPool} keeps a constant number of threads, which is what {@link
+ * RequestQueue} uses unless told otherwise. {@link ElasticNetworkDispatcherPool} grows and shrinks
+ * with the load.
+ */
+public interface NetworkDispatcherPool {
+
+    /**
+     * Starts dispatching requests taken from the given network queue. Called from {@link
+     * RequestQueue#start()}; any previously started dispatchers have already been stopped.
+     *
+     * @param queue    Queue of requests going out to the network
+     * @param network  Network interface to use for performing requests
+     * @param cache    Cache interface to use for writing responses to cache
+     * @param delivery Delivery interface to use for posting responses
+     */
+    void start(BlockingQueue<Request<?>> queue, Network network, Cache cache, ResponseDelivery delivery);
+
+    /**
+     * Called after a request has been added to the network queue passed to {@link #start}. May be
+     * called from any thread, including before the pool has been started.
+     */
+    void onRequestQueued();
+
+    /**
+     * Stops all dispatchers. Requests still in the queue are not guaranteed to be processed.
+     */
+    void stop();
+}
@@ -56,7 +56,23 @@ public class NetworkResponse {
      * @param allHeaders    All headers returned with this response, or null for none
      */
     public NetworkResponse(int statusCode, byte[] data, boolean notModified, long networkTimeMs, List<Header> allHeaders) {
-        this(statusCode, data, toHeaderMap(allHeaders), allHeaders, notModified, networkTimeMs);
+        this(statusCode, data, notModified, networkTimeMs, allHeaders, data != null ? data.length : 0);
+    }
+
+    /**
+     * Creates a new network response whose body arrived in a different size, such as compressed.
+     *
+     * @param statusCode    the HTTP status code
+     * @param data          Response body, decoded
+     * @param notModified   True if the server returned a 304 and the data was already in cache
+     * @param networkTimeMs Round-trip network time to receive network response
+     * @param allHeaders    All headers returned with this response, or null for none
+     * @param wireLength    Size of the body as received over the network
+     */
+    public NetworkResponse(int statusCode, byte[] data, boolean notModified, long networkTimeMs, List<Header> allHeaders,
+                           int wireLength) {
+        this(statusCode, data, /* pooledData= */ null, toHeaderMap(allHeaders), allHeaders, notModified, networkTimeMs,
+                wireLength);
     }
 
     /**
@@ -98,9 +114,46 @@ public class NetworkResponse {
         this(HttpURLConnection.HTTP_OK, data, headers,/* notModified= */ false,/* networkTimeMs= */ 0);
     }
 
+    /**
+     * Creates a new network response whose body is held in a pooled buffer instead of {@link
+     * #data}, which is null. See {@link Request#acceptsPooledData()}.
+     *
+     * @param statusCode    the HTTP status code
+     * @param pooledData    Response body; its reference is released once the response is handled
+     * @param networkTimeMs Round-trip network time to receive network response
+     * @param allHeaders    All headers returned with this response, or null for none
+     */
+    public NetworkResponse(int statusCode, PooledBuffer pooledData, long networkTimeMs, List<Header> allHeaders) {
+        this(statusCode, pooledData, networkTimeMs, allHeaders, pooledData != null ? pooledData.getLength() : 0);
+    }
+
+    /**
+     * Creates a new network response whose body is held in a pooled buffer, and arrived in a
+     * different size, such as compressed.
+     *
+     * @param statusCode    the HTTP status code
+     * @param pooledData    Response body, decoded; its reference is released once the response is
+     *                      handled
+     * @param networkTimeMs Round-trip network time to receive network response
+     * @param allHeaders    All headers returned with this response, or null for none
+     * @param wireLength    Size of the body as received over the network
+     */
+    public NetworkResponse(int statusCode, PooledBuffer pooledData, long networkTimeMs, List<Header> allHeaders,
+                           int wireLength) {
+        this(statusCode, null, pooledData, toHeaderMap(allHeaders), allHeaders, /* notModified= */ false, networkTimeMs,
+                wireLength);
+    }
+
     private NetworkResponse(int statusCode, byte[] data, Map<String, String> headers, List<Header> allHeaders, boolean notModified, long networkTimeMs) {
+        this(statusCode, data, /* pooledData= */ null, headers, allHeaders, notModified, networkTimeMs,
+                data != null ? data.length : 0);
+    }
+
+    private NetworkResponse(int statusCode, byte[] data, PooledBuffer pooledData, Map<String, String> headers,
+                            List<Header> allHeaders, boolean notModified, long networkTimeMs, int wireLength) {
         this.statusCode = statusCode;
         this.data = data;
+        this.pooledData = pooledData;
         this.headers = headers;
         if (allHeaders == null) {
             this.allHeaders = null;
@@ -109,6 +162,12 @@ public class NetworkResponse {
         }
         this.notModified = notModified;
         this.networkTimeMs = networkTimeMs;
+        this.wireLength = wireLength;
+        if (pooledData != null) {
+            this.decodedLength = pooledData.getLength();
+        } else {
+            this.decodedLength = data != null ? data.length : 0;
+        }
     }
 
 
@@ -118,6 +177,13 @@ public class NetworkResponse {
     //Raw data from this response.
     public final byte[] data;
 
+    /**
+     * Raw data from this response held in a pooled buffer, if the request accepts it, in which
+     * case {@link #data} is null. Only valid until the response is handled; see {@link
+     * Request#acceptsPooledData()}.
+     */
+    public final PooledBuffer pooledData;
+
     /**
      * Response headers.
      * <p>
@@ -142,6 +208,17 @@ public class NetworkResponse {
     // Network roundtrip time in milliseconds.
     public final long networkTimeMs;
 
+    /**
+     * Size of the body as received over the network. Smaller than {@link #decodedLength} if the
+     * server compressed the body.
+     */
+    public final int wireLength;
+
+    /**
+     * Size of the body after decoding, as held in {@link #data} or {@link #pooledData}.
+     */
+    public final int decodedLength;
+
     private static Map<String, String> toHeaderMap(List<Header> allHeaders) {
         if (allHeaders == null) {
             return null;
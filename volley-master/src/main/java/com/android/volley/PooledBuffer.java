@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A response body held in a buffer borrowed from a pool, which is handed back once everyone
+ * holding a reference has released it. See {@link NetworkResponse#pooledData}.
+ * <p>
+ * <p>The buffer may be larger than the body; only its first {@link #getLength()} bytes are valid.
+ * It starts with one reference, which belongs to whoever created it. Code which keeps the buffer
+ * beyond the call it was handed to must {@link #retain()} it, and {@link #release()} it when done.
+ */
+public final class PooledBuffer {
+
+    /**
+     * Takes back a buffer once it is no longer referenced.
+     */
+    public interface Recycler {
+        void recycle(byte[] buffer);
+    }
+
+    private final byte[] mBuffer;
+    private final int mLength;
+    private final Recycler mRecycler;
+    private final AtomicInteger mRefCount = new AtomicInteger(1);
+
+    /**
+     * @param buffer   Buffer holding the data
+     * @param length   Number of valid bytes at the start of the buffer
+     * @param recycler Where the buffer goes once released, or null to leave it to the garbage
+     *                 collector
+     */
+    public PooledBuffer(byte[] buffer, int length, Recycler recycler) {
+        if (length < 0 || length > buffer.length) {
+            throw new IllegalArgumentException("length=" + length + ", buffer length=" + buffer.length);
+        }
+        mBuffer = buffer;
+        mLength = length;
+        mRecycler = recycler;
+    }
+
+    /**
+     * Returns the buffer, whose first {@link #getLength()} bytes hold the data. It must not be used
+     * after the last reference was released.
+     *
+     * @throws IllegalStateException if the buffer was released already
+     */
+    public byte[] getBuffer() {
+        checkNotReleased();
+        return mBuffer;
+    }
+
+    /**
+     * Returns the number of valid bytes in the buffer.
+     */
+    public int getLength() {
+        return mLength;
+    }
+
+    /**
+     * Returns a stream reading the data.
+     */
+    public InputStream newInputStream() {
+        return new ByteArrayInputStream(getBuffer(), 0, mLength);
+    }
+
+    /**
+     * Returns a copy of the data, which remains valid after the buffer is released.
+     */
+    public byte[] toByteArray() {
+        byte[] copy = new byte[mLength];
+        System.arraycopy(getBuffer(), 0, copy, 0, mLength);
+        return copy;
+    }
+
+    /**
+     * Adds a reference to the buffer, which keeps it from going back to the pool until it is
+     * released.
+     *
+     * @return this buffer
+     * @throws IllegalStateException if the buffer was released already
+     */
+    public PooledBuffer retain() {
+        int count;
+        do {
+            count = mRefCount.get();
+            if (count <= 0) {
+                throw new IllegalStateException("Buffer already released");
+            }
+        } while (!mRefCount.compareAndSet(count, count + 1));
+        return this;
+    }
+
+    /**
+     * Drops a reference to the buffer, handing it back to the pool when it was the last one.
+     *
+     * @throws IllegalStateException if the buffer was released already
+     */
+    public void release() {
+        int count;
+        do {
+            count = mRefCount.get();
+            if (count <= 0) {
+                throw new IllegalStateException("Buffer already released");
+            }
+        } while (!mRefCount.compareAndSet(count, count - 1));
+        if (count == 1 && mRecycler != null) {
+            mRecycler.recycle(mBuffer);
+        }
+    }
+
+    /**
+     * Returns whether the last reference was released.
+     */
+    public boolean isReleased() {
+        return mRefCount.get() <= 0;
+    }
+
+    private void checkNotReleased() {
+        if (isReleased()) {
+            throw new IllegalStateException("Buffer already released");
+        }
+    }
+}
@@ -521,6 +521,21 @@ public abstract class Request<T> implements Comparable<Request<T>> {
         return null;
     }
 
+    /**
+     * Returns a POST, PUT or PATCH body to stream to the server, or null to send {@link #getBody()}
+     * instead. A streaming body is written to the connection as it is sent, so large uploads don't
+     * have to be held in memory, and its content type takes precedence over
+     * {@link #getBodyContentType()}.
+     * <p>
+     * <p>{@link com.android.volley.toolbox.HurlStack} streams the body with fixed-length or chunked
+     * streaming mode; other stacks may buffer it.
+     *
+     * @throws AuthFailureError in the event of auth failure
+     */
+    public RequestBody getStreamingBody() throws AuthFailureError {
+        return null;
+    }
+
     /**
      * Converts <code>params</code> into an application/x-www-form-urlencoded encoded string.
      */
@@ -539,6 +554,22 @@ public abstract class Request<T> implements Comparable<Request<T>> {
         }
     }
 
+    /**
+     * Returns whether {@link #parseNetworkResponse} reads the body of successful responses from
+     * {@link NetworkResponse#pooledData} rather than {@link NetworkResponse#data}, which saves
+     * copying the body out of the network's buffer pool.
+     * <p>
+     * <p>If so, the data field of those responses is null, and their buffer goes back to the pool
+     * once the response is parsed and written to the cache. Neither the parsed result nor the
+     * cache entry may keep a reference to the buffer: {@link
+     * com.android.volley.toolbox.HttpHeaderParser#parseCacheHeaders} copies the body for the
+     * cache, and a parser which needs the buffer for longer must {@link PooledBuffer#retain()} it.
+     * Bodies of cache hits, 304s and error responses are always in the data field.
+     */
+    public boolean acceptsPooledData() {
+        return false;
+    }
+
     /**
      * Set whether or not responses to this request should be cached.
      *
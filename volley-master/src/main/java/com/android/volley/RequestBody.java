@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A request body which is written to the connection as it is sent, rather than built as a byte
+ * array first, so that large uploads use bounded memory. See {@link Request#getStreamingBody()}.
+ * <p>
+ * <p>{@link #writeTo} is called once per attempt, so it must write the same content every time.
+ */
+public abstract class RequestBody {
+
+    /**
+     * Returns the content type of the body, such as {@code image/jpeg}.
+     */
+    public abstract String getContentType();
+
+    /**
+     * Returns the length of the body in bytes, or -1 if it isn't known in advance, in which case
+     * it is sent with chunked transfer encoding.
+     */
+    public abstract long getContentLength();
+
+    /**
+     * Writes the body to the given stream, without closing it.
+     */
+    public abstract void writeTo(OutputStream out) throws IOException;
+
+    /**
+     * Creates a body with the given content.
+     */
+    public static RequestBody create(final String contentType, final byte[] content) {
+        return new RequestBody() {
+            @Override
+            public String getContentType() {
+                return contentType;
+            }
+
+            @Override
+            public long getContentLength() {
+                return content.length;
+            }
+
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                out.write(content);
+            }
+        };
+    }
+
+    /**
+     * Creates a body with the contents of the given file, read as the body is sent.
+     */
+    public static RequestBody create(final String contentType, final File file) {
+        return new RequestBody() {
+            @Override
+            public String getContentType() {
+                return contentType;
+            }
+
+            @Override
+            public long getContentLength() {
+                return file.length();
+            }
+
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                copyFile(file, out);
+            }
+        };
+    }
+
+    /**
+     * Writes the contents of a file to a stream through a small buffer.
+     */
+    protected static void copyFile(File file, OutputStream out) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -69,14 +69,19 @@ public class RequestQueue {
     /**
      * The queue of requests that are actually going out to the network.
      */
-    //优先级队列，网络队列
-    private final PriorityBlockingQueue<Request<?>> mNetworkQueue = new PriorityBlockingQueue<>();
+    //优先级队列，网络队列，同优先级的请求按 host 轮流分发
+    private final HostFairBlockingQueue mNetworkQueue;
 
     /**
      * Number of network request dispatcher threads to start.
      */
     private static final int DEFAULT_NETWORK_THREAD_POOL_SIZE = 4;
 
+    /**
+     * Number of cache dispatcher threads to start by default.
+     */
+    private static final int DEFAULT_CACHE_THREAD_POOL_SIZE = 1;
+
     /**
      * Cache interface for retrieving and storing responses.
      */
@@ -96,13 +101,29 @@ public class RequestQueue {
     /**
      * The network dispatchers.
      */
-    //网络调度员。分发器，是一个数组，说明会有多个网络请求
-    private final NetworkDispatcher[] mDispatchers;
+    //网络调度员。分发器，说明会有多个网络请求
+    private final NetworkDispatcherPool mNetworkDispatcherPool;
+
+    /**
+     * Number of cache dispatchers to create in {@link #start()}.
+     */
+    private int mCacheThreadPoolSize = DEFAULT_CACHE_THREAD_POOL_SIZE;
 
     /**
-     * The cache dispatcher.
+     * The cache dispatchers.
      */
-    private CacheDispatcher mCacheDispatcher;
+    private CacheDispatcher[] mCacheDispatchers;
+
+    /**
+     * Maximum number of cache writes left to a background thread, or 0 to write inline.
+     */
+    private int mMaxPendingCacheWrites = 0;
+
+    /**
+     * Cache wrapper the dispatchers go through when cache writes are done in the background, or
+     * null. Kept across restarts so that writes still pending from before a stop stay in order.
+     */
+    private WriteBehindCache mWriteBehindCache;
 
     private final List<RequestFinishedListener> mFinishedListeners = new ArrayList<>();
 
@@ -115,12 +136,44 @@ public class RequestQueue {
      * @param delivery       A ResponseDelivery interface for posting responses and errors
      */
     public RequestQueue(Cache cache, Network network, int threadPoolSize, ResponseDelivery delivery) {
-        //this(cache, network, threadPoolSize, new ExecutorDelivery(new Handler(Looper.getMainLooper())));
+        this(cache, network, new FixedNetworkDispatcherPool(threadPoolSize), delivery);
+    }
+
+    /**
+     * Creates the worker pool. Processing will not begin until {@link #start()} is called.
+     *
+     * @param cache                 A Cache to use for persisting responses to disk
+     * @param network               A Network interface for performing HTTP requests
+     * @param networkDispatcherPool Pool running the network dispatcher threads
+     * @param delivery              A ResponseDelivery interface for posting responses and errors
+     */
+    public RequestQueue(Cache cache, Network network, NetworkDispatcherPool networkDispatcherPool, ResponseDelivery delivery) {
         //父类=子类;多态
         mCache = cache;
         mNetwork = network;
-        mDispatchers = new NetworkDispatcher[threadPoolSize];
+        mNetworkDispatcherPool = networkDispatcherPool;
         mDelivery = delivery;
+        // Requests reach the network queue from add(), the cache dispatcher and requests waiting on
+        // a duplicate, so let the pool know about all of them at the single point they go through.
+        mNetworkQueue = new HostFairBlockingQueue() {
+            @Override
+            public boolean offer(Request<?> request) {
+                boolean added = super.offer(request);
+                mNetworkDispatcherPool.onRequestQueued();
+                return added;
+            }
+        };
+    }
+
+    /**
+     * Creates the worker pool. Processing will not begin until {@link #start()} is called.
+     *
+     * @param cache                 A Cache to use for persisting responses to disk
+     * @param network               A Network interface for performing HTTP requests
+     * @param networkDispatcherPool Pool running the network dispatcher threads
+     */
+    public RequestQueue(Cache cache, Network network, NetworkDispatcherPool networkDispatcherPool) {
+        this(cache, network, networkDispatcherPool, new ExecutorDelivery(new Handler(Looper.getMainLooper())));
     }
 
     /**
@@ -152,31 +205,110 @@ public class RequestQueue {
         // Create the cache dispatcher and start it.
         //然后创建了一个 CacheDispatcher 实例，并调用了它的 start() 方法
         //TODO  CacheDispatcher extends Thread
-        mCacheDispatcher = new CacheDispatcher(mCacheQueue, mNetworkQueue, mCache, mDelivery);
-        mCacheDispatcher.start();
-        // Create network dispatchers (and corresponding threads) up to the pool size.
-        for (int i = 0; i < mDispatchers.length; i++) {
-            //接着在一个循环里去创建 NetworkDispatcher 的实例，分别调用它们的 start() 方法
-            //这里的 CacheDispatcher 和 NetworkDispatcher 都是继承自 Thread 的，默认情况下 for 循环会执行四次，
-            // 也就是说当调用了 Volley.newRequestQueue(context) 之后，就会有五个线程在后台运行，等待网络请求的到来，
-            // 其中 CacheDispatcher 是缓存线程，NetworkDispatcher 是网络请求线程。
-            //TODO NetworkDispatcher extends Thread
-            NetworkDispatcher networkDispatcher = new NetworkDispatcher(mNetworkQueue, mNetwork, mCache, mDelivery);
-            mDispatchers[i] = networkDispatcher;
-            networkDispatcher.start();
+        // Cache dispatchers share de-duplication of in-flight requests and initialize the cache once.
+        CacheDispatcher.WaitingRequestManager waitingRequestManager = new CacheDispatcher.WaitingRequestManager(mDelivery, mNetworkQueue);
+        CacheInitializer cacheInitializer = new CacheInitializer(mCache);
+        Cache dispatcherCache = mCache;
+        if (mMaxPendingCacheWrites > 0) {
+            if (mWriteBehindCache == null) {
+                mWriteBehindCache = new WriteBehindCache(mCache, mMaxPendingCacheWrites);
+            } else {
+                mWriteBehindCache.setMaxPendingWrites(mMaxPendingCacheWrites);
+            }
+            mWriteBehindCache.start();
+            // Both kinds of dispatcher must go through it, so cache hits see pending writes.
+            dispatcherCache = mWriteBehindCache;
+        }
+        mCacheDispatchers = new CacheDispatcher[mCacheThreadPoolSize];
+        for (int i = 0; i < mCacheDispatchers.length; i++) {
+            mCacheDispatchers[i] = new CacheDispatcher(mCacheQueue, mNetworkQueue, dispatcherCache, mDelivery, waitingRequestManager, cacheInitializer);
+            mCacheDispatchers[i].start();
         }
+        // Create network dispatchers (and corresponding threads).
+        //接着由 NetworkDispatcherPool 去创建 NetworkDispatcher 的实例，分别调用它们的 start() 方法
+        //这里的 CacheDispatcher 和 NetworkDispatcher 都是继承自 Thread 的，默认情况下会创建四个 NetworkDispatcher，
+        // 也就是说当调用了 Volley.newRequestQueue(context) 之后，就会有五个线程在后台运行，等待网络请求的到来，
+        // 其中 CacheDispatcher 是缓存线程，NetworkDispatcher 是网络请求线程。
+        //TODO NetworkDispatcher extends Thread
+        mNetworkDispatcherPool.start(mNetworkQueue, mNetwork, dispatcherCache, mDelivery);
     }
 
     //Stops the cache and network dispatchers.
+    // Cache writes still pending are completed by the background writer, which then exits.
     public void stop() {
-        if (mCacheDispatcher != null) {
-            mCacheDispatcher.quit();//中断线程
-        }
-        for (final NetworkDispatcher mDispatcher : mDispatchers) {
-            if (mDispatcher != null) {
-                mDispatcher.quit();
+        if (mCacheDispatchers != null) {
+            for (CacheDispatcher cacheDispatcher : mCacheDispatchers) {
+                cacheDispatcher.quit();//中断线程
             }
         }
+        mNetworkDispatcherPool.stop();
+        if (mWriteBehindCache != null) {
+            mWriteBehindCache.stop();
+        }
+    }
+
+    /**
+     * Sets the number of cache dispatcher threads, which read cached responses and parse them.
+     * Using more than one lets cache hits be served in parallel, e.g. when a screen full of images
+     * is loaded from cache. Takes effect the next time the queue is started. The default is 1.
+     *
+     * @param threadPoolSize Number of cache dispatcher threads, at least 1
+     */
+    public void setCacheThreadPoolSize(int threadPoolSize) {
+        if (threadPoolSize < 1) {
+            throw new IllegalArgumentException("threadPoolSize must be at least 1");
+        }
+        mCacheThreadPoolSize = threadPoolSize;
+    }
+
+    /**
+     * Makes network dispatchers leave cache writes to a background thread, so responses are
+     * delivered without waiting for the disk. Writes of the same key are coalesced, and entries
+     * waiting to be written are served to cache dispatchers. Once {@code maxPendingWrites} keys are
+     * waiting, further responses are written inline again. Writes made directly through {@link
+     * #getCache()} bypass the queue. Takes effect the next time the queue is started. By default
+     * cache writes are inline.
+     *
+     * @param maxPendingWrites Maximum number of keys waiting to be written, or 0 to write inline
+     */
+    public void setCacheWriteBehind(int maxPendingWrites) {
+        if (maxPendingWrites < 0) {
+            throw new IllegalArgumentException("maxPendingWrites must not be negative");
+        }
+        mMaxPendingCacheWrites = maxPendingWrites;
+    }
+
+    /**
+     * Limits the number of requests in flight to any single host, so that a slow host can't occupy
+     * every network dispatcher. Requests beyond the limit wait in the queue without holding up
+     * requests for other hosts. There is no limit by default.
+     *
+     * @param maxInFlight The maximum number of concurrent requests per host, at least 1
+     */
+    public void setMaxInFlightRequestsPerHost(int maxInFlight) {
+        mNetworkQueue.setMaxInFlightPerHost(maxInFlight);
+    }
+
+    /**
+     * Limits the number of requests in flight to the given host, overriding {@link
+     * #setMaxInFlightRequestsPerHost(int)} for that host.
+     *
+     * @param host        The host name, as in the request URLs
+     * @param maxInFlight The maximum number of concurrent requests, at least 1
+     */
+    public void setMaxInFlightRequestsForHost(String host, int maxInFlight) {
+        mNetworkQueue.setMaxInFlightForHost(host, maxInFlight);
+    }
+
+    /**
+     * Limits the number of requests in flight with the given tag. Tag must be non-null and
+     * equality is by identity.
+     *
+     * @param tag         The tag set with {@link Request#setTag(Object)}
+     * @param maxInFlight The maximum number of concurrent requests, at least 1
+     */
+    public void setMaxInFlightRequestsForTag(Object tag, int maxInFlight) {
+        mNetworkQueue.setMaxInFlightForTag(tag, maxInFlight);
     }
 
     /**
@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import android.os.Process;
+import android.support.annotation.GuardedBy;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Wraps a {@link Cache} so that puts return right away and are written by a background thread,
+ * taking disk writes off the path of response delivery.
+ * <p>
+ * <p>Pending writes are coalesced by key, so only the latest entry for a key is written. Entries
+ * waiting to be written are returned by {@link #get}, so readers going through this cache never
+ * see an older entry. Once the number of pending keys reaches the limit, puts of new keys are
+ * written by the calling thread instead.
+ * <p>
+ * <p>The underlying cache is not initialized through this class; {@link RequestQueue} initializes
+ * it directly.
+ */
+class WriteBehindCache implements Cache {
+
+    private final Cache mCache;
+
+    /**
+     * Entries waiting to be written, oldest first. The entry being written stays in the map until
+     * it is on disk.
+     */
+    @GuardedBy("this")
+    private final Map<String, Entry> mPending = new LinkedHashMap<>();
+
+    /** Key of the entry being written, or null. */
+    @GuardedBy("this")
+    private String mWritingKey;
+
+    /** Maximum number of keys with a pending write. */
+    @GuardedBy("this")
+    private int mMaxPendingWrites;
+
+    /** The thread writing pending entries, or null if it is not running. */
+    @GuardedBy("this")
+    private Thread mWriter;
+
+    /** Set by {@link #stop()}; the writer exits once all pending entries are written. */
+    @GuardedBy("this")
+    private boolean mStopping = false;
+
+    WriteBehindCache(Cache cache, int maxPendingWrites) {
+        mCache = cache;
+        setMaxPendingWrites(maxPendingWrites);
+    }
+
+    synchronized void setMaxPendingWrites(int maxPendingWrites) {
+        if (maxPendingWrites < 1) {
+            throw new IllegalArgumentException("maxPendingWrites must be at least 1");
+        }
+        mMaxPendingWrites = maxPendingWrites;
+    }
+
+    /** Starts the writer thread, or keeps it running if it is still draining after a stop. */
+    synchronized void start() {
+        mStopping = false;
+        if (mWriter != null) {
+            return;
+        }
+        mWriter =
+                new Thread("CacheWriter") {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        writePending();
+                    }
+                };
+        mWriter.start();
+    }
+
+    /**
+     * Lets the writer thread exit once it has written all pending entries. Doesn't wait for it;
+     * see {@link #flush()}.
+     */
+    synchronized void stop() {
+        mStopping = true;
+        notifyAll();
+    }
+
+    /** Waits until all entries put so far have been written. */
+    synchronized void flush() throws InterruptedException {
+        while (!mPending.isEmpty()) {
+            if (mWriter == null) {
+                // Nobody left to write them.
+                return;
+            }
+            wait();
+        }
+    }
+
+    @Override
+    public Entry get(String key) {
+        synchronized (this) {
+            Entry pending = mPending.get(key);
+            if (pending != null) {
+                return pending;
+            }
+        }
+        return mCache.get(key);
+    }
+
+    @Override
+    public void put(String key, Entry entry) {
+        synchronized (this) {
+            if (mWriter != null && (mPending.containsKey(key) || mPending.size() < mMaxPendingWrites)) {
+                // Replacing a pending entry keeps its place in line.
+                mPending.put(key, entry);
+                notifyAll();
+                return;
+            }
+        }
+        mCache.put(key, entry);
+    }
+
+    @Override
+    public void initialize() {
+        mCache.initialize();
+    }
+
+    @Override
+    public void invalidate(String key, boolean fullExpire) {
+        try {
+            awaitWritten(key);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        mCache.invalidate(key, fullExpire);
+    }
+
+    @Override
+    public void remove(String key) {
+        try {
+            synchronized (this) {
+                mPending.remove(key);
+                awaitNotWritingLocked(key);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        mCache.remove(key);
+    }
+
+    @Override
+    public void clear() {
+        try {
+            synchronized (this) {
+                mPending.clear();
+                awaitNotWritingLocked(null);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        mCache.clear();
+    }
+
+    /** Waits until no write of the given key is pending, so a change applies to the latest entry. */
+    private synchronized void awaitWritten(String key) throws InterruptedException {
+        while (mPending.containsKey(key) && mWriter != null) {
+            wait();
+        }
+    }
+
+    /**
+     * Waits until the writer isn't writing the given key, or any key if null, so that the write
+     * can't land after the caller's change.
+     */
+    @GuardedBy("this")
+    private void awaitNotWritingLocked(String key) throws InterruptedException {
+        while (mWritingKey != null && (key == null || key.equals(mWritingKey))) {
+            wait();
+        }
+    }
+
+    private void writePending() {
+        while (true) {
+            String key;
+            Entry entry;
+            synchronized (this) {
+                while (mPending.isEmpty()) {
+                    if (mStopping) {
+                        mWriter = null;
+                        notifyAll();
+                        return;
+                    }
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        // Only stop() ends the writer, and only once everything is written.
+                    }
+                }
+                Map.Entry<String, Entry> next = mPending.entrySet().iterator().next();
+                key = next.getKey();
+                entry = next.getValue();
+                mWritingKey = key;
+            }
+            try {
+                mCache.put(key, entry);
+            } catch (RuntimeException e) {
+                VolleyLog.e(e, "Failed to write cache entry for %s", key);
+            } finally {
+                synchronized (this) {
+                    mWritingKey = null;
+                    // If the entry was replaced while being written, write the new one next.
+                    if (mPending.get(key) == entry) {
+                        mPending.remove(key);
+                    }
+                    notifyAll();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import com.android.volley.AuthFailureError;
+import com.android.volley.Request;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * {@link AsyncHttpStack} implementation running a synchronous {@link BaseHttpStack} on the
+ * blocking executor.
+ *
+ * <p>{@link BasicNetwork} uses this to perform requests asynchronously over a stack which isn't
+ * an {@link AsyncHttpStack}, allowing it to have one asynchronous implementation.
+ */
+class AdaptedAsyncHttpStack extends AsyncHttpStack {
+
+    private final BaseHttpStack mHttpStack;
+
+    AdaptedAsyncHttpStack(BaseHttpStack httpStack) {
+        mHttpStack = httpStack;
+    }
+
+    @Override
+    public void executeRequestAsync(final Request<?> request, final Map<String, String> additionalHeaders,
+                                    final OnRequestComplete callback) {
+        ExecutorService executor = getBlockingExecutor();
+        if (executor == null) {
+            throw new IllegalStateException("setBlockingExecutor() must be called first");
+        }
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    HttpResponse httpResponse;
+                    try {
+                        httpResponse = mHttpStack.executeRequest(request, additionalHeaders);
+                    } catch (IOException e) {
+                        callback.onError(e);
+                        return;
+                    } catch (AuthFailureError e) {
+                        callback.onAuthError(e);
+                        return;
+                    } catch (RuntimeException e) {
+                        // Nobody would hear of the request again otherwise.
+                        callback.onError(new IOException(e));
+                        return;
+                    }
+                    callback.onSuccess(httpResponse);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // The executor was shut down, e.g. by stopping the RequestQueue, while a retry was due.
+            callback.onError(new IOException(e));
+        }
+    }
+
+    @Override
+    public HttpResponse executeRequest(Request<?> request, Map<String, String> additionalHeaders) throws IOException, AuthFailureError {
+        return mHttpStack.executeRequest(request, additionalHeaders);
+    }
+}
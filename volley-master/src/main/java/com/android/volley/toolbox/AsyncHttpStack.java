@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import com.android.volley.AuthFailureError;
+import com.android.volley.Request;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * A {@link BaseHttpStack} which performs requests without blocking the calling thread, for
+ * {@link BasicNetwork} used as a {@link com.android.volley.AsyncNetwork}.
+ * <p>
+ * <p>The synchronous {@link #executeRequest} waits for the asynchronous one. {@link BasicNetwork}
+ * runs synchronous stacks on its blocking executor instead.
+ */
+public abstract class AsyncHttpStack extends BaseHttpStack {
+
+    /**
+     * Receives the outcome of an asynchronous request. Exactly one of the methods is called, on
+     * any thread; they should return quickly.
+     */
+    public interface OnRequestComplete {
+        /**
+         * Called with the response once its headers arrived. Reading its content may block.
+         */
+        void onSuccess(HttpResponse httpResponse);
+
+        void onAuthError(AuthFailureError authFailureError);
+
+        void onError(IOException ioException);
+    }
+
+    private volatile ExecutorService mBlockingExecutor;
+
+    /**
+     * Performs an HTTP request, reporting its response or error to the callback.
+     *
+     * @param request           the request to perform
+     * @param additionalHeaders additional headers to be sent together with {@link
+     *                          Request#getHeaders()}
+     * @param callback          callback to report the outcome to
+     */
+    public abstract void executeRequestAsync(Request<?> request, Map<String, String> additionalHeaders, OnRequestComplete callback);
+
+    @Override
+    public HttpResponse executeRequest(Request<?> request, Map<String, String> additionalHeaders) throws IOException, AuthFailureError {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final HttpResponse[] response = new HttpResponse[1];
+        final AuthFailureError[] authError = new AuthFailureError[1];
+        final IOException[] ioError = new IOException[1];
+        executeRequestAsync(request, additionalHeaders, new OnRequestComplete() {
+            @Override
+            public void onSuccess(HttpResponse httpResponse) {
+                response[0] = httpResponse;
+                latch.countDown();
+            }
+
+            @Override
+            public void onAuthError(AuthFailureError authFailureError) {
+                authError[0] = authFailureError;
+                latch.countDown();
+            }
+
+            @Override
+            public void onError(IOException ioException) {
+                ioError[0] = ioException;
+                latch.countDown();
+            }
+        });
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        if (authError[0] != null) {
+            throw authError[0];
+        }
+        if (ioError[0] != null) {
+            throw ioError[0];
+        }
+        return response[0];
+    }
+
+    /**
+     * Sets the executor for work which blocks, such as name lookups. {@link BasicNetwork} passes
+     * on its own.
+     */
+    public void setBlockingExecutor(ExecutorService executor) {
+        mBlockingExecutor = executor;
+    }
+
+    /**
+     * Returns the executor for work which blocks, or null if none was set.
+     */
+    protected ExecutorService getBlockingExecutor() {
+        return mBlockingExecutor;
+    }
+}
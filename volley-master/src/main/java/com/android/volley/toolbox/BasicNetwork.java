@@ -18,15 +18,17 @@ package com.android.volley.toolbox;
 
 import android.os.SystemClock;
 
+import com.android.volley.AsyncNetwork;
 import com.android.volley.AuthFailureError;
 import com.android.volley.Cache;
 import com.android.volley.Cache.Entry;
 import com.android.volley.ClientError;
 import com.android.volley.Header;
-import com.android.volley.Network;
 import com.android.volley.NetworkError;
 import com.android.volley.NetworkResponse;
 import com.android.volley.NoConnectionError;
+import com.android.volley.ParseError;
+import com.android.volley.PooledBuffer;
 import com.android.volley.Request;
 import com.android.volley.RetryPolicy;
 import com.android.volley.ServerError;
@@ -34,8 +36,10 @@ import com.android.volley.TimeoutError;
 import com.android.volley.VolleyError;
 import com.android.volley.VolleyLog;
 
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PushbackInputStream;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.SocketTimeoutException;
@@ -43,16 +47,22 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 /**
  * A network performing Volley requests over an {@link HttpStack}.
  * Basic 基本的
  */
-public class BasicNetwork implements Network {
+public class BasicNetwork extends AsyncNetwork {
 
 
     protected static final boolean DEBUG = VolleyLog.DEBUG;
@@ -61,6 +71,18 @@ public class BasicNetwork implements Network {
 
     private static final int DEFAULT_POOL_SIZE = 4096;
 
+    private static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+
+    private static final String HEADER_CONTENT_ENCODING = "Content-Encoding";
+
+    private static final String HEADER_CONTENT_LENGTH = "Content-Length";
+
+    /** The content encodings BasicNetwork decodes. */
+    private static final String ACCEPTED_ENCODINGS = "gzip, deflate";
+
+    /** Size of the buffer for compressed bytes while decoding a body. */
+    private static final int DECODE_BUFFER_SIZE = 8192;
+
     /**
      * @deprecated Should never have been exposed in the API. This field may be removed in a future
      * release of Volley.
@@ -70,6 +92,9 @@ public class BasicNetwork implements Network {
 
     private final BaseHttpStack mBaseHttpStack;
 
+    /** The stack for asynchronous requests; {@link #mBaseHttpStack}, adapted if need be. */
+    private final AsyncHttpStack mAsyncHttpStack;
+
     protected final ByteArrayPool mPool;
 
     /**
@@ -80,8 +105,9 @@ public class BasicNetwork implements Network {
     @Deprecated
     public BasicNetwork(HttpStack httpStack) {
         // If a pool isn't passed in, then build a small default pool that will give us a lot of
-        // benefit and not use too much memory.
-        this(httpStack, new ByteArrayPool(DEFAULT_POOL_SIZE));
+        // benefit and not use too much memory. All network dispatchers share it, so use the pool
+        // which doesn't lock.
+        this(httpStack, new SizeClassByteArrayPool(DEFAULT_POOL_SIZE));
     }
 
     /**
@@ -94,6 +120,7 @@ public class BasicNetwork implements Network {
     public BasicNetwork(HttpStack httpStack, ByteArrayPool pool) {
         mHttpStack = httpStack;
         mBaseHttpStack = new AdaptedHttpStack(httpStack);
+        mAsyncHttpStack = new AdaptedAsyncHttpStack(mBaseHttpStack);
         mPool = pool;
     }
 
@@ -102,8 +129,9 @@ public class BasicNetwork implements Network {
      */
     public BasicNetwork(BaseHttpStack httpStack) {
         // If a pool isn't passed in, then build a small default pool that will give us a lot of
-        // benefit and not use too much memory.
-        this(httpStack, new ByteArrayPool(DEFAULT_POOL_SIZE));
+        // benefit and not use too much memory. All network dispatchers share it, so use the pool
+        // which doesn't lock.
+        this(httpStack, new SizeClassByteArrayPool(DEFAULT_POOL_SIZE));
     }
 
     /**
@@ -116,6 +144,8 @@ public class BasicNetwork implements Network {
         // we won't use it directly here, so clients which don't access it directly won't need to
         // depend on Apache HTTP.
         mHttpStack = httpStack;
+        mAsyncHttpStack = httpStack instanceof AsyncHttpStack
+                ? (AsyncHttpStack) httpStack : new AdaptedAsyncHttpStack(httpStack);
         mPool = pool;
     }
 
@@ -124,101 +154,237 @@ public class BasicNetwork implements Network {
         long requestStart = SystemClock.elapsedRealtime();
         while (true) {
             HttpResponse httpResponse = null;//HTTP响应的数据
-            byte[] responseContents = null;//body
-            List<Header> responseHeaders = Collections.emptyList();//head
+            NetworkResponse networkResponse;
+            boolean decodeContent = shouldDecodeContent(request);
             try {
                 // Gather headers.
                 //Entry 里面主要是放网络响应的原始数据 data、跟缓存相关的属性以及对应的响应头，作为缓存的一个实体。
-                Map<String, String> additionalRequestHeaders = getCacheHeaders(request.getCacheEntry());
+                Map<String, String> additionalRequestHeaders = getAdditionalHeaders(request, decodeContent);
                 //TODO  该注意的地方：调用 Stack 的 executeRequest 进行网络请求，，BaseHttpStack 是一个抽象的请求堆类, T
                 //TODO  executeRequest开始进行网络请求 HttpURLConnection
                 httpResponse = mBaseHttpStack.executeRequest(request, additionalRequestHeaders);
-                int statusCode = httpResponse.getStatusCode();
-                responseHeaders = httpResponse.getHeaders();
-                // Handle cache validation.
-                if (statusCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
-                    Entry entry = request.getCacheEntry();
-                    if (entry == null) {
-                        return new NetworkResponse(HttpURLConnection.HTTP_NOT_MODIFIED,/* data= */ null,
-                                /* notModified= */ true, SystemClock.elapsedRealtime() - requestStart,
-                                responseHeaders);
-                    }
-                    // Combine cached and response headers so the response will be complete.
-                    List<Header> combinedHeaders = combineHeaders(responseHeaders, entry);
-                    return new NetworkResponse(HttpURLConnection.HTTP_NOT_MODIFIED, entry.data,
-                            /* notModified= */ true, SystemClock.elapsedRealtime() - requestStart,
-                            combinedHeaders);
-                }
+                networkResponse = handleResponse(request, httpResponse, requestStart, decodeContent);
+            } catch (IOException e) {
+                handleException(request, e, httpResponse);
+                continue;
+            }
+            if (networkResponse != null) {
+                return networkResponse;
+            }
+        }
+    }
 
-                // Some responses such as 204s do not have content.  We must check.
-                //todo  有些返回结果是没有内容的，如：204，所以我们必须进行检查
-                InputStream inputStream = httpResponse.getContent();
-                if (inputStream != null) {
-                    responseContents = inputStreamToBytes(inputStream, httpResponse.getContentLength());
-                } else {
-                    // Add 0 byte response as a way of honestly representing a
-                    // no-content request.
-                    responseContents = new byte[0];
-                }
+    /**
+     * Performs the request over the stack without blocking the calling thread, if the stack is an
+     * {@link AsyncHttpStack}; otherwise, the stack is run on the blocking executor. Response
+     * bodies are read on the blocking executor too.
+     */
+    @Override
+    public void performRequestAsync(Request<?> request, OnRequestComplete callback) {
+        attemptAsync(request, SystemClock.elapsedRealtime(), callback);
+    }
 
-                // if the request is slow, log it.
-                long requestLifetime = SystemClock.elapsedRealtime() - requestStart;
-                logSlowRequests(requestLifetime, request, responseContents, statusCode);
+    @Override
+    public void setBlockingExecutor(ExecutorService executor) {
+        super.setBlockingExecutor(executor);
+        mAsyncHttpStack.setBlockingExecutor(executor);
+    }
 
-                if (statusCode < 200 || statusCode > 299) {
-                    throw new IOException();
-                }
-                return new NetworkResponse(statusCode, responseContents,
-                        /* notModified= */ false, SystemClock.elapsedRealtime() - requestStart, responseHeaders);
-            } catch (SocketTimeoutException e) {
-                attemptRetryOnException("socket", request, new TimeoutError());
-            } catch (MalformedURLException e) {
-                throw new RuntimeException("Bad URL " + request.getUrl(), e);
-            } catch (IOException e) {
-                int statusCode;
-                if (httpResponse != null) {
-                    statusCode = httpResponse.getStatusCode();
-                } else {
-                    throw new NoConnectionError(e);
-                }
-                VolleyLog.e("Unexpected response code %d for %s", statusCode, request.getUrl());
-                NetworkResponse networkResponse;
-                if (responseContents != null) {
-                    networkResponse = new NetworkResponse(statusCode, responseContents,/* notModified= */ false,
-                            SystemClock.elapsedRealtime() - requestStart, responseHeaders);
-                    if (statusCode == HttpURLConnection.HTTP_UNAUTHORIZED || statusCode == HttpURLConnection.HTTP_FORBIDDEN) {
-                        attemptRetryOnException("auth", request, new AuthFailureError(networkResponse));
-                    } else if (statusCode >= 400 && statusCode <= 499) {
-                        // Don't retry other client errors.
-                        throw new ClientError(networkResponse);
-                    } else if (statusCode >= 500 && statusCode <= 599) {
-                        if (request.shouldRetryServerErrors()) {
-                            attemptRetryOnException("server", request, new ServerError(networkResponse));
-                        } else {
-                            throw new ServerError(networkResponse);
+    /** Makes one attempt at performing a request asynchronously, and the next if it fails. */
+    private void attemptAsync(final Request<?> request, final long requestStart, final OnRequestComplete callback) {
+        final boolean decodeContent;
+        try {
+            decodeContent = shouldDecodeContent(request);
+        } catch (AuthFailureError e) {
+            callback.onError(e);
+            return;
+        }
+        mAsyncHttpStack.executeRequestAsync(request, getAdditionalHeaders(request, decodeContent),
+                new AsyncHttpStack.OnRequestComplete() {
+                    @Override
+                    public void onSuccess(final HttpResponse httpResponse) {
+                        // Reading the body may block, so leave the stack's thread.
+                        try {
+                            getBlockingExecutor().execute(new Runnable() {
+                                @Override
+                                public void run() {
+                                    NetworkResponse networkResponse;
+                                    try {
+                                        networkResponse =
+                                                handleResponse(request, httpResponse, requestStart, decodeContent);
+                                    } catch (IOException e) {
+                                        onAttemptFailed(request, e, httpResponse, requestStart, callback);
+                                        return;
+                                    } catch (VolleyError e) {
+                                        callback.onError(e);
+                                        return;
+                                    } catch (RuntimeException e) {
+                                        callback.onError(new VolleyError(e));
+                                        return;
+                                    }
+                                    if (networkResponse != null) {
+                                        callback.onSuccess(networkResponse);
+                                    } else {
+                                        attemptAsync(request, requestStart, callback);
+                                    }
+                                }
+                            });
+                        } catch (RejectedExecutionException e) {
+                            // The network was stopped while the request was in flight.
+                            closeContent(httpResponse);
+                            callback.onError(new VolleyError(e));
                         }
-                    } else {
-                        // 3xx? No reason to retry.
-                        throw new ServerError(networkResponse);
                     }
-                } else {
-                    attemptRetryOnException("network", request, new NetworkError());
-                }
+
+                    @Override
+                    public void onAuthError(AuthFailureError authFailureError) {
+                        callback.onError(authFailureError);
+                    }
+
+                    @Override
+                    public void onError(IOException ioException) {
+                        onAttemptFailed(request, ioException, /* httpResponse= */ null, requestStart, callback);
+                    }
+                });
+    }
+
+    private void onAttemptFailed(Request<?> request, IOException e, HttpResponse httpResponse,
+                                 long requestStart, OnRequestComplete callback) {
+        try {
+            handleException(request, e, httpResponse);
+        } catch (VolleyError volleyError) {
+            callback.onError(volleyError);
+            return;
+        } catch (RuntimeException runtimeException) {
+            callback.onError(new VolleyError(runtimeException));
+            return;
+        }
+        attemptAsync(request, requestStart, callback);
+    }
+
+    /**
+     * Turns the stack's response into a network response, reading its body.
+     *
+     * @param decodeContent Whether BasicNetwork asked for compressed bodies, and decodes them
+     * @return the response, or null if the request should be retried
+     * @throws VolleyError if the request failed and shouldn't be retried
+     * @throws IOException if reading the body failed
+     */
+    private NetworkResponse handleResponse(Request<?> request, HttpResponse httpResponse, long requestStart,
+                                           boolean decodeContent) throws IOException, VolleyError {
+        int statusCode = httpResponse.getStatusCode();
+        List<Header> responseHeaders = httpResponse.getHeaders();//head
+        // Handle cache validation.
+        if (statusCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+            Entry entry = request.getCacheEntry();
+            if (entry == null) {
+                return new NetworkResponse(HttpURLConnection.HTTP_NOT_MODIFIED,/* data= */ null,
+                        /* notModified= */ true, SystemClock.elapsedRealtime() - requestStart,
+                        responseHeaders);
+            }
+            // Combine cached and response headers so the response will be complete.
+            List<Header> combinedHeaders = combineHeaders(responseHeaders, entry);
+            return new NetworkResponse(HttpURLConnection.HTTP_NOT_MODIFIED, entry.data,
+                    /* notModified= */ true, SystemClock.elapsedRealtime() - requestStart,
+                    combinedHeaders, /* wireLength= */ 0);
+        }
+
+        // Some responses such as 204s do not have content.  We must check.
+        //todo  有些返回结果是没有内容的，如：204，所以我们必须进行检查
+        byte[] responseContents;//body
+        InputStream inputStream = httpResponse.getContent();
+        int contentLength = httpResponse.getContentLength();
+        CountingInputStream wireStream = null;
+        String contentEncoding = decodeContent && inputStream != null && contentLength != 0
+                ? getDecodableEncoding(responseHeaders) : null;
+        if (contentEncoding != null) {
+            // Count the compressed bytes as they arrive, and read the decoded ones.
+            wireStream = new CountingInputStream(inputStream);
+            inputStream = decodingInputStream(contentEncoding, wireStream);
+            responseHeaders = removeEncodingHeaders(responseHeaders);
+        }
+        if (inputStream != null && request instanceof StreamingRequest
+                && statusCode >= 200 && statusCode <= 299) {
+            // Hand the body to the request's parser as it arrives instead of buffering it.
+            responseContents = readStreaming((StreamingRequest<?>) request, statusCode,
+                    responseHeaders, inputStream, wireStream != null ? -1 : contentLength);
+        } else if (inputStream != null && request.acceptsPooledData()
+                && statusCode >= 200 && statusCode <= 299) {
+            // Hand the pooled buffer over rather than copying the body out of it; the
+            // dispatcher releases it once the response is handled. A compressed body is at
+            // least its wire length once decoded, so that's still a good initial size.
+            PooledBuffer pooledData = inputStreamToPooledBuffer(inputStream, contentLength);
+            logSlowRequests(SystemClock.elapsedRealtime() - requestStart, request, pooledData.getLength(), statusCode);
+            return new NetworkResponse(statusCode, pooledData,
+                    SystemClock.elapsedRealtime() - requestStart, responseHeaders,
+                    wireStream != null ? wireStream.getCount() : pooledData.getLength());
+        } else if (inputStream != null) {
+            responseContents = inputStreamToBytes(inputStream, contentLength);
+        } else {
+            // Add 0 byte response as a way of honestly representing a
+            // no-content request.
+            responseContents = new byte[0];
+        }
+
+        // if the request is slow, log it.
+        long requestLifetime = SystemClock.elapsedRealtime() - requestStart;
+        logSlowRequests(requestLifetime, request, responseContents.length, statusCode);
+
+        NetworkResponse networkResponse = new NetworkResponse(statusCode, responseContents,
+                /* notModified= */ false, SystemClock.elapsedRealtime() - requestStart, responseHeaders,
+                wireStream != null ? wireStream.getCount() : responseContents.length);
+        if (statusCode >= 200 && statusCode <= 299) {
+            return networkResponse;
+        }
+        VolleyLog.e("Unexpected response code %d for %s", statusCode, request.getUrl());
+        if (statusCode == HttpURLConnection.HTTP_UNAUTHORIZED || statusCode == HttpURLConnection.HTTP_FORBIDDEN) {
+            attemptRetryOnException("auth", request, new AuthFailureError(networkResponse));
+        } else if (statusCode >= 400 && statusCode <= 499) {
+            // Don't retry other client errors.
+            throw new ClientError(networkResponse);
+        } else if (statusCode >= 500 && statusCode <= 599) {
+            if (request.shouldRetryServerErrors()) {
+                attemptRetryOnException("server", request, new ServerError(networkResponse));
+            } else {
+                throw new ServerError(networkResponse);
             }
+        } else {
+            // 3xx? No reason to retry.
+            throw new ServerError(networkResponse);
+        }
+        return null;
+    }
+
+    /**
+     * Decides whether a request whose attempt failed with an exception is retried.
+     *
+     * @param httpResponse The stack's response, if the exception happened reading its body
+     * @throws VolleyError if the request shouldn't be retried
+     */
+    private void handleException(Request<?> request, IOException e, HttpResponse httpResponse) throws VolleyError {
+        if (e instanceof SocketTimeoutException) {
+            attemptRetryOnException("socket", request, new TimeoutError());
+        } else if (e instanceof MalformedURLException) {
+            throw new RuntimeException("Bad URL " + request.getUrl(), e);
+        } else if (httpResponse == null) {
+            throw new NoConnectionError(e);
+        } else {
+            VolleyLog.e("Unexpected response code %d for %s", httpResponse.getStatusCode(), request.getUrl());
+            attemptRetryOnException("network", request, new NetworkError());
         }
     }
 
     /**
      * Logs requests that took over SLOW_REQUEST_THRESHOLD_MS to complete.
      */
-    private void logSlowRequests(long requestLifetime, Request<?> request, byte[] responseContents, int statusCode) {
+    private void logSlowRequests(long requestLifetime, Request<?> request, int responseLength, int statusCode) {
         if (DEBUG || requestLifetime > SLOW_REQUEST_THRESHOLD_MS) {
             VolleyLog.d(
                     "HTTP response for request=<%s> [lifetime=%d], [size=%s], "
                             + "[rc=%d], [retryCount=%s]",
                     request,
                     requestLifetime,
-                    responseContents != null ? responseContents.length : "null",
+                    responseLength,
                     statusCode,
                     request.getRetryPolicy().getCurrentRetryCount());
         }
@@ -244,6 +410,85 @@ public class BasicNetwork implements Network {
         request.addMarker(String.format("%s-retry [timeout=%s]", logPrefix, oldTimeout));
     }
 
+    /**
+     * Returns whether BasicNetwork picks the content encodings, which it doesn't if the request
+     * asks for some itself; the request then gets the body as sent.
+     */
+    private static boolean shouldDecodeContent(Request<?> request) throws AuthFailureError {
+        for (String name : request.getHeaders().keySet()) {
+            if (HEADER_ACCEPT_ENCODING.equalsIgnoreCase(name)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Returns the headers added to the request's own: cache validators and accepted encodings. */
+    private Map<String, String> getAdditionalHeaders(Request<?> request, boolean decodeContent) {
+        Map<String, String> headers = getCacheHeaders(request.getCacheEntry());
+        if (!decodeContent) {
+            return headers;
+        }
+        headers = new HashMap<>(headers);
+        headers.put(HEADER_ACCEPT_ENCODING, ACCEPTED_ENCODINGS);
+        return headers;
+    }
+
+    /** Returns the response's content encoding if BasicNetwork decodes it, or null. */
+    private static String getDecodableEncoding(List<Header> headers) {
+        for (Header header : headers) {
+            if (HEADER_CONTENT_ENCODING.equalsIgnoreCase(header.getName())) {
+                String encoding = header.getValue().trim().toLowerCase(Locale.US);
+                if (encoding.equals("gzip") || encoding.equals("x-gzip") || encoding.equals("deflate")) {
+                    return encoding;
+                }
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /** Returns a stream of the decoded body for a body in the given content encoding. */
+    private static InputStream decodingInputStream(String encoding, InputStream in) throws IOException {
+        if (!encoding.equals("deflate")) {
+            return new GZIPInputStream(in, DECODE_BUFFER_SIZE);
+        }
+        // "deflate" means zlib-wrapped data, but some servers send it raw; a zlib header tells.
+        PushbackInputStream pushback = new PushbackInputStream(in, 2);
+        byte[] header = new byte[2];
+        int read = 0;
+        int count;
+        while (read < header.length && (count = pushback.read(header, read, header.length - read)) != -1) {
+            read += count;
+        }
+        pushback.unread(header, 0, read);
+        boolean zlib = read == 2 && (header[0] & 0x0f) == 8
+                && ((header[0] & 0xff) << 8 | (header[1] & 0xff)) % 31 == 0;
+        return new InflaterInputStream(pushback, new Inflater(/* nowrap= */ !zlib), DECODE_BUFFER_SIZE) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    // Only the stream's own inflater is ended by it.
+                    inf.end();
+                }
+            }
+        };
+    }
+
+    /** Returns the headers without those describing the body as sent, once it was decoded. */
+    private static List<Header> removeEncodingHeaders(List<Header> headers) {
+        List<Header> result = new ArrayList<>(headers.size());
+        for (Header header : headers) {
+            if (!HEADER_CONTENT_ENCODING.equalsIgnoreCase(header.getName())
+                    && !HEADER_CONTENT_LENGTH.equalsIgnoreCase(header.getName())) {
+                result.add(header);
+            }
+        }
+        return result;
+    }
+
     private Map<String, String> getCacheHeaders(Cache.Entry entry) {
         // If there's no cache entry, we're done.
         if (entry == null) {
@@ -264,11 +509,63 @@ public class BasicNetwork implements Network {
         VolleyLog.v("HTTP ERROR(%s) %d ms to fetch %s", what, (now - start), url);
     }
 
+    /** Closes the body of a response which won't be read, if it has one. */
+    private static void closeContent(HttpResponse httpResponse) {
+        InputStream in = httpResponse.getContent();
+        if (in == null) {
+            return;
+        }
+        try {
+            in.close();
+        } catch (IOException e) {
+            VolleyLog.v("Error occurred when closing InputStream");
+        }
+    }
+
+    /**
+     * Streams a response body to the request's parser.
+     *
+     * @return the body if the request kept it for the cache, or an empty array
+     */
+    private byte[] readStreaming(StreamingRequest<?> request, int statusCode, List<Header> headers,
+                                 InputStream in, int contentLength) throws IOException, ParseError {
+        try {
+            return request.readStream(statusCode, headers, in, contentLength, mPool);
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                VolleyLog.v("Error occurred when closing InputStream");
+            }
+        }
+    }
+
     /**
      * Reads the contents of an InputStream into a byte[].
      */
     private byte[] inputStreamToBytes(InputStream in, int contentLength) throws IOException, ServerError {
         PoolingByteArrayOutputStream bytes = new PoolingByteArrayOutputStream(mPool, contentLength);
+        try {
+            readFully(in, bytes);
+            return bytes.toByteArray();
+        } finally {
+            bytes.close();
+        }
+    }
+
+    /** Reads the contents of an InputStream into a buffer from the pool, without copying it out. */
+    private PooledBuffer inputStreamToPooledBuffer(InputStream in, int contentLength) throws IOException, ServerError {
+        PoolingByteArrayOutputStream bytes = new PoolingByteArrayOutputStream(mPool, contentLength);
+        try {
+            readFully(in, bytes);
+            return bytes.toPooledBuffer();
+        } finally {
+            bytes.close();
+        }
+    }
+
+    /** Reads an InputStream to its end into the given stream, and closes it. */
+    private void readFully(InputStream in, PoolingByteArrayOutputStream bytes) throws IOException, ServerError {
         byte[] buffer = null;
         try {
             if (in == null) {
@@ -279,7 +576,6 @@ public class BasicNetwork implements Network {
             while ((count = in.read(buffer)) != -1) {
                 bytes.write(buffer, 0, count);
             }
-            return bytes.toByteArray();
         } finally {
             try {
                 // Close the InputStream and release the resources by "consuming the content".
@@ -292,7 +588,6 @@ public class BasicNetwork implements Network {
                 VolleyLog.v("Error occurred when closing InputStream");
             }
             mPool.returnBuf(buffer);
-            bytes.close();
         }
     }
 
@@ -355,4 +650,42 @@ public class BasicNetwork implements Network {
         }
         return combinedHeaders;
     }
+
+    /** Counts the bytes read through it, which are those of the body as sent. */
+    private static class CountingInputStream extends FilterInputStream {
+        private int mCount;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        int getCount() {
+            return mCount;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int result = super.read();
+            if (result != -1) {
+                mCount++;
+            }
+            return result;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int result = super.read(buffer, offset, count);
+            if (result != -1) {
+                mCount += result;
+            }
+            return result;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            long result = super.skip(count);
+            mCount += result;
+            return result;
+        }
+    }
 }
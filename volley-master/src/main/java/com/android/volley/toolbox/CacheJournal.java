@@ -0,0 +1,326 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import android.support.annotation.GuardedBy;
+
+import com.android.volley.VolleyLog;
+import com.android.volley.toolbox.DiskBasedCache.CacheHeader;
+import com.android.volley.toolbox.DiskBasedCache.CountingInputStream;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Append-only log of the changes to the index of a {@link DiskBasedCache}, so the index can be
+ * rebuilt at startup with one sequential read instead of opening every cache file.
+ * <p>
+ * <p>The journal records puts (key, file name, size, TTLs), removals and reads; replaying it in
+ * order restores both the entries and their LRU order. Puts and removals are flushed as they are
+ * written; reads are only buffered since losing some of them just perturbs the LRU order. When the
+ * log grows well past the number of live entries it is compacted by rewriting it from the index.
+ * <p>
+ * <p>Before a cache file is replaced, a dirty record for its key is flushed. A key which is still
+ * dirty at the end of the journal had its file replaced by a put that never got journaled, so
+ * {@link #readInto} hands it back for the file to be deleted.
+ * <p>
+ * <p>If the journal is missing or damaged, {@link #readInto} reports it and the cache falls back to
+ * scanning the directory. After a write error the journal is deleted and stays disabled until the
+ * next {@link #rewrite}, so it never describes less than what is on disk.
+ */
+class CacheJournal {
+
+    /** Name of the journal file in the cache directory. */
+    static final String JOURNAL_FILENAME = "journal";
+
+    /** Name of the file a compacted journal is written to before replacing the journal. */
+    static final String JOURNAL_TEMP_FILENAME = "journal.tmp";
+
+    /** Magic number for the current version of the journal format. */
+    private static final int JOURNAL_MAGIC = 0x20180611;
+
+    private static final int OP_PUT = 1;
+    private static final int OP_REMOVE = 2;
+    private static final int OP_READ = 3;
+    private static final int OP_DIRTY = 4;
+
+    /** Minimum number of records before the journal is considered for compaction. */
+    private static final int COMPACTION_MIN_RECORDS = 2000;
+
+    private final File mFile;
+    private final File mTempFile;
+
+    /** Stream appending to the journal, or null if it hasn't been opened or is disabled. */
+    @GuardedBy("this")
+    private OutputStream mWriter;
+
+    /** True after a write error, until the journal is rewritten. */
+    @GuardedBy("this")
+    private boolean mDisabled = false;
+
+    /** Number of records in the journal, including ones that failed to be written. */
+    @GuardedBy("this")
+    private int mRecordCount = 0;
+
+    /** Keys with a dirty record which hasn't been followed by a put or removal yet. */
+    @GuardedBy("this")
+    private final Set<String> mDirty = new HashSet<>();
+
+    CacheJournal(File directory) {
+        mFile = new File(directory, JOURNAL_FILENAME);
+        mTempFile = new File(directory, JOURNAL_TEMP_FILENAME);
+    }
+
+    /** Returns whether the given file in the cache directory belongs to the journal. */
+    static boolean isJournalFile(File file) {
+        String name = file.getName();
+        return JOURNAL_FILENAME.equals(name) || JOURNAL_TEMP_FILENAME.equals(name);
+    }
+
+    /**
+     * Replays the journal into the given map, which should be in access order.
+     *
+     * @param dirty receives the keys whose files may have been replaced without being journaled;
+     *     these are left out of {@code entries}
+     * @return true if the whole journal was read, false if it is missing or damaged, in which case
+     *     the contents of {@code entries} and {@code dirty} are undefined.
+     */
+    synchronized boolean readInto(Map<String, CacheHeader> entries, Set<String> dirty) {
+        if (!mFile.exists()) {
+            return false;
+        }
+        int records = 0;
+        try {
+            if (mWriter != null) {
+                // Don't mistake a record split across the write buffer for a truncated one.
+                mWriter.flush();
+            }
+            CountingInputStream cis =
+                    new CountingInputStream(new BufferedInputStream(new FileInputStream(mFile)), mFile.length());
+            try {
+                if (DiskBasedCache.readInt(cis) != JOURNAL_MAGIC) {
+                    throw new IOException("Bad journal magic");
+                }
+                int op;
+                while ((op = cis.read()) != -1) {
+                    String key = DiskBasedCache.readString(cis);
+                    switch (op) {
+                        case OP_PUT:
+                            String filename = DiskBasedCache.readString(cis);
+                            long size = DiskBasedCache.readLong(cis);
+                            long ttl = DiskBasedCache.readLong(cis);
+                            long softTtl = DiskBasedCache.readLong(cis);
+                            // Re-inserting must also move the entry to the end of the LRU order.
+                            entries.remove(key);
+                            entries.put(key, new CacheHeader(key, filename, size, ttl, softTtl));
+                            dirty.remove(key);
+                            break;
+                        case OP_REMOVE:
+                            entries.remove(key);
+                            dirty.remove(key);
+                            break;
+                        case OP_READ:
+                            entries.get(key);
+                            break;
+                        case OP_DIRTY:
+                            dirty.add(key);
+                            break;
+                        default:
+                            throw new IOException("Bad journal op " + op);
+                    }
+                    records++;
+                }
+            } finally {
+                //noinspection ThrowFromFinallyBlock
+                cis.close();
+            }
+        } catch (IOException e) {
+            // A truncated last record (EOFException) means writes were lost; so does garbage.
+            VolleyLog.d("Discarding journal after %d records: %s", records, e.toString());
+            return false;
+        }
+        for (String key : dirty) {
+            entries.remove(key);
+        }
+        mRecordCount = records;
+        return true;
+    }
+
+    /**
+     * Records that the file of the given key is about to be replaced. Must be followed by a {@link
+     * #put} or {@link #remove} of the key once the file is in place or given up on.
+     */
+    synchronized void dirty(String key) {
+        mDirty.add(key);
+        try {
+            OutputStream os = beginRecordLocked(OP_DIRTY, key);
+            if (os != null) {
+                os.flush();
+            }
+        } catch (IOException e) {
+            disableLocked(e);
+        }
+    }
+
+    /** Records that the given entry was written. */
+    synchronized void put(CacheHeader entry) {
+        mDirty.remove(entry.key);
+        try {
+            OutputStream os = beginRecordLocked(OP_PUT, entry.key);
+            if (os != null) {
+                writePut(os, entry);
+                os.flush();
+            }
+        } catch (IOException e) {
+            disableLocked(e);
+        }
+    }
+
+    /** Records that the entry with the given key was removed. */
+    synchronized void remove(String key) {
+        mDirty.remove(key);
+        try {
+            OutputStream os = beginRecordLocked(OP_REMOVE, key);
+            if (os != null) {
+                os.flush();
+            }
+        } catch (IOException e) {
+            disableLocked(e);
+        }
+    }
+
+    /** Records that the entry with the given key was read. Not flushed. */
+    synchronized void read(String key) {
+        try {
+            beginRecordLocked(OP_READ, key);
+        } catch (IOException e) {
+            disableLocked(e);
+        }
+    }
+
+    /**
+     * Returns whether the journal holds enough obsolete records to be worth rewriting.
+     *
+     * @param liveEntries number of entries currently in the index
+     */
+    synchronized boolean needsCompaction(int liveEntries) {
+        return mRecordCount >= COMPACTION_MIN_RECORDS && mRecordCount > 2 * liveEntries;
+    }
+
+    /**
+     * Replaces the journal with one holding a put for each given entry, in LRU order, followed by
+     * the dirty records of replacements still in progress. Callers which need the snapshot to be
+     * atomic with respect to other records must hold this object's lock while taking it.
+     */
+    synchronized void rewrite(Collection<CacheHeader> entries) {
+        closeWriterLocked();
+        try {
+            OutputStream os = new BufferedOutputStream(new FileOutputStream(mTempFile));
+            try {
+                DiskBasedCache.writeInt(os, JOURNAL_MAGIC);
+                for (CacheHeader entry : entries) {
+                    os.write(OP_PUT);
+                    DiskBasedCache.writeString(os, entry.key);
+                    writePut(os, entry);
+                }
+                for (String key : mDirty) {
+                    os.write(OP_DIRTY);
+                    DiskBasedCache.writeString(os, key);
+                }
+            } finally {
+                //noinspection ThrowFromFinallyBlock
+                os.close();
+            }
+            if (!mTempFile.renameTo(mFile)) {
+                throw new IOException("Could not rename " + mTempFile + " to " + mFile);
+            }
+        } catch (IOException e) {
+            //noinspection ResultOfMethodCallIgnored
+            mTempFile.delete();
+            disableLocked(e);
+            return;
+        }
+        mDisabled = false;
+        mRecordCount = entries.size() + mDirty.size();
+    }
+
+    /** Flushes and closes the journal; it is reopened by the next record. */
+    synchronized void close() {
+        closeWriterLocked();
+    }
+
+    /**
+     * Writes the op and key of a new record, opening the journal if necessary. Returns the stream
+     * to write the rest of the record to, or null if the journal is disabled.
+     */
+    @GuardedBy("this")
+    private OutputStream beginRecordLocked(int op, String key) throws IOException {
+        mRecordCount++;
+        if (mDisabled) {
+            return null;
+        }
+        if (mWriter == null) {
+            boolean exists = mFile.exists();
+            mWriter = new BufferedOutputStream(new FileOutputStream(mFile, true));
+            if (!exists) {
+                DiskBasedCache.writeInt(mWriter, JOURNAL_MAGIC);
+            }
+        }
+        mWriter.write(op);
+        DiskBasedCache.writeString(mWriter, key);
+        return mWriter;
+    }
+
+    private static void writePut(OutputStream os, CacheHeader entry) throws IOException {
+        DiskBasedCache.writeString(os, entry.filename);
+        DiskBasedCache.writeLong(os, entry.size);
+        DiskBasedCache.writeLong(os, entry.ttl);
+        DiskBasedCache.writeLong(os, entry.softTtl);
+    }
+
+    @GuardedBy("this")
+    private void disableLocked(IOException e) {
+        VolleyLog.d("Disabling cache journal: %s", e.toString());
+        closeWriterLocked();
+        mDisabled = true;
+        // A journal missing records would make startup forget files; rescan instead.
+        //noinspection ResultOfMethodCallIgnored
+        mFile.delete();
+    }
+
+    @GuardedBy("this")
+    private void closeWriterLocked() {
+        if (mWriter == null) {
+            return;
+        }
+        try {
+            mWriter.close();
+        } catch (IOException e) {
+            VolleyLog.d("Error closing cache journal: %s", e.toString());
+        }
+        mWriter = null;
+    }
+}
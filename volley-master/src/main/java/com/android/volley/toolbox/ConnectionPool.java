@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.volley.toolbox;
+
+import android.support.annotation.GuardedBy;
+import android.support.annotation.VisibleForTesting;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps idle HTTP/1.1 connections open for reuse by {@link KeepAliveHttpStack}, so that requests
+ * to the same host skip the TCP and TLS handshakes.
+ * <p>
+ * <p>Up to a maximum number of connections are kept per host, each for a limited time after its
+ * last use. A connection is checked before it is reused, so one the server closed meanwhile is
+ * dropped instead. The pool counts the connections it opened and reused, for tuning these limits.
+ * It may be shared between stacks.
+ */
+public class ConnectionPool {
+
+    /** Default number of idle connections kept per host. */
+    private static final int DEFAULT_MAX_IDLE_PER_HOST = 5;
+
+    /** Default time an idle connection is kept, shorter than most servers keep theirs. */
+    private static final long DEFAULT_KEEP_ALIVE_MS = 60 * 1000;
+
+    /** Read timeout of the health check, which only needs to see whether a close is pending. */
+    private static final int HEALTH_CHECK_TIMEOUT_MS = 1;
+
+    private final int mMaxIdlePerHost;
+    private final long mKeepAliveMs;
+
+    /** Idle connections by host key, most recently used first. */
+    @GuardedBy("this")
+    private final Map<String, ArrayDeque<Connection>> mIdleConnections = new HashMap<>();
+
+    private final AtomicLong mOpenedCount = new AtomicLong();
+    private final AtomicLong mReusedCount = new AtomicLong();
+
+    /**
+     * Creates a pool keeping up to 5 idle connections per host, for a minute each.
+     */
+    public ConnectionPool() {
+        this(DEFAULT_MAX_IDLE_PER_HOST, DEFAULT_KEEP_ALIVE_MS);
+    }
+
+    /**
+     * @param maxIdlePerHost Maximum number of idle connections kept per host, or 0 to keep none
+     * @param keepAliveMs    How long an idle connection is kept after its last use
+     */
+    public ConnectionPool(int maxIdlePerHost, long keepAliveMs) {
+        if (maxIdlePerHost < 0 || keepAliveMs < 0) {
+            throw new IllegalArgumentException("maxIdlePerHost and keepAliveMs must not be negative");
+        }
+        mMaxIdlePerHost = maxIdlePerHost;
+        mKeepAliveMs = keepAliveMs;
+    }
+
+    /**
+     * Returns the number of connections opened through this pool.
+     */
+    public long getConnectionCount() {
+        return mOpenedCount.get();
+    }
+
+    /**
+     * Returns the number of times an idle connection was reused.
+     */
+    public long getReuseCount() {
+        return mReusedCount.get();
+    }
+
+    /**
+     * Returns the fraction of requests which reused a connection rather than opening one, between
+     * 0 and 1.
+     */
+    public float getReuseRate() {
+        long reused = mReusedCount.get();
+        long total = reused + mOpenedCount.get();
+        return total == 0 ? 0 : reused / (float) total;
+    }
+
+    /**
+     * Returns the number of idle connections currently kept.
+     */
+    public synchronized int getIdleConnectionCount() {
+        int count = 0;
+        for (ArrayDeque<Connection> connections : mIdleConnections.values()) {
+            count += connections.size();
+        }
+        return count;
+    }
+
+    /**
+     * Closes all idle connections.
+     */
+    public void evictAll() {
+        List<Connection> evicted = new ArrayList<>();
+        synchronized (this) {
+            for (ArrayDeque<Connection> connections : mIdleConnections.values()) {
+                evicted.addAll(connections);
+            }
+            mIdleConnections.clear();
+        }
+        for (Connection connection : evicted) {
+            connection.close();
+        }
+    }
+
+    /** Returns the time idle times are measured in, in milliseconds. */
+    @VisibleForTesting
+    long elapsedRealtimeMs() {
+        return NioHttpStack.elapsedRealtimeMs();
+    }
+
+    /** Returns the key connections to the URL's scheme, host and port are pooled under. */
+    static String key(URL url) {
+        int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+        return url.getProtocol() + "://" + url.getHost() + ":" + port;
+    }
+
+    /** Wraps a newly opened socket, counting it as opened. */
+    Connection newConnection(String key, Socket socket) throws IOException {
+        Connection connection = new Connection(key, socket);
+        mOpenedCount.incrementAndGet();
+        return connection;
+    }
+
+    /**
+     * Takes a healthy idle connection for the given host key, closing expired and unhealthy ones
+     * on the way.
+     *
+     * @return the connection, or null if there is none
+     */
+    Connection take(String key) {
+        while (true) {
+            List<Connection> expired = new ArrayList<>();
+            Connection candidate = null;
+            long now = elapsedRealtimeMs();
+            synchronized (this) {
+                ArrayDeque<Connection> connections = mIdleConnections.get(key);
+                if (connections != null) {
+                    // The least recently used connections are the first to expire.
+                    while (!connections.isEmpty() && now - connections.peekLast().mIdleSinceMs >= mKeepAliveMs) {
+                        expired.add(connections.pollLast());
+                    }
+                    candidate = connections.pollFirst();
+                    if (connections.isEmpty()) {
+                        mIdleConnections.remove(key);
+                    }
+                }
+            }
+            for (Connection connection : expired) {
+                connection.close();
+            }
+            if (candidate == null) {
+                return null;
+            }
+            // Checked outside the lock, as it waits for the socket.
+            if (candidate.isHealthy()) {
+                mReusedCount.incrementAndGet();
+                return candidate;
+            }
+            candidate.close();
+        }
+    }
+
+    /**
+     * Returns a connection whose last response was read in full, keeping it for reuse if there is
+     * room and closing it otherwise.
+     */
+    void put(Connection connection) {
+        Connection evicted = null;
+        synchronized (this) {
+            if (mMaxIdlePerHost == 0 || mKeepAliveMs == 0) {
+                evicted = connection;
+            } else {
+                connection.mIdleSinceMs = elapsedRealtimeMs();
+                ArrayDeque<Connection> connections = mIdleConnections.get(connection.mKey);
+                if (connections == null) {
+                    connections = new ArrayDeque<>();
+                    mIdleConnections.put(connection.mKey, connections);
+                }
+                connections.offerFirst(connection);
+                if (connections.size() > mMaxIdlePerHost) {
+                    evicted = connections.pollLast();
+                }
+            }
+        }
+        if (evicted != null) {
+            evicted.close();
+        }
+    }
+
+    /** An open connection to a host, with the streams of its socket. */
+    static class Connection {
+        final String mKey;
+        final Socket mSocket;
+        final InputStream mIn;
+        final OutputStream mOut;
+
+        /** When the connection was returned to the pool. */
+        long mIdleSinceMs;
+
+        Connection(String key, Socket socket) throws IOException {
+            mKey = key;
+            mSocket = socket;
+            mIn = socket.getInputStream();
+            mOut = socket.getOutputStream();
+        }
+
+        /**
+         * Returns whether the connection can carry another request: the server hasn't closed it,
+         * and hasn't sent anything while it was idle.
+         */
+        boolean isHealthy() {
+            if (mSocket.isClosed() || mSocket.isInputShutdown() || mSocket.isOutputShutdown()) {
+                return false;
+            }
+            try {
+                int readTimeout = mSocket.getSoTimeout();
+                try {
+                    mSocket.setSoTimeout(HEALTH_CHECK_TIMEOUT_MS);
+                    // Either the end of the stream or unexpected bytes; neither leaves it usable.
+                    mIn.read();
+                    return false;
+                } finally {
+                    mSocket.setSoTimeout(readTimeout);
+                }
+            } catch (SocketTimeoutException e) {
+                // Nothing to read: the connection is idle, as it should be.
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        void close() {
+            try {
+                mSocket.close();
+            } catch (IOException e) {
+                // Ignored; the connection is done with either way.
+            }
+        }
+    }
+}
@@ -16,15 +16,17 @@
 
 package com.android.volley.toolbox;
 
+import android.os.Process;
 import android.os.SystemClock;
+import android.support.annotation.GuardedBy;
 import android.support.annotation.VisibleForTesting;
 import android.text.TextUtils;
 
 import com.android.volley.Cache;
+import com.android.volley.ConcurrentInitCache;
 import com.android.volley.Header;
 import com.android.volley.VolleyLog;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.EOFException;
@@ -36,12 +38,27 @@ import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 /**
  * //         DiskBaseCache 在 Volley 中的使用:
@@ -152,19 +169,112 @@ import java.util.Map;
  * The default disk usage size is 5MB, but is configurable.
  * <p>
  * <p>This cache supports the {@link Entry#allResponseHeaders} headers field.
+ * <p>
+ * <p>The cache is safe for concurrent use. Cache files are guarded by a fixed set of read/write
+ * lock stripes chosen by file name, so reads of different entries (and of the same entry) proceed
+ * in parallel and a large put only blocks access to its own stripe. The in-memory index is guarded
+ * by a separate lock which is only held for map updates, never during file I/O.
+ * <p>
+ * <p>Changes to the index are logged to a {@link CacheJournal} in the cache directory, which
+ * {@link #initialize()} replays instead of reading the header of every cached file.
+ * <p>
+ * <p>The cache may be used while {@link #initialize()} is running on another thread. Until it
+ * finishes, a key missing from the index is looked up by reading the header of its file.
+ * <p>
+ * <p>Files are named after the SHA-1 hash of their key and spread over two levels of 16
+ * subdirectories, so directories stay small and two keys never share a file. Files left in the
+ * root directory by versions which named them after the key's hash code are moved into place by
+ * the first {@link #initialize()} which scans the directory.
+ * <p>
+ * <p>Entries are written to a temp file without holding any lock, then renamed over the previous
+ * file, so a crash never leaves a partially written entry behind.
  */
-public class DiskBasedCache implements Cache {
+public class DiskBasedCache implements ConcurrentInitCache {
+
+    /**
+     * How the cache picks the entries to delete when it is full.
+     */
+    public enum EvictionPolicy {
+        /**
+         * Deletes the least recently used entries. This is the default.
+         */
+        LRU,
+        /**
+         * Window TinyLFU: keeps an approximate count of recent requests per key, and only lets an
+         * entry displace others if it has been requested more often than them. New entries first
+         * go to a small LRU window, so they get a chance to build up requests, and entries too
+         * large for the window must win right away. Keeps frequently used entries around through
+         * one-off traffic such as paging through a feed or a single large download.
+         */
+        W_TINY_LFU
+    }
+
+    /**
+     * Guards the in-memory index. May be acquired while holding a stripe lock, but never the
+     * other way around.
+     */
+    private final Object mIndexLock = new Object();
 
     /**
      * Map of the Key, CacheHeader pairs
      */
+    @GuardedBy("mIndexLock")
     private final Map<String, CacheHeader> mEntries = new LinkedHashMap<>(16, .75f, true);
 
     /**
      * Total amount of space currently used by the cache in bytes.
      */
+    @GuardedBy("mIndexLock")
     private long mTotalSize = 0;
 
+    /**
+     * Recently put entries, in access order, which haven't had to compete for admission yet; a
+     * subset of {@link #mEntries}. Null unless the policy is {@link EvictionPolicy#W_TINY_LFU}.
+     */
+    @GuardedBy("mIndexLock")
+    private final Map<String, CacheHeader> mWindow;
+
+    /**
+     * Total size of the entries in {@link #mWindow}.
+     */
+    @GuardedBy("mIndexLock")
+    private long mWindowSize = 0;
+
+    /**
+     * Maximum total size of the entries in {@link #mWindow}.
+     */
+    private final long mMaxWindowSize;
+
+    /**
+     * Recent request counts by key. Null unless the policy is {@link EvictionPolicy#W_TINY_LFU}.
+     */
+    @GuardedBy("mIndexLock")
+    private final FrequencySketch mSketch;
+
+    /**
+     * The thread pruning the cache in the background, or null if none is running.
+     */
+    @GuardedBy("mIndexLock")
+    private Thread mPruneThread;
+
+    /**
+     * Locks guarding the cache files, selected by {@link #getStripe}. A thread holds at most one
+     * stripe at a time, except {@link #clear()} which takes all of them in index order.
+     */
+    private final ReentrantReadWriteLock[] mStripes = new ReentrantReadWriteLock[STRIPE_COUNT];
+
+    /**
+     * Log of index changes. Records for an entry are appended while holding its stripe, so they
+     * are in the same order as the changes. May be locked before, but not while holding, the index
+     * lock.
+     */
+    private final CacheJournal mJournal;
+
+    /**
+     * Set once {@link #initialize()} has loaded the index; until then the index may be incomplete.
+     */
+    private volatile boolean mInitialized = false;
+
     /**
      * The root directory to use for the cache.
      */
@@ -175,6 +285,17 @@ public class DiskBasedCache implements Cache {
      */
     private final int mMaxCacheSizeInBytes;
 
+    /**
+     * Prefix of the temp files written by this instance, telling them apart from ones left by
+     * previous instances.
+     */
+    private final String mTempPrefix = Long.toHexString(new Random().nextLong()) + '-';
+
+    /**
+     * Whether bodies of compressible content types are stored compressed.
+     */
+    private volatile boolean mCompressionEnabled = false;
+
     /**
      * Default maximum disk usage in bytes.
      */
@@ -185,10 +306,71 @@ public class DiskBasedCache implements Cache {
      */
     private static final float HYSTERESIS_FACTOR = 0.9f;
 
+    /**
+     * Share of the maximum size above which a put starts pruning in the background, so that
+     * puts rarely reach the maximum and have to prune themselves.
+     */
+    private static final float BACKGROUND_PRUNE_FACTOR = 0.95f;
+
     /**
      * Magic number for current version of cache file format.
      */
-    private static final int CACHE_MAGIC = 0x20150306;
+    private static final int CACHE_MAGIC = 0x20180706;
+
+    /**
+     * Magic number for the previous version of the cache file format, which is still read.
+     */
+    private static final int LEGACY_CACHE_MAGIC = 0x20150306;
+
+    /**
+     * Size of the fixed-size fields of a header in the current format, without the strings.
+     */
+    private static final int HEADER_FIXED_LENGTH = 4 + 4 + 4 + 8 + 8 * 4 + 4;
+
+    /**
+     * Header flag set when the body is stored compressed: its uncompressed length as a
+     * little-endian int, followed by the zlib stream.
+     */
+    private static final int FLAG_DEFLATED = 1;
+
+    /**
+     * Smallest body worth compressing; below this the saving doesn't pay for the inflation.
+     */
+    private static final int MIN_COMPRESSED_SIZE = 256;
+
+    /**
+     * Upper bound of the deflate compression ratio, to reject corrupt uncompressed lengths before
+     * allocating for them.
+     */
+    private static final int MAX_DEFLATE_RATIO = 1032;
+
+    /**
+     * Number of lock stripes. Must be a power of two.
+     */
+    private static final int STRIPE_COUNT = 32;
+
+    /**
+     * Size of the first read of a cache file in {@link #get}, which normally covers the header.
+     */
+    private static final int HEADER_READ_SIZE = 4096;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /**
+     * Subdirectory of the root directory which entries are written to before being renamed into
+     * place.
+     */
+    private static final String TEMP_DIRECTORY = "tmp";
+
+    /**
+     * Share of the cache size given to the window of {@link EvictionPolicy#W_TINY_LFU}.
+     */
+    private static final float WINDOW_FACTOR = 0.01f;
+
+    /**
+     * Typical entry size, used to size the frequency sketch for the number of entries.
+     */
+    private static final int TYPICAL_ENTRY_SIZE = 4096;
 
     /**
      * Constructs an instance of the DiskBasedCache at the specified directory.
@@ -197,6 +379,17 @@ public class DiskBasedCache implements Cache {
      * @param maxCacheSizeInBytes The maximum size of the cache in bytes.
      */
     public DiskBasedCache(File rootDirectory, int maxCacheSizeInBytes) {
+        this(rootDirectory, maxCacheSizeInBytes, EvictionPolicy.LRU);
+    }
+
+    /**
+     * Constructs an instance of the DiskBasedCache at the specified directory.
+     *
+     * @param rootDirectory       The root directory of the cache.
+     * @param maxCacheSizeInBytes The maximum size of the cache in bytes.
+     * @param evictionPolicy      How to pick the entries to delete when the cache is full.
+     */
+    public DiskBasedCache(File rootDirectory, int maxCacheSizeInBytes, EvictionPolicy evictionPolicy) {
         /**
          通过外部传入的 rootDirectory 和 maxCacheSizeInBytes 构造 DiskBaseCache 的实例，
          mRootDirectory 代表我们内存缓存的目录，maxCacheSizeInBytes 代表磁盘缓存的大小，
@@ -204,6 +397,19 @@ public class DiskBasedCache implements Cache {
          */
         mRootDirectory = rootDirectory;
         mMaxCacheSizeInBytes = maxCacheSizeInBytes;
+        if (evictionPolicy == EvictionPolicy.W_TINY_LFU) {
+            mWindow = new LinkedHashMap<>(16, .75f, true);
+            mMaxWindowSize = (long) (maxCacheSizeInBytes * WINDOW_FACTOR);
+            mSketch = new FrequencySketch(maxCacheSizeInBytes / TYPICAL_ENTRY_SIZE);
+        } else {
+            mWindow = null;
+            mMaxWindowSize = 0;
+            mSketch = null;
+        }
+        mJournal = new CacheJournal(rootDirectory);
+        for (int i = 0; i < STRIPE_COUNT; i++) {
+            mStripes[i] = new ReentrantReadWriteLock();
+        }
     }
 
     /**
@@ -216,19 +422,42 @@ public class DiskBasedCache implements Cache {
         this(rootDirectory, DEFAULT_DISK_USAGE_BYTES);
     }
 
+    /**
+     * Sets whether bodies of text content types, such as JSON, XML, HTML and JavaScript, are
+     * compressed on disk, so that more of them fit in the cache. Other bodies, such as images,
+     * are usually compressed already and are always stored as is. Disabled by default; entries
+     * are read back either way.
+     */
+    public void setCompressionEnabled(boolean enabled) {
+        mCompressionEnabled = enabled;
+    }
+
     /**
      * Clears the cache. Deletes all cached files from disk.
      */
     @Override
-    public synchronized void clear() {
-        File[] files = mRootDirectory.listFiles();
-        if (files != null) {
-            for (File file : files) {
-                file.delete();
+    public void clear() {
+        for (ReentrantReadWriteLock stripe : mStripes) {
+            stripe.writeLock().lock();
+        }
+        try {
+            synchronized (mJournal) {
+                deleteContents(mRootDirectory);
+                synchronized (mIndexLock) {
+                    mEntries.clear();
+                    mTotalSize = 0;
+                    if (mWindow != null) {
+                        mWindow.clear();
+                        mWindowSize = 0;
+                    }
+                }
+                mJournal.rewrite(Collections.<CacheHeader>emptyList());
+            }
+        } finally {
+            for (int i = STRIPE_COUNT - 1; i >= 0; i--) {
+                mStripes[i].writeLock().unlock();
             }
         }
-        mEntries.clear();
-        mTotalSize = 0;
         VolleyLog.d("Cache cleared.");
     }
 
@@ -236,81 +465,352 @@ public class DiskBasedCache implements Cache {
      * Returns the cache entry with the specified key if it exists, null otherwise.
      */
     @Override
-    public synchronized Entry get(String key) {
-        CacheHeader entry = mEntries.get(key);
-        // if the entry does not exist, return.
-        if (entry == null) {
+    public Entry get(String key) {
+        String filename = getFilenameForKey(key);
+        CacheHeader entry = null;
+        Entry result = null;
+        boolean broken = false;
+        Lock lock = getStripe(filename).readLock();
+        lock.lock();
+        try {
+            synchronized (mIndexLock) {
+                entry = mEntries.get(key);
+                if (mSketch != null) {
+                    // Misses count too: a key requested often deserves a place once it is put.
+                    mSketch.increment(key);
+                    mWindow.get(key);
+                }
+            }
+            result = getLocked(key, filename, entry);
+        } catch (IOException e) {
+            VolleyLog.d("%s: %s", getFileForKey(key).getAbsolutePath(), e.toString());
+            broken = true;
+        } finally {
+            lock.unlock();
+        }
+        if (broken) {
+            // Can't upgrade the read lock, so drop the broken entry after releasing it.
+            removeIfUnchanged(key, filename, entry);
+        } else if (result != null) {
+            // Hits are journaled too, so a cache that is only read from still needs compacting.
+            maybeCompactJournal();
+        }
+        return result;
+    }
+
+    /**
+     * Records a hit on the entry with the given key which was served without reading it, such as
+     * by a memory cache in front of this one, so that it counts towards the entry's recency and
+     * frequency just like a read.
+     */
+    void recordAccess(String key) {
+        boolean indexed;
+        synchronized (mIndexLock) {
+            indexed = mEntries.get(key) != null;
+            if (mSketch != null) {
+                mSketch.increment(key);
+                mWindow.get(key);
+            }
+        }
+        if (indexed) {
+            mJournal.read(key);
+            maybeCompactJournal();
+        }
+    }
+
+    /**
+     * Reads the entry for the given key, indexed as {@code entry} or not at all if null. Must hold
+     * the read or write lock of its stripe.
+     */
+    private Entry getLocked(String key, String filename, CacheHeader entry) throws IOException {
+        File file = new File(mRootDirectory, filename);// Volley 的缓存 key 是生成的
+        // if the entry does not exist, return. While initializing, the file may just not have been
+        // indexed yet.
+        if (entry == null && (mInitialized || !file.exists())) {
             return null;
         }
-        File file = getFileForKey(key);// Volley 的缓存 key 是生成的
+        long length = file.length();
+        if ((int) length != length) {
+            throw new IOException("Cache file too large: " + length);
+        }
+        // Read the file in bulk rather than through buffering and counting wrappers: the header is
+        // parsed from one buffer and the body is read straight into the array handed out.
+        InputStream is = createInputStream(file);
         try {
-            CountingInputStream cis = new CountingInputStream(new BufferedInputStream(createInputStream(file)), file.length());
-            try {
-                CacheHeader entryOnDisk = CacheHeader.readHeader(cis);
-                if (!TextUtils.equals(key, entryOnDisk.key)) {
-                    // File was shared by two keys and now holds data for a different entry!
-                    VolleyLog.d("%s: key=%s, found=%s", file.getAbsolutePath(), key, entryOnDisk.key);
-                    // Remove key whose contents on disk have been replaced.
-                    // 一个文件可能映射着两个不同的 key，保存在不同的 Entry 中
+            FileHead head = FileHead.read(is, length);
+            CacheHeader entryOnDisk = head.header;
+            ByteBuffer buffer = head.buffer;
+            if (!TextUtils.equals(key, entryOnDisk.key)) {
+                // File was shared by two keys and now holds data for a different entry!
+                VolleyLog.d("%s: key=%s, found=%s", file.getAbsolutePath(), key, entryOnDisk.key);
+                // Remove key whose contents on disk have been replaced.
+                // 一个文件可能映射着两个不同的 key，保存在不同的 Entry 中
+                if (entry != null) {
                     removeEntry(key);
-                    return null;
+                    mJournal.remove(key);
                 }
-                //Volley 将响应的 data 放在磁盘中，将 CacheHeader 缓存在内存中，
-                // 而 get() 方法其实就是这个过程的逆过程，先通过 key 从 mEntries（LinkedHashMap） 从取出 CacheHeader，
-                // 如果为 null，就直接返回 null，否则通过 key 来获取磁盘中的 data，
-                // 并通过 entry.toCacheEntry(data) 将 CacheHeader 和 data 拼接成完整的 Entry 然后进行返回。
-                byte[] data = streamToBytes(cis, cis.bytesRemaining());
-                return entry.toCacheEntry(data);
-            } finally {
-                // Any IOException thrown here is handled by the below catch block by design.
-                //noinspection ThrowFromFinallyBlock
-                cis.close();
+                return null;
             }
-        } catch (IOException e) {
-            VolleyLog.d("%s: %s", file.getAbsolutePath(), e.toString());
-            remove(key);
-            return null;
+            //Volley 将响应的 data 放在磁盘中，将 CacheHeader 缓存在内存中，
+            // 而 get() 方法其实就是这个过程的逆过程，先通过 key 从 mEntries（LinkedHashMap） 从取出 CacheHeader，
+            // 如果为 null，就直接返回 null，否则通过 key 来获取磁盘中的 data，
+            // 并通过 entry.toCacheEntry(data) 将 CacheHeader 和 data 拼接成完整的 Entry 然后进行返回。
+            if (entryOnDisk.dataLength != -1 && entryOnDisk.dataLength != length - buffer.position()) {
+                throw new EOFException("Cache file is " + length + " bytes, header says body is "
+                        + entryOnDisk.dataLength);
+            }
+            byte[] data = new byte[(int) length - buffer.position()];
+            int buffered = buffer.remaining();
+            buffer.get(data, 0, buffered);
+            readFully(is, data, buffered, data.length - buffered);
+            if ((entryOnDisk.flags & FLAG_DEFLATED) != 0) {
+                data = inflate(data);
+            }
+            if (entry == null) {
+                // Index it now rather than waiting for initialize() to get to it.
+                entryOnDisk.size = length;
+                entryOnDisk.filename = filename;
+                putEntry(key, entryOnDisk, false);
+                mJournal.put(entryOnDisk);
+            } else {
+                mJournal.read(key);
+            }
+            // The indexed header may have been restored from the journal without the response
+            // headers; the one on disk is always complete.
+            return entryOnDisk.toCacheEntry(data);
+        } finally {
+            // Any IOException thrown here is handled by the caller by design.
+            //noinspection ThrowFromFinallyBlock
+            is.close();
         }
     }
 
     /**
-     * Initializes the DiskBasedCache by scanning for all files currently in the specified root
-     * directory. Creates the root directory if necessary.
+     * Initializes the DiskBasedCache by replaying its journal or, if there is no usable journal,
+     * by scanning for all files currently in the specified root directory. Creates the root
+     * directory if necessary.
      */
     @Override
-    public synchronized void initialize() {
+    public void initialize() {
+        loadIndex();
+        mInitialized = true;
+    }
+
+    private void loadIndex() {
         // 如果 mRootDirectroy 不存在，则进行创建
         if (!mRootDirectory.exists()) {
             if (!mRootDirectory.mkdirs()) {
                 VolleyLog.e("Unable to create cache dir %s", mRootDirectory.getAbsolutePath());
+                return;
+            }
+            compactJournal();
+            return;
+        }
+        deleteStaleTempFiles();
+        if (restoreFromJournal()) {
+            maybeCompactJournal();
+            return;
+        }
+        scanDirectory();
+        // Start a fresh journal describing what the scan found.
+        compactJournal();
+    }
+
+    /**
+     * Replaces the index with the one recorded in the journal, keeping any entries put since.
+     *
+     * @return false if the journal is missing, damaged or from a different file naming scheme
+     */
+    private boolean restoreFromJournal() {
+        // Exclude all access while replaying, so that no change is applied to the index but
+        // missed in the journal, or vice versa. Replaying is a single sequential read.
+        for (ReentrantReadWriteLock stripe : mStripes) {
+            stripe.writeLock().lock();
+        }
+        try {
+            Map<String, CacheHeader> restored = new LinkedHashMap<>(16, .75f, true);
+            Set<String> dirty = new HashSet<>();
+            if (!mJournal.readInto(restored, dirty)) {
+                return false;
+            }
+            for (String key : dirty) {
+                // The last put of this key may have replaced its file without being journaled.
+                //noinspection ResultOfMethodCallIgnored
+                new File(mRootDirectory, getFilenameForKey(key)).delete();
+                mJournal.remove(key);
+            }
+            for (CacheHeader entry : restored.values()) {
+                if (!entry.filename.equals(getFilenameForKey(entry.key))) {
+                    VolleyLog.d("Journal does not match file naming scheme, rescanning");
+                    return false;
+                }
+            }
+            synchronized (mIndexLock) {
+                // Entries put before initialization are the most recently used ones.
+                for (CacheHeader entry : mEntries.values()) {
+                    restored.remove(entry.key);
+                    restored.put(entry.key, entry);
+                }
+                mEntries.clear();
+                mTotalSize = 0;
+                for (CacheHeader entry : restored.values()) {
+                    mEntries.put(entry.key, entry);
+                    mTotalSize += entry.size;
+                }
             }
+            return true;
+        } finally {
+            for (int i = STRIPE_COUNT - 1; i >= 0; i--) {
+                mStripes[i].writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Deletes the temp files left by puts which were interrupted before a previous instance of the
+     * cache was shut down. Files of this instance are kept, since puts may be running already.
+     */
+    private void deleteStaleTempFiles() {
+        File[] files = new File(mRootDirectory, TEMP_DIRECTORY).listFiles();
+        if (files == null) {
             return;
         }
+        for (File file : files) {
+            if (!file.getName().startsWith(mTempPrefix)) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Indexes every cache file by reading its header, moving files of the old flat layout into
+     * their subdirectories.
+     */
+    private void scanDirectory() {
         File[] files = mRootDirectory.listFiles();
         if (files == null) {
             return;
         }
         // 遍历 mRootDirectory 中的所有文件
         for (File file : files) {
-            try {
-                long entrySize = file.length();
-                CountingInputStream cis = new CountingInputStream(new BufferedInputStream(createInputStream(file)), entrySize);
-                try {
-                    // 将对应的文件缓存到内存中
-                    CacheHeader entry = CacheHeader.readHeader(cis);
-                    // NOTE: When this entry was put, its size was recorded as data.length, but
-                    // when the entry is initialized below, its size is recorded as file.length()
-                    entry.size = entrySize;
-                    putEntry(entry.key, entry);
-                } finally {
-                    // Any IOException thrown here is handled by the below catch block by design.
-                    //noinspection ThrowFromFinallyBlock
-                    cis.close();
+            if (CacheJournal.isJournalFile(file) || file.getName().equals(TEMP_DIRECTORY)) {
+                continue;
+            }
+            if (file.isDirectory()) {
+                File[] subdirectories = file.listFiles();
+                if (subdirectories == null) {
+                    continue;
                 }
-            } catch (IOException e) {
+                for (File subdirectory : subdirectories) {
+                    File[] entries = subdirectory.listFiles();
+                    if (entries == null) {
+                        continue;
+                    }
+                    for (File entry : entries) {
+                        scanFile(entry, file.getName() + '/' + subdirectory.getName() + '/' + entry.getName());
+                    }
+                }
+            } else {
+                migrateFile(file);
+            }
+        }
+    }
+
+    /**
+     * Indexes the cache file with the given name, or deletes it if it is unreadable or misplaced.
+     */
+    private void scanFile(File file, String filename) {
+        // Hold the stripe while indexing so a concurrent put of the same entry can't be
+        // overwritten by the stale header read here.
+        Lock lock = getStripe(filename).writeLock();
+        lock.lock();
+        try {
+            CacheHeader entry = readHeaderForScan(file);
+            if (!filename.equals(getFilenameForKey(entry.key))) {
+                throw new IOException("Misplaced cache file for " + entry.key);
+            }
+            entry.filename = filename;
+            putEntry(entry.key, entry, false);
+        } catch (IOException e) {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Moves a file of the old layout, named after the hash codes of its key, to its current name
+     * and indexes it.
+     */
+    private void migrateFile(File file) {
+        CacheHeader entry;
+        try {
+            // Only initialization touches files of the old layout, so no lock is needed to read.
+            entry = readHeaderForScan(file);
+        } catch (IOException e) {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+            return;
+        }
+        String filename = getFilenameForKey(entry.key);
+        Lock lock = getStripe(filename).writeLock();
+        lock.lock();
+        try {
+            File target = new File(mRootDirectory, filename);
+            // The entry may have been put again meanwhile; keep the newer file.
+            if (target.exists()
+                    || !(target.getParentFile().isDirectory() || target.getParentFile().mkdirs())
+                    || !file.renameTo(target)) {
                 //noinspection ResultOfMethodCallIgnored
                 file.delete();
+                return;
+            }
+            entry.filename = filename;
+            putEntry(entry.key, entry, false);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reads the header of a cache file for indexing, with its size set to that of the file.
+     */
+    private CacheHeader readHeaderForScan(File file) throws IOException {
+        long entrySize = file.length();
+        InputStream is = createInputStream(file);
+        try {
+            // 将对应的文件缓存到内存中
+            CacheHeader entry = FileHead.read(is, entrySize).header;
+            if (entry.dataLength != -1 && entry.dataLength + entry.headerLength != entrySize) {
+                throw new EOFException("Truncated cache file");
             }
+            // NOTE: When this entry was put, its size was recorded as data.length, but
+            // when the entry is initialized below, its size is recorded as file.length()
+            entry.size = entrySize;
+            return entry;
+        } finally {
+            // Any IOException thrown here is handled by the caller by design.
+            //noinspection ThrowFromFinallyBlock
+            is.close();
+        }
+    }
+
+    /**
+     * Deletes everything in the given directory, but not the directory itself.
+     */
+    private static void deleteContents(File directory) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.isDirectory()) {
+                deleteContents(file);
+            }
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
         }
     }
 
@@ -321,14 +821,27 @@ public class DiskBasedCache implements Cache {
      * @param fullExpire True to fully expire the entry, false to soft expire
      */
     @Override
-    public synchronized void invalidate(String key, boolean fullExpire) {
-        Entry entry = get(key);
-        if (entry != null) {
-            entry.softTtl = 0;
-            if (fullExpire) {
-                entry.ttl = 0;
+    public void invalidate(String key, boolean fullExpire) {
+        // The write lock makes the read-modify-write atomic; get() re-enters it as a reader.
+        // Rewriting an entry doesn't change its size, so there is nothing to prune.
+        Lock lock = getStripe(getFilenameForKey(key)).writeLock();
+        lock.lock();
+        try {
+            Entry entry = get(key);
+            if (entry != null) {
+                entry.softTtl = 0;
+                if (fullExpire) {
+                    entry.ttl = 0;
+                }
+                CacheHeader header = new CacheHeader(key, entry);
+                header.filename = getFilenameForKey(key);
+                File temp = writeTempFile(header, encodeBody(header, entry.data));
+                if (temp != null) {
+                    commitLocked(header, temp);
+                }
             }
-            put(key, entry);
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -340,66 +853,291 @@ public class DiskBasedCache implements Cache {
      * 当缓存满时，把最近最少使用的对象从内存中移除。有关 LRU 算法，
      */
     @Override
-    public synchronized void put(String key, Entry entry) {
+    public void put(String key, Entry entry) {
         //在添加缓存之前，先调用 pruneIfNeed() 方法进行内存空间的判断和处理，
         // 如果不进行限制的话，内存占用将无限制的增大，最后到达 SD 卡容量时，会发生无法写入的异常（因为存储空间满了）。
         //在进行内存空间的判断之后，便将 entry.data 保存在磁盘中，将 CacheHeader 缓存在内存中，这样 DiskBaseCache 的 put() 方法就完成了。
-        pruneIfNeeded(entry.data.length);
-        File file = getFileForKey(key);
+        // Pruning takes the stripes of the evicted entries, so it must run before taking ours. Room
+        // is made for the body as stored, which is smaller if it is compressed.
+        CacheHeader header = new CacheHeader(key, entry);
+        header.filename = getFilenameForKey(key);
+        byte[] body = encodeBody(header, entry.data);
+        if (!pruneIfNeeded(key, body.length)) {
+            if (!mInitialized) {
+                // Don't leave an older version of the entry to be found on demand.
+                remove(key);
+            }
+            return;
+        }
+        // Write the file without holding the stripe, so readers of the entry aren't blocked for
+        // the duration of the write; only the rename is done under the lock.
+        File temp = writeTempFile(header, body);
+        if (temp == null) {
+            return;
+        }
+        Lock lock = getStripe(header.filename).writeLock();
+        lock.lock();
         try {
-            BufferedOutputStream fos = new BufferedOutputStream(createOutputStream(file));
-            CacheHeader e = new CacheHeader(key, entry);
-            boolean success = e.writeHeader(fos);
+            commitLocked(header, temp);
+        } finally {
+            lock.unlock();
+        }
+        maybeCompactJournal();
+        maybePruneInBackground();
+    }
+
+    /**
+     * Returns the body to store for an entry, compressed if compression is enabled, the content
+     * type is compressible and compressing actually saves space. Sets the header's flags and size
+     * to match.
+     */
+    private byte[] encodeBody(CacheHeader header, byte[] data) {
+        if (mCompressionEnabled
+                && data.length >= MIN_COMPRESSED_SIZE
+                && isCompressible(header.allResponseHeaders)) {
+            byte[] deflated = deflate(data);
+            if (deflated != null) {
+                header.flags |= FLAG_DEFLATED;
+                header.size = deflated.length;
+                return deflated;
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Returns whether a body with the given response headers is text worth compressing: its
+     * content type is textual and it isn't already content-encoded.
+     */
+    // VisibleForTesting
+    static boolean isCompressible(List<Header> headers) {
+        String contentType = null;
+        for (Header header : headers) {
+            if ("Content-Encoding".equalsIgnoreCase(header.getName())
+                    && !"identity".equalsIgnoreCase(header.getValue().trim())) {
+                return false;
+            }
+            if ("Content-Type".equalsIgnoreCase(header.getName())) {
+                contentType = header.getValue().toLowerCase(Locale.US);
+            }
+        }
+        if (contentType == null) {
+            return false;
+        }
+        int semicolon = contentType.indexOf(';');
+        String mimeType = (semicolon == -1 ? contentType : contentType.substring(0, semicolon)).trim();
+        return mimeType.startsWith("text/")
+                || mimeType.endsWith("/json") || mimeType.endsWith("+json")
+                || mimeType.endsWith("/xml") || mimeType.endsWith("+xml")
+                || mimeType.endsWith("/javascript") || mimeType.endsWith("/x-javascript")
+                || mimeType.equals("application/x-www-form-urlencoded");
+    }
+
+    /**
+     * Compresses data into its length as a little-endian int followed by a zlib stream.
+     *
+     * @return the compressed data, or null if it isn't smaller than the original
+     */
+    // VisibleForTesting
+    static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            byte[] out = new byte[data.length];
+            ByteBuffer.wrap(out).order(ByteOrder.LITTLE_ENDIAN).putInt(data.length);
+            int length = 4;
+            while (!deflater.finished() && length < out.length) {
+                length += deflater.deflate(out, length, out.length - length);
+            }
+            if (!deflater.finished()) {
+                return null;
+            }
+            byte[] deflated = new byte[length];
+            System.arraycopy(out, 0, deflated, 0, length);
+            return deflated;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Decompresses data written by {@link #deflate}.
+     *
+     * @throws IOException if the data is corrupt
+     */
+    // VisibleForTesting
+    static byte[] inflate(byte[] stored) throws IOException {
+        if (stored.length < 4) {
+            throw new EOFException("Compressed body too short");
+        }
+        int length = ByteBuffer.wrap(stored).order(ByteOrder.LITTLE_ENDIAN).getInt();
+        if (length < 0 || length > (long) (stored.length - 4) * MAX_DEFLATE_RATIO) {
+            throw new IOException("Bad uncompressed length: " + length);
+        }
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(stored, 4, stored.length - 4);
+            byte[] data = new byte[length];
+            int read = 0;
+            while (read < length) {
+                int n = inflater.inflate(data, read, length - read);
+                if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new EOFException("Compressed body ends after " + read + " of " + length + " bytes");
+                }
+                read += n;
+            }
+            if (!inflater.finished() && (inflater.inflate(new byte[1]) != 0 || !inflater.finished())) {
+                throw new IOException("Compressed body longer than " + length + " bytes");
+            }
+            return data;
+        } catch (DataFormatException e) {
+            throw new IOException(e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Writes an entry to a new file in the temp directory.
+     *
+     * @return the file, or null if it could not be written
+     */
+    private File writeTempFile(CacheHeader header, byte[] data) {
+        File temp = null;
+        try {
+            File tempDirectory = new File(mRootDirectory, TEMP_DIRECTORY);
+            if (!tempDirectory.isDirectory() && !tempDirectory.mkdirs()) {
+                throw new IOException("Could not create " + tempDirectory);
+            }
+            temp = File.createTempFile(mTempPrefix, null, tempDirectory);
+            BufferedOutputStream fos = new BufferedOutputStream(createOutputStream(temp));
+            boolean success = header.writeHeader(fos);
             if (!success) {
                 fos.close();
-                VolleyLog.d("Failed to write header for %s", file.getAbsolutePath());
+                VolleyLog.d("Failed to write header for %s", temp.getAbsolutePath());
                 throw new IOException();
             }
             //CacheHeader 和 Entry 最大的区别，其实就是是否有 byte[] data 这个属性，
             // data 代表网络响应的元数据，是返回的内容中最占地方的东西，
             // 所以 DiskBaseCache 重新抽象了一个不包含 data 的 CacheHeader，并将其缓存到内存中，
             // 而 data 部分便存储在磁盘缓存中，这样就能最大程度的利用有限的内存空间。
-            fos.write(entry.data);
+            fos.write(data);
             fos.close();
-            putEntry(key, e);
-            return;
+            return temp;
         } catch (IOException e) {
+            VolleyLog.d("Could not write cache entry for key=%s: %s", header.key, e.toString());
         }
-        boolean deleted = file.delete();
-        if (!deleted) {
-            VolleyLog.d("Could not clean up file %s", file.getAbsolutePath());
+        if (temp != null && !temp.delete()) {
+            VolleyLog.d("Could not clean up file %s", temp.getAbsolutePath());
         }
+        return null;
+    }
+
+    /**
+     * Moves a fully written temp file into place and indexes it. Must hold the write lock of the
+     * entry's stripe.
+     */
+    private void commitLocked(CacheHeader header, File temp) {
+        File file = new File(mRootDirectory, header.filename);
+        File directory = file.getParentFile();
+        // The rename replaces any previous file atomically, so readers see either the old or the
+        // new entry, and a crash never leaves a partially written file in place. Marking the key
+        // dirty first makes sure a crash before the put is journaled doesn't leave an unindexed
+        // file behind either.
+        mJournal.dirty(header.key);
+        if ((directory.isDirectory() || directory.mkdirs()) && temp.renameTo(file)) {
+            putEntry(header.key, header, true);
+            mJournal.put(header);
+            return;
+        }
+        VolleyLog.d("Could not move %s to %s", temp.getAbsolutePath(), file.getAbsolutePath());
+        if (!temp.delete()) {
+            VolleyLog.d("Could not clean up file %s", temp.getAbsolutePath());
+        }
+        // Settle the dirty record; the previous file, if any, is given up on too.
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+        removeEntry(header.key);
+        mJournal.remove(header.key);
     }
 
     /**
      * Removes the specified key from the cache if it exists.
      */
     @Override
-    public synchronized void remove(String key) {
-        boolean deleted = getFileForKey(key).delete();
-        removeEntry(key);
+    public void remove(String key) {
+        String filename = getFilenameForKey(key);
+        boolean deleted;
+        Lock lock = getStripe(filename).writeLock();
+        lock.lock();
+        try {
+            deleted = new File(mRootDirectory, filename).delete();
+            removeEntry(key);
+            mJournal.remove(key);
+        } finally {
+            lock.unlock();
+        }
+        maybeCompactJournal();
         if (!deleted) {
             VolleyLog.d("Could not delete cache entry for key=%s, filename=%s", key, getFilenameForKey(key));
         }
     }
 
     /**
-     * Creates a pseudo-unique filename for the specified cache key.
+     * Removes the entry for the given key if it is still indexed as {@code observed}, or still not
+     * indexed if that is null. Anything else means a put replaced the entry since it was observed.
+     */
+    private void removeIfUnchanged(String key, String filename, CacheHeader observed) {
+        boolean deleted;
+        Lock lock = getStripe(filename).writeLock();
+        lock.lock();
+        try {
+            synchronized (mIndexLock) {
+                if (mEntries.get(key) != observed) {
+                    return;
+                }
+            }
+            deleted = new File(mRootDirectory, filename).delete();
+            removeEntry(key);
+            mJournal.remove(key);
+        } finally {
+            lock.unlock();
+        }
+        maybeCompactJournal();
+        if (!deleted) {
+            VolleyLog.d("Could not delete cache entry for key=%s, filename=%s", key, filename);
+        }
+    }
+
+    /**
+     * Returns the name of the file for the specified cache key, relative to the root directory:
+     * the hex SHA-1 hash of the key, in subdirectories named after its first two digits.
      *
      * @param key The key to generate a file name for.
-     * @return A pseudo-unique filename.
+     * @return A unique relative file name.
      */
-    private String getFilenameForKey(String key) {
-        /**
-         * Volley 的缓存 key 的生成方法还是很骚的，将网络请求的 Url 分成两半，然后将这两部分的 hashCode 拼接成缓存 key。
-         * Volley 之所以要这样做，主要是为了尽量避免 hashCode 重复造成的文件名重复，
-         * 求两次 hashCode 都与另外一个 Url 相同的概率比只求一次要小很多，不过概率小不代表不存在，
-         * 但是 Java 在计算 hashCode 的速度是非常快的，这应该是 Volley 在权衡了安全性和效率之后做出的决定，这个思想是很值得我们学习的。
-         */
-        int firstHalfLength = key.length() / 2;
-        String localFilename = String.valueOf(key.substring(0, firstHalfLength).hashCode());
-        localFilename += String.valueOf(key.substring(firstHalfLength).hashCode());
-        return localFilename;
+    private static String getFilenameForKey(String key) {
+        // Volley 以前将 key 分成两半，拼接两部分的 hashCode 作为文件名；这样仍然会重复，
+        // 所以现在改用 SHA-1，并分两级子目录存放，避免单个目录中文件过多。
+        byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes("UTF-8"));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        char[] name = new char[4 + 2 * digest.length];
+        for (int i = 0; i < digest.length; i++) {
+            name[4 + 2 * i] = HEX_DIGITS[(digest[i] >> 4) & 0xf];
+            name[5 + 2 * i] = HEX_DIGITS[digest[i] & 0xf];
+        }
+        name[0] = name[4];
+        name[1] = '/';
+        name[2] = name[5];
+        name[3] = '/';
+        return new String(name);
     }
 
     /**
@@ -409,43 +1147,281 @@ public class DiskBasedCache implements Cache {
         return new File(mRootDirectory, getFilenameForKey(key));
     }
 
+    /**
+     * Returns the lock stripe guarding the cache file with the given name.
+     */
+    private ReentrantReadWriteLock getStripe(String filename) {
+        int h = filename.hashCode();
+        // Spread the high bits into the few that pick the stripe.
+        h ^= (h >>> 16);
+        return mStripes[h & (STRIPE_COUNT - 1)];
+    }
+
+    /**
+     * Starts pruning least recently used entries on a background thread once the cache is above
+     * the background prune mark, so that the deletions don't hold up any request. A put which
+     * would still exceed the maximum size prunes by itself.
+     */
+    private void maybePruneInBackground() {
+        if (mSketch != null) {
+            // W-TinyLFU evicts a few entries at a time as they are put; there's no backlog.
+            return;
+        }
+        synchronized (mIndexLock) {
+            if (mPruneThread != null || mTotalSize < mMaxCacheSizeInBytes * BACKGROUND_PRUNE_FACTOR) {
+                return;
+            }
+            mPruneThread =
+                    new Thread("CachePruner") {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            try {
+                                pruneInBackground();
+                            } finally {
+                                synchronized (mIndexLock) {
+                                    mPruneThread = null;
+                                }
+                            }
+                        }
+                    };
+            mPruneThread.start();
+        }
+    }
+
+    private void pruneInBackground() {
+        List<CacheHeader> evicted = new ArrayList<>();
+        long startTime = SystemClock.elapsedRealtime();
+        synchronized (mIndexLock) {
+            // Keep the newest entry, even if it is larger than the cache on its own, like an
+            // inline prune would until the next put.
+            selectLruVictimsLocked(0, mMaxCacheSizeInBytes * BACKGROUND_PRUNE_FACTOR, true, evicted);
+        }
+        deleteEvicted(evicted, startTime);
+    }
+
+    /**
+     * Waits for the background prune, if any, to finish.
+     */
+    @VisibleForTesting
+    void awaitBackgroundPrune() throws InterruptedException {
+        Thread pruneThread;
+        synchronized (mIndexLock) {
+            pruneThread = mPruneThread;
+        }
+        if (pruneThread != null) {
+            pruneThread.join();
+        }
+    }
+
     /**
      * Prunes the cache to fit the amount of bytes specified.
      *
+     * @param key         The key of the entry about to be put.
      * @param neededSpace The amount of bytes we are trying to fit into the cache.
+     * @return false if the eviction policy rejects the entry, in which case nothing was pruned
+     *     and the entry shouldn't be written
      */
-    private void pruneIfNeeded(int neededSpace) {
+    private boolean pruneIfNeeded(String key, int neededSpace) {
+        List<CacheHeader> evicted = new ArrayList<>();
+        long startTime = SystemClock.elapsedRealtime();
+        // Pick the victims and drop them from the index under the index lock only, then delete
+        // their files one stripe at a time.
+        synchronized (mIndexLock) {
+            if (mSketch == null) {
+                selectLruVictimsLocked(neededSpace, mMaxCacheSizeInBytes, false, evicted);
+            } else if (!selectTinyLfuVictimsLocked(key, neededSpace, evicted)) {
+                return false;
+            }
+        }
+        deleteEvicted(evicted, startTime);
+        return true;
+    }
+
+    /**
+     * Deletes the files of entries which were dropped from the index, unless they were put again.
+     */
+    private void deleteEvicted(List<CacheHeader> evicted, long startTime) {
+        if (evicted.isEmpty()) {
+            return;
+        }
+        long prunedBytes = 0;
+        for (CacheHeader e : evicted) {
+            String filename = getFilenameForKey(e.key);
+            Lock lock = getStripe(filename).writeLock();
+            lock.lock();
+            try {
+                boolean reinserted;
+                synchronized (mIndexLock) {
+                    reinserted = mEntries.containsKey(e.key);
+                }
+                // The entry may have been put again since it was evicted; keep the new file.
+                if (!reinserted) {
+                    if (!new File(mRootDirectory, filename).delete()) {
+                        VolleyLog.d("Could not delete cache entry for key=%s, filename=%s", e.key, filename);
+                    }
+                    mJournal.remove(e.key);
+                }
+            } finally {
+                lock.unlock();
+            }
+            prunedBytes += e.size;
+        }
+
+        if (VolleyLog.DEBUG) {
+            VolleyLog.v("pruned %d files, %d bytes, %d ms", evicted.size(), prunedBytes, SystemClock.elapsedRealtime() - startTime);
+        }
+    }
+
+    /**
+     * Drops least recently used entries from the index until the needed space fits below the
+     * hysteresis mark, if it doesn't fit below the given limit already.
+     *
+     * @param keepNewest whether to keep the most recently used entry in any case
+     */
+    @GuardedBy("mIndexLock")
+    private void selectLruVictimsLocked(int neededSpace, float limit, boolean keepNewest, List<CacheHeader> evicted) {
         // 如果内存还够用，就直接 return.
-        if ((mTotalSize + neededSpace) < mMaxCacheSizeInBytes) {
+        if ((mTotalSize + neededSpace) < limit) {
             return;
         }
         if (VolleyLog.DEBUG) {
             VolleyLog.v("Pruning old cache entries.");
         }
-        long before = mTotalSize;
-        int prunedFiles = 0;
-        long startTime = SystemClock.elapsedRealtime();
         Iterator<Map.Entry<String, CacheHeader>> iterator = mEntries.entrySet().iterator();
         while (iterator.hasNext()) {
             // 遍历所有的文件，开始进行删除文件
-            Map.Entry<String, CacheHeader> entry = iterator.next();
-            CacheHeader e = entry.getValue();
-            boolean deleted = getFileForKey(e.key).delete();
-            if (deleted) {
-                mTotalSize -= e.size;
-            } else {
-                VolleyLog.d("Could not delete cache entry for key=%s, filename=%s", e.key, getFilenameForKey(e.key));
+            CacheHeader e = iterator.next().getValue();
+            if (keepNewest && !iterator.hasNext()) {
+                break;
             }
+            evicted.add(e);
+            mTotalSize -= e.size;
             iterator.remove();
-            prunedFiles++;
             // 如果删除文件后，存储空间已经够用了，就停止循环
             if ((mTotalSize + neededSpace) < mMaxCacheSizeInBytes * HYSTERESIS_FACTOR) {
                 break;
             }
         }
+    }
 
-        if (VolleyLog.DEBUG) {
-            VolleyLog.v("pruned %d files, %d bytes, %d ms", prunedFiles, (mTotalSize - before), SystemClock.elapsedRealtime() - startTime);
+    /**
+     * Makes room for an entry under {@link EvictionPolicy#W_TINY_LFU}, dropping victims from the
+     * index.
+     *
+     * @return false if the entry is too large for the window and less frequently requested than
+     *     the entries it would displace, in which case nothing is dropped
+     */
+    @GuardedBy("mIndexLock")
+    private boolean selectTinyLfuVictimsLocked(String key, int size, List<CacheHeader> evicted) {
+        long maxMainSize = mMaxCacheSizeInBytes - mMaxWindowSize;
+        CacheHeader existing = mEntries.get(key);
+        if (existing != null) {
+            // An update of an entry which was already let in; just make room for the difference.
+            Iterator<CacheHeader> iterator = mEntries.values().iterator();
+            while (mTotalSize - existing.size + size > mMaxCacheSizeInBytes && iterator.hasNext()) {
+                CacheHeader victim = iterator.next();
+                if (victim != existing) {
+                    iterator.remove();
+                    dropFromWindowLocked(victim);
+                    mTotalSize -= victim.size;
+                    evicted.add(victim);
+                }
+            }
+            return true;
+        }
+
+        if (size > mMaxWindowSize) {
+            // Goes straight to the main region, if it's more popular than all it displaces.
+            long needed = mTotalSize - mWindowSize + size - maxMainSize;
+            List<CacheHeader> victims = new ArrayList<>();
+            int maxVictimFrequency = 0;
+            for (CacheHeader victim : mEntries.values()) {
+                if (needed <= 0) {
+                    break;
+                }
+                if (!mWindow.containsKey(victim.key)) {
+                    victims.add(victim);
+                    needed -= victim.size;
+                    maxVictimFrequency = Math.max(maxVictimFrequency, mSketch.frequency(victim.key));
+                }
+            }
+            if (needed > 0 || (!victims.isEmpty() && mSketch.frequency(key) <= maxVictimFrequency)) {
+                return false;
+            }
+            for (CacheHeader victim : victims) {
+                mEntries.remove(victim.key);
+                mTotalSize -= victim.size;
+                evicted.add(victim);
+            }
+            return true;
+        }
+
+        // The entry goes into the window; the eldest window entries move to the main region, each
+        // displacing main entries only while it is more popular than them.
+        Iterator<CacheHeader> window = mWindow.values().iterator();
+        while (mWindowSize + size > mMaxWindowSize && window.hasNext()) {
+            CacheHeader candidate = window.next();
+            window.remove();
+            mWindowSize -= candidate.size;
+            int candidateFrequency = mSketch.frequency(candidate.key);
+            Iterator<CacheHeader> main = mEntries.values().iterator();
+            while (mTotalSize - mWindowSize > maxMainSize) {
+                CacheHeader victim = null;
+                while (main.hasNext()) {
+                    CacheHeader e = main.next();
+                    if (e != candidate && !mWindow.containsKey(e.key)) {
+                        victim = e;
+                        break;
+                    }
+                }
+                if (victim != null && candidateFrequency > mSketch.frequency(victim.key)) {
+                    main.remove();
+                    mTotalSize -= victim.size;
+                    evicted.add(victim);
+                } else {
+                    mEntries.remove(candidate.key);
+                    mTotalSize -= candidate.size;
+                    evicted.add(candidate);
+                    break;
+                }
+            }
+        }
+        return true;
+    }
+
+    @GuardedBy("mIndexLock")
+    private void dropFromWindowLocked(CacheHeader entry) {
+        if (mWindow.remove(entry.key) != null) {
+            mWindowSize -= entry.size;
+        }
+    }
+
+    /**
+     * Rewrites the journal from the index if it has accumulated enough obsolete records.
+     */
+    private void maybeCompactJournal() {
+        int liveEntries;
+        synchronized (mIndexLock) {
+            liveEntries = mEntries.size();
+        }
+        if (mJournal.needsCompaction(liveEntries)) {
+            compactJournal();
+        }
+    }
+
+    /**
+     * Rewrites the journal from the index.
+     */
+    private void compactJournal() {
+        // Holding the journal while taking the snapshot makes sure every record appended after the
+        // snapshot ends up in the new journal.
+        synchronized (mJournal) {
+            List<CacheHeader> snapshot;
+            synchronized (mIndexLock) {
+                snapshot = new ArrayList<>(mEntries.values());
+            }
+            mJournal.rewrite(snapshot);
         }
     }
 
@@ -455,23 +1431,44 @@ public class DiskBasedCache implements Cache {
      * @param key   The key to identify the entry by.
      * @param entry The entry to cache.
      */
-    private void putEntry(String key, CacheHeader entry) {
-        if (!mEntries.containsKey(key)) {
-            mTotalSize += entry.size;
-        } else {
-            CacheHeader oldEntry = mEntries.get(key);
-            mTotalSize += (entry.size - oldEntry.size);
+    private void putEntry(String key, CacheHeader entry, boolean recent) {
+        synchronized (mIndexLock) {
+            CacheHeader oldEntry = mEntries.put(key, entry);
+            if (oldEntry == null) {
+                mTotalSize += entry.size;
+            } else {
+                mTotalSize += (entry.size - oldEntry.size);
+            }
+            if (mWindow != null) {
+                CacheHeader oldInWindow = mWindow.remove(key);
+                if (oldInWindow != null) {
+                    mWindowSize -= oldInWindow.size;
+                }
+                // Newly put entries start in the window; admitted ones stay admitted when updated.
+                boolean toWindow = oldInWindow != null || (oldEntry == null && recent);
+                if (toWindow && entry.size <= mMaxWindowSize) {
+                    mWindow.put(key, entry);
+                    mWindowSize += entry.size;
+                }
+            }
         }
-        mEntries.put(key, entry);
     }
 
     /**
      * Removes the entry identified by 'key' from the cache.
      */
     private void removeEntry(String key) {
-        CacheHeader removed = mEntries.remove(key);
-        if (removed != null) {
-            mTotalSize -= removed.size;
+        synchronized (mIndexLock) {
+            CacheHeader removed = mEntries.remove(key);
+            if (removed != null) {
+                mTotalSize -= removed.size;
+            }
+            if (mWindow != null) {
+                removed = mWindow.remove(key);
+                if (removed != null) {
+                    mWindowSize -= removed.size;
+                }
+            }
         }
     }
 
@@ -518,6 +1515,27 @@ public class DiskBasedCache implements Cache {
          */
         long size;
 
+        /**
+         * Name of the file holding the entry, relative to the cache directory. (This is not
+         * serialized to the entry's file.)
+         */
+        String filename;
+
+        /**
+         * Length of the body as recorded in the entry's file, or -1 if unknown (legacy format or
+         * not read from a file).
+         */
+        long dataLength = -1;
+
+        /** Length of the header as read from the entry's file, or -1 if unknown. */
+        int headerLength = -1;
+
+        /**
+         * Flags describing how the body is stored, such as {@link #FLAG_DEFLATED}. (This is not
+         * recorded by the journal, and is only known once read from the entry's file.)
+         */
+        int flags = 0;
+
         /**
          * The key that identifies the cache entry.
          */
@@ -564,6 +1582,16 @@ public class DiskBasedCache implements Cache {
             this.allResponseHeaders = allResponseHeaders;
         }
 
+        /**
+         * Instantiates a CacheHeader restored from the {@link CacheJournal}, which only records the
+         * fields needed for indexing. The full header is read from the entry's file on access.
+         */
+        CacheHeader(String key, String filename, long size, long ttl, long softTtl) {
+            this(key, null, 0, 0, ttl, softTtl, Collections.<Header>emptyList());
+            this.filename = filename;
+            this.size = size;
+        }
+
         /**
          * Instantiates a new CacheHeader object.
          *
@@ -586,24 +1614,84 @@ public class DiskBasedCache implements Cache {
         }
 
         /**
-         * Reads the header from a CountingInputStream and returns a CacheHeader object.
+         * Reads the header from the start of a buffer holding (the beginning of) a cache file, and
+         * leaves the buffer positioned at the start of the body. Reads both the current and the
+         * legacy format.
          *
-         * @param is The InputStream to read from.
-         * @throws IOException if fails to read header
+         * @param buffer     Little-endian buffer to read from
+         * @param fileLength Length of the whole file, to tell corrupt lengths from ones which
+         *                   extend past the end of the buffer
+         * @throws BufferUnderflowException if the header extends past the end of the buffer
+         * @throws IOException              if the header is not valid
          */
-        static CacheHeader readHeader(CountingInputStream is) throws IOException {
-            int magic = readInt(is);
+        static CacheHeader readHeader(ByteBuffer buffer, long fileLength) throws IOException {
+            int start = buffer.position();
+            int magic = buffer.getInt();
+            if (magic == LEGACY_CACHE_MAGIC) {
+                return readLegacyHeader(buffer, fileLength);
+            }
             if (magic != CACHE_MAGIC) {
                 // don't bother deleting, it'll get pruned eventually
                 throw new IOException();
             }
-            String key = readString(is);
-            String etag = readString(is);
-            long serverDate = readLong(is);
-            long lastModified = readLong(is);
-            long ttl = readLong(is);
-            long softTtl = readLong(is);
-            List<Header> allResponseHeaders = readHeaderList(is);
+            int headerLength = buffer.getInt();
+            if (headerLength < HEADER_FIXED_LENGTH || headerLength > fileLength) {
+                throw new IOException("headerLength=" + headerLength + ", fileLength=" + fileLength);
+            }
+            if (start + headerLength > buffer.limit()) {
+                throw new BufferUnderflowException();
+            }
+            // Parse within the header only, so a corrupt length can't run into the body.
+            int limit = buffer.limit();
+            buffer.limit(start + headerLength);
+            CacheHeader header;
+            try {
+                int flags = buffer.getInt();
+                if ((flags & ~FLAG_DEFLATED) != 0) {
+                    throw new IOException("Unknown flags: " + flags);
+                }
+                long dataLength = buffer.getLong();
+                String key = readShortString(buffer);
+                String etag = readShortString(buffer);
+                long serverDate = buffer.getLong();
+                long lastModified = buffer.getLong();
+                long ttl = buffer.getLong();
+                long softTtl = buffer.getLong();
+                int count = buffer.getInt();
+                if (count < 0) {
+                    throw new IOException("header count=" + count);
+                }
+                List<Header> allResponseHeaders =
+                        (count == 0) ? Collections.<Header>emptyList() : new ArrayList<Header>(count);
+                for (int i = 0; i < count; i++) {
+                    String name = readShortString(buffer).intern();
+                    String value = readShortString(buffer).intern();
+                    allResponseHeaders.add(new Header(name, value));
+                }
+                if (buffer.hasRemaining()) {
+                    throw new IOException("Unexpected bytes at end of header");
+                }
+                header = new CacheHeader(key, etag, serverDate, lastModified, ttl, softTtl, allResponseHeaders);
+                header.dataLength = dataLength;
+                header.headerLength = headerLength;
+                header.flags = flags;
+            } catch (BufferUnderflowException e) {
+                // The whole header is in the buffer, so it is its length which is wrong.
+                throw new IOException("Corrupt header");
+            } finally {
+                buffer.limit(limit);
+            }
+            return header;
+        }
+
+        private static CacheHeader readLegacyHeader(ByteBuffer buffer, long fileLength) throws IOException {
+            String key = readString(buffer, fileLength);
+            String etag = readString(buffer, fileLength);
+            long serverDate = buffer.getLong();
+            long lastModified = buffer.getLong();
+            long ttl = buffer.getLong();
+            long softTtl = buffer.getLong();
+            List<Header> allResponseHeaders = readHeaderList(buffer, fileLength);
             return new CacheHeader(key, etag, serverDate, lastModified, ttl, softTtl, allResponseHeaders);
         }
 
@@ -624,18 +1712,13 @@ public class DiskBasedCache implements Cache {
         }
 
         /**
-         * Writes the contents of this CacheHeader to the specified OutputStream.
+         * Writes the contents of this CacheHeader to the specified OutputStream, in the current
+         * format and with a single write.
          */
         boolean writeHeader(OutputStream os) {
             try {
-                writeInt(os, CACHE_MAGIC);
-                writeString(os, key);
-                writeString(os, etag == null ? "" : etag);
-                writeLong(os, serverDate);
-                writeLong(os, lastModified);
-                writeLong(os, ttl);
-                writeLong(os, softTtl);
-                writeHeaderList(allResponseHeaders, os);
+                ByteBuffer header = encode();
+                os.write(header.array(), 0, header.limit());
                 os.flush();
                 return true;
             } catch (IOException e) {
@@ -643,6 +1726,96 @@ public class DiskBasedCache implements Cache {
                 return false;
             }
         }
+
+        /**
+         * Encodes this header in the current format: magic, header length, flags and body length,
+         * then the fields with int-prefixed UTF-8 strings.
+         */
+        ByteBuffer encode() throws UnsupportedEncodingException {
+            // Encode the strings first to know the exact size.
+            byte[][] strings = new byte[2 + 2 * allResponseHeaders.size()][];
+            strings[0] = key.getBytes("UTF-8");
+            strings[1] = (etag == null ? "" : etag).getBytes("UTF-8");
+            int i = 2;
+            for (Header header : allResponseHeaders) {
+                strings[i++] = header.getName().getBytes("UTF-8");
+                strings[i++] = header.getValue().getBytes("UTF-8");
+            }
+            int length = HEADER_FIXED_LENGTH;
+            for (byte[] string : strings) {
+                length += 4 + string.length;
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(CACHE_MAGIC);
+            buffer.putInt(length);
+            buffer.putInt(flags);
+            buffer.putLong(size);
+            putShortString(buffer, strings[0]);
+            putShortString(buffer, strings[1]);
+            buffer.putLong(serverDate);
+            buffer.putLong(lastModified);
+            buffer.putLong(ttl);
+            buffer.putLong(softTtl);
+            buffer.putInt(allResponseHeaders.size());
+            for (i = 2; i < strings.length; i++) {
+                putShortString(buffer, strings[i]);
+            }
+            buffer.flip();
+            return buffer;
+        }
+
+        private static void putShortString(ByteBuffer buffer, byte[] string) {
+            buffer.putInt(string.length);
+            buffer.put(string);
+        }
+
+        private static String readShortString(ByteBuffer buffer) throws IOException {
+            int n = buffer.getInt();
+            if (n < 0 || n > buffer.remaining()) {
+                throw new IOException("string length=" + n);
+            }
+            String s = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), n, "UTF-8");
+            buffer.position(buffer.position() + n);
+            return s;
+        }
+    }
+
+    /** The header of a cache file, with the buffer it was read from positioned after it. */
+    private static class FileHead {
+        final CacheHeader header;
+        final ByteBuffer buffer;
+
+        private FileHead(CacheHeader header, ByteBuffer buffer) {
+            this.header = header;
+            this.buffer = buffer;
+        }
+
+        /**
+         * Reads the start of a cache file in one go, and more only if the header doesn't fit.
+         *
+         * @param is     Stream at the start of the file
+         * @param length Length of the file
+         */
+        static FileHead read(InputStream is, long length) throws IOException {
+            byte[] prefix = new byte[(int) Math.min(length, HEADER_READ_SIZE)];
+            readFully(is, prefix, 0, prefix.length);
+            while (true) {
+                ByteBuffer buffer = ByteBuffer.wrap(prefix).order(ByteOrder.LITTLE_ENDIAN);
+                try {
+                    return new FileHead(CacheHeader.readHeader(buffer, length), buffer);
+                } catch (BufferUnderflowException e) {
+                    if (prefix.length == length) {
+                        throw new EOFException("Truncated cache header");
+                    }
+                    // Unusually large header; read more of the file.
+                    byte[] larger = new byte[(int) Math.min(length, 4L * prefix.length)];
+                    System.arraycopy(prefix, 0, larger, 0, prefix.length);
+                    readFully(is, larger, prefix.length, larger.length - prefix.length);
+                    prefix = larger;
+                }
+            }
+        }
     }
 
     @VisibleForTesting
@@ -782,4 +1955,53 @@ public class DiskBasedCache implements Cache {
         }
         return result;
     }
+
+    /*
+     * Bulk counterparts of the above for reading from a buffer. Lengths beyond the end of the
+     * buffer, but within the file, raise BufferUnderflowException so the caller can read more.
+     */
+
+    static String readString(ByteBuffer buffer, long fileLength) throws IOException {
+        long n = buffer.getLong();
+        if (n < 0 || n > fileLength) {
+            throw new IOException("readString length=" + n + ", fileLength=" + fileLength);
+        }
+        if (n > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        String s = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), (int) n, "UTF-8");
+        buffer.position(buffer.position() + (int) n);
+        return s;
+    }
+
+    static List<Header> readHeaderList(ByteBuffer buffer, long fileLength) throws IOException {
+        int size = buffer.getInt();
+        if (size < 0) {
+            throw new IOException("readHeaderList size=" + size);
+        }
+        List<Header> result =
+                (size == 0) ? Collections.<Header>emptyList() : new ArrayList<Header>();
+        for (int i = 0; i < size; i++) {
+            String name = readString(buffer, fileLength).intern();
+            String value = readString(buffer, fileLength).intern();
+            result.add(new Header(name, value));
+        }
+        return result;
+    }
+
+    /**
+     * Reads exactly {@code count} bytes into {@code b} at {@code offset}.
+     *
+     * @throws EOFException if the stream ends first
+     */
+    static void readFully(InputStream is, byte[] b, int offset, int count) throws IOException {
+        while (count > 0) {
+            int n = is.read(b, offset, count);
+            if (n == -1) {
+                throw new EOFException();
+            }
+            offset += n;
+            count -= n;
+        }
+    }
 }
@@ -0,0 +1,304 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import com.android.volley.AuthFailureError;
+import com.android.volley.NetworkResponse;
+import com.android.volley.ParseError;
+import com.android.volley.Response.ErrorListener;
+import com.android.volley.Response.Listener;
+import com.android.volley.VolleyError;
+import com.android.volley.VolleyLog;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A request which downloads a resource straight to a file, without holding the body in memory.
+ * <p>
+ * <p>The body is written to {@code <target>.part} as it arrives, and renamed to the target file
+ * once complete. If a download is interrupted, the next request for the same target resumes it
+ * with a {@code Range} request, guarded by {@code If-Range} with the ETag or Last-Modified date
+ * of the partial download; if the resource changed, the server sends all of it again. Responses
+ * are not cached.
+ */
+public class FileDownloadRequest extends StreamingRequest<File> {
+
+    /**
+     * Receives the progress of a download.
+     */
+    public interface ProgressListener {
+        /**
+         * Called on the network thread as the body is written, including bytes of an earlier
+         * attempt which are resumed.
+         *
+         * @param bytesDownloaded Number of bytes in the file so far
+         * @param totalBytes      Size of the complete file, or -1 if the server didn't say
+         */
+        void onProgress(long bytesDownloaded, long totalBytes);
+    }
+
+    /** Size of the buffer bytes are copied through. */
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    /** Number of bytes between progress reports. */
+    private static final int PROGRESS_INTERVAL = 64 * 1024;
+
+    private static final int HTTP_PARTIAL_CONTENT = 206;
+
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
+    private final File mTarget;
+
+    /** The body downloaded so far. */
+    private final File mPartFile;
+
+    /** The ETag or Last-Modified date of the partial download, to resume it with If-Range. */
+    private final File mValidatorFile;
+
+    private volatile ProgressListener mProgressListener;
+
+    /**
+     * Creates a new GET request downloading to the given file.
+     *
+     * @param url           URL to download
+     * @param target        File to write the resource to; replaced once the download completes
+     * @param listener      Listener to receive the target file
+     * @param errorListener Error listener, or null to ignore errors
+     */
+    public FileDownloadRequest(String url, File target, Listener<File> listener, ErrorListener errorListener) {
+        super(Method.GET, url, listener, errorListener);
+        mTarget = target;
+        mPartFile = new File(target.getPath() + ".part");
+        mValidatorFile = new File(target.getPath() + ".part.validator");
+        setShouldCache(false);
+    }
+
+    /**
+     * Sets a listener for the progress of the download.
+     *
+     * @return This Request object to allow for chaining.
+     */
+    public FileDownloadRequest setProgressListener(ProgressListener listener) {
+        mProgressListener = listener;
+        return this;
+    }
+
+    @Override
+    public Map<String, String> getHeaders() throws AuthFailureError {
+        Map<String, String> headers = new HashMap<>(super.getHeaders());
+        // Byte ranges are only meaningful for the body as stored, not a compressed encoding of it.
+        headers.put("Accept-Encoding", "identity");
+        long resumeFrom = mPartFile.length();
+        String validator = readValidator();
+        if (resumeFrom > 0 && validator != null) {
+            headers.put("Range", "bytes=" + resumeFrom + "-");
+            headers.put("If-Range", validator);
+        }
+        return headers;
+    }
+
+    @Override
+    protected File parseStream(NetworkResponse response, InputStream body) throws IOException, ParseError {
+        long offset = 0;
+        long total;
+        if (response.statusCode == HTTP_PARTIAL_CONTENT) {
+            long[] range = parseContentRange(response.headers.get("Content-Range"));
+            if (range == null || range[0] != mPartFile.length()) {
+                // Not the range asked for; start over on the next attempt.
+                deletePartialDownload();
+                throw new IOException("Unexpected Content-Range: " + response.headers.get("Content-Range"));
+            }
+            offset = range[0];
+            total = range[1];
+        } else {
+            // The whole resource, either because nothing was downloaded yet or it has changed.
+            total = parseLong(response.headers.get("Content-Length"));
+            writeValidator(response.headers);
+        }
+
+        RandomAccessFile file = new RandomAccessFile(mPartFile, "rw");
+        try {
+            FileChannel out = file.getChannel();
+            out.truncate(offset);
+            out.position(offset);
+            long written = offset;
+            long reported = offset;
+            reportProgress(written, total);
+            ReadableByteChannel in = Channels.newChannel(body);
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            while (in.read(buffer) != -1) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    written += out.write(buffer);
+                }
+                buffer.clear();
+                if (isCanceled()) {
+                    // Keep what was downloaded to resume it later. The error isn't delivered to a
+                    // canceled request, and isn't retried like an IOException would be.
+                    throw new ParseError(new IOException("Download canceled"));
+                }
+                if (written - reported >= PROGRESS_INTERVAL) {
+                    reported = written;
+                    reportProgress(written, total);
+                }
+            }
+            if (total != -1 && written != total) {
+                throw new IOException("Download ended after " + written + " of " + total + " bytes");
+            }
+            if (reported != written) {
+                reportProgress(written, total);
+            }
+        } finally {
+            file.close();
+        }
+
+        if (mTarget.exists() && !mTarget.delete()) {
+            throw new ParseError(new IOException("Could not replace " + mTarget));
+        }
+        if (!mPartFile.renameTo(mTarget)) {
+            throw new ParseError(new IOException("Could not move download to " + mTarget));
+        }
+        deleteFile(mValidatorFile);
+        return mTarget;
+    }
+
+    @Override
+    protected VolleyError parseNetworkError(VolleyError volleyError) {
+        if (volleyError.networkResponse != null
+                && volleyError.networkResponse.statusCode == HTTP_RANGE_NOT_SATISFIABLE) {
+            // The partial download doesn't match the resource any more.
+            deletePartialDownload();
+        }
+        return super.parseNetworkError(volleyError);
+    }
+
+    private void reportProgress(long bytesDownloaded, long totalBytes) {
+        ProgressListener listener = mProgressListener;
+        if (listener != null) {
+            listener.onProgress(bytesDownloaded, totalBytes);
+        }
+    }
+
+    private void deletePartialDownload() {
+        deleteFile(mPartFile);
+        deleteFile(mValidatorFile);
+    }
+
+    /** Returns the stored If-Range validator, or null if there is none. */
+    private String readValidator() {
+        if (!mValidatorFile.exists()) {
+            return null;
+        }
+        try {
+            FileInputStream in = new FileInputStream(mValidatorFile);
+            try {
+                byte[] bytes = new byte[(int) mValidatorFile.length()];
+                int read = 0;
+                while (read < bytes.length) {
+                    int n = in.read(bytes, read, bytes.length - read);
+                    if (n == -1) {
+                        return null;
+                    }
+                    read += n;
+                }
+                return bytes.length > 0 ? new String(bytes, "UTF-8") : null;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            VolleyLog.d("Could not read %s: %s", mValidatorFile, e.toString());
+            return null;
+        }
+    }
+
+    /**
+     * Stores the validator for resuming the download, or removes the stored one if the response
+     * has none, in which case the download can't be resumed.
+     */
+    private void writeValidator(Map<String, String> headers) throws IOException {
+        String validator = headers.get("ETag");
+        if (validator == null || validator.startsWith("W/")) {
+            // Weak ETags can't be used with If-Range.
+            validator = headers.get("Last-Modified");
+        }
+        if (validator == null) {
+            deleteFile(mValidatorFile);
+            return;
+        }
+        FileOutputStream out = new FileOutputStream(mValidatorFile);
+        try {
+            out.write(validator.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Parses a Content-Range header such as {@code bytes 100-199/200}.
+     *
+     * @return the first byte and the complete length, which is -1 if unknown, or null if the header
+     *     is missing or malformed
+     */
+    // VisibleForTesting
+    static long[] parseContentRange(String contentRange) {
+        if (contentRange == null || !contentRange.startsWith("bytes ")) {
+            return null;
+        }
+        int dash = contentRange.indexOf('-');
+        int slash = contentRange.indexOf('/');
+        if (dash == -1 || slash < dash) {
+            return null;
+        }
+        long first = parseLong(contentRange.substring("bytes ".length(), dash).trim());
+        String complete = contentRange.substring(slash + 1).trim();
+        long total = "*".equals(complete) ? -1 : parseLong(complete);
+        if (first < 0 || (total != -1 && total <= first)) {
+            return null;
+        }
+        return new long[] {first, total};
+    }
+
+    /** Parses a non-negative number, returning -1 if it's missing or malformed. */
+    private static long parseLong(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            long parsed = Long.parseLong(value.trim());
+            return parsed >= 0 ? parsed : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static void deleteFile(File file) {
+        if (file.exists() && !file.delete()) {
+            VolleyLog.d("Could not delete %s", file);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+/**
+ * Approximate count of how often each key was requested recently, used by {@link DiskBasedCache}
+ * to decide whether a new entry is worth evicting others for.
+ * <p>
+ * <p>A count-min sketch of 4-bit counters: each key increments one counter in each of four rows,
+ * and its frequency is the smallest of them, so collisions can only overestimate it. Counts
+ * saturate at 15, and all of them are halved once the number of increments reaches ten times the
+ * expected number of keys, so old popularity fades away.
+ * <p>
+ * <p>Not thread-safe; {@link DiskBasedCache} only uses it under its index lock.
+ */
+class FrequencySketch {
+
+    /** Largest value of a counter. */
+    static final int MAX_FREQUENCY = 15;
+
+    private static final int[] SEEDS = {0x97cb3127, 0xb1a8b0a1, 0x4b9a2c5d, 0x5bd1e995};
+
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    /** 16 counters of 4 bits per long. */
+    private final long[] mTable;
+
+    /** Mask selecting a counter in the table. */
+    private final int mCounterMask;
+
+    /** Number of increments after which all counters are halved. */
+    private final int mSampleSize;
+
+    /** Number of increments since the last halving. */
+    private int mIncrements = 0;
+
+    /**
+     * @param expectedKeys Roughly the number of distinct keys the cache is expected to hold
+     */
+    FrequencySketch(int expectedKeys) {
+        // Sixteen counters per expected key keep collisions rare.
+        int keys = Integer.highestOneBit(Math.max(16, Math.min(expectedKeys, 1 << 20)) - 1) << 1;
+        mTable = new long[keys];
+        mCounterMask = 16 * keys - 1;
+        mSampleSize = 10 * keys;
+    }
+
+    /** Records one request for the given key. */
+    void increment(String key) {
+        int hash = spread(key.hashCode());
+        boolean added = false;
+        for (int row = 0; row < SEEDS.length; row++) {
+            int counter = indexOf(hash, row);
+            int index = counter >>> 4;
+            int shift = (counter & 15) << 2;
+            if (((mTable[index] >>> shift) & 0xfL) < MAX_FREQUENCY) {
+                mTable[index] += 1L << shift;
+                added = true;
+            }
+        }
+        if (added && ++mIncrements >= mSampleSize) {
+            reset();
+        }
+    }
+
+    /** Returns the estimated number of recent requests for the given key, at most 15. */
+    int frequency(String key) {
+        int hash = spread(key.hashCode());
+        int frequency = MAX_FREQUENCY;
+        for (int row = 0; row < SEEDS.length; row++) {
+            int counter = indexOf(hash, row);
+            int count = (int) ((mTable[counter >>> 4] >>> ((counter & 15) << 2)) & 0xfL);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    /** Halves every counter. */
+    private void reset() {
+        for (int i = 0; i < mTable.length; i++) {
+            mTable[i] = (mTable[i] >>> 1) & RESET_MASK;
+        }
+        mIncrements /= 2;
+    }
+
+    private int indexOf(int hash, int row) {
+        int h = (hash + SEEDS[row]) * SEEDS[row];
+        h ^= h >>> 16;
+        return h & mCounterMask;
+    }
+
+    /** Mixes the bits of a String hash code, whose low bits are weak for similar keys. */
+    private static int spread(int h) {
+        h ^= h >>> 17;
+        h *= 0xed5ad4bb;
+        h ^= h >>> 11;
+        h *= 0xac4c1b51;
+        h ^= h >>> 15;
+        return h;
+    }
+}
@@ -0,0 +1,584 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.volley.toolbox;
+
+import com.android.volley.Header;
+
+import java.io.ByteArrayOutputStream;
+import java.net.ProtocolException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * HPACK, the header compression of HTTP/2 (RFC 7541), for {@link Http2Stack}.
+ * <p>
+ * <p>Each direction of a connection has its own encoder and decoder, which share a table of
+ * recently sent headers; a header found in the table is sent as its index. Both must see every
+ * header block of the connection, in order.
+ */
+final class Hpack {
+
+    /** Size of the dynamic table both sides start with, and the most the encoder uses. */
+    static final int DEFAULT_HEADER_TABLE_SIZE = 4096;
+
+    /** Most bytes of decoded headers accepted in one block, as counted for the table. */
+    private static final int MAX_HEADER_LIST_SIZE = 256 * 1024;
+
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    /** The static table of RFC 7541 Appendix A; index 1 is the first entry. */
+    private static final Header[] STATIC_TABLE = {
+            new Header(":authority", ""),
+            new Header(":method", "GET"),
+            new Header(":method", "POST"),
+            new Header(":path", "/"),
+            new Header(":path", "/index.html"),
+            new Header(":scheme", "http"),
+            new Header(":scheme", "https"),
+            new Header(":status", "200"),
+            new Header(":status", "204"),
+            new Header(":status", "206"),
+            new Header(":status", "304"),
+            new Header(":status", "400"),
+            new Header(":status", "404"),
+            new Header(":status", "500"),
+            new Header("accept-charset", ""),
+            new Header("accept-encoding", "gzip, deflate"),
+            new Header("accept-language", ""),
+            new Header("accept-ranges", ""),
+            new Header("accept", ""),
+            new Header("access-control-allow-origin", ""),
+            new Header("age", ""),
+            new Header("allow", ""),
+            new Header("authorization", ""),
+            new Header("cache-control", ""),
+            new Header("content-disposition", ""),
+            new Header("content-encoding", ""),
+            new Header("content-language", ""),
+            new Header("content-length", ""),
+            new Header("content-location", ""),
+            new Header("content-range", ""),
+            new Header("content-type", ""),
+            new Header("cookie", ""),
+            new Header("date", ""),
+            new Header("etag", ""),
+            new Header("expect", ""),
+            new Header("expires", ""),
+            new Header("from", ""),
+            new Header("host", ""),
+            new Header("if-match", ""),
+            new Header("if-modified-since", ""),
+            new Header("if-none-match", ""),
+            new Header("if-range", ""),
+            new Header("if-unmodified-since", ""),
+            new Header("last-modified", ""),
+            new Header("link", ""),
+            new Header("location", ""),
+            new Header("max-forwards", ""),
+            new Header("proxy-authenticate", ""),
+            new Header("proxy-authorization", ""),
+            new Header("range", ""),
+            new Header("referer", ""),
+            new Header("refresh", ""),
+            new Header("retry-after", ""),
+            new Header("server", ""),
+            new Header("set-cookie", ""),
+            new Header("strict-transport-security", ""),
+            new Header("transfer-encoding", ""),
+            new Header("user-agent", ""),
+            new Header("vary", ""),
+            new Header("via", ""),
+            new Header("www-authenticate", "")
+    };
+
+    /** The index of the first static table entry of each name. */
+    private static final Map<String, Integer> STATIC_NAME_INDEX = new HashMap<>();
+
+    static {
+        for (int i = STATIC_TABLE.length - 1; i >= 0; i--) {
+            STATIC_NAME_INDEX.put(STATIC_TABLE[i].getName(), i + 1);
+        }
+    }
+
+    /** Headers which are never added to a table, so their values can't be probed through it. */
+    private static final List<String> SENSITIVE_HEADERS =
+            Arrays.asList("authorization", "proxy-authorization", "cookie");
+
+    private Hpack() {
+    }
+
+    /**
+     * Encodes header blocks, adding headers to the dynamic table so that repeated ones take a
+     * byte or two.
+     */
+    static class Encoder {
+        private final DynamicTable mTable = new DynamicTable(DEFAULT_HEADER_TABLE_SIZE);
+
+        /** Whether the table size changed since the last block, which the peer must be told. */
+        private boolean mSizeUpdatePending;
+        private int mSmallestPendingSize;
+
+        /**
+         * Applies the peer's SETTINGS_HEADER_TABLE_SIZE, which bounds the table the encoder may
+         * use.
+         */
+        void setMaxTableSize(int peerMaxSize) {
+            int size = Math.min(peerMaxSize, DEFAULT_HEADER_TABLE_SIZE);
+            if (size == mTable.mMaxSize) {
+                return;
+            }
+            mSmallestPendingSize = mSizeUpdatePending ? Math.min(mSmallestPendingSize, size) : size;
+            mSizeUpdatePending = true;
+            mTable.setMaxSize(size);
+        }
+
+        /**
+         * Appends the header block for the given headers, whose names must be lower case.
+         */
+        void encode(List<Header> headers, ByteArrayOutputStream out) {
+            if (mSizeUpdatePending) {
+                // A size which went down and up again must be signalled at its lowest too.
+                if (mSmallestPendingSize < mTable.mMaxSize) {
+                    writeInt(out, mSmallestPendingSize, 5, 0x20);
+                }
+                writeInt(out, mTable.mMaxSize, 5, 0x20);
+                mSizeUpdatePending = false;
+            }
+            for (Header header : headers) {
+                int index = indexOf(header);
+                if (index > 0) {
+                    // Indexed header field.
+                    writeInt(out, index, 7, 0x80);
+                    continue;
+                }
+                int nameIndex = nameIndexOf(header.getName());
+                if (SENSITIVE_HEADERS.contains(header.getName())) {
+                    // Literal header field never indexed.
+                    writeInt(out, nameIndex, 4, 0x10);
+                } else if (entrySize(header) <= mTable.mMaxSize) {
+                    // Literal header field with incremental indexing.
+                    writeInt(out, nameIndex, 6, 0x40);
+                    mTable.add(header);
+                } else {
+                    // Literal header field without indexing.
+                    writeInt(out, nameIndex, 4, 0x00);
+                }
+                if (nameIndex == 0) {
+                    writeString(out, header.getName());
+                }
+                writeString(out, header.getValue());
+            }
+        }
+
+        /** Returns the index of the header in the tables, or 0 if it is in neither. */
+        private int indexOf(Header header) {
+            Integer staticIndex = STATIC_NAME_INDEX.get(header.getName());
+            if (staticIndex != null) {
+                for (int i = staticIndex; i <= STATIC_TABLE.length
+                        && STATIC_TABLE[i - 1].getName().equals(header.getName()); i++) {
+                    if (STATIC_TABLE[i - 1].getValue().equals(header.getValue())) {
+                        return i;
+                    }
+                }
+            }
+            int dynamicIndex = mTable.indexOf(header);
+            return dynamicIndex >= 0 ? STATIC_TABLE.length + 1 + dynamicIndex : 0;
+        }
+
+        /** Returns the index of an entry with the given name in the tables, or 0 if none has it. */
+        private int nameIndexOf(String name) {
+            Integer staticIndex = STATIC_NAME_INDEX.get(name);
+            if (staticIndex != null) {
+                return staticIndex;
+            }
+            int dynamicIndex = mTable.nameIndexOf(name);
+            return dynamicIndex >= 0 ? STATIC_TABLE.length + 1 + dynamicIndex : 0;
+        }
+
+        private static void writeString(ByteArrayOutputStream out, String string) {
+            byte[] bytes = string.getBytes(ISO_8859_1);
+            int huffmanLength = Huffman.encodedLength(bytes);
+            if (huffmanLength < bytes.length) {
+                writeInt(out, huffmanLength, 7, 0x80);
+                Huffman.encode(bytes, out);
+            } else {
+                writeInt(out, bytes.length, 7, 0x00);
+                out.write(bytes, 0, bytes.length);
+            }
+        }
+
+        /** Writes an integer with an N-bit prefix (RFC 7541 section 5.1). */
+        private static void writeInt(ByteArrayOutputStream out, int value, int prefixBits, int flags) {
+            int max = (1 << prefixBits) - 1;
+            if (value < max) {
+                out.write(flags | value);
+                return;
+            }
+            out.write(flags | max);
+            value -= max;
+            while (value >= 0x80) {
+                out.write((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            out.write(value);
+        }
+    }
+
+    /**
+     * Decodes header blocks, keeping the dynamic table in step with the peer's encoder.
+     */
+    static class Decoder {
+        private final int mMaxTableSize;
+        private final DynamicTable mTable;
+
+        private byte[] mBlock;
+        private int mPosition;
+        private int mLimit;
+
+        /**
+         * @param maxTableSize The SETTINGS_HEADER_TABLE_SIZE sent to the peer
+         */
+        Decoder(int maxTableSize) {
+            mMaxTableSize = maxTableSize;
+            mTable = new DynamicTable(maxTableSize);
+        }
+
+        /**
+         * Decodes a complete header block.
+         *
+         * @throws ProtocolException if the block is malformed, which leaves the table unusable
+         */
+        List<Header> decode(byte[] block, int offset, int length) throws ProtocolException {
+            mBlock = block;
+            mPosition = offset;
+            mLimit = offset + length;
+            List<Header> headers = new ArrayList<>();
+            int listSize = 0;
+            while (mPosition < mLimit) {
+                int b = mBlock[mPosition++] & 0xff;
+                Header header;
+                if ((b & 0x80) != 0) {
+                    header = getIndexed(readInt(b, 7));
+                } else if ((b & 0x40) != 0) {
+                    header = readLiteral(b, 6);
+                    mTable.add(header);
+                } else if ((b & 0x20) != 0) {
+                    if (!headers.isEmpty()) {
+                        throw new ProtocolException("Table size update after a header");
+                    }
+                    int size = readInt(b, 5);
+                    if (size > mMaxTableSize) {
+                        throw new ProtocolException("Table size " + size + " above " + mMaxTableSize);
+                    }
+                    mTable.setMaxSize(size);
+                    continue;
+                } else {
+                    // Literal header field without indexing or never indexed.
+                    header = readLiteral(b, 4);
+                }
+                listSize += entrySize(header);
+                if (listSize > MAX_HEADER_LIST_SIZE) {
+                    throw new ProtocolException("Header list too large");
+                }
+                headers.add(header);
+            }
+            mBlock = null;
+            return headers;
+        }
+
+        private Header getIndexed(int index) throws ProtocolException {
+            if (index == 0) {
+                throw new ProtocolException("Header index 0");
+            }
+            if (index <= STATIC_TABLE.length) {
+                return STATIC_TABLE[index - 1];
+            }
+            int dynamicIndex = index - STATIC_TABLE.length - 1;
+            if (dynamicIndex >= mTable.length()) {
+                throw new ProtocolException("Header index " + index + " out of range");
+            }
+            return mTable.get(dynamicIndex);
+        }
+
+        private Header readLiteral(int first, int prefixBits) throws ProtocolException {
+            int nameIndex = readInt(first, prefixBits);
+            String name = nameIndex == 0 ? readString() : getIndexed(nameIndex).getName();
+            return new Header(name, readString());
+        }
+
+        private String readString() throws ProtocolException {
+            if (mPosition >= mLimit) {
+                throw new ProtocolException("Truncated header block");
+            }
+            int first = mBlock[mPosition++] & 0xff;
+            int length = readInt(first, 7);
+            if (length > mLimit - mPosition) {
+                throw new ProtocolException("Truncated header block");
+            }
+            byte[] bytes;
+            if ((first & 0x80) != 0) {
+                bytes = Huffman.decode(mBlock, mPosition, length);
+            } else {
+                bytes = Arrays.copyOfRange(mBlock, mPosition, mPosition + length);
+            }
+            mPosition += length;
+            return new String(bytes, ISO_8859_1);
+        }
+
+        /** Reads an integer with an N-bit prefix whose first byte was read already. */
+        private int readInt(int first, int prefixBits) throws ProtocolException {
+            int max = (1 << prefixBits) - 1;
+            long value = first & max;
+            if (value < max) {
+                return (int) value;
+            }
+            for (int shift = 0; shift <= 28; shift += 7) {
+                if (mPosition >= mLimit) {
+                    throw new ProtocolException("Truncated header block");
+                }
+                int b = mBlock[mPosition++] & 0xff;
+                value += (long) (b & 0x7f) << shift;
+                if (value > Integer.MAX_VALUE) {
+                    break;
+                }
+                if ((b & 0x80) == 0) {
+                    return (int) value;
+                }
+            }
+            throw new ProtocolException("Integer too large");
+        }
+    }
+
+    /** Returns the size of an entry as counted against the table size. */
+    private static int entrySize(Header header) {
+        return 32 + header.getName().length() + header.getValue().length();
+    }
+
+    /** The headers added most recently, evicted oldest first to stay within a size. */
+    private static class DynamicTable {
+        /** Entries, oldest first. */
+        private final ArrayList<Header> mEntries = new ArrayList<>();
+        private int mSize;
+        int mMaxSize;
+
+        DynamicTable(int maxSize) {
+            mMaxSize = maxSize;
+        }
+
+        int length() {
+            return mEntries.size();
+        }
+
+        /** Returns the entry at the given index, 0 being the newest. */
+        Header get(int index) {
+            return mEntries.get(mEntries.size() - 1 - index);
+        }
+
+        int indexOf(Header header) {
+            for (int i = mEntries.size() - 1; i >= 0; i--) {
+                if (mEntries.get(i).equals(header)) {
+                    return mEntries.size() - 1 - i;
+                }
+            }
+            return -1;
+        }
+
+        int nameIndexOf(String name) {
+            for (int i = mEntries.size() - 1; i >= 0; i--) {
+                if (mEntries.get(i).getName().equals(name)) {
+                    return mEntries.size() - 1 - i;
+                }
+            }
+            return -1;
+        }
+
+        void add(Header header) {
+            int size = entrySize(header);
+            if (size > mMaxSize) {
+                // An entry larger than the table empties it (RFC 7541 section 4.4).
+                mEntries.clear();
+                mSize = 0;
+                return;
+            }
+            evictTo(mMaxSize - size);
+            mEntries.add(header);
+            mSize += size;
+        }
+
+        void setMaxSize(int maxSize) {
+            mMaxSize = maxSize;
+            evictTo(maxSize);
+        }
+
+        private void evictTo(int size) {
+            while (mSize > size) {
+                mSize -= entrySize(mEntries.remove(0));
+            }
+        }
+    }
+
+    /** The static Huffman code of RFC 7541 Appendix B. */
+    static final class Huffman {
+        private static final int EOS = 256;
+
+        private static final int[] CODES = {
+            0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7,
+            0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec,
+            0xfffffed, 0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+            0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb,
+            0x14, 0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa,
+            0x3fa, 0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+            0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d,
+            0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc, 0x20, 0xffb, 0x3fc,
+            0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62,
+            0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a,
+            0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72,
+            0xfc, 0x73, 0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+            0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26,
+            0x27, 0x6, 0x74, 0x75, 0x28, 0x29, 0x2a, 0x7,
+            0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+            0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd, 0xffffffc,
+            0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8, 0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9,
+            0x3fffd6, 0x7fffda, 0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+            0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3,
+            0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef,
+            0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+            0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec,
+            0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2, 0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef,
+            0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1,
+            0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec,
+            0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde, 0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed,
+            0x7fff2, 0x1fffe3, 0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2,
+            0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5,
+            0xfffec, 0xfffff3, 0xfffed, 0x1fffe6, 0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3,
+            0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+            0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8, 0x7ffffe9, 0x7ffffea,
+            0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee,
+            0x3fffffff
+        };
+
+        private static final byte[] CODE_LENGTHS = {
+            13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+            28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+            6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+            5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+            13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+            7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+            15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+            6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+            20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+            24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+            22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+            21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+            26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+            19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+            20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+            26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+            30
+        };
+
+        /**
+         * The decoding tree: the children of node n are at 2n and 2n + 1. A positive value is
+         * another node, a negative one the leaf for symbol -(value + 1).
+         */
+        private static final int[] TREE = new int[2 * EOS];
+
+        static {
+            int nodes = 1;
+            for (int symbol = 0; symbol <= EOS; symbol++) {
+                int node = 0;
+                for (int bit = CODE_LENGTHS[symbol] - 1; bit >= 0; bit--) {
+                    int slot = 2 * node + ((CODES[symbol] >>> bit) & 1);
+                    if (bit == 0) {
+                        TREE[slot] = -(symbol + 1);
+                    } else {
+                        if (TREE[slot] == 0) {
+                            TREE[slot] = nodes++;
+                        }
+                        node = TREE[slot];
+                    }
+                }
+            }
+        }
+
+        private Huffman() {
+        }
+
+        static int encodedLength(byte[] bytes) {
+            long bits = 0;
+            for (byte b : bytes) {
+                bits += CODE_LENGTHS[b & 0xff];
+            }
+            return (int) ((bits + 7) / 8);
+        }
+
+        static void encode(byte[] bytes, ByteArrayOutputStream out) {
+            long pending = 0;
+            int pendingBits = 0;
+            for (byte b : bytes) {
+                int symbol = b & 0xff;
+                pending = (pending << CODE_LENGTHS[symbol]) | CODES[symbol];
+                pendingBits += CODE_LENGTHS[symbol];
+                while (pendingBits >= 8) {
+                    pendingBits -= 8;
+                    out.write((int) (pending >>> pendingBits));
+                }
+                pending &= (1L << pendingBits) - 1;
+            }
+            if (pendingBits > 0) {
+                // Pad with the most significant bits of EOS, which are all ones.
+                out.write((int) ((pending << (8 - pendingBits)) | (0xff >>> pendingBits)));
+            }
+        }
+
+        static byte[] decode(byte[] bytes, int offset, int length) throws ProtocolException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(length * 8 / 5);
+            int node = 0;
+            int bitsSinceSymbol = 0;
+            boolean allOnes = true;
+            for (int i = offset; i < offset + length; i++) {
+                for (int bit = 7; bit >= 0; bit--) {
+                    int value = (bytes[i] >>> bit) & 1;
+                    bitsSinceSymbol++;
+                    allOnes &= value == 1;
+                    int next = TREE[2 * node + value];
+                    if (next < 0) {
+                        int symbol = -(next + 1);
+                        if (symbol == EOS) {
+                            throw new ProtocolException("EOS in Huffman-encoded string");
+                        }
+                        out.write(symbol);
+                        node = 0;
+                        bitsSinceSymbol = 0;
+                        allOnes = true;
+                    } else {
+                        node = next;
+                    }
+                }
+            }
+            if (bitsSinceSymbol > 7 || !allOnes) {
+                throw new ProtocolException("Invalid Huffman padding");
+            }
+            return out.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,1193 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.volley.toolbox;
+
+import android.os.Process;
+import android.support.annotation.GuardedBy;
+
+import com.android.volley.AuthFailureError;
+import com.android.volley.Header;
+import com.android.volley.Request;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A {@link BaseHttpStack} speaking HTTP/2 (RFC 7540), which multiplexes all requests to a host
+ * over a single connection.
+ * <p>
+ * <p>Each request is a stream of the connection, so a slow response doesn't hold up the others.
+ * Headers are compressed with HPACK, and both directions are flow controlled: a stream buffers at
+ * most 256KB of its response before the caller reads it. The server's limit on concurrent streams
+ * is respected by waiting for a stream to finish.
+ * <p>
+ * <p>Only cleartext HTTP/2 with prior knowledge ("h2c") is spoken, as negotiating HTTP/2 over TLS
+ * needs ALPN, which Java 7 lacks; https URLs and requests with a streaming body go to a fallback
+ * stack. Servers must therefore be known to speak h2c. Server push is disabled, and bodies
+ * aren't decompressed.
+ */
+public class Http2Stack extends BaseHttpStack {
+
+    private static final int DEFAULT_HTTP_PORT = 80;
+
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    private static final byte[] CONNECTION_PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(ISO_8859_1);
+
+    private static final int TYPE_DATA = 0x0;
+    private static final int TYPE_HEADERS = 0x1;
+    private static final int TYPE_RST_STREAM = 0x3;
+    private static final int TYPE_SETTINGS = 0x4;
+    private static final int TYPE_PUSH_PROMISE = 0x5;
+    private static final int TYPE_PING = 0x6;
+    private static final int TYPE_GOAWAY = 0x7;
+    private static final int TYPE_WINDOW_UPDATE = 0x8;
+    private static final int TYPE_CONTINUATION = 0x9;
+
+    private static final int FLAG_END_STREAM = 0x1;
+    private static final int FLAG_ACK = 0x1;
+    private static final int FLAG_END_HEADERS = 0x4;
+    private static final int FLAG_PADDED = 0x8;
+    private static final int FLAG_PRIORITY = 0x20;
+
+    private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+    private static final int SETTINGS_ENABLE_PUSH = 0x2;
+    private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+
+    private static final int NO_ERROR = 0x0;
+    private static final int PROTOCOL_ERROR = 0x1;
+    private static final int FLOW_CONTROL_ERROR = 0x3;
+    private static final int FRAME_SIZE_ERROR = 0x6;
+    private static final int REFUSED_STREAM = 0x7;
+    private static final int CANCEL = 0x8;
+    private static final int COMPRESSION_ERROR = 0x9;
+
+    /** Flow-control window and frame size each side starts with. */
+    private static final int DEFAULT_WINDOW_SIZE = 65535;
+    private static final int DEFAULT_MAX_FRAME_SIZE = 16384;
+    private static final int MAX_MAX_FRAME_SIZE = 16777215;
+
+    /** How much of a response is buffered before the caller reads it. */
+    private static final int STREAM_WINDOW_SIZE = 256 * 1024;
+
+    /** How much of all responses of a connection is buffered before callers read it. */
+    private static final int CONNECTION_WINDOW_SIZE = 4 * 1024 * 1024;
+
+    /** Largest header block accepted, across its HEADERS and CONTINUATION frames. */
+    private static final int MAX_HEADER_BLOCK_SIZE = 256 * 1024;
+
+    /** How long a connection without streams is kept. */
+    private static final long KEEP_ALIVE_MS = 5 * 60 * 1000;
+
+    /** Deadline of a wait which has no timeout. */
+    private static final long NO_DEADLINE = Long.MAX_VALUE;
+
+    /** Request headers which are specific to an HTTP/1.1 connection, and not allowed in HTTP/2. */
+    private static final List<String> CONNECTION_HEADERS = Arrays.asList(
+            "connection", "content-length", "host", "keep-alive", "proxy-connection", "te",
+            "transfer-encoding", "upgrade");
+
+    private final BaseHttpStack mFallbackStack;
+
+    /** The connection to each host, by host and port. */
+    @GuardedBy("mConnections")
+    private final Map<String, Connection> mConnections = new HashMap<>();
+
+    /** Held while connecting to a host, so that concurrent requests share the connection. */
+    @GuardedBy("mConnections")
+    private final Map<String, Object> mConnectLocks = new HashMap<>();
+
+    @GuardedBy("mConnections")
+    private boolean mShutdown;
+
+    /**
+     * Creates a stack which sends requests it can't make over h2c through a {@link HurlStack}.
+     */
+    public Http2Stack() {
+        this(new HurlStack());
+    }
+
+    /**
+     * @param fallbackStack Stack for https URLs and streaming request bodies
+     */
+    public Http2Stack(BaseHttpStack fallbackStack) {
+        mFallbackStack = fallbackStack;
+    }
+
+    /**
+     * Closes the connections once their streams finished. Requests made afterwards fail.
+     */
+    public void shutdown() {
+        List<Connection> connections;
+        synchronized (mConnections) {
+            mShutdown = true;
+            connections = new ArrayList<>(mConnections.values());
+            mConnections.clear();
+        }
+        for (Connection connection : connections) {
+            connection.shutdown();
+        }
+    }
+
+    @Override
+    public HttpResponse executeRequest(Request<?> request, Map<String, String> additionalHeaders) throws IOException, AuthFailureError {
+        URL url = new URL(request.getUrl());
+        if (!"http".equals(url.getProtocol()) || request.getStreamingBody() != null) {
+            return mFallbackStack.executeRequest(request, additionalHeaders);
+        }
+        byte[] body = NioHttpStack.getBody(request);
+        String method = NioHttpStack.getMethodName(request.getMethod(), body);
+        List<Header> headers = requestHeaders(request, additionalHeaders, url, method, body);
+        int timeoutMs = request.getTimeoutMs();
+
+        boolean retried = false;
+        while (true) {
+            Connection connection = getConnection(url, timeoutMs);
+            try {
+                return connection.newStream(headers, body, timeoutMs).awaitResponse(request.getMethod());
+            } catch (RetryableException e) {
+                // The server didn't process the request, so it can safely go out again.
+                if (retried) {
+                    throw e;
+                }
+                retried = true;
+            }
+        }
+    }
+
+    /** Returns the connection to the URL's host, connecting if there is none accepting streams. */
+    private Connection getConnection(URL url, int timeoutMs) throws IOException {
+        int port = url.getPort() != -1 ? url.getPort() : DEFAULT_HTTP_PORT;
+        String key = url.getHost() + ":" + port;
+        Object connectLock;
+        synchronized (mConnections) {
+            if (mShutdown) {
+                throw new IOException("Http2Stack was shut down");
+            }
+            connectLock = mConnectLocks.get(key);
+            if (connectLock == null) {
+                connectLock = new Object();
+                mConnectLocks.put(key, connectLock);
+            }
+        }
+        synchronized (connectLock) {
+            Connection connection;
+            synchronized (mConnections) {
+                connection = mConnections.get(key);
+            }
+            if (connection != null) {
+                if (connection.acceptsStreams()) {
+                    return connection;
+                }
+                connection.shutdown();
+            }
+            Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(url.getHost(), port), timeoutMs);
+                socket.setTcpNoDelay(true);
+                connection = new Connection(key, socket);
+                connection.start();
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+            synchronized (mConnections) {
+                if (!mShutdown) {
+                    mConnections.put(key, connection);
+                    return connection;
+                }
+            }
+            connection.shutdown();
+            throw new IOException("Http2Stack was shut down");
+        }
+    }
+
+    /**
+     * Returns the deadline of a wait with the given timeout. As with sockets, a timeout of 0 means
+     * waiting for as long as it takes.
+     */
+    private static long deadlineAfter(int timeoutMs) {
+        return timeoutMs > 0 ? NioHttpStack.elapsedRealtimeMs() + timeoutMs : NO_DEADLINE;
+    }
+
+    private static List<Header> requestHeaders(Request<?> request, Map<String, String> additionalHeaders, URL url,
+                                               String method, byte[] body) throws AuthFailureError {
+        List<Header> headers = new ArrayList<>();
+        // Pseudo-headers come first.
+        headers.add(new Header(":method", method));
+        headers.add(new Header(":scheme", "http"));
+        headers.add(new Header(":authority", url.getPort() == -1 ? url.getHost() : url.getHost() + ":" + url.getPort()));
+        headers.add(new Header(":path", url.getFile().isEmpty() ? "/" : url.getFile()));
+
+        HashMap<String, String> map = new HashMap<>();
+        map.putAll(request.getHeaders());
+        map.putAll(additionalHeaders);
+        boolean hasContentType = false;
+        for (Map.Entry<String, String> header : map.entrySet()) {
+            // Header names are lower case in HTTP/2.
+            String name = header.getKey().toLowerCase(Locale.US);
+            if (CONNECTION_HEADERS.contains(name)) {
+                continue;
+            }
+            hasContentType |= name.equals("content-type");
+            headers.add(new Header(name, header.getValue()));
+        }
+        if (body != null && !hasContentType) {
+            headers.add(new Header("content-type", request.getBodyContentType()));
+        }
+        if (body != null || NioHttpStack.permitsBody(request.getMethod())) {
+            headers.add(new Header("content-length", String.valueOf(body != null ? body.length : 0)));
+        }
+        return headers;
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xff) << 24
+                | (bytes[offset + 1] & 0xff) << 16
+                | (bytes[offset + 2] & 0xff) << 8
+                | (bytes[offset + 3] & 0xff);
+    }
+
+    private static byte[] intBytes(int value) {
+        return new byte[] {(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value};
+    }
+
+    /** A request the server is known not to have processed, which may be sent again. */
+    private static class RetryableException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        RetryableException(String message) {
+            super(message);
+        }
+    }
+
+    /** A violation of the protocol which ends the connection. */
+    private static class ConnectionError extends ProtocolException {
+        private static final long serialVersionUID = 1L;
+
+        final int mErrorCode;
+
+        ConnectionError(int errorCode, String message) {
+            super(message);
+            mErrorCode = errorCode;
+        }
+    }
+
+    /**
+     * A connection to a host and the streams on it. Callers write their own requests; a reader
+     * thread hands the frames it reads to their streams.
+     * <p>
+     * <p>To avoid deadlocks, the write lock may be taken before the connection's monitor but not
+     * the other way round.
+     */
+    private class Connection implements Runnable {
+        private final String mKey;
+        private final Socket mSocket;
+        private final DataInputStream mIn;
+        private final OutputStream mOut;
+
+        private final Object mWriteLock = new Object();
+
+        @GuardedBy("mWriteLock")
+        private final Hpack.Encoder mEncoder = new Hpack.Encoder();
+
+        @GuardedBy("mWriteLock")
+        private final ByteArrayOutputStream mHeaderBlock = new ByteArrayOutputStream();
+
+        @GuardedBy("mWriteLock")
+        private int mNextStreamId = 1;
+
+        /** Largest frame the server accepts. */
+        private volatile int mMaxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+
+        // Only used by the reader thread.
+        private final Hpack.Decoder mDecoder = new Hpack.Decoder(Hpack.DEFAULT_HEADER_TABLE_SIZE);
+        private final ByteArrayOutputStream mHeaderFragments = new ByteArrayOutputStream();
+        private int mContinuationStreamId;
+        private boolean mContinuationEndStream;
+
+        @GuardedBy("this")
+        private final Map<Integer, Stream> mStreams = new HashMap<>();
+
+        /** Streams about to be opened, which count against the concurrency limit already. */
+        @GuardedBy("this")
+        private int mReservedStreams;
+
+        @GuardedBy("this")
+        private int mMaxConcurrentStreams = Integer.MAX_VALUE;
+
+        @GuardedBy("this")
+        private int mInitialSendWindow = DEFAULT_WINDOW_SIZE;
+
+        @GuardedBy("this")
+        private long mSendWindow = DEFAULT_WINDOW_SIZE;
+
+        @GuardedBy("this")
+        private long mReceiveWindow = CONNECTION_WINDOW_SIZE;
+
+        /** Bytes read by callers or dropped, which the server wasn't allowed to send again yet. */
+        @GuardedBy("this")
+        private int mUnacknowledgedBytes;
+
+        /** Whether no more streams may be opened. */
+        @GuardedBy("this")
+        private boolean mShutdown;
+
+        @GuardedBy("this")
+        private boolean mClosed;
+
+        @GuardedBy("this")
+        private long mIdleSinceMs;
+
+        Connection(String key, Socket socket) throws IOException {
+            mKey = key;
+            mSocket = socket;
+            mIn = new DataInputStream(new BufferedInputStream(socket.getInputStream(), DEFAULT_MAX_FRAME_SIZE));
+            mOut = new BufferedOutputStream(socket.getOutputStream(), DEFAULT_MAX_FRAME_SIZE);
+            mIdleSinceMs = NioHttpStack.elapsedRealtimeMs();
+        }
+
+        /** Sends the connection preface and starts reading. */
+        void start() throws IOException {
+            synchronized (mWriteLock) {
+                mOut.write(CONNECTION_PREFACE);
+                writeFrameHeader(12, TYPE_SETTINGS, 0, 0);
+                writeSetting(SETTINGS_ENABLE_PUSH, 0);
+                writeSetting(SETTINGS_INITIAL_WINDOW_SIZE, STREAM_WINDOW_SIZE);
+                writeFrameHeader(4, TYPE_WINDOW_UPDATE, 0, 0);
+                writeInt(CONNECTION_WINDOW_SIZE - DEFAULT_WINDOW_SIZE);
+                mOut.flush();
+            }
+            Thread reader = new Thread(this, "Volley-Http2Reader-" + mKey);
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        /** Returns whether new streams may be opened, which they may not once idle for long. */
+        synchronized boolean acceptsStreams() {
+            if (mShutdown) {
+                return false;
+            }
+            return !mStreams.isEmpty()
+                    || mReservedStreams > 0
+                    || NioHttpStack.elapsedRealtimeMs() - mIdleSinceMs < KEEP_ALIVE_MS;
+        }
+
+        /** Stops opening streams, and closes the connection once the open ones finished. */
+        void shutdown() {
+            boolean wasShutdown;
+            synchronized (this) {
+                wasShutdown = mShutdown;
+                mShutdown = true;
+                notifyAll();
+            }
+            if (!wasShutdown) {
+                sendFrame(TYPE_GOAWAY, 0, 0, goAwayPayload(NO_ERROR));
+            }
+            synchronized (this) {
+                closeIfDrainedLocked();
+            }
+        }
+
+        /** Fails all streams and closes the socket. */
+        void close(IOException cause) {
+            synchronized (this) {
+                if (mClosed) {
+                    return;
+                }
+                mClosed = true;
+                mShutdown = true;
+                IOException error = new IOException("HTTP/2 connection closed", cause);
+                for (Stream stream : mStreams.values()) {
+                    stream.failLocked(error);
+                }
+                mStreams.clear();
+                notifyAll();
+            }
+            synchronized (mConnections) {
+                if (mConnections.get(mKey) == this) {
+                    mConnections.remove(mKey);
+                }
+            }
+            try {
+                mSocket.close();
+            } catch (IOException e) {
+                // Ignored; the connection is done with either way.
+            }
+        }
+
+        /** Opens a stream for a request, and sends it. */
+        Stream newStream(List<Header> headers, byte[] body, int timeoutMs) throws IOException {
+            Stream stream = new Stream(timeoutMs);
+            synchronized (this) {
+                long deadline = deadlineAfter(timeoutMs);
+                while (!mShutdown && mStreams.size() + mReservedStreams >= mMaxConcurrentStreams) {
+                    awaitLocked(deadline);
+                }
+                if (mShutdown) {
+                    throw new RetryableException("Connection shut down");
+                }
+                mReservedStreams++;
+            }
+            boolean endStream = body == null || body.length == 0;
+            synchronized (mWriteLock) {
+                // Stream IDs must go out in increasing order, so they're assigned under the write lock.
+                synchronized (this) {
+                    mReservedStreams--;
+                    if (mShutdown) {
+                        notifyAll();
+                        closeIfDrainedLocked();
+                        throw new RetryableException("Connection shut down");
+                    }
+                    stream.mId = mNextStreamId;
+                    stream.mSendWindow = mInitialSendWindow;
+                    mStreams.put(stream.mId, stream);
+                    mNextStreamId += 2;
+                    if (mNextStreamId < 0) {
+                        // Out of stream IDs; the next request needs a new connection.
+                        mShutdown = true;
+                    }
+                }
+                try {
+                    writeHeadersLocked(stream.mId, headers, endStream);
+                    mOut.flush();
+                } catch (IOException e) {
+                    close(e);
+                    throw e;
+                }
+            }
+            if (!endStream) {
+                try {
+                    writeData(stream, body);
+                } catch (IOException e) {
+                    stream.cancel();
+                    throw e;
+                }
+            }
+            return stream;
+        }
+
+        @GuardedBy("mWriteLock")
+        private void writeHeadersLocked(int streamId, List<Header> headers, boolean endStream) throws IOException {
+            mHeaderBlock.reset();
+            mEncoder.encode(headers, mHeaderBlock);
+            byte[] block = mHeaderBlock.toByteArray();
+            int maxFrameSize = mMaxFrameSize;
+            int offset = 0;
+            int type = TYPE_HEADERS;
+            do {
+                int length = Math.min(block.length - offset, maxFrameSize);
+                int flags = offset + length == block.length ? FLAG_END_HEADERS : 0;
+                if (type == TYPE_HEADERS && endStream) {
+                    flags |= FLAG_END_STREAM;
+                }
+                writeFrameHeader(length, type, flags, streamId);
+                mOut.write(block, offset, length);
+                offset += length;
+                type = TYPE_CONTINUATION;
+            } while (offset < block.length);
+        }
+
+        /** Sends a request body, waiting for the server to open the flow-control windows. */
+        private void writeData(Stream stream, byte[] body) throws IOException {
+            int offset = 0;
+            while (offset < body.length) {
+                int count;
+                synchronized (this) {
+                    long deadline = deadlineAfter(stream.mTimeoutMs);
+                    while (stream.mError == null && !stream.mRemoteEnded
+                            && Math.min(mSendWindow, stream.mSendWindow) <= 0) {
+                        awaitLocked(deadline);
+                    }
+                    if (stream.mError != null) {
+                        throw stream.mError;
+                    }
+                    if (stream.mRemoteEnded) {
+                        // The server answered without waiting for the rest of the body.
+                        break;
+                    }
+                    long window = Math.min(mSendWindow, stream.mSendWindow);
+                    count = (int) Math.min(window, Math.min(body.length - offset, mMaxFrameSize));
+                    mSendWindow -= count;
+                    stream.mSendWindow -= count;
+                }
+                boolean last = offset + count == body.length;
+                synchronized (mWriteLock) {
+                    try {
+                        writeFrameHeader(count, TYPE_DATA, last ? FLAG_END_STREAM : 0, stream.mId);
+                        mOut.write(body, offset, count);
+                        mOut.flush();
+                    } catch (IOException e) {
+                        close(e);
+                        throw e;
+                    }
+                }
+                offset += count;
+            }
+            if (offset < body.length) {
+                sendFrame(TYPE_RST_STREAM, 0, stream.mId, intBytes(NO_ERROR));
+            }
+        }
+
+        /**
+         * Counts bytes of a stream which were read or dropped, and lets the server send more once
+         * enough were.
+         *
+         * @param stream The stream, or null for bytes of a stream which is gone
+         */
+        private void acknowledge(Stream stream, int count) {
+            if (count == 0) {
+                return;
+            }
+            int streamIncrement = 0;
+            int connectionIncrement = 0;
+            synchronized (this) {
+                if (stream != null && !stream.mRemoteEnded && !stream.mCancelled) {
+                    stream.mUnacknowledgedBytes += count;
+                    if (stream.mUnacknowledgedBytes >= STREAM_WINDOW_SIZE / 2) {
+                        streamIncrement = stream.mUnacknowledgedBytes;
+                        stream.mUnacknowledgedBytes = 0;
+                        stream.mReceiveWindow += streamIncrement;
+                    }
+                }
+                mUnacknowledgedBytes += count;
+                if (mUnacknowledgedBytes >= CONNECTION_WINDOW_SIZE / 2) {
+                    connectionIncrement = mUnacknowledgedBytes;
+                    mUnacknowledgedBytes = 0;
+                    mReceiveWindow += connectionIncrement;
+                }
+            }
+            if (streamIncrement > 0) {
+                sendFrame(TYPE_WINDOW_UPDATE, 0, stream.mId, intBytes(streamIncrement));
+            }
+            if (connectionIncrement > 0) {
+                sendFrame(TYPE_WINDOW_UPDATE, 0, 0, intBytes(connectionIncrement));
+            }
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            try {
+                while (true) {
+                    readFrame();
+                }
+            } catch (ConnectionError e) {
+                sendFrame(TYPE_GOAWAY, 0, 0, goAwayPayload(e.mErrorCode));
+                close(e);
+            } catch (IOException e) {
+                close(e);
+            }
+        }
+
+        private void readFrame() throws IOException {
+            int length = mIn.readUnsignedByte() << 16 | mIn.readUnsignedShort();
+            int type = mIn.readUnsignedByte();
+            int flags = mIn.readUnsignedByte();
+            int streamId = mIn.readInt() & 0x7fffffff;
+            if (length > DEFAULT_MAX_FRAME_SIZE) {
+                throw new ConnectionError(FRAME_SIZE_ERROR, "Frame of " + length + " bytes");
+            }
+            if (mContinuationStreamId != 0 && (type != TYPE_CONTINUATION || streamId != mContinuationStreamId)) {
+                throw new ConnectionError(PROTOCOL_ERROR, "Expected CONTINUATION of stream " + mContinuationStreamId);
+            }
+            byte[] payload = new byte[length];
+            mIn.readFully(payload);
+            switch (type) {
+                case TYPE_DATA:
+                    onData(flags, streamId, payload);
+                    break;
+                case TYPE_HEADERS:
+                    onHeaders(flags, streamId, payload);
+                    break;
+                case TYPE_CONTINUATION:
+                    onContinuation(flags, streamId, payload);
+                    break;
+                case TYPE_RST_STREAM:
+                    onRstStream(streamId, payload);
+                    break;
+                case TYPE_SETTINGS:
+                    onSettings(flags, streamId, payload);
+                    break;
+                case TYPE_PUSH_PROMISE:
+                    throw new ConnectionError(PROTOCOL_ERROR, "PUSH_PROMISE while push is disabled");
+                case TYPE_PING:
+                    onPing(flags, streamId, payload);
+                    break;
+                case TYPE_GOAWAY:
+                    onGoAway(payload);
+                    break;
+                case TYPE_WINDOW_UPDATE:
+                    onWindowUpdate(streamId, payload);
+                    break;
+                default:
+                    // PRIORITY and unknown frame types are ignored.
+                    break;
+            }
+        }
+
+        private void onData(int flags, int streamId, byte[] payload) throws IOException {
+            if (streamId == 0) {
+                throw new ConnectionError(PROTOCOL_ERROR, "DATA on stream 0");
+            }
+            int offset = 0;
+            int length = payload.length;
+            if ((flags & FLAG_PADDED) != 0) {
+                offset = 1;
+                length = payload.length - 1 - (payload.length > 0 ? payload[0] & 0xff : 0);
+                if (payload.length == 0 || length < 0) {
+                    throw new ConnectionError(PROTOCOL_ERROR, "Padding longer than DATA frame");
+                }
+            }
+            Stream stream;
+            int resetCode = -1;
+            synchronized (this) {
+                // Padding counts against the windows too.
+                mReceiveWindow -= payload.length;
+                if (mReceiveWindow < 0) {
+                    throw new ConnectionError(FLOW_CONTROL_ERROR, "Connection window exceeded");
+                }
+                stream = mStreams.get(streamId);
+                if (stream != null) {
+                    stream.mReceiveWindow -= payload.length;
+                    if (stream.mReceiveWindow < 0) {
+                        resetCode = FLOW_CONTROL_ERROR;
+                    } else if (stream.mHeaders == null) {
+                        resetCode = PROTOCOL_ERROR;
+                    } else {
+                        if (length > 0) {
+                            stream.mChunks.add(Arrays.copyOfRange(payload, offset, offset + length));
+                            stream.mBuffered += length;
+                        }
+                        if ((flags & FLAG_END_STREAM) != 0) {
+                            endStreamLocked(stream);
+                        }
+                        notifyAll();
+                    }
+                    if (resetCode != -1) {
+                        stream.failLocked(new ProtocolException("Stream error " + resetCode));
+                        removeStreamLocked(stream);
+                        stream = null;
+                    }
+                }
+            }
+            if (resetCode != -1) {
+                sendFrame(TYPE_RST_STREAM, 0, streamId, intBytes(resetCode));
+            }
+            // Bytes no caller will read count as read right away.
+            acknowledge(stream, stream != null ? payload.length - length : payload.length);
+        }
+
+        private void onHeaders(int flags, int streamId, byte[] payload) throws IOException {
+            if (streamId == 0) {
+                throw new ConnectionError(PROTOCOL_ERROR, "HEADERS on stream 0");
+            }
+            int offset = 0;
+            int end = payload.length;
+            if ((flags & FLAG_PADDED) != 0) {
+                if (payload.length == 0) {
+                    throw new ConnectionError(PROTOCOL_ERROR, "Padding longer than HEADERS frame");
+                }
+                offset = 1;
+                end -= payload[0] & 0xff;
+            }
+            if ((flags & FLAG_PRIORITY) != 0) {
+                offset += 5;
+            }
+            if (offset > end) {
+                throw new ConnectionError(PROTOCOL_ERROR, "Padding longer than HEADERS frame");
+            }
+            mHeaderFragments.reset();
+            mHeaderFragments.write(payload, offset, end - offset);
+            boolean endStream = (flags & FLAG_END_STREAM) != 0;
+            if ((flags & FLAG_END_HEADERS) != 0) {
+                onHeaderBlock(streamId, endStream);
+            } else {
+                mContinuationStreamId = streamId;
+                mContinuationEndStream = endStream;
+            }
+        }
+
+        private void onContinuation(int flags, int streamId, byte[] payload) throws IOException {
+            if (mContinuationStreamId == 0) {
+                throw new ConnectionError(PROTOCOL_ERROR, "Unexpected CONTINUATION");
+            }
+            if (mHeaderFragments.size() + payload.length > MAX_HEADER_BLOCK_SIZE) {
+                throw new ConnectionError(PROTOCOL_ERROR, "Header block too large");
+            }
+            mHeaderFragments.write(payload, 0, payload.length);
+            if ((flags & FLAG_END_HEADERS) != 0) {
+                mContinuationStreamId = 0;
+                onHeaderBlock(streamId, mContinuationEndStream);
+            }
+        }
+
+        private void onHeaderBlock(int streamId, boolean endStream) throws IOException {
+            byte[] block = mHeaderFragments.toByteArray();
+            List<Header> headers;
+            try {
+                // Decoded even for streams which are gone, to keep the table in step.
+                headers = mDecoder.decode(block, 0, block.length);
+            } catch (ProtocolException e) {
+                throw new ConnectionError(COMPRESSION_ERROR, e.getMessage());
+            }
+            boolean reset = false;
+            synchronized (this) {
+                Stream stream = mStreams.get(streamId);
+                if (stream == null) {
+                    return;
+                }
+                if (stream.mHeaders == null) {
+                    int statusCode = -1;
+                    List<Header> responseHeaders = new ArrayList<>(headers.size());
+                    for (Header header : headers) {
+                        if (":status".equals(header.getName())) {
+                            try {
+                                statusCode = Integer.parseInt(header.getValue());
+                            } catch (NumberFormatException e) {
+                                statusCode = -1;
+                            }
+                        } else if (!header.getName().startsWith(":")) {
+                            responseHeaders.add(header);
+                        }
+                    }
+                    if (statusCode < 100 || statusCode > 999) {
+                        stream.failLocked(new ProtocolException("Response without a valid :status"));
+                        removeStreamLocked(stream);
+                        reset = true;
+                    } else if (statusCode >= 200) {
+                        stream.mStatusCode = statusCode;
+                        stream.mHeaders = responseHeaders;
+                    }
+                    // Otherwise an interim response such as 100 Continue; the real one follows.
+                }
+                // Trailers, which end the stream, aren't handed on.
+                if (endStream && !reset) {
+                    endStreamLocked(stream);
+                }
+                notifyAll();
+            }
+            if (reset) {
+                sendFrame(TYPE_RST_STREAM, 0, streamId, intBytes(PROTOCOL_ERROR));
+            }
+        }
+
+        private void onRstStream(int streamId, byte[] payload) throws IOException {
+            if (payload.length != 4) {
+                throw new ConnectionError(FRAME_SIZE_ERROR, "RST_STREAM of " + payload.length + " bytes");
+            }
+            if (streamId == 0) {
+                throw new ConnectionError(PROTOCOL_ERROR, "RST_STREAM on stream 0");
+            }
+            int errorCode = readInt(payload, 0);
+            synchronized (this) {
+                Stream stream = mStreams.get(streamId);
+                if (stream == null) {
+                    return;
+                }
+                stream.failLocked(errorCode == REFUSED_STREAM
+                        ? new RetryableException("Stream refused")
+                        : new IOException("Stream reset with error code " + errorCode));
+                removeStreamLocked(stream);
+            }
+        }
+
+        private void onSettings(int flags, int streamId, byte[] payload) throws IOException {
+            if (streamId != 0) {
+                throw new ConnectionError(PROTOCOL_ERROR, "SETTINGS on stream " + streamId);
+            }
+            if ((flags & FLAG_ACK) != 0) {
+                if (payload.length != 0) {
+                    throw new ConnectionError(FRAME_SIZE_ERROR, "SETTINGS ACK with a payload");
+                }
+                return;
+            }
+            if (payload.length % 6 != 0) {
+                throw new ConnectionError(FRAME_SIZE_ERROR, "SETTINGS of " + payload.length + " bytes");
+            }
+            for (int i = 0; i < payload.length; i += 6) {
+                int id = (payload[i] & 0xff) << 8 | (payload[i + 1] & 0xff);
+                int value = readInt(payload, i + 2);
+                switch (id) {
+                    case SETTINGS_HEADER_TABLE_SIZE:
+                        synchronized (mWriteLock) {
+                            mEncoder.setMaxTableSize(value < 0 ? Integer.MAX_VALUE : value);
+                        }
+                        break;
+                    case SETTINGS_ENABLE_PUSH:
+                        if (value != 0 && value != 1) {
+                            throw new ConnectionError(PROTOCOL_ERROR, "ENABLE_PUSH of " + value);
+                        }
+                        break;
+                    case SETTINGS_MAX_CONCURRENT_STREAMS:
+                        synchronized (this) {
+                            mMaxConcurrentStreams = value < 0 ? Integer.MAX_VALUE : value;
+                            notifyAll();
+                        }
+                        break;
+                    case SETTINGS_INITIAL_WINDOW_SIZE:
+                        if (value < 0) {
+                            throw new ConnectionError(FLOW_CONTROL_ERROR, "INITIAL_WINDOW_SIZE above 2^31-1");
+                        }
+                        synchronized (this) {
+                            // Applies to the streams open already too.
+                            int delta = value - mInitialSendWindow;
+                            mInitialSendWindow = value;
+                            for (Stream stream : mStreams.values()) {
+                                stream.mSendWindow += delta;
+                            }
+                            notifyAll();
+                        }
+                        break;
+                    case SETTINGS_MAX_FRAME_SIZE:
+                        if (value < DEFAULT_MAX_FRAME_SIZE || value > MAX_MAX_FRAME_SIZE) {
+                            throw new ConnectionError(PROTOCOL_ERROR, "MAX_FRAME_SIZE of " + value);
+                        }
+                        mMaxFrameSize = value;
+                        break;
+                    default:
+                        // Unknown settings are ignored.
+                        break;
+                }
+            }
+            sendFrame(TYPE_SETTINGS, FLAG_ACK, 0, new byte[0]);
+        }
+
+        private void onPing(int flags, int streamId, byte[] payload) throws IOException {
+            if (payload.length != 8) {
+                throw new ConnectionError(FRAME_SIZE_ERROR, "PING of " + payload.length + " bytes");
+            }
+            if (streamId != 0) {
+                throw new ConnectionError(PROTOCOL_ERROR, "PING on stream " + streamId);
+            }
+            if ((flags & FLAG_ACK) == 0) {
+                sendFrame(TYPE_PING, FLAG_ACK, 0, payload);
+            }
+        }
+
+        private void onGoAway(byte[] payload) throws IOException {
+            if (payload.length < 8) {
+                throw new ConnectionError(FRAME_SIZE_ERROR, "GOAWAY of " + payload.length + " bytes");
+            }
+            int lastStreamId = readInt(payload, 0) & 0x7fffffff;
+            synchronized (this) {
+                mShutdown = true;
+                // Streams after the last one the server processed can go out again elsewhere.
+                for (Stream stream : new ArrayList<>(mStreams.values())) {
+                    if (stream.mId > lastStreamId) {
+                        stream.failLocked(new RetryableException("Stream not processed before GOAWAY"));
+                        removeStreamLocked(stream);
+                    }
+                }
+                notifyAll();
+                closeIfDrainedLocked();
+            }
+        }
+
+        private void onWindowUpdate(int streamId, byte[] payload) throws IOException {
+            if (payload.length != 4) {
+                throw new ConnectionError(FRAME_SIZE_ERROR, "WINDOW_UPDATE of " + payload.length + " bytes");
+            }
+            int increment = readInt(payload, 0) & 0x7fffffff;
+            int resetCode = -1;
+            synchronized (this) {
+                if (streamId == 0) {
+                    if (increment == 0) {
+                        throw new ConnectionError(PROTOCOL_ERROR, "WINDOW_UPDATE of 0");
+                    }
+                    mSendWindow += increment;
+                    if (mSendWindow > Integer.MAX_VALUE) {
+                        throw new ConnectionError(FLOW_CONTROL_ERROR, "Connection window above 2^31-1");
+                    }
+                } else {
+                    Stream stream = mStreams.get(streamId);
+                    if (stream == null) {
+                        return;
+                    }
+                    stream.mSendWindow += increment;
+                    if (increment == 0) {
+                        resetCode = PROTOCOL_ERROR;
+                    } else if (stream.mSendWindow > Integer.MAX_VALUE) {
+                        resetCode = FLOW_CONTROL_ERROR;
+                    }
+                    if (resetCode != -1) {
+                        stream.failLocked(new ProtocolException("Stream error " + resetCode));
+                        removeStreamLocked(stream);
+                    }
+                }
+                notifyAll();
+            }
+            if (resetCode != -1) {
+                sendFrame(TYPE_RST_STREAM, 0, streamId, intBytes(resetCode));
+            }
+        }
+
+        @GuardedBy("this")
+        private void endStreamLocked(Stream stream) {
+            stream.mRemoteEnded = true;
+            removeStreamLocked(stream);
+        }
+
+        @GuardedBy("this")
+        private void removeStreamLocked(Stream stream) {
+            if (mStreams.remove(stream.mId) == null) {
+                return;
+            }
+            if (mStreams.isEmpty()) {
+                mIdleSinceMs = NioHttpStack.elapsedRealtimeMs();
+            }
+            // A slot for another stream opened up.
+            notifyAll();
+            closeIfDrainedLocked();
+        }
+
+        @GuardedBy("this")
+        private void closeIfDrainedLocked() {
+            if (mShutdown && mStreams.isEmpty() && mReservedStreams == 0) {
+                close(null);
+            }
+        }
+
+        /** Waits on the connection's monitor until notified or the deadline passes. */
+        @GuardedBy("this")
+        private void awaitLocked(long deadline) throws IOException {
+            // Waiting for 0 ms waits until notified.
+            long remaining = 0;
+            if (deadline != NO_DEADLINE) {
+                remaining = deadline - NioHttpStack.elapsedRealtimeMs();
+                if (remaining <= 0) {
+                    throw new SocketTimeoutException("Read timed out");
+                }
+            }
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+
+        /** Writes a frame, closing the connection if that fails. */
+        private void sendFrame(int type, int flags, int streamId, byte[] payload) {
+            synchronized (mWriteLock) {
+                try {
+                    writeFrameHeader(payload.length, type, flags, streamId);
+                    mOut.write(payload);
+                    mOut.flush();
+                } catch (IOException e) {
+                    close(e);
+                }
+            }
+        }
+
+        private byte[] goAwayPayload(int errorCode) {
+            // No stream was opened by the server, so the last one processed is 0.
+            byte[] payload = new byte[8];
+            System.arraycopy(intBytes(errorCode), 0, payload, 4, 4);
+            return payload;
+        }
+
+        @GuardedBy("mWriteLock")
+        private void writeFrameHeader(int length, int type, int flags, int streamId) throws IOException {
+            mOut.write(length >>> 16);
+            mOut.write(length >>> 8);
+            mOut.write(length);
+            mOut.write(type);
+            mOut.write(flags);
+            writeInt(streamId);
+        }
+
+        @GuardedBy("mWriteLock")
+        private void writeSetting(int id, int value) throws IOException {
+            mOut.write(id >>> 8);
+            mOut.write(id);
+            writeInt(value);
+        }
+
+        @GuardedBy("mWriteLock")
+        private void writeInt(int value) throws IOException {
+            mOut.write(value >>> 24);
+            mOut.write(value >>> 16);
+            mOut.write(value >>> 8);
+            mOut.write(value);
+        }
+
+        /** A request and its response. */
+        private class Stream {
+            final int mTimeoutMs;
+            int mId;
+
+            // Guarded by the connection.
+            long mSendWindow;
+            int mReceiveWindow = STREAM_WINDOW_SIZE;
+            int mUnacknowledgedBytes;
+            int mStatusCode;
+            List<Header> mHeaders;
+            final ArrayDeque<byte[]> mChunks = new ArrayDeque<>();
+            int mChunkOffset;
+            int mBuffered;
+            boolean mRemoteEnded;
+            boolean mCancelled;
+            IOException mError;
+
+            Stream(int timeoutMs) {
+                mTimeoutMs = timeoutMs;
+            }
+
+            HttpResponse awaitResponse(int method) throws IOException {
+                int statusCode;
+                List<Header> headers;
+                try {
+                    synchronized (Connection.this) {
+                        long deadline = deadlineAfter(mTimeoutMs);
+                        while (mHeaders == null && mError == null) {
+                            awaitLocked(deadline);
+                        }
+                        if (mHeaders == null) {
+                            throw mError;
+                        }
+                        statusCode = mStatusCode;
+                        headers = mHeaders;
+                    }
+                } catch (IOException e) {
+                    cancel();
+                    throw e;
+                }
+                if (!HurlStack.hasResponseBody(method, statusCode)) {
+                    cancel();
+                    return new HttpResponse(statusCode, headers);
+                }
+                return new HttpResponse(statusCode, headers, NioHttpStack.parseContentLength(headers), new BodyStream());
+            }
+
+            @GuardedBy("Connection.this")
+            void failLocked(IOException error) {
+                if (mError == null) {
+                    mError = error;
+                }
+            }
+
+            /** Drops the stream, telling the server to stop sending unless it did already. */
+            void cancel() {
+                boolean reset;
+                int unread;
+                synchronized (Connection.this) {
+                    if (mCancelled) {
+                        return;
+                    }
+                    mCancelled = true;
+                    reset = mStreams.get(mId) == this;
+                    unread = mBuffered;
+                    mChunks.clear();
+                    mBuffered = 0;
+                    removeStreamLocked(this);
+                    // Wakes up a reader of the body blocked on this stream.
+                    Connection.this.notifyAll();
+                }
+                if (reset) {
+                    sendFrame(TYPE_RST_STREAM, 0, mId, intBytes(CANCEL));
+                }
+                acknowledge(null, unread);
+            }
+
+            /** The response body, read as it arrives. */
+            private class BodyStream extends InputStream {
+                @Override
+                public int read() throws IOException {
+                    byte[] single = new byte[1];
+                    return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+                }
+
+                @Override
+                public int read(byte[] buffer, int offset, int count) throws IOException {
+                    if (count == 0) {
+                        return 0;
+                    }
+                    int read = 0;
+                    try {
+                        synchronized (Connection.this) {
+                            if (mCancelled) {
+                                throw new IOException("Stream closed");
+                            }
+                            long deadline = deadlineAfter(mTimeoutMs);
+                            while (mBuffered == 0 && !mRemoteEnded && mError == null) {
+                                awaitLocked(deadline);
+                            }
+                            if (mBuffered == 0) {
+                                if (mError != null) {
+                                    throw mError;
+                                }
+                                return -1;
+                            }
+                            while (read < count && !mChunks.isEmpty()) {
+                                byte[] chunk = mChunks.peekFirst();
+                                int length = Math.min(count - read, chunk.length - mChunkOffset);
+                                System.arraycopy(chunk, mChunkOffset, buffer, offset + read, length);
+                                read += length;
+                                mChunkOffset += length;
+                                if (mChunkOffset == chunk.length) {
+                                    mChunks.pollFirst();
+                                    mChunkOffset = 0;
+                                }
+                            }
+                            mBuffered -= read;
+                        }
+                    } catch (SocketTimeoutException e) {
+                        cancel();
+                        throw e;
+                    }
+                    acknowledge(Stream.this, read);
+                    return read;
+                }
+
+                @Override
+                public int available() {
+                    synchronized (Connection.this) {
+                        return mBuffered;
+                    }
+                }
+
+                @Override
+                public void close() {
+                    cancel();
+                }
+            }
+        }
+    }
+}
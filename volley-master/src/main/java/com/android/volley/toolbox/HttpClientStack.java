@@ -19,7 +19,10 @@ package com.android.volley.toolbox;
 import com.android.volley.AuthFailureError;
 import com.android.volley.Request;
 import com.android.volley.Request.Method;
+import com.android.volley.RequestBody;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.List;
@@ -37,6 +40,7 @@ import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpPut;
 import org.apache.http.client.methods.HttpTrace;
 import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.AbstractHttpEntity;
 import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.message.BasicNameValuePair;
 import org.apache.http.params.HttpConnectionParams;
@@ -153,6 +157,40 @@ public class HttpClientStack implements HttpStack {
     private static void setEntityIfNonEmptyBody(
             HttpEntityEnclosingRequestBase httpRequest, Request<?> request)
             throws AuthFailureError {
+        final RequestBody streamingBody = request.getStreamingBody();
+        if (streamingBody != null) {
+            AbstractHttpEntity entity =
+                    new AbstractHttpEntity() {
+                        @Override
+                        public boolean isRepeatable() {
+                            return true;
+                        }
+
+                        @Override
+                        public long getContentLength() {
+                            return streamingBody.getContentLength();
+                        }
+
+                        @Override
+                        public InputStream getContent() {
+                            throw new UnsupportedOperationException();
+                        }
+
+                        @Override
+                        public void writeTo(OutputStream out) throws IOException {
+                            streamingBody.writeTo(out);
+                        }
+
+                        @Override
+                        public boolean isStreaming() {
+                            return false;
+                        }
+                    };
+            entity.setChunked(streamingBody.getContentLength() < 0);
+            httpRequest.setHeader(HEADER_CONTENT_TYPE, streamingBody.getContentType());
+            httpRequest.setEntity(entity);
+            return;
+        }
         byte[] body = request.getBody();
         if (body != null) {
             HttpEntity entity = new ByteArrayEntity(body);
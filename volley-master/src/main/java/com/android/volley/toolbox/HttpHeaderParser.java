@@ -116,7 +116,9 @@ public class HttpHeaderParser {
         }
 
         Cache.Entry entry = new Cache.Entry();
-        entry.data = response.data;
+        // A pooled body goes back to the pool after parsing, so the cache gets its own copy.
+        entry.data = (response.data == null && response.pooledData != null)
+                ? response.pooledData.toByteArray() : response.data;
         entry.etag = serverEtag;
         entry.softTtl = softExpire;
         entry.ttl = finalExpire;
@@ -0,0 +1,316 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import com.android.volley.Header;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Incrementally decodes an HTTP/1.x response as its bytes arrive, in whatever pieces the network
+ * delivers them, for {@link NioHttpStack}.
+ * <p>
+ * <p>Interim 1xx responses are skipped. The body is framed by chunked transfer encoding, a
+ * Content-Length, or the end of the connection, and handed on without its framing.
+ */
+class HttpResponseDecoder {
+
+    /**
+     * Receives the parts of the response as they are decoded.
+     */
+    interface Listener {
+        void onHeaders(int statusCode, List<Header> headers) throws IOException;
+
+        void onBody(byte[] buffer, int offset, int count) throws IOException;
+
+        void onComplete() throws IOException;
+    }
+
+    /** Longest status, header or chunk size line accepted. */
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+
+    private static final int STATE_STATUS_LINE = 0;
+    private static final int STATE_HEADERS = 1;
+    private static final int STATE_FIXED_BODY = 2;
+    private static final int STATE_CHUNK_SIZE = 3;
+    private static final int STATE_CHUNK_DATA = 4;
+    private static final int STATE_CHUNK_END = 5;
+    private static final int STATE_TRAILERS = 6;
+    private static final int STATE_BODY_UNTIL_CLOSE = 7;
+    private static final int STATE_DONE = 8;
+
+    private final boolean mHeadRequest;
+    private final Listener mListener;
+
+    private final StringBuilder mLine = new StringBuilder();
+    private int mState = STATE_STATUS_LINE;
+    private boolean mStarted;
+    private boolean mKeepAlive;
+    private int mStatusCode;
+    private List<Header> mHeaders;
+    private long mRemaining;
+
+    /**
+     * @param headRequest Whether the response is to a HEAD request, and so has no body
+     * @param listener    Receives the decoded response
+     */
+    HttpResponseDecoder(boolean headRequest, Listener listener) {
+        mHeadRequest = headRequest;
+        mListener = listener;
+    }
+
+    /**
+     * Decodes the given bytes, which follow those decoded before.
+     *
+     * @throws ProtocolException if the response is malformed
+     */
+    void decode(ByteBuffer in) throws IOException {
+        if (in.hasRemaining()) {
+            mStarted = true;
+        }
+        while (in.hasRemaining()) {
+            switch (mState) {
+                case STATE_STATUS_LINE:
+                    if (readLine(in)) {
+                        parseStatusLine();
+                    }
+                    break;
+                case STATE_HEADERS:
+                    if (readLine(in)) {
+                        parseHeaderLine();
+                    }
+                    break;
+                case STATE_FIXED_BODY:
+                    readBody(in);
+                    if (mRemaining == 0) {
+                        complete();
+                    }
+                    break;
+                case STATE_CHUNK_SIZE:
+                    if (readLine(in)) {
+                        parseChunkSize();
+                    }
+                    break;
+                case STATE_CHUNK_DATA:
+                    readBody(in);
+                    if (mRemaining == 0) {
+                        mState = STATE_CHUNK_END;
+                    }
+                    break;
+                case STATE_CHUNK_END:
+                    if (readLine(in)) {
+                        if (!takeLine().isEmpty()) {
+                            throw new ProtocolException("Missing line break after chunk");
+                        }
+                        mState = STATE_CHUNK_SIZE;
+                    }
+                    break;
+                case STATE_TRAILERS:
+                    // Trailers aren't part of the headers handed on, which were delivered already.
+                    if (readLine(in) && takeLine().isEmpty()) {
+                        complete();
+                    }
+                    break;
+                case STATE_BODY_UNTIL_CLOSE:
+                    mRemaining = in.remaining();
+                    readBody(in);
+                    break;
+                default:
+                    // Bytes after the end of the response; the connection can't be trusted.
+                    mKeepAlive = false;
+                    in.position(in.limit());
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Signals that the connection was closed, which completes a body framed by the end of the
+     * connection.
+     *
+     * @throws ProtocolException if the response was cut short
+     */
+    void endOfInput() throws IOException {
+        if (mState == STATE_BODY_UNTIL_CLOSE) {
+            complete();
+        } else if (mState != STATE_DONE) {
+            throw new ProtocolException("Connection closed before the end of the response");
+        }
+    }
+
+    /** Returns whether any part of the response was received. */
+    boolean hasStarted() {
+        return mStarted;
+    }
+
+    /** Returns whether the whole response was received. */
+    boolean isComplete() {
+        return mState == STATE_DONE;
+    }
+
+    /** Returns whether the connection may carry another request once the response is complete. */
+    boolean isKeepAlive() {
+        return mKeepAlive;
+    }
+
+    /**
+     * Appends bytes up to the end of the current line to {@link #mLine}, without the line break.
+     *
+     * @return whether the line is complete
+     */
+    private boolean readLine(ByteBuffer in) throws IOException {
+        while (in.hasRemaining()) {
+            char c = (char) (in.get() & 0xff);
+            if (c == '\n') {
+                int length = mLine.length();
+                if (length > 0 && mLine.charAt(length - 1) == '\r') {
+                    mLine.setLength(length - 1);
+                }
+                return true;
+            }
+            if (mLine.length() >= MAX_LINE_LENGTH) {
+                throw new ProtocolException("Line too long");
+            }
+            mLine.append(c);
+        }
+        return false;
+    }
+
+    private void readBody(ByteBuffer in) throws IOException {
+        int count = (int) Math.min(in.remaining(), mRemaining);
+        if (count == 0) {
+            return;
+        }
+        mListener.onBody(in.array(), in.arrayOffset() + in.position(), count);
+        in.position(in.position() + count);
+        mRemaining -= count;
+    }
+
+    private void parseStatusLine() throws IOException {
+        String line = takeLine();
+        if (line.isEmpty()) {
+            // Tolerate stray line breaks before the response, as RFC 7230 section 3.5 suggests.
+            return;
+        }
+        // HTTP-version SP status-code SP reason-phrase
+        if (!line.startsWith("HTTP/1.") || line.length() < 12 || line.charAt(8) != ' ') {
+            throw new ProtocolException("Unexpected status line: " + line);
+        }
+        try {
+            mStatusCode = Integer.parseInt(line.substring(9, 12));
+        } catch (NumberFormatException e) {
+            throw new ProtocolException("Unexpected status line: " + line);
+        }
+        // HTTP/1.1 connections persist unless closed explicitly, HTTP/1.0 ones the other way round.
+        mKeepAlive = line.charAt(7) != '0';
+        mHeaders = new ArrayList<>();
+        mState = STATE_HEADERS;
+    }
+
+    private void parseHeaderLine() throws IOException {
+        String line = takeLine();
+        if (!line.isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon <= 0) {
+                throw new ProtocolException("Unexpected header line: " + line);
+            }
+            mHeaders.add(new Header(line.substring(0, colon).trim(), line.substring(colon + 1).trim()));
+            return;
+        }
+
+        if (mStatusCode >= 100 && mStatusCode < 200) {
+            // An interim response such as 100 Continue; the real one follows.
+            mState = STATE_STATUS_LINE;
+            return;
+        }
+
+        String transferEncoding = null;
+        String contentLength = null;
+        for (Header header : mHeaders) {
+            if ("Connection".equalsIgnoreCase(header.getName())) {
+                String value = header.getValue().toLowerCase(Locale.US);
+                if (value.contains("close")) {
+                    mKeepAlive = false;
+                } else if (value.contains("keep-alive")) {
+                    mKeepAlive = true;
+                }
+            } else if ("Transfer-Encoding".equalsIgnoreCase(header.getName())) {
+                transferEncoding = header.getValue();
+            } else if ("Content-Length".equalsIgnoreCase(header.getName())) {
+                contentLength = header.getValue();
+            }
+        }
+        mListener.onHeaders(mStatusCode, mHeaders);
+
+        if (mHeadRequest
+                || mStatusCode == HttpURLConnection.HTTP_NO_CONTENT
+                || mStatusCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+            complete();
+        } else if (transferEncoding != null
+                && transferEncoding.toLowerCase(Locale.US).trim().endsWith("chunked")) {
+            mState = STATE_CHUNK_SIZE;
+        } else if (contentLength != null) {
+            try {
+                mRemaining = Long.parseLong(contentLength);
+            } catch (NumberFormatException e) {
+                throw new ProtocolException("Invalid Content-Length: " + contentLength);
+            }
+            if (mRemaining < 0) {
+                throw new ProtocolException("Invalid Content-Length: " + contentLength);
+            }
+            mState = STATE_FIXED_BODY;
+            if (mRemaining == 0) {
+                complete();
+            }
+        } else {
+            mKeepAlive = false;
+            mState = STATE_BODY_UNTIL_CLOSE;
+        }
+    }
+
+    private void parseChunkSize() throws IOException {
+        String line = takeLine();
+        int extension = line.indexOf(';');
+        String size = (extension < 0 ? line : line.substring(0, extension)).trim();
+        try {
+            mRemaining = Long.parseLong(size, 16);
+        } catch (NumberFormatException e) {
+            throw new ProtocolException("Invalid chunk size: " + line);
+        }
+        if (mRemaining < 0) {
+            throw new ProtocolException("Invalid chunk size: " + line);
+        }
+        mState = mRemaining == 0 ? STATE_TRAILERS : STATE_CHUNK_DATA;
+    }
+
+    private String takeLine() {
+        String line = mLine.toString();
+        mLine.setLength(0);
+        return line;
+    }
+
+    private void complete() throws IOException {
+        mState = STATE_DONE;
+        mListener.onComplete();
+    }
+}
@@ -22,11 +22,13 @@ import com.android.volley.AuthFailureError;
 import com.android.volley.Header;
 import com.android.volley.Request;
 import com.android.volley.Request.Method;
+import com.android.volley.RequestBody;
 
 import java.io.DataOutputStream;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.util.ArrayList;
@@ -147,7 +149,7 @@ public class HurlStack extends BaseHttpStack {
      * @return whether the response has a body
      * @see <a href="https://tools.ietf.org/html/rfc7230#section-3.3">RFC 7230 section 3.3</a>
      */
-    private static boolean hasResponseBody(int requestMethod, int responseCode) {
+    static boolean hasResponseBody(int requestMethod, int responseCode) {
         return requestMethod != Request.Method.HEAD
                 && !(HTTP_CONTINUE <= responseCode && responseCode < HttpURLConnection.HTTP_OK)
                 && responseCode != HttpURLConnection.HTTP_NO_CONTENT
@@ -273,6 +275,11 @@ public class HurlStack extends BaseHttpStack {
     }
 
     private static void addBodyIfExists(HttpURLConnection connection, Request<?> request) throws IOException, AuthFailureError {
+        RequestBody streamingBody = request.getStreamingBody();
+        if (streamingBody != null) {
+            addStreamingBody(connection, streamingBody);
+            return;
+        }
         byte[] body = request.getBody();
         if (body != null) {
             addBody(connection, request, body);
@@ -289,4 +296,22 @@ public class HurlStack extends BaseHttpStack {
         out.write(body);
         out.close();
     }
+
+    private static void addStreamingBody(HttpURLConnection connection, RequestBody body) throws IOException {
+        connection.setDoOutput(true);
+        connection.addRequestProperty(HttpHeaderParser.HEADER_CONTENT_TYPE, body.getContentType());
+        // Without a streaming mode, HttpURLConnection buffers the whole body to count its length.
+        long length = body.getContentLength();
+        if (length >= 0 && length <= Integer.MAX_VALUE) {
+            connection.setFixedLengthStreamingMode((int) length);
+        } else {
+            connection.setChunkedStreamingMode(0);
+        }
+        OutputStream out = connection.getOutputStream();
+        try {
+            body.writeTo(out);
+        } finally {
+            out.close();
+        }
+    }
 }
@@ -0,0 +1,293 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.volley.toolbox;
+
+import com.android.volley.AuthFailureError;
+import com.android.volley.Header;
+import com.android.volley.Request;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * A {@link BaseHttpStack} speaking HTTP/1.1 over sockets it keeps open in a {@link
+ * ConnectionPool}, rather than leaving connection reuse to {@link java.net.HttpURLConnection}.
+ * <p>
+ * <p>A connection goes back to the pool once its response body was read to the end, so callers
+ * must read or close the content of every response. A connection which turns out to be stale
+ * when reused is replaced by a new one, as long as the server didn't start to answer.
+ * <p>
+ * <p>Requests with a streaming body, and URLs other than http and https, go to a {@link
+ * HurlStack}. Proxies aren't supported, and bodies aren't decompressed.
+ */
+public class KeepAliveHttpStack extends BaseHttpStack {
+
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+
+    private final HurlStack.UrlRewriter mUrlRewriter;
+    private final SSLSocketFactory mSslSocketFactory;
+    private final ConnectionPool mConnectionPool;
+    private final BaseHttpStack mFallbackStack;
+
+    public KeepAliveHttpStack() {
+        this(/* urlRewriter= */ null, /* sslSocketFactory= */ null, new ConnectionPool());
+    }
+
+    /**
+     * @param urlRewriter      Rewriter to use for request URLs, or null
+     * @param sslSocketFactory SSL factory to use for HTTPS connections, or null for the default
+     * @param connectionPool   Pool to keep idle connections in
+     */
+    public KeepAliveHttpStack(HurlStack.UrlRewriter urlRewriter, SSLSocketFactory sslSocketFactory,
+                              ConnectionPool connectionPool) {
+        mUrlRewriter = urlRewriter;
+        mSslSocketFactory = sslSocketFactory;
+        mConnectionPool = connectionPool;
+        mFallbackStack = new HurlStack(urlRewriter, sslSocketFactory);
+    }
+
+    /**
+     * Returns the pool connections are kept in, which reports how often they are reused.
+     */
+    public ConnectionPool getConnectionPool() {
+        return mConnectionPool;
+    }
+
+    @Override
+    public HttpResponse executeRequest(Request<?> request, Map<String, String> additionalHeaders) throws IOException, AuthFailureError {
+        if (request.getStreamingBody() != null) {
+            return mFallbackStack.executeRequest(request, additionalHeaders);
+        }
+        String url = request.getUrl();
+        if (mUrlRewriter != null) {
+            String rewritten = mUrlRewriter.rewriteUrl(url);
+            if (rewritten == null) {
+                throw new IOException("URL blocked by rewriter: " + url);
+            }
+            url = rewritten;
+        }
+        URL parsedUrl = new URL(url);
+        if (!"http".equals(parsedUrl.getProtocol()) && !"https".equals(parsedUrl.getProtocol())) {
+            return mFallbackStack.executeRequest(request, additionalHeaders);
+        }
+        byte[] requestBytes = NioHttpStack.encodeRequest(request, additionalHeaders, parsedUrl);
+        String key = ConnectionPool.key(parsedUrl);
+        int timeoutMs = request.getTimeoutMs();
+
+        while (true) {
+            ConnectionPool.Connection connection = mConnectionPool.take(key);
+            boolean reused = connection != null;
+            if (!reused) {
+                connection = connect(parsedUrl, key, timeoutMs);
+            }
+            Exchange exchange = new Exchange(connection, request.getMethod());
+            try {
+                connection.mSocket.setSoTimeout(timeoutMs);
+                connection.mOut.write(requestBytes);
+                connection.mOut.flush();
+                return exchange.readResponse();
+            } catch (IOException e) {
+                connection.close();
+                // The server may have closed an idle connection just as it was taken; try again,
+                // on another one, unless it started to answer or is merely slow.
+                if (reused && !exchange.hasStarted() && !(e instanceof SocketTimeoutException)) {
+                    continue;
+                }
+                throw e;
+            }
+        }
+    }
+
+    /** Opens a connection to the URL's host, with TLS for https. */
+    private ConnectionPool.Connection connect(URL url, String key, int timeoutMs) throws IOException {
+        String host = url.getHost();
+        int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), timeoutMs);
+            // Requests are written in one piece, so there is nothing to gain from Nagle's algorithm.
+            socket.setTcpNoDelay(true);
+            if ("https".equals(url.getProtocol())) {
+                SSLSocketFactory factory = mSslSocketFactory != null
+                        ? mSslSocketFactory : HttpsURLConnection.getDefaultSSLSocketFactory();
+                SSLSocket sslSocket = (SSLSocket) factory.createSocket(socket, host, port, /* autoClose= */ true);
+                socket = sslSocket;
+                sslSocket.setSoTimeout(timeoutMs);
+                sslSocket.startHandshake();
+                HostnameVerifier verifier = HttpsURLConnection.getDefaultHostnameVerifier();
+                if (!verifier.verify(host, sslSocket.getSession())) {
+                    throw new SSLPeerUnverifiedException("Hostname " + host + " not verified");
+                }
+            }
+            return mConnectionPool.newConnection(key, socket);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads the response to one request from a connection, handing the connection back to the
+     * pool once the response is complete.
+     */
+    private class Exchange implements HttpResponseDecoder.Listener {
+        private final ConnectionPool.Connection mConnection;
+        private final int mMethod;
+        private final HttpResponseDecoder mDecoder;
+        private final byte[] mReadBuffer = new byte[READ_BUFFER_SIZE];
+
+        /**
+         * Decoded body bytes not read yet. Only filled once the previous ones were read, so one
+         * read's worth always fits.
+         */
+        private final byte[] mBody = new byte[READ_BUFFER_SIZE];
+        private int mBodyStart;
+        private int mBodyEnd;
+
+        private int mStatusCode;
+        private List<Header> mHeaders;
+
+        /** Whether the connection was handed back or closed. */
+        private boolean mDone;
+
+        Exchange(ConnectionPool.Connection connection, int method) {
+            mConnection = connection;
+            mMethod = method;
+            mDecoder = new HttpResponseDecoder(method == Request.Method.HEAD, this);
+        }
+
+        boolean hasStarted() {
+            return mDecoder.hasStarted();
+        }
+
+        HttpResponse readResponse() throws IOException {
+            while (mHeaders == null) {
+                fill();
+            }
+            if (!HurlStack.hasResponseBody(mMethod, mStatusCode)) {
+                return new HttpResponse(mStatusCode, mHeaders);
+            }
+            return new HttpResponse(mStatusCode, mHeaders, NioHttpStack.parseContentLength(mHeaders), new BodyStream());
+        }
+
+        @Override
+        public void onHeaders(int statusCode, List<Header> headers) {
+            mStatusCode = statusCode;
+            mHeaders = headers;
+        }
+
+        @Override
+        public void onBody(byte[] buffer, int offset, int count) {
+            System.arraycopy(buffer, offset, mBody, mBodyEnd, count);
+            mBodyEnd += count;
+        }
+
+        @Override
+        public void onComplete() {
+            // Handled in fill(), once the bytes read after the response were seen too.
+        }
+
+        /** Reads and decodes the next bytes from the connection. */
+        private void fill() throws IOException {
+            mBodyStart = 0;
+            mBodyEnd = 0;
+            int count = mConnection.mIn.read(mReadBuffer);
+            if (count == -1) {
+                mDecoder.endOfInput();
+            } else {
+                mDecoder.decode(ByteBuffer.wrap(mReadBuffer, 0, count));
+            }
+            if (mDecoder.isComplete()) {
+                finish(mDecoder.isKeepAlive());
+            }
+        }
+
+        private void finish(boolean reusable) {
+            if (mDone) {
+                return;
+            }
+            mDone = true;
+            if (reusable) {
+                mConnectionPool.put(mConnection);
+            } else {
+                mConnection.close();
+            }
+        }
+
+        /** The response body, read from the connection as the caller asks for it. */
+        private class BodyStream extends InputStream {
+            private boolean mClosed;
+
+            @Override
+            public int read() throws IOException {
+                byte[] single = new byte[1];
+                return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int count) throws IOException {
+                if (mClosed) {
+                    throw new IOException("Stream closed");
+                }
+                if (count == 0) {
+                    return 0;
+                }
+                while (mBodyStart == mBodyEnd) {
+                    if (mDecoder.isComplete()) {
+                        return -1;
+                    }
+                    try {
+                        fill();
+                    } catch (IOException e) {
+                        finish(/* reusable= */ false);
+                        throw e;
+                    }
+                }
+                int read = Math.min(count, mBodyEnd - mBodyStart);
+                System.arraycopy(mBody, mBodyStart, buffer, offset, read);
+                mBodyStart += read;
+                return read;
+            }
+
+            @Override
+            public int available() {
+                return mBodyEnd - mBodyStart;
+            }
+
+            @Override
+            public void close() {
+                mClosed = true;
+                // A connection with part of a response left unread can't carry another one.
+                finish(/* reusable= */ false);
+            }
+        }
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import com.android.volley.RequestBody;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A multipart/form-data request body, whose file parts are read as the body is sent so that
+ * uploads don't have to fit in memory. Return one from {@link
+ * com.android.volley.Request#getStreamingBody()}.
+ * <p>
+ * <p>The length of the body is known, and the body sent with a fixed length, as long as the
+ * length of each part is.
+ */
+public class MultipartBody extends RequestBody {
+
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    private static final byte[] DASHES = {'-', '-'};
+
+    private final byte[] mBoundary;
+
+    private final String mContentType;
+
+    private final List<Part> mParts;
+
+    private MultipartBody(String boundary, List<Part> parts) {
+        mBoundary = utf8(boundary);
+        mContentType = "multipart/form-data; boundary=" + boundary;
+        mParts = Collections.unmodifiableList(new ArrayList<>(parts));
+    }
+
+    @Override
+    public String getContentType() {
+        return mContentType;
+    }
+
+    @Override
+    public long getContentLength() {
+        long length = 0;
+        for (Part part : mParts) {
+            long partLength = part.mBody.getContentLength();
+            if (partLength < 0) {
+                return -1;
+            }
+            length += DASHES.length + mBoundary.length + CRLF.length + part.mHeaders.length + partLength + CRLF.length;
+        }
+        return length + DASHES.length + mBoundary.length + DASHES.length + CRLF.length;
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        for (Part part : mParts) {
+            out.write(DASHES);
+            out.write(mBoundary);
+            out.write(CRLF);
+            out.write(part.mHeaders);
+            part.mBody.writeTo(out);
+            out.write(CRLF);
+        }
+        out.write(DASHES);
+        out.write(mBoundary);
+        out.write(DASHES);
+        out.write(CRLF);
+    }
+
+    /**
+     * Returns the number of parts.
+     */
+    public int getPartCount() {
+        return mParts.size();
+    }
+
+    /**
+     * Builds a {@link MultipartBody} part by part.
+     */
+    public static class Builder {
+        private final String mBoundary;
+        private final List<Part> mParts = new ArrayList<>();
+
+        /**
+         * Creates a builder with a random boundary.
+         */
+        public Builder() {
+            this("volley-" + Long.toHexString(new Random().nextLong()) + Long.toHexString(new Random().nextLong()));
+        }
+
+        /**
+         * Creates a builder with the given boundary, which must not occur in any part.
+         */
+        public Builder(String boundary) {
+            if (boundary == null || boundary.isEmpty()) {
+                throw new IllegalArgumentException("boundary must not be empty");
+            }
+            mBoundary = boundary;
+        }
+
+        /**
+         * Adds a form field with a UTF-8 text value.
+         */
+        public Builder addFormField(String name, String value) {
+            return addPart(name, null, RequestBody.create(null, utf8(value)));
+        }
+
+        /**
+         * Adds a file, which is read when the body is sent.
+         */
+        public Builder addFilePart(String name, File file, String contentType) {
+            return addPart(name, file.getName(), RequestBody.create(contentType, file));
+        }
+
+        /**
+         * Adds a part with the given body.
+         *
+         * @param filename The file name to send, or null for none
+         */
+        public Builder addPart(String name, String filename, RequestBody body) {
+            StringBuilder headers = new StringBuilder("Content-Disposition: form-data; name=");
+            appendQuoted(headers, name);
+            if (filename != null) {
+                headers.append("; filename=");
+                appendQuoted(headers, filename);
+            }
+            headers.append("\r\n");
+            if (body.getContentType() != null) {
+                headers.append("Content-Type: ").append(body.getContentType()).append("\r\n");
+            }
+            headers.append("\r\n");
+            mParts.add(new Part(utf8(headers.toString()), body));
+            return this;
+        }
+
+        public MultipartBody build() {
+            if (mParts.isEmpty()) {
+                throw new IllegalStateException("A multipart body needs at least one part");
+            }
+            return new MultipartBody(mBoundary, mParts);
+        }
+
+        /**
+         * Appends a quoted parameter value, escaping the characters which would end it, the way
+         * browsers do.
+         */
+        private static void appendQuoted(StringBuilder target, String value) {
+            target.append('"');
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                switch (c) {
+                    case '\n':
+                        target.append("%0A");
+                        break;
+                    case '\r':
+                        target.append("%0D");
+                        break;
+                    case '"':
+                        target.append("%22");
+                        break;
+                    default:
+                        target.append(c);
+                        break;
+                }
+            }
+            target.append('"');
+        }
+    }
+
+    private static class Part {
+        /** The part's headers, followed by the empty line before its body. */
+        final byte[] mHeaders;
+        final RequestBody mBody;
+
+        Part(byte[] headers, RequestBody body) {
+            mHeaders = headers;
+            mBody = body;
+        }
+    }
+
+    private static byte[] utf8(String value) {
+        try {
+            return value.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException("UTF-8 not supported", e);
+        }
+    }
+}
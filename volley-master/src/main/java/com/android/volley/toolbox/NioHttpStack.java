@@ -0,0 +1,1075 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import android.os.Process;
+import android.support.annotation.GuardedBy;
+
+import com.android.volley.AuthFailureError;
+import com.android.volley.Header;
+import com.android.volley.Request;
+import com.android.volley.Request.Method;
+import com.android.volley.VolleyLog;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link BaseHttpStack} which speaks HTTP/1.1 over non-blocking sockets, so that a couple of
+ * selector threads carry the network I/O of any number of requests in flight.
+ * <p>
+ * <p>Connections are kept alive and reused for later requests to the same host and port, one
+ * request at a time: a connection goes back to the pool only once its response was read to the
+ * end, so a request is never pipelined behind another. A request sent on a pooled connection
+ * which the server closed in the meantime is retried once on a new connection.
+ * <p>
+ * <p>{@link #executeRequest} returns as soon as the response headers arrive; the selector thread
+ * keeps reading the body into a bounded buffer for the caller to read from, and stops reading
+ * while the buffer is full. The request timeout applies to the headers and then to each read of
+ * the body. Bodies aren't decompressed.
+ * <p>
+ * <p>{@link #executeRequestAsync} reports a response once its whole body arrived, so that no
+ * thread waits on the socket, except for a {@link StreamingRequest}, whose body is streamed as
+ * above. Host names are looked up on the blocking executor, if one was set.
+ * <p>
+ * <p>HTTPS requests and requests with a {@link Request#getStreamingBody() streaming body} are
+ * handed to a fallback stack, a {@link HurlStack} by default.
+ */
+public class NioHttpStack extends AsyncHttpStack {
+
+    private static final int DEFAULT_SELECTOR_THREADS = 2;
+
+    private static final int DEFAULT_HTTP_PORT = 80;
+
+    /** How long an idle connection is kept for reuse. */
+    private static final long KEEP_ALIVE_MS = 60 * 1000;
+
+    private static final int MAX_IDLE_CONNECTIONS_PER_HOST = 5;
+
+    /** Bytes of body waiting for the caller beyond which a connection stops reading. */
+    private static final int MAX_BUFFERED_BODY = 64 * 1024;
+
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+
+    private final int mSelectorThreads;
+    private final BaseHttpStack mFallbackStack;
+    private final AtomicInteger mNextLoop = new AtomicInteger();
+
+    @GuardedBy("this")
+    private SelectorLoop[] mLoops;
+
+    @GuardedBy("this")
+    private boolean mShutdown;
+
+    /** Idle connections by host and port, most recently used first. */
+    @GuardedBy("mIdleConnections")
+    private final Map<String, ArrayDeque<Connection>> mIdleConnections = new HashMap<>();
+
+    public NioHttpStack() {
+        this(DEFAULT_SELECTOR_THREADS, new HurlStack());
+    }
+
+    /**
+     * @param selectorThreads Number of threads doing the network I/O, started with the first request
+     * @param fallbackStack   Stack for HTTPS requests and requests with a streaming body
+     */
+    public NioHttpStack(int selectorThreads, BaseHttpStack fallbackStack) {
+        if (selectorThreads < 1) {
+            throw new IllegalArgumentException("selectorThreads must be at least 1");
+        }
+        mSelectorThreads = selectorThreads;
+        mFallbackStack = fallbackStack;
+    }
+
+    @Override
+    public HttpResponse executeRequest(Request<?> request, Map<String, String> additionalHeaders) throws IOException, AuthFailureError {
+        URL url = new URL(request.getUrl());
+        if (usesFallback(request, url)) {
+            return mFallbackStack.executeRequest(request, additionalHeaders);
+        }
+        Exchange exchange = new Exchange(request, encodeRequest(request, additionalHeaders, url), /* callback= */ null);
+        Connection connection = takeIdleConnection(url);
+        if (connection == null) {
+            connection = openConnection(url);
+        }
+        connection.mLoop.start(exchange, connection);
+        return exchange.awaitResponse();
+    }
+
+    @Override
+    public void executeRequestAsync(final Request<?> request, final Map<String, String> additionalHeaders,
+                                    final OnRequestComplete callback) {
+        final URL url;
+        final Exchange exchange;
+        try {
+            url = new URL(request.getUrl());
+            if (usesFallback(request, url)) {
+                executeFallbackAsync(request, additionalHeaders, callback);
+                return;
+            }
+            exchange = new Exchange(request, encodeRequest(request, additionalHeaders, url), callback);
+        } catch (IOException e) {
+            callback.onError(e);
+            return;
+        } catch (AuthFailureError e) {
+            callback.onAuthError(e);
+            return;
+        }
+        Connection connection;
+        try {
+            connection = takeIdleConnection(url);
+        } catch (IOException e) {
+            exchange.fail(e);
+            return;
+        }
+        if (connection != null) {
+            connection.mLoop.start(exchange, connection);
+            return;
+        }
+        try {
+            runBlocking(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Connection connection = openConnection(url);
+                        connection.mLoop.start(exchange, connection);
+                    } catch (IOException e) {
+                        exchange.fail(e);
+                    }
+                }
+            });
+        } catch (IOException e) {
+            exchange.fail(e);
+        }
+    }
+
+    @Override
+    public void setBlockingExecutor(ExecutorService executor) {
+        super.setBlockingExecutor(executor);
+        if (mFallbackStack instanceof AsyncHttpStack) {
+            ((AsyncHttpStack) mFallbackStack).setBlockingExecutor(executor);
+        }
+    }
+
+    private static boolean usesFallback(Request<?> request, URL url) throws AuthFailureError {
+        return !"http".equals(url.getProtocol()) || request.getStreamingBody() != null;
+    }
+
+    private void executeFallbackAsync(final Request<?> request, final Map<String, String> additionalHeaders,
+                                      final OnRequestComplete callback) {
+        if (mFallbackStack instanceof AsyncHttpStack) {
+            ((AsyncHttpStack) mFallbackStack).executeRequestAsync(request, additionalHeaders, callback);
+            return;
+        }
+        try {
+            runBlocking(new Runnable() {
+                @Override
+                public void run() {
+                    HttpResponse httpResponse;
+                    try {
+                        httpResponse = mFallbackStack.executeRequest(request, additionalHeaders);
+                    } catch (IOException e) {
+                        callback.onError(e);
+                        return;
+                    } catch (AuthFailureError e) {
+                        callback.onAuthError(e);
+                        return;
+                    }
+                    callback.onSuccess(httpResponse);
+                }
+            });
+        } catch (IOException e) {
+            callback.onError(e);
+        }
+    }
+
+    /**
+     * Runs work which may block on the blocking executor, or right here if there is none.
+     *
+     * @throws IOException if the executor was shut down
+     */
+    private void runBlocking(Runnable task) throws IOException {
+        ExecutorService executor = getBlockingExecutor();
+        if (executor != null) {
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                throw new IOException("Blocking executor was shut down", e);
+            }
+        } else {
+            task.run();
+        }
+    }
+
+    /** Opens a connection to the URL's host, looking up its address on the calling thread. */
+    private Connection openConnection(URL url) throws IOException {
+        int port = url.getPort() != -1 ? url.getPort() : DEFAULT_HTTP_PORT;
+        // Resolve the host here, as a selector thread mustn't block.
+        InetSocketAddress address = new InetSocketAddress(InetAddress.getByName(url.getHost()), port);
+        return new Connection(nextLoop(), hostKey(url), address);
+    }
+
+    private static String hostKey(URL url) {
+        return url.getHost() + ":" + (url.getPort() != -1 ? url.getPort() : DEFAULT_HTTP_PORT);
+    }
+
+    /**
+     * Stops the selector threads, failing the requests in flight and closing all connections.
+     * Later requests fail too.
+     */
+    public void shutdown() {
+        SelectorLoop[] loops;
+        synchronized (this) {
+            mShutdown = true;
+            loops = mLoops;
+        }
+        if (loops != null) {
+            for (SelectorLoop loop : loops) {
+                loop.quit();
+            }
+        }
+    }
+
+    private synchronized SelectorLoop nextLoop() throws IOException {
+        if (mShutdown) {
+            throw new IOException("NioHttpStack was shut down");
+        }
+        if (mLoops == null) {
+            SelectorLoop[] loops = new SelectorLoop[mSelectorThreads];
+            try {
+                for (int i = 0; i < loops.length; i++) {
+                    loops[i] = new SelectorLoop(i);
+                }
+            } catch (IOException e) {
+                for (SelectorLoop loop : loops) {
+                    if (loop != null) {
+                        loop.closeSelector();
+                    }
+                }
+                throw e;
+            }
+            for (SelectorLoop loop : loops) {
+                loop.start();
+            }
+            mLoops = loops;
+        }
+        return mLoops[(mNextLoop.getAndIncrement() & Integer.MAX_VALUE) % mLoops.length];
+    }
+
+    private Connection takeIdleConnection(URL url) throws IOException {
+        synchronized (this) {
+            if (mShutdown) {
+                throw new IOException("NioHttpStack was shut down");
+            }
+        }
+        String hostKey = hostKey(url);
+        List<Connection> expired = new ArrayList<>();
+        Connection connection = null;
+        long now = elapsedRealtimeMs();
+        synchronized (mIdleConnections) {
+            ArrayDeque<Connection> connections = mIdleConnections.get(hostKey);
+            while (connections != null && !connections.isEmpty()) {
+                Connection candidate = connections.pollFirst();
+                if (now - candidate.mIdleSinceMs < KEEP_ALIVE_MS) {
+                    connection = candidate;
+                    break;
+                }
+                expired.add(candidate);
+            }
+            if (connections != null && connections.isEmpty()) {
+                mIdleConnections.remove(hostKey);
+            }
+        }
+        for (Connection stale : expired) {
+            stale.mLoop.closeLater(stale);
+        }
+        return connection;
+    }
+
+    /** Pools a connection whose response is complete; returns false if the pool is full. */
+    private boolean offerIdleConnection(Connection connection) {
+        synchronized (mIdleConnections) {
+            ArrayDeque<Connection> connections = mIdleConnections.get(connection.mHostKey);
+            if (connections == null) {
+                connections = new ArrayDeque<>();
+                mIdleConnections.put(connection.mHostKey, connections);
+            } else if (connections.size() >= MAX_IDLE_CONNECTIONS_PER_HOST) {
+                return false;
+            }
+            connection.mIdleSinceMs = elapsedRealtimeMs();
+            connections.addFirst(connection);
+            return true;
+        }
+    }
+
+    private void removeIdleConnection(Connection connection) {
+        synchronized (mIdleConnections) {
+            ArrayDeque<Connection> connections = mIdleConnections.get(connection.mHostKey);
+            if (connections != null && connections.remove(connection) && connections.isEmpty()) {
+                mIdleConnections.remove(connection.mHostKey);
+            }
+        }
+    }
+
+    /** Encodes the request line, headers and body of a request. */
+    static byte[] encodeRequest(Request<?> request, Map<String, String> additionalHeaders, URL url) throws AuthFailureError {
+        byte[] body = getBody(request);
+        String method = getMethodName(request.getMethod(), body);
+        boolean bodyAllowed = body != null || permitsBody(request.getMethod());
+
+        HashMap<String, String> headers = new HashMap<>();
+        headers.putAll(request.getHeaders());
+        headers.putAll(additionalHeaders);
+
+        String path = url.getFile().isEmpty() ? "/" : url.getFile();
+        StringBuilder head = new StringBuilder();
+        head.append(method).append(' ').append(path).append(" HTTP/1.1\r\n");
+        appendHeader(head, "Host", url.getPort() == -1 ? url.getHost() : url.getHost() + ":" + url.getPort());
+        boolean hasContentType = false;
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            if ("Host".equalsIgnoreCase(header.getKey())
+                    || "Content-Length".equalsIgnoreCase(header.getKey())) {
+                continue;
+            }
+            hasContentType |= HttpHeaderParser.HEADER_CONTENT_TYPE.equalsIgnoreCase(header.getKey());
+            appendHeader(head, header.getKey(), header.getValue());
+        }
+        if (body != null && !hasContentType) {
+            appendHeader(head, HttpHeaderParser.HEADER_CONTENT_TYPE, request.getBodyContentType());
+        }
+        if (bodyAllowed) {
+            // Sent even for empty bodies, which some servers refuse otherwise.
+            appendHeader(head, "Content-Length", String.valueOf(body != null ? body.length : 0));
+        }
+        head.append("\r\n");
+
+        byte[] headBytes;
+        try {
+            headBytes = head.toString().getBytes("ISO-8859-1");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException("ISO-8859-1 not supported", e);
+        }
+        if (body == null || body.length == 0) {
+            return headBytes;
+        }
+        byte[] bytes = new byte[headBytes.length + body.length];
+        System.arraycopy(headBytes, 0, bytes, 0, headBytes.length);
+        System.arraycopy(body, 0, bytes, headBytes.length, body.length);
+        return bytes;
+    }
+
+    /**
+     * Returns the request's body, or null if it has none or its method doesn't send one.
+     */
+    @SuppressWarnings("deprecation")
+    static byte[] getBody(Request<?> request) throws AuthFailureError {
+        switch (request.getMethod()) {
+            case Method.DEPRECATED_GET_OR_POST:
+                return request.getPostBody();
+            case Method.POST:
+            case Method.PUT:
+            case Method.PATCH:
+                return request.getBody();
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Returns the name of the given method; as in HurlStack, {@link Method#DEPRECATED_GET_OR_POST}
+     * is a POST if there is a body and a GET otherwise.
+     */
+    static String getMethodName(int method, byte[] body) {
+        switch (method) {
+            case Method.DEPRECATED_GET_OR_POST:
+                return body != null ? "POST" : "GET";
+            case Method.GET:
+                return "GET";
+            case Method.DELETE:
+                return "DELETE";
+            case Method.POST:
+                return "POST";
+            case Method.PUT:
+                return "PUT";
+            case Method.HEAD:
+                return "HEAD";
+            case Method.OPTIONS:
+                return "OPTIONS";
+            case Method.TRACE:
+                return "TRACE";
+            case Method.PATCH:
+                return "PATCH";
+            default:
+                throw new IllegalStateException("Unknown method type.");
+        }
+    }
+
+    /** Returns whether requests with the given method send a body, if only an empty one. */
+    static boolean permitsBody(int method) {
+        return method == Method.POST || method == Method.PUT || method == Method.PATCH;
+    }
+
+    private static void appendHeader(StringBuilder head, String name, String value) {
+        if (name.indexOf('\r') >= 0 || name.indexOf('\n') >= 0
+                || value.indexOf('\r') >= 0 || value.indexOf('\n') >= 0) {
+            throw new IllegalArgumentException("Line break in header " + name);
+        }
+        head.append(name).append(": ").append(value).append("\r\n");
+    }
+
+    /**
+     * One request and its response, passed between the calling thread, which waits for the
+     * response and reads its body, and the selector thread, which does the I/O.
+     */
+    private class Exchange implements HttpResponseDecoder.Listener {
+        final int mMethod;
+        final int mTimeoutMs;
+
+        /** Where to report the response of an asynchronous request, or null. */
+        final OnRequestComplete mCallback;
+
+        /** Whether the body is handed over as it arrives, rather than once complete. */
+        final boolean mStreamBody;
+
+        /** The selector thread doing the I/O, set when the exchange is started. */
+        volatile SelectorLoop mLoop;
+
+        // Only used by the selector thread once the exchange is started.
+        final ByteBuffer mRequestBytes;
+        final HttpResponseDecoder mDecoder;
+        Connection mConnection;
+        boolean mRetried;
+
+        /** When an asynchronous exchange times out unless more of the response arrives, or 0. */
+        long mDeadlineMs;
+
+        // Decoded by the selector thread, and published to the caller once the connection has
+        // been dealt with, so that a caller which saw the response end can reuse the connection.
+        int mDecodedStatusCode;
+        List<Header> mDecodedHeaders;
+        boolean mDecodedComplete;
+
+        private final Object mLock = new Object();
+
+        @GuardedBy("mLock")
+        private int mStatusCode;
+
+        @GuardedBy("mLock")
+        private List<Header> mHeaders;
+
+        /** Body received and not read yet. */
+        @GuardedBy("mLock")
+        private final ArrayDeque<byte[]> mChunks = new ArrayDeque<>();
+
+        /** Bytes of the first chunk read already. */
+        @GuardedBy("mLock")
+        private int mChunkOffset;
+
+        @GuardedBy("mLock")
+        private int mBuffered;
+
+        @GuardedBy("mLock")
+        private boolean mComplete;
+
+        @GuardedBy("mLock")
+        private IOException mError;
+
+        /** Whether the caller gave up on the exchange. */
+        @GuardedBy("mLock")
+        private boolean mAborted;
+
+        /** Whether the connection stopped reading because the body buffer is full. */
+        @GuardedBy("mLock")
+        private boolean mPaused;
+
+        /** Whether the callback was called. */
+        @GuardedBy("mLock")
+        private boolean mDelivered;
+
+        Exchange(Request<?> request, byte[] requestBytes, OnRequestComplete callback) {
+            mMethod = request.getMethod();
+            mTimeoutMs = request.getTimeoutMs();
+            mRequestBytes = ByteBuffer.wrap(requestBytes);
+            mDecoder = new HttpResponseDecoder(mMethod == Method.HEAD, this);
+            mCallback = callback;
+            // Only a streaming request reads its body as it arrives, on a blocking thread.
+            mStreamBody = callback == null || request instanceof StreamingRequest;
+        }
+
+        /** Waits for the response headers, on the calling thread. */
+        HttpResponse awaitResponse() throws IOException {
+            synchronized (mLock) {
+                awaitLocked(new Condition() {
+                    @Override
+                    public boolean isMet() {
+                        return mHeaders != null;
+                    }
+                });
+                return newResponseLocked();
+            }
+        }
+
+        @GuardedBy("mLock")
+        private HttpResponse newResponseLocked() {
+            if (!HurlStack.hasResponseBody(mMethod, mStatusCode)) {
+                return new HttpResponse(mStatusCode, mHeaders);
+            }
+            return new HttpResponse(mStatusCode, mHeaders, parseContentLength(mHeaders), new BodyStream());
+        }
+
+        /**
+         * Waits until the condition is met or the exchange fails, giving up after the request
+         * timeout.
+         */
+        @GuardedBy("mLock")
+        private void awaitLocked(Condition condition) throws IOException {
+            long deadline = mTimeoutMs > 0 ? elapsedRealtimeMs() + mTimeoutMs : 0;
+            while (!condition.isMet()) {
+                if (mError != null) {
+                    throw mError;
+                }
+                long waitMs = 0;
+                if (deadline != 0) {
+                    waitMs = deadline - elapsedRealtimeMs();
+                    if (waitMs <= 0) {
+                        abortLocked();
+                        throw new SocketTimeoutException("Read timed out");
+                    }
+                }
+                try {
+                    mLock.wait(waitMs);
+                } catch (InterruptedException e) {
+                    abortLocked();
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+
+        @GuardedBy("mLock")
+        private void abortLocked() {
+            if (mAborted) {
+                return;
+            }
+            mAborted = true;
+            mChunks.clear();
+            mBuffered = 0;
+            mLoop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Connection connection = mConnection;
+                    if (connection != null && connection.mExchange == Exchange.this) {
+                        connection.close();
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onHeaders(int statusCode, List<Header> headers) {
+            mDecodedStatusCode = statusCode;
+            mDecodedHeaders = headers;
+        }
+
+        @Override
+        public void onBody(byte[] buffer, int offset, int count) {
+            byte[] chunk = new byte[count];
+            System.arraycopy(buffer, offset, chunk, 0, count);
+            synchronized (mLock) {
+                if (mAborted) {
+                    return;
+                }
+                mChunks.add(chunk);
+                mBuffered += count;
+                if (mStreamBody && mBuffered >= MAX_BUFFERED_BODY) {
+                    mPaused = true;
+                }
+                mLock.notifyAll();
+            }
+        }
+
+        @Override
+        public void onComplete() {
+            mDecodedComplete = true;
+        }
+
+        /** Hands what was decoded so far to the caller. */
+        void publish() {
+            HttpResponse response = null;
+            synchronized (mLock) {
+                if (mHeaders == null && mDecodedHeaders != null) {
+                    mStatusCode = mDecodedStatusCode;
+                    mHeaders = mDecodedHeaders;
+                }
+                mComplete = mDecodedComplete;
+                mLock.notifyAll();
+                if (mCallback != null && !mDelivered && !mAborted && mHeaders != null
+                        && (mComplete || mStreamBody)) {
+                    mDelivered = true;
+                    response = newResponseLocked();
+                }
+            }
+            if (response != null) {
+                mCallback.onSuccess(response);
+            }
+        }
+
+        /** Fails the exchange, unless the response was complete already. */
+        void fail(IOException error) {
+            boolean deliver = false;
+            synchronized (mLock) {
+                if (!mComplete && mError == null) {
+                    mError = error;
+                    mLock.notifyAll();
+                }
+                if (mCallback != null && !mDelivered) {
+                    mDelivered = true;
+                    deliver = true;
+                }
+            }
+            if (deliver) {
+                mCallback.onError(error);
+            }
+        }
+
+        boolean isDelivered() {
+            synchronized (mLock) {
+                return mDelivered;
+            }
+        }
+
+        boolean isAborted() {
+            synchronized (mLock) {
+                return mAborted;
+            }
+        }
+
+        boolean isPaused() {
+            synchronized (mLock) {
+                return mPaused;
+            }
+        }
+
+        /** The response body, read by the caller while the selector thread fills it. */
+        private class BodyStream extends InputStream {
+            @Override
+            public int read() throws IOException {
+                byte[] single = new byte[1];
+                return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int count) throws IOException {
+                if (count == 0) {
+                    return 0;
+                }
+                boolean resume = false;
+                int read;
+                synchronized (mLock) {
+                    if (mAborted) {
+                        throw new IOException("Stream closed");
+                    }
+                    awaitLocked(new Condition() {
+                        @Override
+                        public boolean isMet() {
+                            return !mChunks.isEmpty() || mComplete;
+                        }
+                    });
+                    if (mChunks.isEmpty()) {
+                        return -1;
+                    }
+                    byte[] chunk = mChunks.peekFirst();
+                    read = Math.min(count, chunk.length - mChunkOffset);
+                    System.arraycopy(chunk, mChunkOffset, buffer, offset, read);
+                    mChunkOffset += read;
+                    if (mChunkOffset == chunk.length) {
+                        mChunks.pollFirst();
+                        mChunkOffset = 0;
+                    }
+                    mBuffered -= read;
+                    if (mPaused && mBuffered <= MAX_BUFFERED_BODY / 2) {
+                        mPaused = false;
+                        resume = true;
+                    }
+                }
+                if (resume) {
+                    mLoop.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            Connection connection = mConnection;
+                            if (connection != null && connection.mExchange == Exchange.this) {
+                                connection.resumeReading();
+                            }
+                        }
+                    });
+                }
+                return read;
+            }
+
+            @Override
+            public int available() {
+                synchronized (mLock) {
+                    return mBuffered;
+                }
+            }
+
+            @Override
+            public void close() {
+                synchronized (mLock) {
+                    // Closing before the end leaves the connection in the middle of a response.
+                    if (!mComplete) {
+                        abortLocked();
+                    }
+                    mChunks.clear();
+                    mBuffered = 0;
+                }
+            }
+        }
+    }
+
+    private interface Condition {
+        boolean isMet();
+    }
+
+    /** A connection to a server; only used by its selector thread, except for pooling. */
+    private class Connection {
+        final SelectorLoop mLoop;
+        final String mHostKey;
+        final InetSocketAddress mAddress;
+
+        @GuardedBy("mIdleConnections")
+        long mIdleSinceMs;
+
+        SocketChannel mChannel;
+        SelectionKey mKey;
+        Exchange mExchange;
+        boolean mReused;
+        boolean mClosed;
+
+        Connection(SelectorLoop loop, String hostKey, InetSocketAddress address) {
+            mLoop = loop;
+            mHostKey = hostKey;
+            mAddress = address;
+        }
+
+        void start(Exchange exchange) {
+            mExchange = exchange;
+            exchange.mConnection = this;
+            if (exchange.mCallback != null && exchange.mTimeoutMs > 0) {
+                exchange.mDeadlineMs = elapsedRealtimeMs() + exchange.mTimeoutMs;
+            }
+            try {
+                if (mLoop.mQuit) {
+                    throw new IOException("NioHttpStack was shut down");
+                }
+                if (mClosed) {
+                    throw new IOException("Connection closed while idle");
+                }
+                if (mChannel == null) {
+                    mChannel = SocketChannel.open();
+                    mChannel.configureBlocking(false);
+                    mChannel.socket().setTcpNoDelay(true);
+                    boolean connected = mChannel.connect(mAddress);
+                    mKey = mChannel.register(mLoop.mSelector,
+                            connected ? SelectionKey.OP_WRITE : SelectionKey.OP_CONNECT, this);
+                } else {
+                    mKey.interestOps(SelectionKey.OP_WRITE);
+                }
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        void onReady() {
+            try {
+                if (mKey.isConnectable() && mChannel.finishConnect()) {
+                    mKey.interestOps(SelectionKey.OP_WRITE);
+                }
+                if (mKey.isValid() && mKey.isWritable()) {
+                    mChannel.write(mExchange.mRequestBytes);
+                    if (!mExchange.mRequestBytes.hasRemaining()) {
+                        mKey.interestOps(SelectionKey.OP_READ);
+                    }
+                }
+                if (mKey.isValid() && mKey.isReadable()) {
+                    read();
+                }
+            } catch (IOException e) {
+                fail(e);
+            } catch (CancelledKeyException e) {
+                fail(new IOException("Connection closed", e));
+            }
+        }
+
+        private void read() throws IOException {
+            ByteBuffer buffer = mLoop.mReadBuffer;
+            buffer.clear();
+            int count = mChannel.read(buffer);
+            if (mExchange == null) {
+                // An idle connection was closed by the server, or got something it didn't ask for.
+                close();
+                return;
+            }
+            Exchange exchange = mExchange;
+            HttpResponseDecoder decoder = exchange.mDecoder;
+            if (count == -1) {
+                decoder.endOfInput();
+            } else {
+                if (count > 0 && exchange.mDeadlineMs != 0) {
+                    exchange.mDeadlineMs = elapsedRealtimeMs() + exchange.mTimeoutMs;
+                }
+                buffer.flip();
+                decoder.decode(buffer);
+            }
+            if (decoder.isComplete()) {
+                finishExchange(count != -1 && decoder.isKeepAlive());
+            } else if (exchange.isPaused()) {
+                mKey.interestOps(0);
+            }
+            exchange.publish();
+        }
+
+        /** Fails the exchange of an asynchronous request which took too long. */
+        void timeOut() {
+            Exchange exchange = mExchange;
+            close();
+            exchange.fail(new SocketTimeoutException("Read timed out"));
+        }
+
+        void resumeReading() {
+            if (!mClosed) {
+                mKey.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        private void finishExchange(boolean reuse) {
+            mExchange = null;
+            if (reuse) {
+                mReused = true;
+                // Keep reading while idle to notice when the server closes the connection.
+                mKey.interestOps(SelectionKey.OP_READ);
+                if (offerIdleConnection(this)) {
+                    return;
+                }
+            }
+            close();
+        }
+
+        void fail(IOException error) {
+            Exchange exchange = mExchange;
+            close();
+            if (exchange == null) {
+                return;
+            }
+            if (mReused && !exchange.mDecoder.hasStarted() && !exchange.mRetried && !mLoop.mQuit) {
+                // The server most likely closed the pooled connection before the request got
+                // there, so send it again on a new one.
+                exchange.mRetried = true;
+                exchange.mRequestBytes.rewind();
+                new Connection(mLoop, mHostKey, mAddress).start(exchange);
+                return;
+            }
+            exchange.fail(error);
+        }
+
+        void close() {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            mExchange = null;
+            removeIdleConnection(this);
+            if (mKey != null) {
+                mKey.cancel();
+            }
+            if (mChannel != null) {
+                try {
+                    mChannel.close();
+                } catch (IOException e) {
+                    VolleyLog.d("Error closing connection: %s", e.toString());
+                }
+            }
+        }
+    }
+
+    /** A selector thread, which does the I/O of its connections. */
+    private class SelectorLoop extends Thread {
+        final Selector mSelector;
+        final ByteBuffer mReadBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private final ConcurrentLinkedQueue<Runnable> mTasks = new ConcurrentLinkedQueue<>();
+        volatile boolean mQuit;
+
+        SelectorLoop(int index) throws IOException {
+            super("NioHttpStack-" + index);
+            setDaemon(true);
+            mSelector = Selector.open();
+        }
+
+        /** Runs a task on this thread. */
+        void execute(Runnable task) {
+            mTasks.add(task);
+            mSelector.wakeup();
+        }
+
+        void start(final Exchange exchange, final Connection connection) {
+            exchange.mLoop = this;
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (exchange.isAborted()) {
+                        // A pooled connection is still fine for someone else.
+                        if (connection.mChannel == null || connection.mClosed
+                                || !offerIdleConnection(connection)) {
+                            connection.close();
+                        }
+                        return;
+                    }
+                    connection.start(exchange);
+                }
+            });
+        }
+
+        void closeLater(final Connection connection) {
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    connection.close();
+                }
+            });
+        }
+
+        void quit() {
+            mQuit = true;
+            mSelector.wakeup();
+        }
+
+        void closeSelector() {
+            try {
+                mSelector.close();
+            } catch (IOException e) {
+                VolleyLog.d("Error closing selector: %s", e.toString());
+            }
+        }
+
+        /**
+         * Times out the asynchronous exchanges past their deadline.
+         *
+         * @return milliseconds until the next deadline, or 0 if there is none
+         */
+        private long expireExchanges() {
+            long now = elapsedRealtimeMs();
+            long next = Long.MAX_VALUE;
+            for (SelectionKey key : mSelector.keys()) {
+                Connection connection = (Connection) key.attachment();
+                Exchange exchange = connection.mExchange;
+                if (!key.isValid() || exchange == null || exchange.mDeadlineMs == 0) {
+                    continue;
+                }
+                if (exchange.isDelivered()) {
+                    // The caller reads the rest of a streamed body with timeouts of its own.
+                    exchange.mDeadlineMs = 0;
+                } else if (exchange.mDeadlineMs <= now) {
+                    connection.timeOut();
+                } else {
+                    next = Math.min(next, exchange.mDeadlineMs - now);
+                }
+            }
+            return next == Long.MAX_VALUE ? 0 : next;
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            while (!mQuit) {
+                try {
+                    mSelector.select(expireExchanges());
+                } catch (IOException e) {
+                    VolleyLog.e(e, "Selector failed");
+                    break;
+                }
+                Runnable task;
+                while ((task = mTasks.poll()) != null) {
+                    task.run();
+                }
+                Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid()) {
+                        ((Connection) key.attachment()).onReady();
+                    }
+                }
+            }
+
+            IOException shutdown = new IOException("NioHttpStack was shut down");
+            for (SelectionKey key : new ArrayList<>(mSelector.keys())) {
+                ((Connection) key.attachment()).fail(shutdown);
+            }
+            closeSelector();
+            // Anything started since is failed rather than left waiting.
+            Runnable task;
+            while ((task = mTasks.poll()) != null) {
+                task.run();
+            }
+        }
+    }
+
+    /**
+     * Returns a monotonic time in milliseconds, for deadlines and idle times. Based on {@link
+     * System#nanoTime()}, which keeps running in JVM tests where {@link
+     * android.os.SystemClock} is frozen.
+     */
+    static long elapsedRealtimeMs() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    static int parseContentLength(List<Header> headers) {
+        for (Header header : headers) {
+            if ("Content-Length".equalsIgnoreCase(header.getName())) {
+                try {
+                    long length = Long.parseLong(header.getValue());
+                    return length <= Integer.MAX_VALUE ? (int) length : -1;
+                } catch (NumberFormatException e) {
+                    return -1;
+                }
+            }
+        }
+        return -1;
+    }
+}
@@ -16,6 +16,8 @@
 
 package com.android.volley.toolbox;
 
+import com.android.volley.PooledBuffer;
+
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 
@@ -53,6 +55,28 @@ public class PoolingByteArrayOutputStream extends ByteArrayOutputStream {
         buf = mPool.getBuf(Math.max(size, DEFAULT_SIZE));
     }
 
+    /**
+     * Hands the underlying buffer over to a {@link PooledBuffer} which returns it to the pool once
+     * released, instead of copying its contents like {@link #toByteArray()}. Nothing may be
+     * written to this stream afterwards.
+     */
+    public PooledBuffer toPooledBuffer() {
+        final ByteArrayPool pool = mPool;
+        PooledBuffer pooledBuffer =
+                new PooledBuffer(
+                        buf,
+                        count,
+                        new PooledBuffer.Recycler() {
+                            @Override
+                            public void recycle(byte[] buffer) {
+                                pool.returnBuf(buffer);
+                            }
+                        });
+        buf = null;
+        count = 0;
+        return pooledBuffer;
+    }
+
     @Override
     public void close() throws IOException {
         mPool.returnBuf(buf);
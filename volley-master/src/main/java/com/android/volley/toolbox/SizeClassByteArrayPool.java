@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A {@link ByteArrayPool} which doesn't lock, for pools shared by many threads.
+ * <p>
+ * <p>Buffers are grouped in power-of-two size classes, from 16 bytes up to the size limit, so a
+ * request is served from a single class instead of a search through all pooled buffers. Requests
+ * are rounded up to their class, so returned buffers may be up to twice the requested size;
+ * requests beyond the largest class are allocated as asked and not pooled. Returned buffers go to
+ * the largest class they can serve, so buffers allocated elsewhere may be returned too.
+ * <p>
+ * <p>Each thread keeps the last buffer it returned of each class for itself, so that a thread
+ * which returns a buffer and then asks for one of the same class touches no shared state. Other
+ * buffers are kept in a lock-free stack per class, up to the size limit; when the shared stacks
+ * are full, returned buffers are dropped. The per-thread buffers don't count against the limit,
+ * so each thread using the pool may hold up to about twice the size limit besides.
+ */
+public class SizeClassByteArrayPool extends ByteArrayPool {
+
+    /** Log2 of the smallest size class. */
+    private static final int MIN_SHIFT = 4;
+
+    private static final int MIN_SIZE = 1 << MIN_SHIFT;
+
+    private final int mSizeLimit;
+
+    /** Number of size classes; 0 if the size limit is below the smallest class. */
+    private final int mClassCount;
+
+    /** Top of the stack of shared buffers of each class. */
+    private final AtomicReferenceArray<Node> mStacks;
+
+    /** Total size of the buffers in the shared stacks. */
+    private final AtomicInteger mSharedSize = new AtomicInteger();
+
+    /** The buffer each thread keeps of each class, if any. */
+    private final ThreadLocal<byte[][]> mThreadBuffers =
+            new ThreadLocal<byte[][]>() {
+                @Override
+                protected byte[][] initialValue() {
+                    return new byte[mClassCount][];
+                }
+            };
+
+    /** @param sizeLimit the maximum size of the shared part of the pool, in bytes */
+    public SizeClassByteArrayPool(int sizeLimit) {
+        super(sizeLimit);
+        mSizeLimit = sizeLimit;
+        mClassCount = sizeLimit < MIN_SIZE ? 0 : floorClass(sizeLimit) + 1;
+        mStacks = new AtomicReferenceArray<>(mClassCount);
+    }
+
+    @Override
+    public byte[] getBuf(int len) {
+        int sizeClass = ceilClass(len);
+        if (sizeClass >= mClassCount) {
+            return new byte[len];
+        }
+        byte[][] threadBuffers = mThreadBuffers.get();
+        byte[] buf = threadBuffers[sizeClass];
+        if (buf != null) {
+            threadBuffers[sizeClass] = null;
+            return buf;
+        }
+        buf = pop(sizeClass);
+        if (buf != null) {
+            return buf;
+        }
+        return new byte[1 << (sizeClass + MIN_SHIFT)];
+    }
+
+    @Override
+    public void returnBuf(byte[] buf) {
+        if (buf == null || buf.length < MIN_SIZE || buf.length > mSizeLimit) {
+            return;
+        }
+        int sizeClass = floorClass(buf.length);
+        byte[][] threadBuffers = mThreadBuffers.get();
+        if (threadBuffers[sizeClass] == null) {
+            threadBuffers[sizeClass] = buf;
+            return;
+        }
+        push(sizeClass, buf);
+    }
+
+    private byte[] pop(int sizeClass) {
+        Node top;
+        do {
+            top = mStacks.get(sizeClass);
+            if (top == null) {
+                return null;
+            }
+        } while (!mStacks.compareAndSet(sizeClass, top, top.mNext));
+        mSharedSize.addAndGet(-top.mBuf.length);
+        return top.mBuf;
+    }
+
+    private void push(int sizeClass, byte[] buf) {
+        if (mSharedSize.addAndGet(buf.length) > mSizeLimit) {
+            mSharedSize.addAndGet(-buf.length);
+            return;
+        }
+        Node node = new Node(buf);
+        do {
+            node.mNext = mStacks.get(sizeClass);
+        } while (!mStacks.compareAndSet(sizeClass, node.mNext, node));
+    }
+
+    /** Returns the smallest class whose buffers hold {@code len} bytes. */
+    private static int ceilClass(int len) {
+        if (len <= MIN_SIZE) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(len - 1) - MIN_SHIFT;
+    }
+
+    /** Returns the largest class a buffer of {@code len} bytes can serve. */
+    private static int floorClass(int len) {
+        return 31 - Integer.numberOfLeadingZeros(len) - MIN_SHIFT;
+    }
+
+    private static class Node {
+        final byte[] mBuf;
+
+        /** The node below this one; only written before the node is pushed. */
+        Node mNext;
+
+        Node(byte[] buf) {
+            mBuf = buf;
+        }
+    }
+}
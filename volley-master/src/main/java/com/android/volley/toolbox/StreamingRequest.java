@@ -0,0 +1,273 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import android.support.annotation.GuardedBy;
+
+import com.android.volley.Cache;
+import com.android.volley.Header;
+import com.android.volley.NetworkResponse;
+import com.android.volley.ParseError;
+import com.android.volley.Request;
+import com.android.volley.Response;
+import com.android.volley.Response.ErrorListener;
+import com.android.volley.Response.Listener;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+/**
+ * A request whose response body is parsed as it is read from the network instead of being
+ * buffered into a byte array first, so that large bodies are handled in constant memory.
+ * <p>
+ * <p>{@link BasicNetwork} hands the body of successful responses straight to {@link #parseStream}
+ * on the network thread. Responses are only cached if a cache body limit is set with
+ * {@link #setCacheBodyLimit}: the body is then copied aside as it is parsed, up to the limit, and
+ * bodies which don't fit aren't cached. Cached bodies and the bodies of error responses are
+ * parsed from memory as usual.
+ */
+public abstract class StreamingRequest<T> extends Request<T> {
+
+    /**
+     * Lock to guard mListener as it is cleared on cancel() and read on delivery.
+     */
+    private final Object mLock = new Object();
+
+    @GuardedBy("mLock")
+    private Listener<T> mListener;
+
+    /**
+     * Largest body copied aside for the cache, or 0 to not cache responses.
+     */
+    private volatile int mCacheBodyLimit = 0;
+
+    /**
+     * The response parsed by {@link #readStream}, returned by the following call of
+     * {@link #parseNetworkResponse(NetworkResponse)}. Both happen on the same network thread.
+     */
+    private Response<T> mStreamedResponse;
+
+    /**
+     * Creates a new request with the given method.
+     *
+     * @param method        the request {@link Method} to use
+     * @param url           URL to fetch
+     * @param listener      Listener to receive the parsed response
+     * @param errorListener Error listener, or null to ignore errors
+     */
+    public StreamingRequest(int method, String url, Listener<T> listener, ErrorListener errorListener) {
+        super(method, url, errorListener);
+        mListener = listener;
+    }
+
+    /**
+     * Creates a new GET request.
+     *
+     * @param url           URL to fetch
+     * @param listener      Listener to receive the parsed response
+     * @param errorListener Error listener, or null to ignore errors
+     */
+    public StreamingRequest(String url, Listener<T> listener, ErrorListener errorListener) {
+        this(Method.GET, url, listener, errorListener);
+    }
+
+    /**
+     * Sets the largest response body to keep for the cache while it is streamed to the parser.
+     * Bodies are kept in memory until parsed, so the limit bounds the memory used per request.
+     * Defaults to 0, which doesn't cache responses at all.
+     *
+     * @return This Request object to allow for chaining.
+     */
+    public Request<?> setCacheBodyLimit(int maxBytes) {
+        mCacheBodyLimit = Math.max(0, maxBytes);
+        return this;
+    }
+
+    /**
+     * Returns the largest response body kept for the cache.
+     */
+    public int getCacheBodyLimit() {
+        return mCacheBodyLimit;
+    }
+
+    /**
+     * Parses the response body on a worker thread. The stream is closed by the caller once this
+     * returns; the body doesn't have to be read to the end.
+     *
+     * @param response The status and headers of the response. Its data is null when the body is
+     *                 read from the network, and holds the body otherwise.
+     * @param body     The response body
+     * @throws IOException if reading the body fails, which is handled like any network error
+     * @throws ParseError  if the body can't be parsed
+     */
+    protected abstract T parseStream(NetworkResponse response, InputStream body) throws IOException, ParseError;
+
+    /**
+     * Parses a successful response body as it is read from the network and keeps the result for
+     * {@link #parseNetworkResponse(NetworkResponse)}. Called by {@link BasicNetwork}, which closes
+     * the stream.
+     *
+     * @param contentLength Length of the body, or -1 if unknown
+     * @return the body if it was kept for the cache, or an empty array
+     */
+    byte[] readStream(int statusCode, List<Header> headers, InputStream in, int contentLength, ByteArrayPool pool)
+            throws IOException, ParseError {
+        mStreamedResponse = null;
+        NetworkResponse head = new NetworkResponse(statusCode, /* data= */ null, /* notModified= */ false,
+                /* networkTimeMs= */ 0, headers);
+        int limit = mCacheBodyLimit;
+        if (!shouldCache() || limit == 0 || contentLength > limit) {
+            mStreamedResponse = Response.success(parseStream(head, in), null);
+            return new byte[0];
+        }
+        TeeInputStream tee = new TeeInputStream(in, new PoolingByteArrayOutputStream(pool, contentLength), limit);
+        try {
+            T result = parseStream(head, tee);
+            byte[] body = tee.readCopy();
+            Cache.Entry entry = null;
+            if (body != null) {
+                entry = HttpHeaderParser.parseCacheHeaders(
+                        new NetworkResponse(statusCode, body, /* notModified= */ false, /* networkTimeMs= */ 0, headers));
+            }
+            mStreamedResponse = Response.success(result, entry);
+            return body != null ? body : new byte[0];
+        } finally {
+            tee.discardCopy();
+        }
+    }
+
+    @Override
+    protected final Response<T> parseNetworkResponse(NetworkResponse response) {
+        Response<T> streamed = mStreamedResponse;
+        if (streamed != null) {
+            mStreamedResponse = null;
+            return streamed;
+        }
+        // A cache hit, or a 304 for one: the body is in memory already.
+        byte[] data = response.data != null ? response.data : new byte[0];
+        try {
+            T result = parseStream(response, new ByteArrayInputStream(data));
+            int limit = mCacheBodyLimit;
+            Cache.Entry entry = (limit > 0 && data.length <= limit) ? HttpHeaderParser.parseCacheHeaders(response) : null;
+            return Response.success(result, entry);
+        } catch (ParseError e) {
+            return Response.error(e);
+        } catch (IOException e) {
+            return Response.error(new ParseError(e));
+        }
+    }
+
+    @Override
+    public void cancel() {
+        super.cancel();
+        synchronized (mLock) {
+            mListener = null;
+        }
+    }
+
+    @Override
+    protected void deliverResponse(T response) {
+        Listener<T> listener;
+        synchronized (mLock) {
+            listener = mListener;
+        }
+        if (listener != null) {
+            listener.onResponse(response);
+        }
+    }
+
+    /**
+     * Copies what is read through it aside, until more than the limit was read.
+     */
+    private static class TeeInputStream extends FilterInputStream {
+        private final int mLimit;
+
+        /** The copy, or null once over the limit. */
+        private PoolingByteArrayOutputStream mCopy;
+
+        TeeInputStream(InputStream in, PoolingByteArrayOutputStream copy, int limit) {
+            super(in);
+            mCopy = copy;
+            mLimit = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1 && mCopy != null) {
+                mCopy.write(b);
+                checkLimit();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int n = super.read(buffer, offset, count);
+            if (n > 0 && mCopy != null) {
+                mCopy.write(buffer, offset, n);
+                checkLimit();
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // Skipped bytes must be copied too.
+            byte[] buffer = new byte[(int) Math.min(n, 4096)];
+            int read = read(buffer, 0, buffer.length);
+            return Math.max(read, 0);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        /**
+         * Reads whatever the parser left of the body, and returns all of it, or null if it is over
+         * the limit.
+         */
+        byte[] readCopy() throws IOException {
+            byte[] buffer = new byte[4096];
+            while (mCopy != null && read(buffer, 0, buffer.length) != -1) {
+                // Copied by read().
+            }
+            return mCopy != null ? mCopy.toByteArray() : null;
+        }
+
+        void discardCopy() {
+            if (mCopy != null) {
+                try {
+                    mCopy.close();
+                } catch (IOException e) {
+                    // Doesn't happen; closing only returns the buffer to the pool.
+                }
+                mCopy = null;
+            }
+        }
+
+        private void checkLimit() {
+            if (mCopy.size() > mLimit) {
+                discardCopy();
+            }
+        }
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import android.support.annotation.GuardedBy;
+
+import com.android.volley.ConcurrentInitCache;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache that keeps recently used entries in memory in front of a disk cache such as
+ * {@link DiskBasedCache}, so repeated hits on the same responses don't touch the filesystem.
+ * <p>
+ * <p>Writes go through to the disk cache. An entry read from disk is promoted to memory; an
+ * entry which is put is only held in memory if {@code cacheOnWrite} is set. The memory tier is
+ * bounded by the total size of the entries' data, and entries larger than an eighth of that bound
+ * are never held in memory, so one large response can't flush out all the small hot ones.
+ * <p>
+ * <p>Hits in memory take no lock; they only stamp the entry with the time of the access, and the
+ * least recently stamped entries are evicted when promoting or putting an entry overflows the
+ * memory tier. If the disk cache is a {@link DiskBasedCache}, memory hits are also reported to it,
+ * so that its own eviction order still reflects them.
+ * <p>
+ * <p>The same {@link Entry} object is handed to every caller which hits it in memory, so entries
+ * must not be modified once they are put or returned; Volley itself never does.
+ */
+public class TwoTierCache implements ConcurrentInitCache {
+
+    /** Default maximum size of the entries held in memory, in bytes. */
+    private static final int DEFAULT_MEMORY_USAGE_BYTES = 1024 * 1024;
+
+    /** Number of locks serializing writes, by key. Must be a power of two. */
+    private static final int STRIPE_COUNT = 32;
+
+    private final ConcurrentInitCache mDiskCache;
+
+    /** The disk cache if it is a {@link DiskBasedCache}, to report memory hits to, or null. */
+    private final DiskBasedCache mDiskIndex;
+
+    /** Maximum size of the data of all entries held in memory. */
+    private final int mMaxMemoryBytes;
+
+    /** Entries larger than this are not held in memory. */
+    private final int mMaxEntryBytes;
+
+    /** Whether entries which are put are also held in memory. */
+    private final boolean mCacheOnWrite;
+
+    /** Locks making the update of both tiers atomic for writes of the same key. */
+    private final Object[] mStripes = new Object[STRIPE_COUNT];
+
+    /** Entries held in memory. Read without locking; only changed while holding this object. */
+    private final Map<String, Node> mEntries = new ConcurrentHashMap<>();
+
+    /** Source of the access stamps of the entries held in memory. */
+    private final AtomicLong mAccessClock = new AtomicLong();
+
+    /** Total size of the data of the entries held in memory. */
+    @GuardedBy("this")
+    private long mTotalSize = 0;
+
+    /**
+     * Incremented by every write. A disk read is only promoted if no write happened since it
+     * started, so it can't bring back an entry which was replaced or removed meanwhile. Only
+     * changed while holding this object.
+     */
+    private volatile long mWriteCount = 0;
+
+    /**
+     * Constructs an instance of the TwoTierCache.
+     *
+     * @param diskCache      The cache to write through to and to read entries missing from memory
+     * @param maxMemoryBytes The maximum total size of the data of entries held in memory
+     * @param cacheOnWrite   Whether entries which are put are held in memory, rather than only
+     *                       entries which are read
+     */
+    public TwoTierCache(ConcurrentInitCache diskCache, int maxMemoryBytes, boolean cacheOnWrite) {
+        if (maxMemoryBytes < 0) {
+            throw new IllegalArgumentException("maxMemoryBytes must be non-negative");
+        }
+        mDiskCache = diskCache;
+        mDiskIndex = diskCache instanceof DiskBasedCache ? (DiskBasedCache) diskCache : null;
+        mMaxMemoryBytes = maxMemoryBytes;
+        mMaxEntryBytes = maxMemoryBytes / 8;
+        mCacheOnWrite = cacheOnWrite;
+        for (int i = 0; i < STRIPE_COUNT; i++) {
+            mStripes[i] = new Object();
+        }
+    }
+
+    /**
+     * Constructs an instance of the TwoTierCache which holds entries in memory once they are read,
+     * using the default memory size of 1MB.
+     *
+     * @param diskCache The cache to write through to and to read entries missing from memory
+     */
+    public TwoTierCache(ConcurrentInitCache diskCache) {
+        this(diskCache, DEFAULT_MEMORY_USAGE_BYTES, false);
+    }
+
+    @Override
+    public Entry get(String key) {
+        Node node = mEntries.get(key);
+        if (node != null) {
+            node.mLastAccess = mAccessClock.incrementAndGet();
+            if (mDiskIndex != null) {
+                mDiskIndex.recordAccess(key);
+            }
+            return node.mEntry;
+        }
+        long writeCount = mWriteCount;
+        Entry entry = mDiskCache.get(key);
+        if (entry != null) {
+            synchronized (this) {
+                if (writeCount == mWriteCount) {
+                    putInMemoryLocked(key, entry);
+                }
+            }
+        }
+        return entry;
+    }
+
+    @Override
+    public void put(String key, Entry entry) {
+        synchronized (getStripe(key)) {
+            mDiskCache.put(key, entry);
+            synchronized (this) {
+                mWriteCount++;
+                if (mCacheOnWrite) {
+                    putInMemoryLocked(key, entry);
+                } else {
+                    removeFromMemoryLocked(key);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void initialize() {
+        mDiskCache.initialize();
+    }
+
+    @Override
+    public void invalidate(String key, boolean fullExpire) {
+        synchronized (getStripe(key)) {
+            // Entries are shared, so drop the one in memory rather than changing its TTLs; the
+            // invalidated one is read back from disk on the next get.
+            synchronized (this) {
+                mWriteCount++;
+                removeFromMemoryLocked(key);
+            }
+            mDiskCache.invalidate(key, fullExpire);
+        }
+    }
+
+    @Override
+    public void remove(String key) {
+        synchronized (getStripe(key)) {
+            synchronized (this) {
+                mWriteCount++;
+                removeFromMemoryLocked(key);
+            }
+            mDiskCache.remove(key);
+        }
+    }
+
+    @Override
+    public void clear() {
+        synchronized (this) {
+            mWriteCount++;
+            mEntries.clear();
+            mTotalSize = 0;
+        }
+        mDiskCache.clear();
+    }
+
+    /** Returns the total size of the data of the entries currently held in memory. */
+    synchronized long getMemorySize() {
+        return mTotalSize;
+    }
+
+    /** An entry held in memory and the stamp of its last access. */
+    private static class Node {
+        final Entry mEntry;
+        volatile long mLastAccess;
+
+        Node(Entry entry, long lastAccess) {
+            mEntry = entry;
+            mLastAccess = lastAccess;
+        }
+    }
+
+    private Object getStripe(String key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return mStripes[h & (STRIPE_COUNT - 1)];
+    }
+
+    /** Holds the given entry in memory if it fits, evicting least recently used entries. */
+    @GuardedBy("this")
+    private void putInMemoryLocked(String key, Entry entry) {
+        removeFromMemoryLocked(key);
+        if (entry.data.length > mMaxEntryBytes) {
+            return;
+        }
+        mEntries.put(key, new Node(entry, mAccessClock.incrementAndGet()));
+        mTotalSize += entry.data.length;
+        if (mTotalSize <= mMaxMemoryBytes) {
+            return;
+        }
+        // Stamps are unique, and snapshotting them keeps the order stable while hits go on. The
+        // sort is cheap next to the disk read or write which comes before every call.
+        TreeMap<Long, String> byAccess = new TreeMap<>();
+        for (Map.Entry<String, Node> e : mEntries.entrySet()) {
+            byAccess.put(e.getValue().mLastAccess, e.getKey());
+        }
+        for (String victim : byAccess.values()) {
+            if (mTotalSize <= mMaxMemoryBytes) {
+                break;
+            }
+            removeFromMemoryLocked(victim);
+        }
+    }
+
+    @GuardedBy("this")
+    private void removeFromMemoryLocked(String key) {
+        Node node = mEntries.remove(key);
+        if (node != null) {
+            mTotalSize -= node.mEntry.data.length;
+        }
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.volley;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+import com.android.volley.mock.MockRequest;
+import com.android.volley.toolbox.AsyncHttpStack;
+import com.android.volley.toolbox.BasicNetwork;
+import com.android.volley.toolbox.HttpResponse;
+import com.android.volley.toolbox.NoCache;
+import com.android.volley.utils.ImmediateResponseDelivery;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class AsyncNetworkDispatcherPoolTest {
+
+    @Mock private Network mMockNetwork;
+    private FakeAsyncNetwork mAsyncNetwork;
+    private RequestQueue mQueue;
+
+    @Before
+    public void setUp() throws Exception {
+        initMocks(this);
+        mAsyncNetwork = new FakeAsyncNetwork();
+    }
+
+    @After
+    public void tearDown() {
+        if (mQueue != null) {
+            mQueue.stop();
+        }
+    }
+
+    @Test
+    public void deliversResponseFromAsyncNetwork() throws Exception {
+        mQueue = newQueue(mAsyncNetwork, new AsyncNetworkDispatcherPool(4, 1));
+        mQueue.start();
+        MockRequest request = newUncachedRequest();
+        mQueue.add(request);
+
+        mAsyncNetwork.takeCallback().onSuccess(new NetworkResponse(new byte[0]));
+
+        assertTrue(awaitFlag(request, /* error= */ false));
+    }
+
+    @Test
+    public void deliversErrorFromAsyncNetwork() throws Exception {
+        mQueue = newQueue(mAsyncNetwork, new AsyncNetworkDispatcherPool(4, 1));
+        mQueue.start();
+        MockRequest request = newUncachedRequest();
+        mQueue.add(request);
+
+        mAsyncNetwork.takeCallback().onError(new ServerError());
+
+        assertTrue(awaitFlag(request, /* error= */ true));
+    }
+
+    @Test
+    public void adaptsSynchronousNetwork() throws Exception {
+        when(mMockNetwork.performRequest(any(Request.class))).thenReturn(new NetworkResponse(new byte[0]));
+        mQueue = newQueue(mMockNetwork, new AsyncNetworkDispatcherPool(4, 1));
+        mQueue.start();
+        MockRequest request = newUncachedRequest();
+        mQueue.add(request);
+
+        assertTrue(awaitFlag(request, /* error= */ false));
+    }
+
+    @Test
+    public void limitsRequestsInFlight() throws Exception {
+        mQueue = newQueue(mAsyncNetwork, new AsyncNetworkDispatcherPool(2, 1));
+        mQueue.start();
+        for (int i = 0; i < 3; i++) {
+            mQueue.add(newUncachedRequest());
+        }
+
+        AsyncNetwork.OnRequestComplete first = mAsyncNetwork.takeCallback();
+        assertNotNull(mAsyncNetwork.takeCallback());
+        assertNull(mAsyncNetwork.mCallbacks.poll(100, TimeUnit.MILLISECONDS));
+
+        first.onSuccess(new NetworkResponse(new byte[0]));
+        assertNotNull(mAsyncNetwork.takeCallback());
+    }
+
+    @Test
+    public void stopWhileResponseIsOutstanding() throws Exception {
+        HoldingAsyncHttpStack stack = new HoldingAsyncHttpStack();
+        mQueue = newQueue(new BasicNetwork(stack), new AsyncNetworkDispatcherPool(4, 1));
+        mQueue.start();
+        mQueue.add(newUncachedRequest());
+        AsyncHttpStack.OnRequestComplete callback = stack.takeCallback();
+
+        mQueue.stop();
+        final AtomicBoolean closed = new AtomicBoolean();
+        InputStream content =
+                new ByteArrayInputStream(new byte[0]) {
+                    @Override
+                    public void close() {
+                        closed.set(true);
+                    }
+                };
+        // The body can't be read any more; this must not throw on the stack's thread.
+        callback.onSuccess(new HttpResponse(200, Collections.<Header>emptyList(), 0, content));
+
+        assertTrue(closed.get());
+    }
+
+    private RequestQueue newQueue(Network network, NetworkDispatcherPool pool) {
+        return new RequestQueue(new NoCache(), network, pool, new ImmediateResponseDelivery());
+    }
+
+    private static MockRequest newUncachedRequest() {
+        MockRequest request = new MockRequest();
+        request.setShouldCache(false);
+        return request;
+    }
+
+    private static boolean awaitFlag(MockRequest request, boolean error) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 1000;
+        while (System.currentTimeMillis() < deadline) {
+            if (error ? request.deliverError_called : request.deliverResponse_called) {
+                return true;
+            }
+            Thread.sleep(10);
+        }
+        return false;
+    }
+
+    /** Holds on to the callback of each request, for the test to complete it. */
+    private static class HoldingAsyncHttpStack extends AsyncHttpStack {
+        final BlockingQueue<OnRequestComplete> mCallbacks = new LinkedBlockingQueue<>();
+
+        @Override
+        public void executeRequestAsync(
+                Request<?> request, Map<String, String> additionalHeaders, OnRequestComplete callback) {
+            mCallbacks.add(callback);
+        }
+
+        OnRequestComplete takeCallback() throws InterruptedException {
+            OnRequestComplete callback = mCallbacks.poll(1, TimeUnit.SECONDS);
+            assertNotNull("Request wasn't executed", callback);
+            return callback;
+        }
+    }
+
+    private static class FakeAsyncNetwork extends AsyncNetwork {
+        final BlockingQueue<OnRequestComplete> mCallbacks = new LinkedBlockingQueue<>();
+
+        @Override
+        public void performRequestAsync(Request<?> request, OnRequestComplete callback) {
+            mCallbacks.add(callback);
+        }
+
+        OnRequestComplete takeCallback() throws InterruptedException {
+            OnRequestComplete callback = mCallbacks.poll(1, TimeUnit.SECONDS);
+            assertNotNull("Request wasn't performed", callback);
+            return callback;
+        }
+    }
+}
@@ -20,7 +20,11 @@ import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.initMocks;
@@ -28,6 +32,7 @@ import static org.mockito.MockitoAnnotations.initMocks;
 import com.android.volley.toolbox.StringRequest;
 import com.android.volley.utils.CacheTestUtils;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -71,6 +76,37 @@ public class CacheDispatcherTest {
         mDispatcher.join(1000);
     }
 
+    @Test
+    public void runDoesNotWaitForConcurrentInitCache() throws Exception {
+        final CountDownLatch initialized = new CountDownLatch(1);
+        ConcurrentInitCache cache = mock(ConcurrentInitCache.class);
+        doAnswer(
+                        new Answer<Void>() {
+                            @Override
+                            public Void answer(InvocationOnMock invocation) throws Throwable {
+                                initialized.await();
+                                return null;
+                            }
+                        })
+                .when(cache)
+                .initialize();
+        doReturn(mRequest).doAnswer(new WaitForever()).when(mCacheQueue).take();
+        CacheDispatcher dispatcher =
+                new CacheDispatcher(mCacheQueue, mNetworkQueue, cache, mDelivery);
+
+        dispatcher.start();
+        try {
+            // The cache miss reaches the network while initialization is still blocked.
+            verify(mNetworkQueue, timeout(1000)).put(mRequest);
+            // The initializer thread may not have got to initialize() yet.
+            verify(cache, timeout(1000)).initialize();
+        } finally {
+            initialized.countDown();
+            dispatcher.quit();
+            dispatcher.join(1000);
+        }
+    }
+
     private static void verifyNoResponse(ResponseDelivery delivery) {
         verify(delivery, never()).postResponse(any(Request.class), any(Response.class));
         verify(delivery, never())
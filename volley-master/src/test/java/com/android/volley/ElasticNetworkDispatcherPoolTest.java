@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+import com.android.volley.mock.MockRequest;
+import com.android.volley.toolbox.NoCache;
+import com.android.volley.utils.ImmediateResponseDelivery;
+import java.util.concurrent.CountDownLatch;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class ElasticNetworkDispatcherPoolTest {
+
+    @Mock private Network mMockNetwork;
+    private final CountDownLatch mRelease = new CountDownLatch(1);
+    private RequestQueue mQueue;
+
+    @Before
+    public void setUp() throws Exception {
+        initMocks(this);
+        when(mMockNetwork.performRequest(any(Request.class)))
+                .thenAnswer(
+                        new Answer<NetworkResponse>() {
+                            @Override
+                            public NetworkResponse answer(InvocationOnMock invocation)
+                                    throws Throwable {
+                                mRelease.await();
+                                return new NetworkResponse(new byte[0]);
+                            }
+                        });
+    }
+
+    @After
+    public void tearDown() {
+        mRelease.countDown();
+        if (mQueue != null) {
+            mQueue.stop();
+        }
+    }
+
+    @Test
+    public void startsMinimumThreads() {
+        ElasticNetworkDispatcherPool pool = new ElasticNetworkDispatcherPool(2, 8);
+        mQueue = newQueue(pool);
+        mQueue.start();
+
+        assertEquals(2, pool.getThreadCount());
+    }
+
+    @Test
+    public void growsUpToMaximumWhileRequestsBlock() throws Exception {
+        ElasticNetworkDispatcherPool pool =
+                new ElasticNetworkDispatcherPool(
+                        1, 3, /* idleTimeoutMs= */ 10000, /* targetQueueDelayMs= */ 0);
+        mQueue = newQueue(pool);
+        mQueue.start();
+
+        for (int i = 0; i < 5; i++) {
+            mQueue.add(newUncachedRequest());
+        }
+
+        verify(mMockNetwork, timeout(1000).times(3)).performRequest(any(Request.class));
+        assertEquals(3, pool.getThreadCount());
+
+        mRelease.countDown();
+        verify(mMockNetwork, timeout(1000).times(5)).performRequest(any(Request.class));
+    }
+
+    @Test
+    public void retiresIdleThreadsDownToMinimum() throws Exception {
+        ElasticNetworkDispatcherPool pool =
+                new ElasticNetworkDispatcherPool(
+                        1, 4, /* idleTimeoutMs= */ 20, /* targetQueueDelayMs= */ 0);
+        mQueue = newQueue(pool);
+        mQueue.start();
+
+        for (int i = 0; i < 4; i++) {
+            mQueue.add(newUncachedRequest());
+        }
+        verify(mMockNetwork, timeout(1000).times(4)).performRequest(any(Request.class));
+        assertEquals(4, pool.getThreadCount());
+
+        mRelease.countDown();
+        long deadline = System.currentTimeMillis() + 1000;
+        while (pool.getThreadCount() > 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, pool.getThreadCount());
+
+        // The remaining dispatcher still serves requests.
+        mQueue.add(newUncachedRequest());
+        verify(mMockNetwork, timeout(1000).times(5)).performRequest(any(Request.class));
+    }
+
+    @Test
+    public void doesNotGrowForRequestsHeldBackByHostLimit() throws Exception {
+        ElasticNetworkDispatcherPool pool =
+                new ElasticNetworkDispatcherPool(
+                        1, 4, /* idleTimeoutMs= */ 10000, /* targetQueueDelayMs= */ 0);
+        mQueue = newQueue(pool);
+        mQueue.setMaxInFlightRequestsPerHost(1);
+        mQueue.start();
+
+        for (int i = 0; i < 4; i++) {
+            mQueue.add(newUncachedRequest());
+        }
+        verify(mMockNetwork, timeout(1000)).performRequest(any(Request.class));
+        // The other requests wait for the one host's only slot, which no new thread could use.
+        Thread.sleep(50);
+        assertEquals(1, pool.getThreadCount());
+
+        mRelease.countDown();
+        verify(mMockNetwork, timeout(1000).times(4)).performRequest(any(Request.class));
+    }
+
+    @Test
+    public void stopQuitsAllThreads() {
+        ElasticNetworkDispatcherPool pool = new ElasticNetworkDispatcherPool(3, 8);
+        mQueue = newQueue(pool);
+        mQueue.start();
+        mQueue.stop();
+
+        assertEquals(0, pool.getThreadCount());
+    }
+
+    private RequestQueue newQueue(NetworkDispatcherPool pool) {
+        return new RequestQueue(new NoCache(), mMockNetwork, pool, new ImmediateResponseDelivery());
+    }
+
+    private static MockRequest newUncachedRequest() {
+        MockRequest request = new MockRequest();
+        request.setShouldCache(false);
+        return request;
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.android.volley.Request.Priority;
+import com.android.volley.mock.MockRequest;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class HostFairBlockingQueueTest {
+
+    private HostFairBlockingQueue mQueue;
+    private int mSequence;
+
+    @Before
+    public void setUp() {
+        mQueue = new HostFairBlockingQueue();
+        mSequence = 0;
+    }
+
+    @Test
+    public void roundRobinAcrossHostsOfEqualPriority() throws Exception {
+        MockRequest a1 = add("http://a.com/1", Priority.NORMAL);
+        MockRequest a2 = add("http://a.com/2", Priority.NORMAL);
+        MockRequest a3 = add("http://a.com/3", Priority.NORMAL);
+        MockRequest b1 = add("http://b.com/1", Priority.NORMAL);
+        MockRequest c1 = add("http://c.com/1", Priority.NORMAL);
+
+        assertSame(a1, mQueue.take());
+        assertSame(b1, mQueue.take());
+        assertSame(c1, mQueue.take());
+        assertSame(a2, mQueue.take());
+        assertSame(a3, mQueue.take());
+        assertEquals(0, mQueue.size());
+    }
+
+    @Test
+    public void higherPriorityFirst() throws Exception {
+        MockRequest low = add("http://a.com/1", Priority.LOW);
+        MockRequest normal = add("http://b.com/1", Priority.NORMAL);
+        MockRequest immediate = add("http://a.com/2", Priority.IMMEDIATE);
+
+        assertSame(immediate, mQueue.take());
+        assertSame(normal, mQueue.take());
+        assertSame(low, mQueue.take());
+    }
+
+    @Test
+    public void perHostLimitSkipsBusyHost() throws Exception {
+        mQueue.setMaxInFlightPerHost(1);
+        MockRequest a1 = add("http://a.com/1", Priority.NORMAL);
+        MockRequest a2 = add("http://a.com/2", Priority.NORMAL);
+        MockRequest b1 = add("http://b.com/1", Priority.NORMAL);
+
+        assertSame(a1, mQueue.take());
+        assertSame(b1, mQueue.take());
+        assertNull(mQueue.poll());
+        assertEquals(1, mQueue.size());
+
+        mQueue.release(a1);
+        assertSame(a2, mQueue.poll());
+        assertEquals(2, mQueue.inFlightCount());
+    }
+
+    @Test
+    public void hostOverrideTakesPrecedence() throws Exception {
+        mQueue.setMaxInFlightPerHost(1);
+        mQueue.setMaxInFlightForHost("a.com", 2);
+        MockRequest a1 = add("http://a.com/1", Priority.NORMAL);
+        MockRequest a2 = add("http://a.com/2", Priority.NORMAL);
+        add("http://a.com/3", Priority.NORMAL);
+
+        assertSame(a1, mQueue.poll());
+        assertSame(a2, mQueue.poll());
+        assertNull(mQueue.poll());
+    }
+
+    @Test
+    public void tagLimitLetsOtherRequestsOfSameHostThrough() throws Exception {
+        Object uploads = new Object();
+        mQueue.setMaxInFlightForTag(uploads, 1);
+        MockRequest upload1 = add("http://a.com/up1", Priority.NORMAL);
+        upload1.setTag(uploads);
+        MockRequest upload2 = add("http://a.com/up2", Priority.NORMAL);
+        upload2.setTag(uploads);
+        MockRequest get = add("http://a.com/get", Priority.NORMAL);
+
+        assertSame(upload1, mQueue.poll());
+        assertSame(get, mQueue.poll());
+        assertNull(mQueue.poll());
+
+        mQueue.release(upload1);
+        assertSame(upload2, mQueue.poll());
+    }
+
+    @Test
+    public void eligibleCountLeavesOutRequestsHeldBackByLimits() throws Exception {
+        mQueue.setMaxInFlightPerHost(2);
+        Object uploads = new Object();
+        mQueue.setMaxInFlightForTag(uploads, 1);
+        MockRequest a1 = add("http://a.com/1", Priority.NORMAL);
+        add("http://a.com/2", Priority.NORMAL);
+        add("http://a.com/3", Priority.NORMAL);
+        add("http://b.com/up1", Priority.NORMAL).setTag(uploads);
+        add("http://b.com/up2", Priority.NORMAL).setTag(uploads);
+        add("http://b.com/get", Priority.LOW);
+
+        // Two of a.com, one upload and b.com's other request.
+        assertEquals(6, mQueue.size());
+        assertEquals(4, mQueue.eligibleCount());
+
+        assertSame(a1, mQueue.poll());
+        assertEquals(3, mQueue.eligibleCount());
+        mQueue.release(a1);
+        assertEquals(4, mQueue.eligibleCount());
+    }
+
+    @Test
+    public void eligibleCountWithoutLimitsIsSize() throws Exception {
+        add("http://a.com/1", Priority.NORMAL);
+        add("http://a.com/2", Priority.NORMAL);
+        add("http://b.com/1", Priority.LOW);
+
+        assertEquals(3, mQueue.eligibleCount());
+        mQueue.poll();
+        assertEquals(2, mQueue.eligibleCount());
+    }
+
+    @Test
+    public void releaseWakesUpWaitingTaker() throws Exception {
+        mQueue.setMaxInFlightPerHost(1);
+        final MockRequest a1 = add("http://a.com/1", Priority.NORMAL);
+        MockRequest a2 = add("http://a.com/2", Priority.NORMAL);
+        assertSame(a1, mQueue.take());
+
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    // Release anyway.
+                }
+                mQueue.release(a1);
+            }
+        }.start();
+
+        assertSame(a2, mQueue.poll(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void removeAndIterate() {
+        MockRequest a1 = add("http://a.com/1", Priority.NORMAL);
+        MockRequest b1 = add("http://b.com/1", Priority.HIGH);
+
+        assertTrue(mQueue.contains(a1));
+        assertSame(b1, mQueue.iterator().next());
+        assertTrue(mQueue.remove(b1));
+        assertEquals(1, mQueue.size());
+        assertSame(a1, mQueue.peek());
+    }
+
+    private MockRequest add(String url, Priority priority) {
+        MockRequest request = new MockRequest(url, null);
+        request.setPriority(priority);
+        request.setSequence(mSequence++);
+        mQueue.add(request);
+        return request;
+    }
+}
@@ -17,6 +17,7 @@
 package com.android.volley;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
@@ -26,9 +27,13 @@ import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.initMocks;
 
+import com.android.volley.toolbox.HttpHeaderParser;
 import com.android.volley.toolbox.StringRequest;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import org.junit.Before;
 import org.junit.Test;
@@ -96,4 +101,74 @@ public class NetworkDispatcherTest {
         verify(mCache).put(eq(mRequest.getCacheKey()), entry.capture());
         assertTrue(Arrays.equals(entry.getValue().data, CANNED_DATA));
     }
+
+    @Test
+    public void pooledDataReleasedAfterCacheWrite() throws Exception {
+        byte[] buffer = new byte[64];
+        System.arraycopy(CANNED_DATA, 0, buffer, 0, CANNED_DATA.length);
+        final List<byte[]> recycled = new ArrayList<>();
+        PooledBuffer pooledData =
+                new PooledBuffer(
+                        buffer,
+                        CANNED_DATA.length,
+                        new PooledBuffer.Recycler() {
+                            @Override
+                            public void recycle(byte[] buffer) {
+                                recycled.add(buffer);
+                            }
+                        });
+        when(mNetwork.performRequest(any(Request.class)))
+                .thenReturn(new NetworkResponse(200, pooledData, 0, Collections.<Header>emptyList()));
+        PooledStringRequest request = new PooledStringRequest();
+        mDispatcher.processRequest(request);
+
+        ArgumentCaptor<Response> response = ArgumentCaptor.forClass(Response.class);
+        verify(mDelivery).postResponse(any(Request.class), response.capture());
+        assertEquals(response.getValue().result, new String(CANNED_DATA, StandardCharsets.UTF_8));
+        // The cache gets its own copy, since the buffer goes back to the pool.
+        ArgumentCaptor<Cache.Entry> entry = ArgumentCaptor.forClass(Cache.Entry.class);
+        verify(mCache).put(eq(request.getCacheKey()), entry.capture());
+        assertTrue(Arrays.equals(entry.getValue().data, CANNED_DATA));
+        assertTrue(pooledData.isReleased());
+        assertEquals(1, recycled.size());
+        assertSame(buffer, recycled.get(0));
+    }
+
+    @Test
+    public void pooledDataReleasedOnParseFailure() throws Exception {
+        PooledBuffer pooledData = new PooledBuffer(CANNED_DATA, CANNED_DATA.length, null);
+        when(mNetwork.performRequest(any(Request.class)))
+                .thenReturn(new NetworkResponse(200, pooledData, 0, Collections.<Header>emptyList()));
+        PooledStringRequest request =
+                new PooledStringRequest() {
+                    @Override
+                    protected Response<String> parseNetworkResponse(NetworkResponse response) {
+                        throw new IllegalStateException();
+                    }
+                };
+        mDispatcher.processRequest(request);
+
+        verify(mDelivery).postError(any(Request.class), any(VolleyError.class));
+        assertTrue(pooledData.isReleased());
+    }
+
+    /** A string request which reads its body from the pooled buffer. */
+    private static class PooledStringRequest extends StringRequest {
+        PooledStringRequest() {
+            super(Request.Method.GET, "http://foo", null, null);
+        }
+
+        @Override
+        public boolean acceptsPooledData() {
+            return true;
+        }
+
+        @Override
+        protected Response<String> parseNetworkResponse(NetworkResponse response) {
+            PooledBuffer body = response.pooledData;
+            return Response.success(
+                    new String(body.getBuffer(), 0, body.getLength(), StandardCharsets.UTF_8),
+                    HttpHeaderParser.parseCacheHeaders(response));
+        }
+    }
 }
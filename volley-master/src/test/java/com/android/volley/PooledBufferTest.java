@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class PooledBufferTest {
+
+    private final List<byte[]> mRecycled = new ArrayList<>();
+    private byte[] mBuffer;
+    private PooledBuffer mPooledBuffer;
+
+    @Before
+    public void setUp() {
+        mBuffer = new byte[] {1, 2, 3, 4, 0, 0, 0, 0};
+        mPooledBuffer =
+                new PooledBuffer(
+                        mBuffer,
+                        4,
+                        new PooledBuffer.Recycler() {
+                            @Override
+                            public void recycle(byte[] buffer) {
+                                mRecycled.add(buffer);
+                            }
+                        });
+    }
+
+    @Test
+    public void readsOnlyValidBytes() throws Exception {
+        assertSame(mBuffer, mPooledBuffer.getBuffer());
+        assertEquals(4, mPooledBuffer.getLength());
+        assertArrayEquals(new byte[] {1, 2, 3, 4}, mPooledBuffer.toByteArray());
+        InputStream in = mPooledBuffer.newInputStream();
+        assertEquals(4, in.available());
+        assertEquals(1, in.read());
+    }
+
+    @Test
+    public void releaseRecyclesOnce() {
+        mPooledBuffer.release();
+        assertTrue(mPooledBuffer.isReleased());
+        assertEquals(1, mRecycled.size());
+        assertSame(mBuffer, mRecycled.get(0));
+    }
+
+    @Test
+    public void retainDefersRecycling() {
+        mPooledBuffer.retain();
+        mPooledBuffer.release();
+        assertFalse(mPooledBuffer.isReleased());
+        assertTrue(mRecycled.isEmpty());
+
+        mPooledBuffer.release();
+        assertTrue(mPooledBuffer.isReleased());
+        assertEquals(1, mRecycled.size());
+    }
+
+    @Test
+    public void copyOutlivesRelease() {
+        byte[] copy = mPooledBuffer.toByteArray();
+        mPooledBuffer.release();
+        mBuffer[0] = 9;
+        assertArrayEquals(new byte[] {1, 2, 3, 4}, copy);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void doubleReleaseThrows() {
+        mPooledBuffer.release();
+        mPooledBuffer.release();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void getBufferAfterReleaseThrows() {
+        mPooledBuffer.release();
+        mPooledBuffer.getBuffer();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void retainAfterReleaseThrows() {
+        mPooledBuffer.release();
+        mPooledBuffer.retain();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void lengthBeyondBufferThrows() {
+        new PooledBuffer(new byte[4], 5, null);
+    }
+}
@@ -16,20 +16,30 @@
 
 package com.android.volley;
 
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.initMocks;
 
+import com.android.volley.mock.MockRequest;
 import com.android.volley.mock.ShadowSystemClock;
 import com.android.volley.toolbox.NoCache;
 import com.android.volley.toolbox.StringRequest;
 import com.android.volley.utils.ImmediateResponseDelivery;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.robolectric.RobolectricTestRunner;
 import org.robolectric.annotation.Config;
 
@@ -72,4 +82,46 @@ public class RequestQueueTest {
         verify(req2, never()).cancel(); // B not cancelled
         verify(req4, never()).cancel(); // A added after cancel not cancelled
     }
+
+    @Test
+    public void cacheDispatchersServeRequestsInParallel() throws Exception {
+        final int threads = 3;
+        final CountDownLatch allReading = new CountDownLatch(threads);
+        final AtomicInteger parallelReads = new AtomicInteger();
+        Cache cache = mock(Cache.class);
+        when(cache.get(anyString()))
+                .thenAnswer(
+                        new Answer<Cache.Entry>() {
+                            @Override
+                            public Cache.Entry answer(InvocationOnMock invocation)
+                                    throws Throwable {
+                                // Only returns early if every dispatcher is reading at once.
+                                allReading.countDown();
+                                if (allReading.await(5, TimeUnit.SECONDS)) {
+                                    parallelReads.incrementAndGet();
+                                }
+                                return null;
+                            }
+                        });
+        RequestQueue queue = new RequestQueue(cache, mMockNetwork, 0, mDelivery);
+        queue.setCacheThreadPoolSize(threads);
+        queue.start();
+        try {
+            for (int i = 0; i < threads; i++) {
+                MockRequest request = new MockRequest();
+                request.setCacheKey("key" + i);
+                queue.add(request);
+            }
+            verify(cache, timeout(10000).times(threads)).get(anyString());
+            long deadline = System.currentTimeMillis() + 5000;
+            while (parallelReads.get() < threads && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(threads, parallelReads.get());
+            // Initialized once, not once per dispatcher.
+            verify(cache, times(1)).initialize();
+        } finally {
+            queue.stop();
+        }
+    }
 }
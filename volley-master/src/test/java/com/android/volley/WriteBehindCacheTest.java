@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class WriteBehindCacheTest {
+
+    @Mock private Cache mCache;
+    private final CountDownLatch mWriteStarted = new CountDownLatch(1);
+    private final CountDownLatch mFinishWrite = new CountDownLatch(1);
+    private WriteBehindCache mWriteBehindCache;
+
+    @Before
+    public void setUp() {
+        initMocks(this);
+        mWriteBehindCache = new WriteBehindCache(mCache, 2);
+    }
+
+    @After
+    public void tearDown() {
+        mFinishWrite.countDown();
+        mWriteBehindCache.stop();
+    }
+
+    @Test
+    public void putReturnsBeforeWriteAndIsServedMeanwhile() throws Exception {
+        stallFirstWrite();
+        mWriteBehindCache.start();
+        Cache.Entry entry = new Cache.Entry();
+
+        mWriteBehindCache.put("key", entry);
+
+        assertTrue(mWriteStarted.await(5, TimeUnit.SECONDS));
+        assertSame(entry, mWriteBehindCache.get("key"));
+        verify(mCache, never()).get(anyString());
+
+        mFinishWrite.countDown();
+        mWriteBehindCache.flush();
+        verify(mCache).put("key", entry);
+    }
+
+    @Test
+    public void pendingWritesOfSameKeyAreCoalesced() throws Exception {
+        stallFirstWrite();
+        mWriteBehindCache.start();
+        Cache.Entry blocker = new Cache.Entry();
+        Cache.Entry first = new Cache.Entry();
+        Cache.Entry second = new Cache.Entry();
+
+        mWriteBehindCache.put("blocker", blocker);
+        assertTrue(mWriteStarted.await(5, TimeUnit.SECONDS));
+        mWriteBehindCache.put("key", first);
+        mWriteBehindCache.put("key", second);
+        mFinishWrite.countDown();
+        mWriteBehindCache.flush();
+
+        verify(mCache).put("key", second);
+        verify(mCache, never()).put("key", first);
+    }
+
+    @Test
+    public void putBeyondLimitIsWrittenInline() throws Exception {
+        stallFirstWrite();
+        mWriteBehindCache.start();
+        Cache.Entry entry = new Cache.Entry();
+
+        mWriteBehindCache.put("a", new Cache.Entry());
+        assertTrue(mWriteStarted.await(5, TimeUnit.SECONDS));
+        mWriteBehindCache.put("b", new Cache.Entry());
+        // "a" is still being written, so this is the third pending key.
+        mWriteBehindCache.put("c", entry);
+
+        verify(mCache).put("c", entry);
+    }
+
+    @Test
+    public void stopWritesPendingEntries() throws Exception {
+        stallFirstWrite();
+        mWriteBehindCache.start();
+        Cache.Entry a = new Cache.Entry();
+        Cache.Entry b = new Cache.Entry();
+        mWriteBehindCache.put("a", a);
+        assertTrue(mWriteStarted.await(5, TimeUnit.SECONDS));
+        mWriteBehindCache.put("b", b);
+
+        mWriteBehindCache.stop();
+        mFinishWrite.countDown();
+
+        InOrder inOrder = inOrder(mCache);
+        inOrder.verify(mCache, timeout(5000)).put("a", a);
+        inOrder.verify(mCache, timeout(5000)).put("b", b);
+    }
+
+    @Test
+    public void removeDropsPendingWrite() throws Exception {
+        stallFirstWrite();
+        mWriteBehindCache.start();
+        mWriteBehindCache.put("blocker", new Cache.Entry());
+        assertTrue(mWriteStarted.await(5, TimeUnit.SECONDS));
+        Cache.Entry entry = new Cache.Entry();
+        mWriteBehindCache.put("key", entry);
+
+        mWriteBehindCache.remove("key");
+        mFinishWrite.countDown();
+        mWriteBehindCache.flush();
+
+        verify(mCache).remove("key");
+        verify(mCache, never()).put("key", entry);
+    }
+
+    @Test
+    public void putWhenNotStartedIsWrittenInline() {
+        Cache.Entry entry = new Cache.Entry();
+
+        mWriteBehindCache.put("key", entry);
+
+        verify(mCache).put("key", entry);
+    }
+
+    /** Makes the first write to the underlying cache block until {@link #mFinishWrite}. */
+    private void stallFirstWrite() {
+        doAnswer(
+                        new Answer<Void>() {
+                            @Override
+                            public Void answer(InvocationOnMock invocation) throws Throwable {
+                                if (mWriteStarted.getCount() > 0) {
+                                    mWriteStarted.countDown();
+                                    mFinishWrite.await();
+                                }
+                                return null;
+                            }
+                        })
+                .when(mCache)
+                .put(anyString(), any(Cache.Entry.class));
+    }
+}
@@ -17,8 +17,14 @@
 package com.android.volley.toolbox;
 
 import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
 import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.never;
@@ -26,6 +32,7 @@ import static org.mockito.Mockito.reset;
 import static org.mockito.Mockito.verify;
 import static org.mockito.MockitoAnnotations.initMocks;
 
+import com.android.volley.AsyncNetwork;
 import com.android.volley.AuthFailureError;
 import com.android.volley.Cache.Entry;
 import com.android.volley.Header;
@@ -38,16 +45,26 @@ import com.android.volley.TimeoutError;
 import com.android.volley.VolleyError;
 import com.android.volley.mock.MockHttpStack;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.SocketTimeoutException;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -323,6 +340,259 @@ public class BasicNetworkTest {
         }
     }
 
+    @Test
+    public void pooledData() throws Exception {
+        MockHttpStack mockHttpStack = new MockHttpStack();
+        InputStream responseStream =
+                new ByteArrayInputStream("foobar".getBytes(StandardCharsets.UTF_8));
+        mockHttpStack.setResponseToReturn(
+                new HttpResponse(200, Collections.<Header>emptyList(), 6, responseStream));
+        ByteArrayPool pool = new ByteArrayPool(4096);
+        BasicNetwork httpNetwork = new BasicNetwork(mockHttpStack, pool);
+        Request<String> request =
+                new StringRequest(Request.Method.GET, "http://foo", null, null) {
+                    @Override
+                    public boolean acceptsPooledData() {
+                        return true;
+                    }
+                };
+        NetworkResponse response = httpNetwork.performRequest(request);
+        assertNull(response.data);
+        assertEquals(6, response.pooledData.getLength());
+        assertEquals(
+                "foobar",
+                new String(response.pooledData.getBuffer(), 0, 6, StandardCharsets.UTF_8));
+
+        byte[] buffer = response.pooledData.getBuffer();
+        response.pooledData.release();
+        // Released buffers go back to the pool.
+        assertSame(buffer, pool.getBuf(6));
+    }
+
+    @Test
+    public void pooledDataNotUsedForErrors() throws Exception {
+        MockHttpStack mockHttpStack = new MockHttpStack();
+        InputStream responseStream =
+                new ByteArrayInputStream("foobar".getBytes(StandardCharsets.UTF_8));
+        mockHttpStack.setResponseToReturn(
+                new HttpResponse(500, Collections.<Header>emptyList(), 6, responseStream));
+        BasicNetwork httpNetwork = new BasicNetwork(mockHttpStack);
+        Request<String> request =
+                new StringRequest(Request.Method.GET, "http://foo", null, null) {
+                    @Override
+                    public boolean acceptsPooledData() {
+                        return true;
+                    }
+                };
+        try {
+            httpNetwork.performRequest(request);
+            fail("Expected a ServerError");
+        } catch (ServerError e) {
+            assertEquals("foobar", new String(e.networkResponse.data, StandardCharsets.UTF_8));
+            assertNull(e.networkResponse.pooledData);
+        }
+    }
+
+    @Test
+    public void gzipBodyDecoded() throws Exception {
+        byte[] body = repetitiveJson();
+        byte[] compressed = gzip(body);
+        MockHttpStack mockHttpStack = new MockHttpStack();
+        List<Header> headers = new ArrayList<>();
+        headers.add(new Header("Content-Encoding", "gzip"));
+        headers.add(new Header("Content-Length", String.valueOf(compressed.length)));
+        headers.add(new Header("ETag", "foo"));
+        mockHttpStack.setResponseToReturn(
+                new HttpResponse(200, headers, compressed.length, new ByteArrayInputStream(compressed)));
+        BasicNetwork httpNetwork = new BasicNetwork(mockHttpStack);
+
+        NetworkResponse response = httpNetwork.performRequest(buildRequest());
+        assertEquals("gzip, deflate", mockHttpStack.getLastHeaders().get("Accept-Encoding"));
+        assertArrayEquals(body, response.data);
+        assertEquals(compressed.length, response.wireLength);
+        assertEquals(body.length, response.decodedLength);
+        // The headers describe the decoded body.
+        assertEquals(Collections.singletonList(new Header("ETag", "foo")), response.allHeaders);
+    }
+
+    @Test
+    public void deflateBodyDecodedIntoPooledBuffer() throws Exception {
+        byte[] body = repetitiveJson();
+        // Both zlib-wrapped and raw deflate data are sent as "deflate".
+        for (boolean nowrap : new boolean[] {false, true}) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            DeflaterOutputStream out = new DeflaterOutputStream(compressed, new Deflater(9, nowrap));
+            out.write(body);
+            out.close();
+            MockHttpStack mockHttpStack = new MockHttpStack();
+            mockHttpStack.setResponseToReturn(
+                    new HttpResponse(
+                            200,
+                            Collections.singletonList(new Header("content-encoding", "deflate")),
+                            compressed.size(),
+                            new ByteArrayInputStream(compressed.toByteArray())));
+            BasicNetwork httpNetwork = new BasicNetwork(mockHttpStack);
+            Request<String> request =
+                    new StringRequest(Request.Method.GET, "http://foo", null, null) {
+                        @Override
+                        public boolean acceptsPooledData() {
+                            return true;
+                        }
+                    };
+
+            NetworkResponse response = httpNetwork.performRequest(request);
+            assertEquals(body.length, response.pooledData.getLength());
+            assertArrayEquals(body, Arrays.copyOf(response.pooledData.getBuffer(), body.length));
+            assertEquals(compressed.size(), response.wireLength);
+            assertEquals(body.length, response.decodedLength);
+            response.pooledData.release();
+        }
+    }
+
+    @Test
+    public void requestChoosingEncodingGetsBodyAsSent() throws Exception {
+        byte[] compressed = gzip(repetitiveJson());
+        MockHttpStack mockHttpStack = new MockHttpStack();
+        mockHttpStack.setResponseToReturn(
+                new HttpResponse(
+                        200,
+                        Collections.singletonList(new Header("Content-Encoding", "gzip")),
+                        compressed.length,
+                        new ByteArrayInputStream(compressed)));
+        BasicNetwork httpNetwork = new BasicNetwork(mockHttpStack);
+        Request<String> request =
+                new StringRequest(Request.Method.GET, "http://foo", null, null) {
+                    @Override
+                    public Map<String, String> getHeaders() {
+                        return Collections.singletonMap("accept-encoding", "gzip");
+                    }
+                };
+
+        NetworkResponse response = httpNetwork.performRequest(request);
+        assertNull(mockHttpStack.getLastHeaders().get("Accept-Encoding"));
+        assertArrayEquals(compressed, response.data);
+        assertEquals(compressed.length, response.wireLength);
+        assertEquals("gzip", response.headers.get("Content-Encoding"));
+    }
+
+    @Test
+    public void async_success() throws Exception {
+        FakeAsyncHttpStack stack = new FakeAsyncHttpStack();
+        stack.mResponses.add(
+                new HttpResponse(
+                        200,
+                        Collections.<Header>emptyList(),
+                        6,
+                        new ByteArrayInputStream("foobar".getBytes(StandardCharsets.UTF_8))));
+        BasicNetwork httpNetwork = new BasicNetwork(stack);
+
+        NetworkResponse response = (NetworkResponse) performAsync(httpNetwork, buildRequest());
+        assertEquals("foobar", new String(response.data, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void async_retriesTimeouts() throws Exception {
+        FakeAsyncHttpStack stack = new FakeAsyncHttpStack();
+        stack.mResponses.add(new SocketTimeoutException());
+        stack.mResponses.add(new HttpResponse(204, Collections.<Header>emptyList()));
+        BasicNetwork httpNetwork = new BasicNetwork(stack);
+        Request<String> request = buildRequest();
+        request.setRetryPolicy(mMockRetryPolicy);
+
+        NetworkResponse response = (NetworkResponse) performAsync(httpNetwork, request);
+        assertEquals(204, response.statusCode);
+        verify(mMockRetryPolicy).retry(any(TimeoutError.class));
+    }
+
+    @Test
+    public void async_serverError() throws Exception {
+        FakeAsyncHttpStack stack = new FakeAsyncHttpStack();
+        stack.mResponses.add(new HttpResponse(500, Collections.<Header>emptyList()));
+        BasicNetwork httpNetwork = new BasicNetwork(stack);
+        Request<String> request = buildRequest();
+        request.setRetryPolicy(mMockRetryPolicy);
+
+        assertThat(performAsync(httpNetwork, request), instanceOf(ServerError.class));
+        verify(mMockRetryPolicy, never()).retry(any(VolleyError.class));
+    }
+
+    @Test
+    public void async_synchronousStack() throws Exception {
+        MockHttpStack mockHttpStack = new MockHttpStack();
+        mockHttpStack.setResponseToReturn(new HttpResponse(200, Collections.<Header>emptyList()));
+        BasicNetwork httpNetwork = new BasicNetwork(mockHttpStack);
+
+        NetworkResponse response = (NetworkResponse) performAsync(httpNetwork, buildRequest());
+        assertEquals(200, response.statusCode);
+        assertEquals("http://foo", mockHttpStack.getLastUrl());
+    }
+
+    /** Performs the request asynchronously, returning its response or error. */
+    private static Object performAsync(BasicNetwork network, Request<?> request) throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            network.setBlockingExecutor(executor);
+            final BlockingQueue<Object> result = new LinkedBlockingQueue<>();
+            network.performRequestAsync(
+                    request,
+                    new AsyncNetwork.OnRequestComplete() {
+                        @Override
+                        public void onSuccess(NetworkResponse networkResponse) {
+                            result.add(networkResponse);
+                        }
+
+                        @Override
+                        public void onError(VolleyError volleyError) {
+                            result.add(volleyError);
+                        }
+                    });
+            Object outcome = result.poll(1, TimeUnit.SECONDS);
+            assertNotNull("Request didn't complete", outcome);
+            return outcome;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /** Completes each request with the next queued response or exception, on another thread. */
+    private static class FakeAsyncHttpStack extends AsyncHttpStack {
+        final BlockingQueue<Object> mResponses = new LinkedBlockingQueue<>();
+
+        @Override
+        public void executeRequestAsync(
+                Request<?> request,
+                Map<String, String> additionalHeaders,
+                final OnRequestComplete callback) {
+            final Object response = mResponses.remove();
+            new Thread() {
+                @Override
+                public void run() {
+                    if (response instanceof IOException) {
+                        callback.onError((IOException) response);
+                    } else {
+                        callback.onSuccess((HttpResponse) response);
+                    }
+                }
+            }.start();
+        }
+    }
+
+    private static byte[] repetitiveJson() {
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < 500; i++) {
+            json.append("{\"id\":").append(i).append(",\"name\":\"item\",\"tags\":[\"a\",\"b\"]},");
+        }
+        return json.append("{}]").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] gzip(byte[] bytes) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        GZIPOutputStream out = new GZIPOutputStream(compressed);
+        out.write(bytes);
+        out.close();
+        return compressed.toByteArray();
+    }
+
     private static Request<String> buildRequest() {
         return new Request<String>(Request.Method.GET, "http://foo", null) {
 
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Ignore;
+import org.junit.Test;
+
+/**
+ * Measures getBuf/returnBuf throughput of {@link SizeClassByteArrayPool} against the synchronized
+ * {@link ByteArrayPool}, from 1 up to 32 threads, with the buffer sizes {@link BasicNetwork}
+ * typically asks for.
+ * <p>
+ * <p>Timing-dependent, so it is not run as part of the regular suite. Remove the {@link Ignore}
+ * annotation and run it on its own to get numbers.
+ */
+public class ByteArrayPoolBenchmark {
+
+    private static final int POOL_SIZE = 64 * 1024;
+    private static final int[] SIZES = {256, 1024, 1024, 4096};
+    private static final long DURATION_MS = 2000;
+    private static final int MAX_THREADS = 32;
+
+    @Test
+    @Ignore("Benchmark; run manually")
+    public void throughputScalesWithThreads() throws Exception {
+        System.out.println("threads\tsize classes ops/s\tsynchronized ops/s");
+        for (int threads = 1; threads <= MAX_THREADS; threads *= 2) {
+            long sizeClasses = measure(new SizeClassByteArrayPool(POOL_SIZE), threads);
+            long locked = measure(new ByteArrayPool(POOL_SIZE), threads);
+            System.out.println(threads + "\t" + sizeClasses + "\t" + locked);
+        }
+    }
+
+    /** Returns the number of get/return pairs per second completed by the given number of threads. */
+    private static long measure(final ByteArrayPool pool, int threadCount) throws InterruptedException {
+        final AtomicLong operations = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        final long deadline = System.currentTimeMillis() + DURATION_MS;
+        Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            final Random threadRandom = new Random(t);
+            threads[t] =
+                    new Thread() {
+                        @Override
+                        public void run() {
+                            try {
+                                start.await();
+                            } catch (InterruptedException e) {
+                                return;
+                            }
+                            long count = 0;
+                            while (System.currentTimeMillis() < deadline) {
+                                // Hold two buffers at once, like a copy through a scratch buffer
+                                // into a growing output buffer.
+                                byte[] scratch = pool.getBuf(1024);
+                                byte[] output = pool.getBuf(SIZES[threadRandom.nextInt(SIZES.length)]);
+                                scratch[0] = output[0];
+                                pool.returnBuf(output);
+                                pool.returnBuf(scratch);
+                                count++;
+                            }
+                            operations.addAndGet(count);
+                        }
+                    };
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return operations.get() * 1000 / DURATION_MS;
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import com.android.volley.toolbox.DiskBasedCache.CacheHeader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class CacheJournalTest {
+
+    @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private CacheJournal journal;
+
+    @Before
+    public void setUp() {
+        journal = new CacheJournal(temporaryFolder.getRoot());
+    }
+
+    @Test
+    public void missingJournalIsNotReplayed() {
+        assertFalse(journal.readInto(newIndex(), new HashSet<String>()));
+    }
+
+    @Test
+    public void replayAppliesRecordsInOrder() {
+        journal.put(header("a", 10));
+        journal.put(header("b", 20));
+        journal.put(header("c", 30));
+        journal.read("a");
+        journal.remove("b");
+        journal.put(header("c", 40));
+        journal.close();
+
+        Map<String, CacheHeader> index = newIndex();
+        assertTrue(new CacheJournal(temporaryFolder.getRoot()).readInto(index, new HashSet<String>()));
+        assertThat(index.keySet(), contains("a", "c"));
+        assertThat(index.get("c").size, is(40L));
+        assertThat(index.get("c").filename, is("file-c"));
+        assertThat(index.get("c").ttl, is(1000L));
+    }
+
+    @Test
+    public void replayHandsBackKeysLeftDirty() {
+        journal.put(header("a", 10));
+        journal.put(header("b", 20));
+        journal.dirty("a");
+        journal.dirty("b");
+        journal.put(header("b", 30));
+        journal.dirty("c");
+        journal.close();
+
+        Map<String, CacheHeader> index = newIndex();
+        Set<String> dirty = new HashSet<>();
+        assertTrue(new CacheJournal(temporaryFolder.getRoot()).readInto(index, dirty));
+        assertThat(index.keySet(), contains("b"));
+        assertThat(index.get("b").size, is(30L));
+        assertThat(dirty, containsInAnyOrder("a", "c"));
+    }
+
+    @Test
+    public void rewriteKeepsDirtyRecords() {
+        journal.put(header("a", 10));
+        journal.dirty("a");
+        journal.rewrite(Arrays.asList(header("a", 10), header("b", 20)));
+        journal.close();
+
+        Map<String, CacheHeader> index = newIndex();
+        Set<String> dirty = new HashSet<>();
+        assertTrue(new CacheJournal(temporaryFolder.getRoot()).readInto(index, dirty));
+        assertThat(index.keySet(), contains("b"));
+        assertThat(dirty, contains("a"));
+    }
+
+    @Test
+    public void garbageAfterLastRecordIsDetected() throws IOException {
+        journal.put(header("a", 10));
+        journal.close();
+        FileOutputStream fos =
+                new FileOutputStream(new File(temporaryFolder.getRoot(), CacheJournal.JOURNAL_FILENAME), true);
+        try {
+            fos.write(42);
+        } finally {
+            //noinspection ThrowFromFinallyBlock
+            fos.close();
+        }
+
+        assertFalse(new CacheJournal(temporaryFolder.getRoot()).readInto(newIndex(), new HashSet<String>()));
+    }
+
+    @Test
+    public void rewriteCompactsJournal() {
+        for (int i = 0; i < 3000; i++) {
+            journal.put(header("a", i));
+        }
+        assertTrue(journal.needsCompaction(1));
+
+        journal.rewrite(Arrays.asList(header("b", 1), header("a", 2)));
+        assertFalse(journal.needsCompaction(2));
+        journal.read("b");
+        journal.close();
+
+        Map<String, CacheHeader> index = newIndex();
+        assertTrue(new CacheJournal(temporaryFolder.getRoot()).readInto(index, new HashSet<String>()));
+        assertThat(new ArrayList<>(index.keySet()), contains("a", "b"));
+        assertFalse(new File(temporaryFolder.getRoot(), CacheJournal.JOURNAL_TEMP_FILENAME).exists());
+    }
+
+    private static CacheHeader header(String key, long size) {
+        return new CacheHeader(key, "file-" + key, size, 1000L, 500L);
+    }
+
+    private static Map<String, CacheHeader> newIndex() {
+        return new LinkedHashMap<>(16, .75f, true);
+    }
+}
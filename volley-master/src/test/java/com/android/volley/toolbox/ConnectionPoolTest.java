@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.volley.toolbox;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class ConnectionPoolTest {
+
+    private static final String KEY = "http://example.com:80";
+
+    private ServerSocket mServerSocket;
+    private final List<Socket> mPeers = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (Socket peer : mPeers) {
+            peer.close();
+        }
+        mServerSocket.close();
+    }
+
+    @Test(timeout = 10000)
+    public void reusesMostRecentlyUsedConnection() throws Exception {
+        ConnectionPool pool = new ConnectionPool();
+        ConnectionPool.Connection first = connect(pool, KEY);
+        ConnectionPool.Connection second = connect(pool, KEY);
+        pool.put(first);
+        pool.put(second);
+
+        assertNull(pool.take("http://other.com:80"));
+        assertSame(second, pool.take(KEY));
+        assertSame(first, pool.take(KEY));
+        assertNull(pool.take(KEY));
+
+        assertEquals(2, pool.getConnectionCount());
+        assertEquals(2, pool.getReuseCount());
+        assertEquals(0.5f, pool.getReuseRate(), 0);
+    }
+
+    @Test(timeout = 10000)
+    public void keepsAtMostMaxIdlePerHost() throws Exception {
+        ConnectionPool pool = new ConnectionPool(1, 60 * 1000);
+        ConnectionPool.Connection first = connect(pool, KEY);
+        ConnectionPool.Connection second = connect(pool, KEY);
+        pool.put(first);
+        pool.put(second);
+
+        assertEquals(1, pool.getIdleConnectionCount());
+        assertTrue(first.mSocket.isClosed());
+        assertSame(second, pool.take(KEY));
+    }
+
+    @Test(timeout = 10000)
+    public void closesExpiredConnections() throws Exception {
+        final AtomicLong now = new AtomicLong(1000);
+        ConnectionPool pool =
+                new ConnectionPool(5, 10) {
+                    @Override
+                    long elapsedRealtimeMs() {
+                        return now.get();
+                    }
+                };
+        ConnectionPool.Connection connection = connect(pool, KEY);
+        pool.put(connection);
+        now.addAndGet(9);
+        assertSame(connection, pool.take(KEY));
+        pool.put(connection);
+        now.addAndGet(10);
+
+        assertNull(pool.take(KEY));
+        assertTrue(connection.mSocket.isClosed());
+        assertEquals(0, pool.getIdleConnectionCount());
+    }
+
+    @Test(timeout = 10000)
+    public void dropsConnectionsClosedByPeer() throws Exception {
+        ConnectionPool pool = new ConnectionPool();
+        ConnectionPool.Connection connection = connect(pool, KEY);
+        pool.put(connection);
+        mPeers.get(0).close();
+        Thread.sleep(20);
+
+        assertNull(pool.take(KEY));
+        assertTrue(connection.mSocket.isClosed());
+        assertEquals(0, pool.getReuseCount());
+    }
+
+    @Test(timeout = 10000)
+    public void dropsConnectionsWithUnexpectedBytes() throws Exception {
+        ConnectionPool pool = new ConnectionPool();
+        ConnectionPool.Connection connection = connect(pool, KEY);
+        pool.put(connection);
+        mPeers.get(0).getOutputStream().write('x');
+        Thread.sleep(20);
+
+        assertNull(pool.take(KEY));
+    }
+
+    @Test(timeout = 10000)
+    public void healthCheckKeepsReadTimeout() throws Exception {
+        ConnectionPool pool = new ConnectionPool();
+        ConnectionPool.Connection connection = connect(pool, KEY);
+        connection.mSocket.setSoTimeout(1234);
+        pool.put(connection);
+
+        assertSame(connection, pool.take(KEY));
+        assertEquals(1234, connection.mSocket.getSoTimeout());
+    }
+
+    @Test(timeout = 10000)
+    public void evictAllClosesIdleConnections() throws Exception {
+        ConnectionPool pool = new ConnectionPool();
+        ConnectionPool.Connection connection = connect(pool, KEY);
+        pool.put(connection);
+
+        pool.evictAll();
+
+        assertEquals(0, pool.getIdleConnectionCount());
+        assertTrue(connection.mSocket.isClosed());
+    }
+
+    @Test(timeout = 10000)
+    public void keepsNothingWithoutIdleConnections() throws Exception {
+        ConnectionPool pool = new ConnectionPool(0, 60 * 1000);
+        ConnectionPool.Connection connection = connect(pool, KEY);
+        pool.put(connection);
+
+        assertTrue(connection.mSocket.isClosed());
+        assertNull(pool.take(KEY));
+    }
+
+    private ConnectionPool.Connection connect(ConnectionPool pool, String key) throws IOException {
+        Socket socket = new Socket(mServerSocket.getInetAddress(), mServerSocket.getLocalPort());
+        mPeers.add(mServerSocket.accept());
+        return pool.newConnection(key, socket);
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import com.android.volley.Cache;
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Ignore;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+/**
+ * Measures parallel get/put throughput of {@link DiskBasedCache} against the same cache behind a
+ * single global lock, for 1 up to 2 x the number of cores threads.
+ * <p>
+ * <p>Timing-dependent, so it is not run as part of the regular suite. Remove the {@link Ignore}
+ * annotation and run it on its own to get numbers.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class DiskBasedCacheBenchmark {
+
+    private static final int KEY_COUNT = 256;
+    private static final int ENTRY_SIZE = 16 * 1024;
+    private static final int MAX_SIZE = 64 * 1024 * 1024;
+    private static final long DURATION_MS = 2000;
+    /** One put for every PUT_RATIO - 1 gets. */
+    private static final int PUT_RATIO = 10;
+
+    @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    @Ignore("Benchmark; run manually")
+    public void throughputScalesWithThreads() throws Exception {
+        int maxThreads = 2 * Runtime.getRuntime().availableProcessors();
+        System.out.println("threads\tstriped ops/s\tglobal lock ops/s");
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            long striped = measure(new DiskBasedCache(newDir(), MAX_SIZE), threads);
+            long global = measure(new GloballyLockedCache(newDir(), MAX_SIZE), threads);
+            System.out.println(threads + "\t" + striped + "\t" + global);
+        }
+    }
+
+    private File newDir() throws Exception {
+        return temporaryFolder.newFolder();
+    }
+
+    /** Returns the number of operations per second completed by the given number of threads. */
+    private static long measure(final Cache cache, int threadCount) throws InterruptedException {
+        cache.initialize();
+        Random random = new Random(42);
+        for (int i = 0; i < KEY_COUNT; i++) {
+            cache.put(key(i), newEntry(random));
+        }
+
+        final AtomicLong operations = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        final long deadline = System.currentTimeMillis() + DURATION_MS;
+        Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            final Random threadRandom = new Random(t);
+            threads[t] =
+                    new Thread() {
+                        @Override
+                        public void run() {
+                            Cache.Entry entry = newEntry(threadRandom);
+                            try {
+                                start.await();
+                            } catch (InterruptedException e) {
+                                return;
+                            }
+                            long count = 0;
+                            while (System.currentTimeMillis() < deadline) {
+                                String key = key(threadRandom.nextInt(KEY_COUNT));
+                                if (threadRandom.nextInt(PUT_RATIO) == 0) {
+                                    cache.put(key, entry);
+                                } else {
+                                    cache.get(key);
+                                }
+                                count++;
+                            }
+                            operations.addAndGet(count);
+                        }
+                    };
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return operations.get() * 1000 / DURATION_MS;
+    }
+
+    private static String key(int i) {
+        return "http://example.com/resource/" + i;
+    }
+
+    private static Cache.Entry newEntry(Random random) {
+        Cache.Entry entry = new Cache.Entry();
+        entry.data = new byte[ENTRY_SIZE];
+        random.nextBytes(entry.data);
+        return entry;
+    }
+
+    /** The cache as it behaved before lock striping: every operation holds one global lock. */
+    private static class GloballyLockedCache extends DiskBasedCache {
+        GloballyLockedCache(File rootDirectory, int maxCacheSizeInBytes) {
+            super(rootDirectory, maxCacheSizeInBytes);
+        }
+
+        @Override
+        public synchronized Entry get(String key) {
+            return super.get(key);
+        }
+
+        @Override
+        public synchronized void put(String key, Entry entry) {
+            super.put(key, entry);
+        }
+    }
+}
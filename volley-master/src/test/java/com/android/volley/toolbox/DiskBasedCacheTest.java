@@ -20,15 +20,20 @@ import static org.hamcrest.Matchers.arrayWithSize;
 import static org.hamcrest.Matchers.emptyArray;
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.notNullValue;
 import static org.hamcrest.Matchers.nullValue;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.Mockito.atLeastOnce;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.verify;
 
@@ -40,14 +45,25 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
 import java.io.File;
+import java.io.FileFilter;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Rule;
@@ -165,6 +181,102 @@ public class DiskBasedCacheTest {
         assertThatEntriesAreEqual(cache.get("key"), entry);
     }
 
+    @Test
+    public void testTinyLfuKeepsFrequentEntriesThroughScan() {
+        Cache lfu = newTinyLfuCache(100 * 1024);
+        Cache lru = new DiskBasedCache(temporaryFolder.getRoot(), 100 * 1024);
+        lru.initialize();
+
+        for (Cache c : new Cache[] {lfu, lru}) {
+            for (int i = 0; i < 8; i++) {
+                requestAndPut(c, "hot" + i, 10 * 1024);
+            }
+            for (int n = 0; n < 3; n++) {
+                for (int i = 0; i < 8; i++) {
+                    c.get("hot" + i);
+                }
+            }
+            // A scan through one-off entries.
+            for (int i = 0; i < 20; i++) {
+                requestAndPut(c, "once" + i, 10 * 1024);
+            }
+        }
+
+        for (int i = 0; i < 8; i++) {
+            assertThat(lfu.get("hot" + i), is(notNullValue()));
+            assertThat(lru.get("hot" + i), is(nullValue()));
+        }
+        assertThat(lfu.get("once19"), is(nullValue()));
+    }
+
+    @Test
+    public void testTinyLfuAdmitsEntryRequestedMoreOftenThanVictims() {
+        Cache lfu = newTinyLfuCache(100 * 1024);
+        for (int i = 0; i < 9; i++) {
+            requestAndPut(lfu, "old" + i, 10 * 1024);
+        }
+        for (int n = 0; n < 3; n++) {
+            lfu.get("popular");
+        }
+
+        requestAndPut(lfu, "popular", 10 * 1024);
+
+        assertThat(lfu.get("popular"), is(notNullValue()));
+        assertThat(lfu.get("old0"), is(nullValue()));
+        assertThat(lfu.get("old1"), is(notNullValue()));
+    }
+
+    @Test
+    public void testTinyLfuWindowTakesNewSmallEntries() {
+        // A 100 byte window.
+        Cache lfu = newTinyLfuCache(10 * 1000);
+        for (int i = 0; i < 9; i++) {
+            requestAndPut(lfu, "hot" + i, 1000);
+            lfu.get("hot" + i);
+        }
+
+        requestAndPut(lfu, "new", 60);
+        assertThat(lfu.get("new"), is(notNullValue()));
+
+        // Pushed out of the window, "new" must now compete, and loses against more popular ones.
+        requestAndPut(lfu, "newer", 60);
+        assertThat(lfu.get("newer"), is(notNullValue()));
+        for (int i = 0; i < 9; i++) {
+            assertThat(lfu.get("hot" + i), is(notNullValue()));
+        }
+    }
+
+    @Test
+    public void testTinyLfuUpdateOfAdmittedEntryIsNotRejected() {
+        Cache lfu = newTinyLfuCache(100 * 1024);
+        for (int i = 0; i < 10; i++) {
+            requestAndPut(lfu, "key" + i, 10 * 1024 - 100);
+        }
+        Cache.Entry update = randomData(10 * 1024);
+
+        lfu.put("key0", update);
+
+        assertThatEntriesAreEqual(lfu.get("key0"), update);
+    }
+
+    private Cache newTinyLfuCache(int maxSize) {
+        Cache lfu;
+        try {
+            lfu = new DiskBasedCache(temporaryFolder.newFolder(), maxSize,
+                    DiskBasedCache.EvictionPolicy.W_TINY_LFU);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        lfu.initialize();
+        return lfu;
+    }
+
+    /** Misses on the key and puts the fetched entry, as a request going to the network does. */
+    private void requestAndPut(Cache c, String key, int size) {
+        c.get(key);
+        c.put(key, randomData(size));
+    }
+
     @Test
     public void testTrim() {
         Cache.Entry entry = randomData(2 * MAX_SIZE);
@@ -196,6 +308,126 @@ public class DiskBasedCacheTest {
         assertThatEntriesAreEqual(cache.get("max"), entry);
     }
 
+    @Test
+    public void testCompressesTextBodies() {
+        ((DiskBasedCache) cache).setCompressionEnabled(true);
+        Cache.Entry entry = textData(16 * 1024, "application/json; charset=utf-8");
+
+        cache.put("json", entry);
+
+        File file = ((DiskBasedCache) cache).getFileForKey("json");
+        assertTrue(file.length() < entry.data.length / 2);
+        assertThatEntriesAreEqual(cache.get("json"), entry);
+
+        // Compressed entries are read back whether compression is enabled or not.
+        Cache restarted = new DiskBasedCache(temporaryFolder.getRoot(), MAX_SIZE);
+        restarted.initialize();
+        assertThatEntriesAreEqual(restarted.get("json"), entry);
+    }
+
+    @Test
+    public void testDoesNotCompressOtherBodies() {
+        ((DiskBasedCache) cache).setCompressionEnabled(true);
+        Cache.Entry image = textData(16 * 1024, "image/png");
+        Cache.Entry encoded = textData(16 * 1024, "text/html");
+        encoded.allResponseHeaders = new ArrayList<>(encoded.allResponseHeaders);
+        encoded.allResponseHeaders.add(new Header("Content-Encoding", "gzip"));
+
+        cache.put("image", image);
+        cache.put("encoded", encoded);
+
+        assertTrue(((DiskBasedCache) cache).getFileForKey("image").length() > image.data.length);
+        assertTrue(((DiskBasedCache) cache).getFileForKey("encoded").length() > encoded.data.length);
+        assertThatEntriesAreEqual(cache.get("image"), image);
+    }
+
+    @Test
+    public void testDoesNotCompressWhenDisabled() {
+        Cache.Entry entry = textData(16 * 1024, "text/plain");
+
+        cache.put("text", entry);
+
+        assertTrue(((DiskBasedCache) cache).getFileForKey("text").length() > entry.data.length);
+    }
+
+    @Test
+    public void testCompressedEntryIsInvalidatedInPlace() {
+        ((DiskBasedCache) cache).setCompressionEnabled(true);
+        Cache.Entry entry = textData(16 * 1024, "text/xml");
+        cache.put("xml", entry);
+
+        cache.invalidate("xml", true);
+
+        Cache.Entry invalidated = cache.get("xml");
+        assertThat(invalidated.data, is(equalTo(entry.data)));
+        assertThat(invalidated.ttl, is(0L));
+        assertTrue(((DiskBasedCache) cache).getFileForKey("xml").length() < entry.data.length / 2);
+    }
+
+    @Test
+    public void testIsCompressible() {
+        assertTrue(DiskBasedCache.isCompressible(contentType("text/html; charset=utf-8")));
+        assertTrue(DiskBasedCache.isCompressible(contentType("application/json")));
+        assertTrue(DiskBasedCache.isCompressible(contentType("application/vnd.api+json")));
+        assertTrue(DiskBasedCache.isCompressible(contentType("Application/XML")));
+        assertTrue(DiskBasedCache.isCompressible(contentType("application/javascript")));
+        assertThat(DiskBasedCache.isCompressible(contentType("image/jpeg")), is(false));
+        assertThat(DiskBasedCache.isCompressible(contentType("application/octet-stream")), is(false));
+        assertThat(DiskBasedCache.isCompressible(Collections.<Header>emptyList()), is(false));
+    }
+
+    @Test
+    public void testInflateRejectsCorruptData() throws IOException {
+        byte[] data = textData(4096, "text/plain").data;
+        byte[] deflated = DiskBasedCache.deflate(data);
+        assertThat(DiskBasedCache.inflate(deflated), is(equalTo(data)));
+
+        byte[] truncated = new byte[deflated.length - 8];
+        System.arraycopy(deflated, 0, truncated, 0, truncated.length);
+        try {
+            DiskBasedCache.inflate(truncated);
+            fail();
+        } catch (IOException expected) {
+        }
+
+        byte[] longer = deflated.clone();
+        ByteBuffer.wrap(longer).order(ByteOrder.LITTLE_ENDIAN).putInt(data.length + 1);
+        try {
+            DiskBasedCache.inflate(longer);
+            fail();
+        } catch (IOException expected) {
+        }
+
+        byte[] shorter = deflated.clone();
+        ByteBuffer.wrap(shorter).order(ByteOrder.LITTLE_ENDIAN).putInt(data.length - 1);
+        try {
+            DiskBasedCache.inflate(shorter);
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void testDeflateGivesUpOnIncompressibleData() {
+        assertThat(DiskBasedCache.deflate(randomData(4096).data), is(nullValue()));
+    }
+
+    @Test
+    public void testPruneInBackgroundPastHighWaterMark() throws InterruptedException {
+        // Ten entries of a tenth of the cache stay below the maximum, so no put prunes inline,
+        // but pass the background prune mark.
+        for (int i = 0; i < 10; i++) {
+            cache.put("entry" + i, randomData(MAX_SIZE / 10));
+        }
+
+        ((DiskBasedCache) cache).awaitBackgroundPrune();
+
+        assertThat(cache.get("entry0"), is(nullValue()));
+        for (int i = 1; i < 10; i++) {
+            assertThat(cache.get("entry" + i), is(notNullValue()));
+        }
+    }
+
     @Test
     @SuppressWarnings("TryFinallyCanBeTryWithResources")
     public void testGetBadMagic() throws IOException {
@@ -205,8 +437,7 @@ public class DiskBasedCacheTest {
         assertThatEntriesAreEqual(cache.get("key"), entry);
 
         // Overwrite the magic header
-        File cacheFolder = temporaryFolder.getRoot();
-        File file = cacheFolder.listFiles()[0];
+        File file = listCachedFiles()[0];
         FileOutputStream fos = new FileOutputStream(file);
         try {
             DiskBasedCache.writeInt(fos, 0); // overwrite magic
@@ -228,8 +459,7 @@ public class DiskBasedCacheTest {
         assertThatEntriesAreEqual(cache.get("key"), entry);
 
         // Access the cached file
-        File cacheFolder = temporaryFolder.getRoot();
-        File file = cacheFolder.listFiles()[0];
+        File file = listCachedFiles()[0];
         FileOutputStream fos = new FileOutputStream(file);
         try {
             // Overwrite with a different key
@@ -323,6 +553,34 @@ public class DiskBasedCacheTest {
         assertThat(cache.get("key"), is(nullValue()));
     }
 
+    @Test
+    public void testFailedPutKeepsPreviousEntry() throws IOException {
+        Cache.Entry entry = randomData(1111);
+        cache.put("key", entry);
+        OutputStream mockedOutputStream = spy(OutputStream.class);
+        doThrow(IOException.class).when(mockedOutputStream).write(anyInt());
+        DiskBasedCache readonly = spy((DiskBasedCache) cache);
+        doReturn(mockedOutputStream).when(readonly).createOutputStream(any(File.class));
+
+        readonly.put("key", randomData(2222));
+
+        // The new entry is written to a temp file, so the previous one is left untouched.
+        assertThatEntriesAreEqual(cache.get("key"), entry);
+        assertThat(listCachedFiles(), is(arrayWithSize(1)));
+    }
+
+    @Test
+    public void testInitializeDeletesStaleTempFiles() throws IOException {
+        File tempDirectory = new File(temporaryFolder.getRoot(), "tmp");
+        assertTrue(tempDirectory.mkdirs());
+        File stale = new File(tempDirectory, "0123456789abcdef-42.tmp");
+        assertTrue(stale.createNewFile());
+
+        new DiskBasedCache(temporaryFolder.getRoot(), MAX_SIZE).initialize();
+
+        assertThat(stale.exists(), is(false));
+    }
+
     @Test
     public void testIOExceptionInInitialize() throws IOException {
         // Cache a few kilobytes
@@ -354,6 +612,357 @@ public class DiskBasedCacheTest {
         assertThat(cache.get("kilobyte3"), is(nullValue()));
     }
 
+    @Test(timeout = 10000)
+    public void testGetIsNotBlockedByPut() throws Exception {
+        final CountDownLatch writeStarted = new CountDownLatch(1);
+        final CountDownLatch finishWrite = new CountDownLatch(1);
+        final AtomicBoolean stallWrites = new AtomicBoolean();
+        final DiskBasedCache slowCache =
+                new DiskBasedCache(temporaryFolder.getRoot(), MAX_SIZE) {
+                    @Override
+                    OutputStream createOutputStream(File file) throws FileNotFoundException {
+                        OutputStream os = super.createOutputStream(file);
+                        if (!stallWrites.get()) {
+                            return os;
+                        }
+                        return new FilterOutputStream(os) {
+                            @Override
+                            public void close() throws IOException {
+                                writeStarted.countDown();
+                                try {
+                                    finishWrite.await();
+                                } catch (InterruptedException e) {
+                                    throw new IOException(e);
+                                }
+                                super.close();
+                            }
+                        };
+                    }
+                };
+        slowCache.initialize();
+        final Cache.Entry entry = randomData(1024);
+        slowCache.put("fast", entry);
+        stallWrites.set(true);
+
+        Thread writer =
+                new Thread() {
+                    @Override
+                    public void run() {
+                        slowCache.put("slow", entry);
+                    }
+                };
+        writer.start();
+        try {
+            assertTrue(writeStarted.await(5, TimeUnit.SECONDS));
+            // The stalled write holds no lock, not even its own stripe.
+            assertThatEntriesAreEqual(slowCache.get("fast"), entry);
+            assertThat(slowCache.get("slow"), is(nullValue()));
+        } finally {
+            finishWrite.countDown();
+            writer.join();
+        }
+        assertThatEntriesAreEqual(slowCache.get("slow"), entry);
+    }
+
+    @Test
+    public void testConcurrentAccessKeepsIndexAndFilesConsistent() throws Exception {
+        // Small enough that the writers keep evicting each other's entries.
+        final DiskBasedCache concurrentCache =
+                new DiskBasedCache(temporaryFolder.getRoot(), 48 * 1024);
+        concurrentCache.initialize();
+        final int keyCount = 24;
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            final Random random = new Random(i);
+            threads[i] =
+                    new Thread() {
+                        @Override
+                        public void run() {
+                            try {
+                                for (int op = 0; op < 300; op++) {
+                                    String key = "key" + random.nextInt(keyCount);
+                                    switch (random.nextInt(4)) {
+                                        case 0:
+                                            concurrentCache.put(key, dataForKey(key));
+                                            break;
+                                        case 1:
+                                            concurrentCache.remove(key);
+                                            break;
+                                        case 2:
+                                            concurrentCache.invalidate(key, random.nextBoolean());
+                                            break;
+                                        default:
+                                            Cache.Entry entry = concurrentCache.get(key);
+                                            if (entry != null) {
+                                                assertThat(entry.data, is(equalTo(dataForKey(key).data)));
+                                            }
+                                    }
+                                }
+                            } catch (Throwable t) {
+                                failures.add(t);
+                            }
+                        }
+                    };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertThat(failures, is(Collections.<Throwable>emptyList()));
+
+        // A fresh scan of the directory finds exactly the entries the index holds.
+        DiskBasedCache reloaded = new DiskBasedCache(temporaryFolder.getRoot(), 48 * 1024);
+        reloaded.initialize();
+        for (int i = 0; i < keyCount; i++) {
+            String key = "key" + i;
+            Cache.Entry entry = concurrentCache.get(key);
+            Cache.Entry reloadedEntry = reloaded.get(key);
+            assertThat(reloadedEntry == null, is(entry == null));
+            if (entry != null) {
+                assertThat(reloadedEntry.data, is(equalTo(entry.data)));
+            }
+        }
+    }
+
+    @Test
+    public void testInitializeReplaysJournalWithoutReadingFiles() throws IOException {
+        Cache.Entry entry = randomData(1024);
+        entry.etag = "etag";
+        cache.put("kilobyte", entry);
+        cache.put("kilobyte2", randomData(1024));
+
+        DiskBasedCache restarted = spy(new DiskBasedCache(temporaryFolder.getRoot(), MAX_SIZE));
+        restarted.initialize();
+        verify(restarted, never()).createInputStream(any(File.class));
+
+        // The full header still comes back, from the file.
+        assertThatEntriesAreEqual(restarted.get("kilobyte"), entry);
+        assertThat(restarted.get("kilobyte2"), is(notNullValue()));
+    }
+
+    @Test
+    public void testInitializeRestoresLruOrderFromJournal() {
+        Cache smallCache = new DiskBasedCache(temporaryFolder.getRoot(), 10000);
+        smallCache.initialize();
+        smallCache.put("a", randomData(3000));
+        smallCache.put("b", randomData(3000));
+        assertThat(smallCache.get("a"), is(notNullValue()));
+        // Reads are only buffered; the next change flushes them.
+        smallCache.remove("unrelated");
+
+        Cache restarted = new DiskBasedCache(temporaryFolder.getRoot(), 10000);
+        restarted.initialize();
+        // "b" is now the least recently used entry, so it is evicted first.
+        restarted.put("c", randomData(5000));
+        assertThat(restarted.get("a"), is(notNullValue()));
+        assertThat(restarted.get("b"), is(nullValue()));
+        assertThat(restarted.get("c"), is(notNullValue()));
+    }
+
+    @Test
+    public void testRecordAccessUpdatesLruOrder() {
+        DiskBasedCache smallCache = new DiskBasedCache(temporaryFolder.getRoot(), 10000);
+        smallCache.initialize();
+        smallCache.put("a", randomData(3000));
+        smallCache.put("b", randomData(3000));
+        smallCache.recordAccess("a");
+
+        // "b" is now the least recently used entry, so it is evicted first.
+        smallCache.put("c", randomData(5000));
+        assertThat(smallCache.get("a"), is(notNullValue()));
+        assertThat(smallCache.get("b"), is(nullValue()));
+    }
+
+    @Test
+    public void testJournalOfReadsIsCompacted() {
+        cache.put("a", randomData(16));
+        for (int i = 0; i < 10000; i++) {
+            assertThat(cache.get("a"), is(notNullValue()));
+        }
+
+        // Each read record takes 10 bytes; without compaction the journal would hold 100 KB.
+        File journal = new File(temporaryFolder.getRoot(), CacheJournal.JOURNAL_FILENAME);
+        assertThat(journal.length(), is(lessThan(50000L)));
+    }
+
+    @Test
+    public void testInitializeDeletesFileOfUnfinishedPut() {
+        cache.put("a", randomData(1024));
+        cache.put("b", randomData(1024));
+        // As if the process died after "a" was replaced, before the put was journaled.
+        CacheJournal journal = new CacheJournal(temporaryFolder.getRoot());
+        journal.dirty("a");
+        journal.close();
+        File fileA = ((DiskBasedCache) cache).getFileForKey("a");
+
+        Cache restarted = new DiskBasedCache(temporaryFolder.getRoot(), MAX_SIZE);
+        restarted.initialize();
+        assertThat(restarted.get("a"), is(nullValue()));
+        assertThat(fileA.exists(), is(false));
+        assertThat(restarted.get("b"), is(notNullValue()));
+    }
+
+    @Test
+    public void testInitializeScansDirectoryWhenJournalIsDamaged() throws IOException {
+        cache.put("kilobyte", randomData(1024));
+        cache.put("kilobyte2", randomData(1024));
+
+        // Chop off the end of the last record.
+        File journal = new File(temporaryFolder.getRoot(), CacheJournal.JOURNAL_FILENAME);
+        RandomAccessFile raf = new RandomAccessFile(journal, "rw");
+        try {
+            raf.setLength(raf.length() - 1);
+        } finally {
+            //noinspection ThrowFromFinallyBlock
+            raf.close();
+        }
+
+        Cache restarted = new DiskBasedCache(temporaryFolder.getRoot(), MAX_SIZE);
+        restarted.initialize();
+        assertThat(restarted.get("kilobyte"), is(notNullValue()));
+        assertThat(restarted.get("kilobyte2"), is(notNullValue()));
+    }
+
+    @Test
+    public void testGetBeforeInitializeReadsFileOnDemand() {
+        Cache.Entry entry = randomData(1024);
+        cache.put("key", entry);
+
+        DiskBasedCache uninitialized = new DiskBasedCache(temporaryFolder.getRoot(), MAX_SIZE);
+        assertThatEntriesAreEqual(uninitialized.get("key"), entry);
+        assertThat(uninitialized.get("missing"), is(nullValue()));
+
+        // Initializing afterwards doesn't lose or duplicate the entry.
+        uninitialized.initialize();
+        assertThatEntriesAreEqual(uninitialized.get("key"), entry);
+    }
+
+    @Test
+    public void testGetAfterInitializeDoesNotReadUnindexedFiles() {
+        DiskBasedCache other = new DiskBasedCache(temporaryFolder.getRoot(), MAX_SIZE);
+        other.initialize();
+
+        // Written behind the back of the initialized instance.
+        cache.put("key", randomData(1024));
+        assertThat(other.get("key"), is(nullValue()));
+    }
+
+    @Test
+    public void testGetEntryWithHeaderLargerThanFirstRead() {
+        Cache.Entry entry = randomData(1000);
+        entry.allResponseHeaders = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            entry.allResponseHeaders.add(new Header("X-Header-" + i, "value " + i));
+        }
+        entry.responseHeaders = HttpHeaderParser.toHeaderMap(entry.allResponseHeaders);
+        cache.put("key", entry);
+
+        Cache.Entry cached = cache.get("key");
+        assertThatEntriesAreEqual(cached, entry);
+        assertThat(cached.allResponseHeaders, is(equalTo(entry.allResponseHeaders)));
+    }
+
+    @Test
+    public void testGetTruncatedHeader() throws IOException {
+        cache.put("key", randomData(1023));
+        RandomAccessFile raf = new RandomAccessFile(listCachedFiles()[0], "rw");
+        try {
+            raf.setLength(10);
+        } finally {
+            //noinspection ThrowFromFinallyBlock
+            raf.close();
+        }
+
+        assertThat(cache.get("key"), is(nullValue()));
+        assertThat(listCachedFiles(), is(emptyArray()));
+    }
+
+    @Test
+    public void testGetTruncatedBody() throws IOException {
+        cache.put("key", randomData(1023));
+        File file = listCachedFiles()[0];
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(file.length() - 1);
+        } finally {
+            //noinspection ThrowFromFinallyBlock
+            raf.close();
+        }
+
+        // The header records the length of the body, so a short file is detected.
+        assertThat(cache.get("key"), is(nullValue()));
+        assertThat(listCachedFiles(), is(emptyArray()));
+    }
+
+    @Test
+    public void testReadLegacyFormatAndLayout() throws IOException {
+        Cache.Entry entry = randomData(511);
+        entry.etag = "etag";
+        entry.ttl = 1234;
+        entry.softTtl = 567;
+        List<Header> headers = Collections.singletonList(new Header("first", "thing"));
+        File dir = temporaryFolder.newFolder();
+        DiskBasedCache legacy = new DiskBasedCache(dir, MAX_SIZE);
+        // The flat layout, named after the hash codes of the halves of the key.
+        File legacyFile = new File(dir, String.valueOf("k".hashCode()) + "ey".hashCode());
+        OutputStream os = new FileOutputStream(legacyFile);
+        try {
+            // The 0x20150306 format, as written by earlier versions.
+            DiskBasedCache.writeInt(os, 0x20150306);
+            DiskBasedCache.writeString(os, "key");
+            DiskBasedCache.writeString(os, entry.etag);
+            DiskBasedCache.writeLong(os, entry.serverDate);
+            DiskBasedCache.writeLong(os, entry.lastModified);
+            DiskBasedCache.writeLong(os, entry.ttl);
+            DiskBasedCache.writeLong(os, entry.softTtl);
+            DiskBasedCache.writeHeaderList(headers, os);
+            os.write(entry.data);
+        } finally {
+            //noinspection ThrowFromFinallyBlock
+            os.close();
+        }
+
+        legacy.initialize();
+        assertThat(legacyFile.exists(), is(false));
+        assertThat(legacy.getFileForKey("key").exists(), is(true));
+        Cache.Entry read = legacy.get("key");
+        assertThat(read, is(notNullValue()));
+        assertThat(read.data, is(equalTo(entry.data)));
+        assertThat(read.etag, is("etag"));
+        assertThat(read.ttl, is(1234L));
+        assertThat(read.allResponseHeaders, is(headers));
+    }
+
+    @Test
+    public void testFilesAreSpreadOverSubdirectories() {
+        cache.put("key", randomData(10));
+
+        File file = ((DiskBasedCache) cache).getFileForKey("key");
+        assertThat(listCachedFiles(), is(equalTo(new File[] {file})));
+        File root = temporaryFolder.getRoot();
+        assertThat(file.getParentFile().getParentFile().getParentFile(), is(equalTo(root)));
+        // The SHA-1 of the key, with its first two digits as directory names.
+        assertThat(file.getName(), is("a62f2225bf70bfaccbc7f1ef2a397836717377de"));
+        assertThat(file.getParentFile().getName(), is("6"));
+        assertThat(file.getParentFile().getParentFile().getName(), is("a"));
+    }
+
+    @Test
+    public void testClearDeletesSubdirectories() {
+        cache.put("key", randomData(10));
+
+        cache.clear();
+
+        File[] remaining = temporaryFolder.getRoot().listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return !CacheJournal.isJournalFile(file);
+            }
+        });
+        assertThat(remaining, is(emptyArray()));
+    }
+
     @Test
     public void testManyResponseHeaders() {
         Cache.Entry entry = new Cache.Entry();
@@ -486,11 +1095,41 @@ public class DiskBasedCacheTest {
         assertEquals(DiskBasedCache.readHeaderList(cis), sameKeys);
     }
 
+    @Test
+    public void readHeaderFromBuffer() throws Exception {
+        Cache.Entry entry = randomData(10);
+        entry.etag = "etag";
+        entry.ttl = 1234;
+        entry.softTtl = 567;
+        entry.responseHeaders = new HashMap<>();
+        entry.responseHeaders.put("first", "thing");
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        new CacheHeader("key", entry).writeHeader(baos);
+        int headerLength = baos.size();
+        baos.write(entry.data);
+        byte[] file = baos.toByteArray();
+
+        ByteBuffer buffer = ByteBuffer.wrap(file).order(ByteOrder.LITTLE_ENDIAN);
+        CacheHeader header = CacheHeader.readHeader(buffer, file.length);
+        assertEquals("key", header.key);
+        assertEquals("etag", header.etag);
+        assertEquals(1234, header.ttl);
+        assertEquals(567, header.softTtl);
+        assertEquals(Collections.singletonList(new Header("first", "thing")), header.allResponseHeaders);
+        assertEquals(headerLength, buffer.position());
+
+        // A header cut short by the end of the buffer asks for more data.
+        buffer = ByteBuffer.wrap(file, 0, headerLength - 1).slice().order(ByteOrder.LITTLE_ENDIAN);
+        exception.expect(BufferUnderflowException.class);
+        CacheHeader.readHeader(buffer, file.length);
+    }
+
     @Test
     public void publicMethods() throws Exception {
         // Catch-all test to find API-breaking changes.
         assertNotNull(DiskBasedCache.class.getConstructor(File.class, int.class));
         assertNotNull(DiskBasedCache.class.getConstructor(File.class));
+        assertNotNull(DiskBasedCache.class.getConstructor(File.class, int.class, DiskBasedCache.EvictionPolicy.class));
 
         assertNotNull(DiskBasedCache.class.getMethod("getFileForKey", String.class));
     }
@@ -515,7 +1154,51 @@ public class DiskBasedCacheTest {
         return entry;
     }
 
+    private static Cache.Entry textData(int length, String contentType) {
+        Cache.Entry entry = new Cache.Entry();
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; text.length() < length; i++) {
+            text.append("{\"id\":").append(i).append(",\"name\":\"item ").append(i).append("\"},");
+        }
+        entry.data = text.substring(0, length).getBytes();
+        entry.allResponseHeaders = contentType(contentType);
+        entry.responseHeaders = HttpHeaderParser.toHeaderMap(entry.allResponseHeaders);
+        return entry;
+    }
+
+    private static List<Header> contentType(String contentType) {
+        return Collections.singletonList(new Header("Content-Type", contentType));
+    }
+
+    private static Cache.Entry dataForKey(String key) {
+        // Deterministic per key, and sized so that entries differ.
+        Cache.Entry entry = new Cache.Entry();
+        byte[] data = new byte[1024 + (key.hashCode() & 0xFFF)];
+        new Random(key.hashCode()).nextBytes(data);
+        entry.data = data;
+        entry.ttl = Long.MAX_VALUE;
+        entry.softTtl = Long.MAX_VALUE;
+        return entry;
+    }
+
+    /** Returns the cache files in the fan-out directories and any left in the root. */
     private File[] listCachedFiles() {
-        return temporaryFolder.getRoot().listFiles();
+        List<File> files = new ArrayList<>();
+        addCachedFiles(temporaryFolder.getRoot(), files);
+        return files.toArray(new File[files.size()]);
+    }
+
+    private static void addCachedFiles(File directory, List<File> files) {
+        File[] children = directory.listFiles();
+        if (children == null) {
+            return;
+        }
+        for (File child : children) {
+            if (child.isDirectory()) {
+                addCachedFiles(child, files);
+            } else if (!CacheJournal.isJournalFile(child)) {
+                files.add(child);
+            }
+        }
     }
 }
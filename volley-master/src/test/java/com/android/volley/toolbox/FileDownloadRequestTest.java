@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.android.volley.DefaultRetryPolicy;
+import com.android.volley.Header;
+import com.android.volley.NetworkError;
+import com.android.volley.NetworkResponse;
+import com.android.volley.Response;
+import com.android.volley.VolleyError;
+import com.android.volley.mock.MockHttpStack;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class FileDownloadRequestTest {
+
+    @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private static final byte[] CONTENT = new byte[200 * 1024];
+
+    static {
+        new Random(42).nextBytes(CONTENT);
+    }
+
+    private MockHttpStack mHttpStack;
+    private BasicNetwork mNetwork;
+    private File mTarget;
+    private final List<long[]> mProgress = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        mHttpStack = new MockHttpStack();
+        mNetwork = new BasicNetwork(mHttpStack);
+        mTarget = new File(temporaryFolder.getRoot(), "download.bin");
+    }
+
+    @Test
+    public void downloadsToFile() throws Exception {
+        mHttpStack.setResponseToReturn(response(200, CONTENT, 0, CONTENT.length,
+                header("ETag", "\"v1\""), header("Content-Length", "" + CONTENT.length)));
+        FileDownloadRequest request = newRequest();
+
+        assertSame(mTarget, download(request));
+
+        assertArrayEquals(CONTENT, readFile(mTarget));
+        assertFalse(new File(mTarget.getPath() + ".part").exists());
+        assertFalse(new File(mTarget.getPath() + ".part.validator").exists());
+        long[] last = mProgress.get(mProgress.size() - 1);
+        assertEquals(CONTENT.length, last[0]);
+        assertEquals(CONTENT.length, last[1]);
+        assertTrue(mProgress.size() > 2);
+        assertNull(mHttpStack.getLastHeaders().get("Range"));
+        assertEquals("identity", mHttpStack.getLastHeaders().get("Accept-Encoding"));
+    }
+
+    @Test
+    public void resumesInterruptedDownload() throws Exception {
+        int failAt = 80 * 1024;
+        mHttpStack.setResponseToReturn(
+                response(200, CONTENT, 0, failAt, header("ETag", "\"v1\""), header("Content-Length", "" + CONTENT.length)));
+        try {
+            download(newRequest());
+            fail();
+        } catch (NetworkError expected) {
+        }
+        assertFalse(mTarget.exists());
+
+        mHttpStack.setResponseToReturn(response(206, CONTENT, failAt, CONTENT.length,
+                header("Content-Range", "bytes " + failAt + "-" + (CONTENT.length - 1) + "/" + CONTENT.length)));
+        mProgress.clear();
+        download(newRequest());
+
+        Map<String, String> headers = mHttpStack.getLastHeaders();
+        assertEquals("bytes=" + failAt + "-", headers.get("Range"));
+        assertEquals("\"v1\"", headers.get("If-Range"));
+        assertArrayEquals(CONTENT, readFile(mTarget));
+        assertEquals(failAt, mProgress.get(0)[0]);
+    }
+
+    @Test
+    public void restartsWhenResourceChanged() throws Exception {
+        writePartialDownload(1000, "\"v1\"");
+        // The server ignores the range because the ETag doesn't match any more.
+        mHttpStack.setResponseToReturn(response(200, CONTENT, 0, CONTENT.length, header("ETag", "\"v2\"")));
+
+        download(newRequest());
+
+        assertEquals("bytes=1000-", mHttpStack.getLastHeaders().get("Range"));
+        assertArrayEquals(CONTENT, readFile(mTarget));
+    }
+
+    @Test
+    public void unexpectedRangeDiscardsPartialDownload() throws Exception {
+        writePartialDownload(1000, "\"v1\"");
+        mHttpStack.setResponseToReturn(response(206, CONTENT, 500, CONTENT.length,
+                header("Content-Range", "bytes 500-" + (CONTENT.length - 1) + "/" + CONTENT.length)));
+
+        try {
+            download(newRequest());
+            fail();
+        } catch (NetworkError expected) {
+        }
+
+        assertFalse(new File(mTarget.getPath() + ".part").exists());
+    }
+
+    @Test
+    public void rangeNotSatisfiableDiscardsPartialDownload() throws Exception {
+        writePartialDownload(1000, "\"v1\"");
+        FileDownloadRequest request = newRequest();
+
+        request.parseNetworkError(new VolleyError(new NetworkResponse(416, new byte[0], false, 0,
+                Collections.<Header>emptyList())));
+
+        assertFalse(new File(mTarget.getPath() + ".part").exists());
+        assertFalse(new File(mTarget.getPath() + ".part.validator").exists());
+    }
+
+    @Test
+    public void parseContentRange() {
+        assertArrayEquals(new long[] {100, 200}, FileDownloadRequest.parseContentRange("bytes 100-199/200"));
+        assertArrayEquals(new long[] {0, -1}, FileDownloadRequest.parseContentRange("bytes 0-99/*"));
+        assertNull(FileDownloadRequest.parseContentRange(null));
+        assertNull(FileDownloadRequest.parseContentRange("bytes */200"));
+        assertNull(FileDownloadRequest.parseContentRange("bytes 200-299/200"));
+        assertNull(FileDownloadRequest.parseContentRange("items 0-9/10"));
+    }
+
+    private FileDownloadRequest newRequest() {
+        FileDownloadRequest request = new FileDownloadRequest("http://foo/download.bin", mTarget, null, null);
+        request.setRetryPolicy(new DefaultRetryPolicy(1000, 0, 1));
+        request.setProgressListener(
+                new FileDownloadRequest.ProgressListener() {
+                    @Override
+                    public void onProgress(long bytesDownloaded, long totalBytes) {
+                        mProgress.add(new long[] {bytesDownloaded, totalBytes});
+                    }
+                });
+        return request;
+    }
+
+    private File download(FileDownloadRequest request) throws VolleyError {
+        NetworkResponse networkResponse = mNetwork.performRequest(request);
+        Response<File> response = request.parseNetworkResponse(networkResponse);
+        return response.result;
+    }
+
+    private void writePartialDownload(int length, String etag) throws IOException {
+        FileOutputStream out = new FileOutputStream(mTarget.getPath() + ".part");
+        out.write(CONTENT, 0, length);
+        out.close();
+        out = new FileOutputStream(mTarget.getPath() + ".part.validator");
+        out.write(etag.getBytes("UTF-8"));
+        out.close();
+    }
+
+    /** Returns a response with the given part of the content, failing after it if it's not the end. */
+    private static HttpResponse response(int statusCode, byte[] content, int from, int to, Header... headers) {
+        InputStream body = new ByteArrayInputStream(content, from, to - from);
+        if (to < content.length) {
+            body = new FailingInputStream(body);
+        }
+        List<Header> headerList = new ArrayList<>();
+        Collections.addAll(headerList, headers);
+        return new HttpResponse(statusCode, headerList, to - from, body);
+    }
+
+    private static Header header(String name, String value) {
+        return new Header(name, value);
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            byte[] bytes = new byte[(int) in.length()];
+            in.readFully(bytes);
+            return bytes;
+        } finally {
+            in.close();
+        }
+    }
+
+    /** Throws instead of reporting the end of the stream, like a dropped connection. */
+    private static class FailingInputStream extends InputStream {
+        private final InputStream mIn;
+
+        FailingInputStream(InputStream in) {
+            mIn = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = mIn.available() > 0 ? mIn.read() : -1;
+            if (b == -1) {
+                throw new IOException("Connection reset");
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (mIn.available() == 0) {
+                throw new IOException("Connection reset");
+            }
+            return mIn.read(b, off, len);
+        }
+    }
+}
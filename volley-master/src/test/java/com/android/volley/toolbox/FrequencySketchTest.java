@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class FrequencySketchTest {
+
+    @Test
+    public void countsIncrements() {
+        FrequencySketch sketch = new FrequencySketch(1000);
+        for (int i = 0; i < 5; i++) {
+            sketch.increment("http://example.com/hot");
+        }
+        sketch.increment("http://example.com/cold");
+
+        assertEquals(5, sketch.frequency("http://example.com/hot"));
+        assertEquals(1, sketch.frequency("http://example.com/cold"));
+        assertEquals(0, sketch.frequency("http://example.com/never"));
+    }
+
+    @Test
+    public void saturates() {
+        FrequencySketch sketch = new FrequencySketch(1000);
+        for (int i = 0; i < 100; i++) {
+            sketch.increment("key");
+        }
+
+        assertEquals(FrequencySketch.MAX_FREQUENCY, sketch.frequency("key"));
+    }
+
+    @Test
+    public void agesOldCounts() {
+        FrequencySketch sketch = new FrequencySketch(64);
+        for (int i = 0; i < 8; i++) {
+            sketch.increment("old");
+        }
+        // Halved after ten increments per expected key.
+        for (int i = 0; i < 640; i++) {
+            sketch.increment("other" + i);
+        }
+
+        assertTrue(sketch.frequency("old") <= 4);
+    }
+
+    @Test
+    public void estimatesAreMostlyExact() {
+        FrequencySketch sketch = new FrequencySketch(1024);
+        for (int i = 0; i < 256; i++) {
+            sketch.increment("http://example.com/resource/" + i);
+        }
+
+        int exact = 0;
+        for (int i = 0; i < 256; i++) {
+            if (sketch.frequency("http://example.com/resource/" + i) == 1) {
+                exact++;
+            }
+        }
+        assertTrue("exact=" + exact, exact > 240);
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.volley.toolbox;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.android.volley.Header;
+import java.io.ByteArrayOutputStream;
+import java.net.ProtocolException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class HpackTest {
+
+    @Test
+    public void decodesRequestsWithoutHuffman() throws Exception {
+        // RFC 7541 C.3.1.
+        Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_HEADER_TABLE_SIZE);
+        assertEquals(
+                Arrays.asList(
+                        new Header(":method", "GET"),
+                        new Header(":scheme", "http"),
+                        new Header(":path", "/"),
+                        new Header(":authority", "www.example.com")),
+                decode(decoder, "828684410f7777772e6578616d706c652e636f6d"));
+    }
+
+    @Test
+    public void decodesRequestsWithHuffman() throws Exception {
+        // RFC 7541 C.4, where each request refers to entries added by the previous ones.
+        Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_HEADER_TABLE_SIZE);
+        assertEquals(
+                Arrays.asList(
+                        new Header(":method", "GET"),
+                        new Header(":scheme", "http"),
+                        new Header(":path", "/"),
+                        new Header(":authority", "www.example.com")),
+                decode(decoder, "828684418cf1e3c2e5f23a6ba0ab90f4ff"));
+        assertEquals(
+                Arrays.asList(
+                        new Header(":method", "GET"),
+                        new Header(":scheme", "http"),
+                        new Header(":path", "/"),
+                        new Header(":authority", "www.example.com"),
+                        new Header("cache-control", "no-cache")),
+                decode(decoder, "828684be5886a8eb10649cbf"));
+        assertEquals(
+                Arrays.asList(
+                        new Header(":method", "GET"),
+                        new Header(":scheme", "https"),
+                        new Header(":path", "/index.html"),
+                        new Header(":authority", "www.example.com"),
+                        new Header("custom-key", "custom-value")),
+                decode(decoder, "828785bf408825a849e95ba97d7f8925a849e95bb8e8b4bf"));
+    }
+
+    @Test
+    public void decodesResponsesEvictingFromSmallTable() throws Exception {
+        // RFC 7541 C.6, with a 256 byte table which fills up after the first response.
+        Hpack.Decoder decoder = new Hpack.Decoder(256);
+        assertEquals(
+                Arrays.asList(
+                        new Header(":status", "302"),
+                        new Header("cache-control", "private"),
+                        new Header("date", "Mon, 21 Oct 2013 20:13:21 GMT"),
+                        new Header("location", "https://www.example.com")),
+                decode(decoder, "488264025885aec3771a4b6196d07abe941054d444a8200595040b8166e082a62d1bff"
+                        + "6e919d29ad171863c78f0b97c8e9ae82ae43d3"));
+        assertEquals(
+                Arrays.asList(
+                        new Header(":status", "307"),
+                        new Header("cache-control", "private"),
+                        new Header("date", "Mon, 21 Oct 2013 20:13:21 GMT"),
+                        new Header("location", "https://www.example.com")),
+                decode(decoder, "4883640effc1c0bf"));
+        assertEquals(
+                Arrays.asList(
+                        new Header(":status", "200"),
+                        new Header("cache-control", "private"),
+                        new Header("date", "Mon, 21 Oct 2013 20:13:22 GMT"),
+                        new Header("location", "https://www.example.com"),
+                        new Header("content-encoding", "gzip"),
+                        new Header("set-cookie", "foo=ASDJKHQKBZXOQWEOPIUAXQWEOIU; max-age=3600; version=1")),
+                decode(decoder, "88c16196d07abe941054d444a8200595040b8166e084a62d1bffc05a839bd9ab77ad94e7821dd7f2"
+                        + "e6c7b335dfdfcd5b3960d5af27087f3672c1ab270fb5291f9587316065c003ed4ee5b1063d5007"));
+    }
+
+    @Test
+    public void roundTripsAndCompressesRepeatedHeaders() throws Exception {
+        Hpack.Encoder encoder = new Hpack.Encoder();
+        Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_HEADER_TABLE_SIZE);
+        List<Header> headers = Arrays.asList(
+                new Header(":method", "GET"),
+                new Header(":path", "/items?page=2"),
+                new Header("user-agent", "volley/1.1"),
+                new Header("x-custom", "value"),
+                new Header("authorization", "Bearer secret"));
+
+        ByteArrayOutputStream first = new ByteArrayOutputStream();
+        encoder.encode(headers, first);
+        ByteArrayOutputStream second = new ByteArrayOutputStream();
+        encoder.encode(headers, second);
+
+        assertEquals(headers, decoder.decode(first.toByteArray(), 0, first.size()));
+        assertEquals(headers, decoder.decode(second.toByteArray(), 0, second.size()));
+        // Everything but the never-indexed authorization is a one byte table reference now.
+        assertTrue(second.size() < first.size() / 2);
+    }
+
+    @Test
+    public void encoderSignalsSmallerTable() throws Exception {
+        Hpack.Encoder encoder = new Hpack.Encoder();
+        Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_HEADER_TABLE_SIZE);
+        List<Header> headers = Arrays.asList(new Header("x-custom", "value"));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        encoder.encode(headers, out);
+        decoder.decode(out.toByteArray(), 0, out.size());
+
+        encoder.setMaxTableSize(0);
+        out.reset();
+        encoder.encode(headers, out);
+
+        assertEquals(0x20, out.toByteArray()[0]);
+        assertEquals(headers, decoder.decode(out.toByteArray(), 0, out.size()));
+    }
+
+    @Test
+    public void huffmanRoundTripsAllBytes() throws Exception {
+        byte[] bytes = new byte[256];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) i;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Hpack.Huffman.encode(bytes, out);
+
+        assertEquals(Hpack.Huffman.encodedLength(bytes), out.size());
+        assertArrayEquals(bytes, Hpack.Huffman.decode(out.toByteArray(), 0, out.size()));
+    }
+
+    @Test
+    public void rejectsIndexOutsideTables() throws Exception {
+        Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_HEADER_TABLE_SIZE);
+        try {
+            decode(decoder, "be");
+            fail();
+        } catch (ProtocolException e) {
+            // Expected: the dynamic table is empty.
+        }
+    }
+
+    private static List<Header> decode(Hpack.Decoder decoder, String hex) throws ProtocolException {
+        byte[] block = new byte[hex.length() / 2];
+        for (int i = 0; i < block.length; i++) {
+            block[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return new ArrayList<>(decoder.decode(block, 0, block.length));
+    }
+}
@@ -0,0 +1,331 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.volley.toolbox;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.android.volley.DefaultRetryPolicy;
+import com.android.volley.Header;
+import com.android.volley.Request;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class Http2StackTest {
+
+    private Http2TestServer mServer;
+    private Http2Stack mStack;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new Http2TestServer();
+        mStack = new Http2Stack(new HurlStack());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mStack.shutdown();
+        mServer.close();
+    }
+
+    @Test(timeout = 10000)
+    public void getReusesConnection() throws Exception {
+        mServer.mHandler =
+                new Http2TestServer.Handler() {
+                    @Override
+                    public Http2TestServer.Response handle(Http2TestServer.RecordedRequest request) {
+                        return new Http2TestServer.Response(
+                                200, "hello".getBytes(StandardCharsets.UTF_8), new Header("x-foo", "bar"));
+                    }
+                };
+        Map<String, String> additionalHeaders = new HashMap<>();
+        additionalHeaders.put("If-None-Match", "etag");
+        additionalHeaders.put("Connection", "keep-alive");
+
+        HttpResponse response = mStack.executeRequest(get("/path?q=1"), additionalHeaders);
+        assertEquals(200, response.getStatusCode());
+        assertEquals(Collections.singletonList(new Header("x-foo", "bar")), response.getHeaders());
+        assertEquals("hello", readBody(response));
+        Http2TestServer.RecordedRequest recorded = mServer.takeRequest();
+        assertEquals("GET", recorded.mHeaders.get(":method"));
+        assertEquals("http", recorded.mHeaders.get(":scheme"));
+        assertEquals("/path?q=1", recorded.mHeaders.get(":path"));
+        assertEquals(mServer.url("").substring("http://".length()), recorded.mHeaders.get(":authority"));
+        assertEquals("etag", recorded.mHeaders.get("if-none-match"));
+        assertNull(recorded.mHeaders.get("connection"));
+
+        assertEquals("hello", readBody(mStack.executeRequest(get("/"), Collections.<String, String>emptyMap())));
+        assertEquals(1, mServer.getConnectionCount());
+    }
+
+    @Test(timeout = 10000)
+    public void postBodyLargerThanServerWindow() throws Exception {
+        mServer.mInitialWindowSize = 1000;
+        final byte[] body = randomBytes(200 * 1024);
+        StringRequest request =
+                new StringRequest(Request.Method.POST, mServer.url("/upload"), null, null) {
+                    @Override
+                    public byte[] getBody() {
+                        return body;
+                    }
+                };
+
+        HttpResponse response = mStack.executeRequest(request, Collections.<String, String>emptyMap());
+        assertEquals(200, response.getStatusCode());
+        Http2TestServer.RecordedRequest recorded = mServer.takeRequest();
+        assertEquals("POST", recorded.mHeaders.get(":method"));
+        assertEquals(String.valueOf(body.length), recorded.mHeaders.get("content-length"));
+        assertEquals(request.getBodyContentType(), recorded.mHeaders.get("content-type"));
+        assertArrayEquals(body, recorded.mBody.toByteArray());
+    }
+
+    @Test(timeout = 10000)
+    public void responseLargerThanStreamWindow() throws Exception {
+        final byte[] body = randomBytes(1024 * 1024);
+        mServer.mHandler =
+                new Http2TestServer.Handler() {
+                    @Override
+                    public Http2TestServer.Response handle(Http2TestServer.RecordedRequest request) {
+                        return new Http2TestServer.Response(
+                                200, body, new Header("content-length", String.valueOf(body.length)));
+                    }
+                };
+
+        HttpResponse response = mStack.executeRequest(get("/large"), Collections.<String, String>emptyMap());
+        assertEquals(body.length, response.getContentLength());
+        assertArrayEquals(body, readBytes(response));
+    }
+
+    @Test(timeout = 10000)
+    public void multiplexesConcurrentRequests() throws Exception {
+        final int count = 10;
+        final CountDownLatch allArrived = new CountDownLatch(count);
+        mServer.mHandler =
+                new Http2TestServer.Handler() {
+                    @Override
+                    public Http2TestServer.Response handle(Http2TestServer.RecordedRequest request)
+                            throws InterruptedException {
+                        // Only answers once every request is in flight at the same time.
+                        allArrived.countDown();
+                        int status = allArrived.await(5, TimeUnit.SECONDS) ? 200 : 500;
+                        return new Http2TestServer.Response(
+                                status, request.mHeaders.get(":path").getBytes(StandardCharsets.UTF_8));
+                    }
+                };
+
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final CountDownLatch done = new CountDownLatch(count);
+        for (int i = 0; i < count; i++) {
+            final String path = "/" + i;
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        HttpResponse response =
+                                mStack.executeRequest(get(path), Collections.<String, String>emptyMap());
+                        assertEquals(200, response.getStatusCode());
+                        assertEquals(path, readBody(response));
+                    } catch (Throwable t) {
+                        failure.set(t);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertNull(failure.get());
+        assertEquals(1, mServer.getConnectionCount());
+    }
+
+    @Test(timeout = 10000)
+    public void compressesRepeatedHeaders() throws Exception {
+        Map<String, String> additionalHeaders = new HashMap<>();
+        additionalHeaders.put("X-Session", "0123456789abcdef0123456789abcdef");
+
+        readBody(mStack.executeRequest(get("/items"), additionalHeaders));
+        readBody(mStack.executeRequest(get("/items"), additionalHeaders));
+
+        int first = mServer.takeRequest().mHeaderBlockSize;
+        int second = mServer.takeRequest().mHeaderBlockSize;
+        // Only table references are left the second time.
+        assertTrue(second + " < " + first, second < first / 4);
+    }
+
+    @Test(timeout = 10000)
+    public void respectsMaxConcurrentStreams() throws Exception {
+        mServer.mMaxConcurrentStreams = 1;
+        final AtomicInteger active = new AtomicInteger();
+        final AtomicInteger maxActive = new AtomicInteger();
+        mServer.mHandler =
+                new Http2TestServer.Handler() {
+                    @Override
+                    public Http2TestServer.Response handle(Http2TestServer.RecordedRequest request)
+                            throws InterruptedException {
+                        int now = active.incrementAndGet();
+                        if (now > maxActive.get()) {
+                            maxActive.set(now);
+                        }
+                        Thread.sleep(20);
+                        active.decrementAndGet();
+                        return new Http2TestServer.Response(200, new byte[0]);
+                    }
+                };
+        // Settle the settings first, so the limit applies to all requests below.
+        mStack.executeRequest(get("/"), Collections.<String, String>emptyMap());
+
+        final CountDownLatch done = new CountDownLatch(3);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        for (int i = 0; i < 3; i++) {
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        assertEquals(200, mStack.executeRequest(get("/"), Collections.<String, String>emptyMap())
+                                .getStatusCode());
+                    } catch (Throwable t) {
+                        failure.set(t);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertNull(failure.get());
+        assertEquals(1, maxActive.get());
+    }
+
+    @Test(timeout = 10000)
+    public void retriesRefusedStream() throws Exception {
+        mServer.mStreamsToRefuse.set(1);
+
+        assertEquals("/", readBody(mStack.executeRequest(get("/"), Collections.<String, String>emptyMap())));
+        assertEquals(1, mServer.getConnectionCount());
+    }
+
+    @Test(timeout = 10000)
+    public void timesOutAndKeepsConnection() throws Exception {
+        mServer.mHandler =
+                new Http2TestServer.Handler() {
+                    @Override
+                    public Http2TestServer.Response handle(Http2TestServer.RecordedRequest request)
+                            throws InterruptedException {
+                        if ("/slow".equals(request.mHeaders.get(":path"))) {
+                            Thread.sleep(2000);
+                        }
+                        return new Http2TestServer.Response(200, "ok".getBytes(StandardCharsets.UTF_8));
+                    }
+                };
+        StringRequest request = get("/slow");
+        request.setRetryPolicy(new DefaultRetryPolicy(200, 0, 1));
+
+        try {
+            mStack.executeRequest(request, Collections.<String, String>emptyMap());
+            fail();
+        } catch (SocketTimeoutException e) {
+            // Expected.
+        }
+        // Only the stream was given up on.
+        assertEquals("ok", readBody(mStack.executeRequest(get("/"), Collections.<String, String>emptyMap())));
+        assertEquals(1, mServer.getConnectionCount());
+    }
+
+    @Test(timeout = 10000)
+    public void zeroTimeoutWaitsForSlowResponse() throws Exception {
+        mServer.mHandler =
+                new Http2TestServer.Handler() {
+                    @Override
+                    public Http2TestServer.Response handle(Http2TestServer.RecordedRequest request)
+                            throws InterruptedException {
+                        Thread.sleep(500);
+                        return new Http2TestServer.Response(200, "ok".getBytes(StandardCharsets.UTF_8));
+                    }
+                };
+        StringRequest request = get("/slow");
+        // As with sockets, a timeout of 0 means no timeout.
+        request.setRetryPolicy(new DefaultRetryPolicy(0, 0, 1));
+
+        assertEquals("ok", readBody(mStack.executeRequest(request, Collections.<String, String>emptyMap())));
+    }
+
+    @Test
+    public void httpsUsesFallbackStack() throws Exception {
+        BaseHttpStack fallback = mock(BaseHttpStack.class);
+        HttpResponse fallbackResponse = new HttpResponse(200, Collections.<Header>emptyList());
+        StringRequest request = new StringRequest(Request.Method.GET, "https://example.com/", null, null);
+        Map<String, String> additionalHeaders = Collections.emptyMap();
+        when(fallback.executeRequest(request, additionalHeaders)).thenReturn(fallbackResponse);
+
+        Http2Stack stack = new Http2Stack(fallback);
+        assertSame(fallbackResponse, stack.executeRequest(request, additionalHeaders));
+        stack.shutdown();
+    }
+
+    private StringRequest get(String path) {
+        return new StringRequest(Request.Method.GET, mServer.url(path), null, null);
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        new Random(42).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static String readBody(HttpResponse response) throws IOException {
+        return new String(readBytes(response), StandardCharsets.UTF_8);
+    }
+
+    private static byte[] readBytes(HttpResponse response) throws IOException {
+        InputStream in = response.getContent();
+        if (in == null) {
+            return new byte[0];
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            out.write(buffer, 0, count);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,371 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.volley.toolbox;
+
+import com.android.volley.Header;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An h2c server on the loopback interface, which answers each request on its own thread and
+ * respects the client's flow-control windows.
+ */
+class Http2TestServer {
+
+    private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    interface Handler {
+        Response handle(RecordedRequest request) throws Exception;
+    }
+
+    static class RecordedRequest {
+        final Map<String, String> mHeaders = new HashMap<>();
+        final ByteArrayOutputStream mBody = new ByteArrayOutputStream();
+        int mHeaderBlockSize;
+    }
+
+    static class Response {
+        final int mStatus;
+        final List<Header> mHeaders;
+        final byte[] mBody;
+
+        Response(int status, byte[] body, Header... headers) {
+            mStatus = status;
+            mBody = body;
+            mHeaders = Arrays.asList(headers);
+        }
+    }
+
+    private final ServerSocket mServerSocket;
+    private final BlockingQueue<RecordedRequest> mRequests = new LinkedBlockingQueue<>();
+    private final AtomicInteger mConnections = new AtomicInteger();
+    private final List<Socket> mSockets = Collections.synchronizedList(new ArrayList<Socket>());
+
+    volatile Handler mHandler =
+            new Handler() {
+                @Override
+                public Response handle(RecordedRequest request) {
+                    return new Response(200, request.mHeaders.get(":path").getBytes(StandardCharsets.UTF_8));
+                }
+            };
+
+    /** SETTINGS_MAX_CONCURRENT_STREAMS to send, or 0 to leave it unlimited. */
+    volatile int mMaxConcurrentStreams;
+
+    /** SETTINGS_INITIAL_WINDOW_SIZE to send, bounding request bodies. */
+    volatile int mInitialWindowSize = 65535;
+
+    /** How many of the next streams to refuse with REFUSED_STREAM. */
+    final AtomicInteger mStreamsToRefuse = new AtomicInteger();
+
+    Http2TestServer() throws IOException {
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        Thread acceptor =
+                new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            while (true) {
+                                Socket socket = mServerSocket.accept();
+                                mConnections.incrementAndGet();
+                                mSockets.add(socket);
+                                Thread reader = new Thread(new ServerConnection(socket));
+                                reader.setDaemon(true);
+                                reader.start();
+                            }
+                        } catch (IOException e) {
+                            // Closed.
+                        }
+                    }
+                };
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    String url(String path) {
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort() + path;
+    }
+
+    RecordedRequest takeRequest() throws InterruptedException {
+        return mRequests.poll(5, TimeUnit.SECONDS);
+    }
+
+    int getConnectionCount() {
+        return mConnections.get();
+    }
+
+    void close() throws IOException {
+        mServerSocket.close();
+        synchronized (mSockets) {
+            for (Socket socket : mSockets) {
+                socket.close();
+            }
+        }
+    }
+
+    private class ServerConnection implements Runnable {
+        private final Socket mSocket;
+        private final DataInputStream mIn;
+        private final OutputStream mOut;
+        private final Hpack.Decoder mDecoder = new Hpack.Decoder(Hpack.DEFAULT_HEADER_TABLE_SIZE);
+        private final Hpack.Encoder mEncoder = new Hpack.Encoder();
+        private final Map<Integer, RecordedRequest> mOpenRequests = new HashMap<>();
+        private final ByteArrayOutputStream mHeaderBlock = new ByteArrayOutputStream();
+        private int mHeaderStreamId;
+        private boolean mHeaderEndStream;
+
+        // Guarded by this; the client's windows for the server's DATA.
+        private final Map<Integer, Long> mStreamWindows = new HashMap<>();
+        private long mConnectionWindow = 65535;
+        private int mInitialStreamWindow = 65535;
+
+        ServerConnection(Socket socket) throws IOException {
+            mSocket = socket;
+            mIn = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            mOut = socket.getOutputStream();
+        }
+
+        @Override
+        public void run() {
+            try {
+                byte[] preface = new byte[PREFACE.length];
+                mIn.readFully(preface);
+                if (!Arrays.equals(PREFACE, preface)) {
+                    throw new IOException("Bad preface");
+                }
+                ByteArrayOutputStream settings = new ByteArrayOutputStream();
+                if (mMaxConcurrentStreams > 0) {
+                    writeSetting(settings, 0x3, mMaxConcurrentStreams);
+                }
+                writeSetting(settings, 0x4, mInitialWindowSize);
+                writeFrame(0x4, 0, 0, settings.toByteArray());
+                while (true) {
+                    readFrame();
+                }
+            } catch (IOException e) {
+                // The client went away.
+            } finally {
+                try {
+                    mSocket.close();
+                } catch (IOException e) {
+                    // Ignored.
+                }
+            }
+        }
+
+        private void readFrame() throws IOException {
+            int length = mIn.readUnsignedByte() << 16 | mIn.readUnsignedShort();
+            int type = mIn.readUnsignedByte();
+            int flags = mIn.readUnsignedByte();
+            int streamId = mIn.readInt() & 0x7fffffff;
+            byte[] payload = new byte[length];
+            mIn.readFully(payload);
+            switch (type) {
+                case 0x0: // DATA
+                    RecordedRequest request = mOpenRequests.get(streamId);
+                    if (request != null) {
+                        request.mBody.write(payload, 0, payload.length);
+                    }
+                    if (payload.length > 0) {
+                        writeFrame(0x8, 0, 0, intBytes(payload.length));
+                        if ((flags & 0x1) == 0) {
+                            writeFrame(0x8, 0, streamId, intBytes(payload.length));
+                        }
+                    }
+                    if ((flags & 0x1) != 0) {
+                        dispatch(streamId);
+                    }
+                    break;
+                case 0x1: // HEADERS
+                    mHeaderBlock.reset();
+                    mHeaderBlock.write(payload, 0, payload.length);
+                    mHeaderStreamId = streamId;
+                    mHeaderEndStream = (flags & 0x1) != 0;
+                    if ((flags & 0x4) != 0) {
+                        onHeaderBlock();
+                    }
+                    break;
+                case 0x9: // CONTINUATION
+                    mHeaderBlock.write(payload, 0, payload.length);
+                    if ((flags & 0x4) != 0) {
+                        onHeaderBlock();
+                    }
+                    break;
+                case 0x3: // RST_STREAM
+                    mOpenRequests.remove(streamId);
+                    break;
+                case 0x4: // SETTINGS
+                    if ((flags & 0x1) == 0) {
+                        onSettings(payload);
+                        writeFrame(0x4, 0x1, 0, new byte[0]);
+                    }
+                    break;
+                case 0x7: // GOAWAY
+                    throw new IOException("GOAWAY");
+                case 0x8: // WINDOW_UPDATE
+                    int increment = readInt(payload, 0);
+                    synchronized (this) {
+                        if (streamId == 0) {
+                            mConnectionWindow += increment;
+                        } else if (mStreamWindows.containsKey(streamId)) {
+                            mStreamWindows.put(streamId, mStreamWindows.get(streamId) + increment);
+                        }
+                        notifyAll();
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private void onSettings(byte[] payload) {
+            for (int i = 0; i < payload.length; i += 6) {
+                int id = (payload[i] & 0xff) << 8 | (payload[i + 1] & 0xff);
+                int value = readInt(payload, i + 2);
+                if (id == 0x4) {
+                    synchronized (this) {
+                        for (Map.Entry<Integer, Long> window : mStreamWindows.entrySet()) {
+                            window.setValue(window.getValue() + value - mInitialStreamWindow);
+                        }
+                        mInitialStreamWindow = value;
+                        notifyAll();
+                    }
+                }
+            }
+        }
+
+        private void onHeaderBlock() throws IOException {
+            byte[] block = mHeaderBlock.toByteArray();
+            List<Header> headers = mDecoder.decode(block, 0, block.length);
+            if (mStreamsToRefuse.getAndDecrement() > 0) {
+                writeFrame(0x3, 0, mHeaderStreamId, intBytes(0x7));
+                return;
+            }
+            RecordedRequest request = new RecordedRequest();
+            for (Header header : headers) {
+                request.mHeaders.put(header.getName(), header.getValue());
+            }
+            request.mHeaderBlockSize = block.length;
+            mOpenRequests.put(mHeaderStreamId, request);
+            synchronized (this) {
+                mStreamWindows.put(mHeaderStreamId, (long) mInitialStreamWindow);
+            }
+            if (mHeaderEndStream) {
+                dispatch(mHeaderStreamId);
+            }
+        }
+
+        private void dispatch(final int streamId) {
+            final RecordedRequest request = mOpenRequests.remove(streamId);
+            if (request == null) {
+                return;
+            }
+            mRequests.add(request);
+            Thread responder =
+                    new Thread() {
+                        @Override
+                        public void run() {
+                            try {
+                                respond(streamId, mHandler.handle(request));
+                            } catch (Exception e) {
+                                // The client went away.
+                            }
+                        }
+                    };
+            responder.setDaemon(true);
+            responder.start();
+        }
+
+        private void respond(int streamId, Response response) throws IOException, InterruptedException {
+            List<Header> headers = new ArrayList<>();
+            headers.add(new Header(":status", String.valueOf(response.mStatus)));
+            headers.addAll(response.mHeaders);
+            boolean hasBody = response.mBody.length > 0;
+            synchronized (mOut) {
+                ByteArrayOutputStream block = new ByteArrayOutputStream();
+                mEncoder.encode(headers, block);
+                writeFrame(0x1, hasBody ? 0x4 : 0x5, streamId, block.toByteArray());
+            }
+            int offset = 0;
+            while (offset < response.mBody.length) {
+                int count;
+                synchronized (this) {
+                    while (Math.min(mConnectionWindow, mStreamWindows.get(streamId)) <= 0) {
+                        wait();
+                    }
+                    count = (int) Math.min(Math.min(mConnectionWindow, mStreamWindows.get(streamId)),
+                            Math.min(16384, response.mBody.length - offset));
+                    mConnectionWindow -= count;
+                    mStreamWindows.put(streamId, mStreamWindows.get(streamId) - count);
+                }
+                boolean last = offset + count == response.mBody.length;
+                writeFrame(0x0, last ? 0x1 : 0, streamId, Arrays.copyOfRange(response.mBody, offset, offset + count));
+                offset += count;
+            }
+        }
+
+        private void writeFrame(int type, int flags, int streamId, byte[] payload) throws IOException {
+            synchronized (mOut) {
+                ByteArrayOutputStream frame = new ByteArrayOutputStream();
+                frame.write(payload.length >>> 16);
+                frame.write(payload.length >>> 8);
+                frame.write(payload.length);
+                frame.write(type);
+                frame.write(flags);
+                frame.write(intBytes(streamId), 0, 4);
+                frame.write(payload, 0, payload.length);
+                mOut.write(frame.toByteArray());
+                mOut.flush();
+            }
+        }
+    }
+
+    private static void writeSetting(ByteArrayOutputStream out, int id, int value) {
+        out.write(id >>> 8);
+        out.write(id);
+        out.write(intBytes(value), 0, 4);
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xff) << 24
+                | (bytes[offset + 1] & 0xff) << 16
+                | (bytes[offset + 2] & 0xff) << 8
+                | (bytes[offset + 3] & 0xff);
+    }
+
+    private static byte[] intBytes(int value) {
+        return new byte[] {(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value};
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.android.volley.Header;
+import java.io.ByteArrayOutputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class HttpResponseDecoderTest {
+
+    private RecordingListener mListener;
+
+    @Before
+    public void setUp() {
+        mListener = new RecordingListener();
+    }
+
+    @Test
+    public void contentLengthBody() throws Exception {
+        HttpResponseDecoder decoder = new HttpResponseDecoder(false, mListener);
+        decode(decoder, "HTTP/1.1 200 OK\r\nContent-Length: 5\r\nX-Foo:  bar \r\n\r\nhello");
+
+        assertEquals(200, mListener.mStatusCode);
+        assertEquals(2, mListener.mHeaders.size());
+        assertEquals(new Header("X-Foo", "bar"), mListener.mHeaders.get(1));
+        assertEquals("hello", mListener.body());
+        assertTrue(mListener.mComplete);
+        assertTrue(decoder.isComplete());
+        assertTrue(decoder.isKeepAlive());
+    }
+
+    @Test
+    public void bytesArriveOneAtATime() throws Exception {
+        HttpResponseDecoder decoder = new HttpResponseDecoder(false, mListener);
+        byte[] response =
+                ("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n"
+                                + "5;ext=1\r\nhello\r\n6\r\n world\r\n0\r\nTrailer: x\r\n\r\n")
+                        .getBytes(StandardCharsets.ISO_8859_1);
+        for (byte b : response) {
+            assertFalse(decoder.isComplete());
+            decoder.decode(ByteBuffer.wrap(new byte[] {b}));
+        }
+
+        assertEquals("hello world", mListener.body());
+        assertTrue(decoder.isComplete());
+        assertTrue(decoder.isKeepAlive());
+    }
+
+    @Test
+    public void interimResponseSkipped() throws Exception {
+        HttpResponseDecoder decoder = new HttpResponseDecoder(false, mListener);
+        decode(decoder, "HTTP/1.1 100 Continue\r\n\r\nHTTP/1.1 201 Created\r\nContent-Length: 0\r\n\r\n");
+
+        assertEquals(201, mListener.mStatusCode);
+        assertEquals(1, mListener.mHeaderCalls);
+        assertTrue(decoder.isComplete());
+    }
+
+    @Test
+    public void noBodyForHeadOrNotModified() throws Exception {
+        HttpResponseDecoder head = new HttpResponseDecoder(true, mListener);
+        decode(head, "HTTP/1.1 200 OK\r\nContent-Length: 100\r\n\r\n");
+        assertTrue(head.isComplete());
+
+        HttpResponseDecoder notModified = new HttpResponseDecoder(false, new RecordingListener());
+        decode(notModified, "HTTP/1.1 304 Not Modified\r\n\r\n");
+        assertTrue(notModified.isComplete());
+        assertTrue(notModified.isKeepAlive());
+    }
+
+    @Test
+    public void bodyUntilClose() throws Exception {
+        HttpResponseDecoder decoder = new HttpResponseDecoder(false, mListener);
+        decode(decoder, "HTTP/1.1 200 OK\r\n\r\nsome");
+        decode(decoder, " body");
+        assertFalse(decoder.isComplete());
+
+        decoder.endOfInput();
+        assertEquals("some body", mListener.body());
+        assertTrue(decoder.isComplete());
+        assertFalse(decoder.isKeepAlive());
+    }
+
+    @Test
+    public void keepAliveRules() throws Exception {
+        HttpResponseDecoder close = new HttpResponseDecoder(false, new RecordingListener());
+        decode(close, "HTTP/1.1 200 OK\r\nConnection: close\r\nContent-Length: 0\r\n\r\n");
+        assertFalse(close.isKeepAlive());
+
+        HttpResponseDecoder http10 = new HttpResponseDecoder(false, new RecordingListener());
+        decode(http10, "HTTP/1.0 200 OK\r\nContent-Length: 0\r\n\r\n");
+        assertFalse(http10.isKeepAlive());
+
+        HttpResponseDecoder http10KeepAlive = new HttpResponseDecoder(false, new RecordingListener());
+        decode(http10KeepAlive, "HTTP/1.0 200 OK\r\nConnection: Keep-Alive\r\nContent-Length: 0\r\n\r\n");
+        assertTrue(http10KeepAlive.isKeepAlive());
+
+        // Bytes after the response make the connection unusable.
+        HttpResponseDecoder extra = new HttpResponseDecoder(false, new RecordingListener());
+        decode(extra, "HTTP/1.1 200 OK\r\nContent-Length: 1\r\n\r\nab");
+        assertFalse(extra.isKeepAlive());
+    }
+
+    @Test
+    public void truncatedResponseFails() throws Exception {
+        HttpResponseDecoder decoder = new HttpResponseDecoder(false, mListener);
+        assertFalse(decoder.hasStarted());
+        decode(decoder, "HTTP/1.1 200 OK\r\nContent-Length: 10\r\n\r\nshort");
+        assertTrue(decoder.hasStarted());
+        try {
+            decoder.endOfInput();
+            fail("Expected a ProtocolException");
+        } catch (ProtocolException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void malformedResponsesFail() throws Exception {
+        String[] responses = {
+            "SMTP ready\r\n",
+            "HTTP/1.1 abc OK\r\n",
+            "HTTP/1.1 200 OK\r\nno colon\r\n",
+            "HTTP/1.1 200 OK\r\nContent-Length: -1\r\n\r\n",
+            "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\nzz\r\n",
+        };
+        for (String response : responses) {
+            try {
+                decode(new HttpResponseDecoder(false, new RecordingListener()), response);
+                fail("Expected a ProtocolException for " + response);
+            } catch (ProtocolException e) {
+                // Expected.
+            }
+        }
+    }
+
+    private static void decode(HttpResponseDecoder decoder, String bytes) throws Exception {
+        decoder.decode(ByteBuffer.wrap(bytes.getBytes(StandardCharsets.ISO_8859_1)));
+    }
+
+    private static class RecordingListener implements HttpResponseDecoder.Listener {
+        int mStatusCode;
+        List<Header> mHeaders;
+        int mHeaderCalls;
+        final ByteArrayOutputStream mBody = new ByteArrayOutputStream();
+        boolean mComplete;
+
+        @Override
+        public void onHeaders(int statusCode, List<Header> headers) {
+            mStatusCode = statusCode;
+            mHeaders = headers;
+            mHeaderCalls++;
+        }
+
+        @Override
+        public void onBody(byte[] buffer, int offset, int count) {
+            mBody.write(buffer, offset, count);
+        }
+
+        @Override
+        public void onComplete() {
+            mComplete = true;
+        }
+
+        String body() {
+            return new String(mBody.toByteArray(), StandardCharsets.ISO_8859_1);
+        }
+    }
+}
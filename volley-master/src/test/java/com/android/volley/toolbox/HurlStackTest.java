@@ -16,8 +16,10 @@
 
 package com.android.volley.toolbox;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
@@ -25,10 +27,12 @@ import static org.mockito.Mockito.when;
 
 import com.android.volley.Header;
 import com.android.volley.Request.Method;
+import com.android.volley.RequestBody;
 import com.android.volley.mock.TestRequest;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.SocketTimeoutException;
 import java.net.URL;
@@ -65,6 +69,15 @@ public class HurlStackTest {
                 };
     }
 
+    private static TestRequest.Post postWithStreamingBody(final RequestBody body) {
+        return new TestRequest.Post() {
+            @Override
+            public RequestBody getStreamingBody() {
+                return body;
+            }
+        };
+    }
+
     @Test
     public void connectionForDeprecatedGetRequest() throws Exception {
         TestRequest.DeprecatedGet request = new TestRequest.DeprecatedGet();
@@ -115,6 +128,47 @@ public class HurlStackTest {
         verify(mMockConnection).setDoOutput(true);
     }
 
+    @Test
+    public void connectionForPostWithStreamingBodyRequest() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        when(mMockConnection.getOutputStream()).thenReturn(out);
+        byte[] content = "streamed".getBytes(StandardCharsets.UTF_8);
+        TestRequest.Post request = postWithStreamingBody(RequestBody.create("text/plain", content));
+
+        HurlStack.setConnectionParametersForRequest(mMockConnection, request);
+        verify(mMockConnection).setRequestMethod("POST");
+        verify(mMockConnection).setDoOutput(true);
+        verify(mMockConnection).setFixedLengthStreamingMode(content.length);
+        verify(mMockConnection).addRequestProperty("Content-Type", "text/plain");
+        assertArrayEquals(content, out.toByteArray());
+    }
+
+    @Test
+    public void connectionForStreamingBodyOfUnknownLengthIsChunked() throws Exception {
+        TestRequest.Post request =
+                postWithStreamingBody(
+                        new RequestBody() {
+                            @Override
+                            public String getContentType() {
+                                return "application/octet-stream";
+                            }
+
+                            @Override
+                            public long getContentLength() {
+                                return -1;
+                            }
+
+                            @Override
+                            public void writeTo(OutputStream out) throws IOException {
+                                out.write(1);
+                            }
+                        });
+
+        HurlStack.setConnectionParametersForRequest(mMockConnection, request);
+        verify(mMockConnection).setChunkedStreamingMode(0);
+        verify(mMockConnection, never()).setFixedLengthStreamingMode(anyInt());
+    }
+
     @Test
     public void connectionForPutRequest() throws Exception {
         TestRequest.Put request = new TestRequest.Put();
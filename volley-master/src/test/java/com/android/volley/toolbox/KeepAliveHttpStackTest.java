@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.volley.toolbox;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import com.android.volley.DefaultRetryPolicy;
+import com.android.volley.Request;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class KeepAliveHttpStackTest {
+
+    private LoopbackServer mServer;
+    private ConnectionPool mPool;
+    private KeepAliveHttpStack mStack;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new LoopbackServer();
+        mPool = new ConnectionPool();
+        mStack = new KeepAliveHttpStack(/* urlRewriter= */ null, /* sslSocketFactory= */ null, mPool);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mPool.evictAll();
+        mServer.close();
+    }
+
+    @Test(timeout = 10000)
+    public void reusesConnection() throws Exception {
+        mServer.enqueue("HTTP/1.1 200 OK\r\nContent-Length: 5\r\n\r\nhello", false);
+        mServer.enqueue(
+                "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n3\r\nfoo\r\n3\r\nbar\r\n0\r\n\r\n", false);
+
+        HttpResponse response = execute(get("/path?q=1"));
+        assertEquals(200, response.getStatusCode());
+        assertEquals(5, response.getContentLength());
+        assertEquals("hello", readBody(response));
+        LoopbackServer.RecordedRequest recorded = mServer.takeRequest();
+        assertEquals("GET /path?q=1 HTTP/1.1", recorded.mRequestLine);
+        assertEquals("127.0.0.1:" + mServer.getPort(), recorded.mHeaders.get("host"));
+
+        assertEquals("foobar", readBody(execute(get("/"))));
+        assertEquals(1, mServer.getConnectionCount());
+        assertEquals(1, mPool.getConnectionCount());
+        assertEquals(1, mPool.getReuseCount());
+        assertEquals(0.5f, mPool.getReuseRate(), 0);
+        assertEquals(1, mPool.getIdleConnectionCount());
+    }
+
+    @Test(timeout = 10000)
+    public void postSendsBodyAndHeaders() throws Exception {
+        mServer.enqueue("HTTP/1.1 201 Created\r\nContent-Length: 0\r\n\r\n", false);
+        StringRequest request =
+                new StringRequest(Request.Method.POST, mServer.url("/upload"), null, null) {
+                    @Override
+                    public byte[] getBody() {
+                        return "a=b".getBytes(StandardCharsets.UTF_8);
+                    }
+                };
+        Map<String, String> additionalHeaders = new HashMap<>();
+        additionalHeaders.put("If-None-Match", "etag");
+
+        HttpResponse response = mStack.executeRequest(request, additionalHeaders);
+        assertEquals(201, response.getStatusCode());
+        LoopbackServer.RecordedRequest recorded = mServer.takeRequest();
+        assertEquals("POST /upload HTTP/1.1", recorded.mRequestLine);
+        assertEquals("etag", recorded.mHeaders.get("if-none-match"));
+        assertEquals("a=b", recorded.mBody);
+    }
+
+    @Test(timeout = 10000)
+    public void noContentForHeadRequest() throws Exception {
+        mServer.enqueue("HTTP/1.1 200 OK\r\nContent-Length: 100\r\n\r\n", false);
+        mServer.enqueue("HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok", false);
+
+        HttpResponse response = execute(new StringRequest(Request.Method.HEAD, mServer.url("/"), null, null));
+        assertNull(response.getContent());
+        assertEquals("ok", readBody(execute(get("/"))));
+        assertEquals(1, mServer.getConnectionCount());
+    }
+
+    @Test(timeout = 10000)
+    public void connectionCloseIsNotPooled() throws Exception {
+        mServer.enqueue("HTTP/1.1 200 OK\r\nConnection: close\r\nContent-Length: 1\r\n\r\na", true);
+        mServer.enqueue("HTTP/1.1 200 OK\r\nContent-Length: 1\r\n\r\nb", false);
+
+        assertEquals("a", readBody(execute(get("/"))));
+        assertEquals(0, mPool.getIdleConnectionCount());
+        assertEquals("b", readBody(execute(get("/"))));
+        assertEquals(2, mServer.getConnectionCount());
+        assertEquals(0, mPool.getReuseCount());
+    }
+
+    @Test(timeout = 10000)
+    public void connectionClosedByServerIsReplaced() throws Exception {
+        // The server closes the connection without saying so.
+        mServer.enqueue("HTTP/1.1 200 OK\r\nContent-Length: 1\r\n\r\na", true);
+        mServer.enqueue("HTTP/1.1 200 OK\r\nContent-Length: 1\r\n\r\nb", false);
+
+        assertEquals("a", readBody(execute(get("/"))));
+        mServer.awaitClosedConnections(1);
+        assertEquals("b", readBody(execute(get("/"))));
+        assertEquals(2, mServer.getConnectionCount());
+    }
+
+    @Test(timeout = 10000)
+    public void unreadBodyIsNotPooled() throws Exception {
+        byte[] body = new byte[100 * 1024];
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        response.write(("HTTP/1.1 200 OK\r\nContent-Length: " + body.length + "\r\n\r\n")
+                .getBytes(StandardCharsets.ISO_8859_1));
+        response.write(body);
+        mServer.enqueue(response.toByteArray(), false);
+        mServer.enqueue("HTTP/1.1 200 OK\r\nContent-Length: 1\r\n\r\nb", false);
+
+        InputStream in = execute(get("/")).getContent();
+        in.read();
+        in.close();
+        assertEquals(0, mPool.getIdleConnectionCount());
+
+        assertEquals("b", readBody(execute(get("/"))));
+        assertEquals(2, mServer.getConnectionCount());
+    }
+
+    @Test(timeout = 10000)
+    public void largeBodyIsReadInFull() throws Exception {
+        byte[] body = new byte[1024 * 1024];
+        for (int i = 0; i < body.length; i++) {
+            body[i] = (byte) i;
+        }
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        response.write(("HTTP/1.1 200 OK\r\nContent-Length: " + body.length + "\r\n\r\n")
+                .getBytes(StandardCharsets.ISO_8859_1));
+        response.write(body);
+        mServer.enqueue(response.toByteArray(), false);
+
+        InputStream in = execute(get("/")).getContent();
+        ByteArrayOutputStream read = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1000];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            read.write(buffer, 0, count);
+        }
+        assertEquals(body.length, read.size());
+        assertEquals(1, mPool.getIdleConnectionCount());
+    }
+
+    @Test(timeout = 10000)
+    public void timeout() throws Exception {
+        mServer.enqueueSilence();
+        StringRequest request = get("/");
+        request.setRetryPolicy(new DefaultRetryPolicy(200, 0, 1));
+        try {
+            execute(request);
+            fail("Expected a SocketTimeoutException");
+        } catch (SocketTimeoutException e) {
+            // Expected.
+        }
+        assertEquals(0, mPool.getIdleConnectionCount());
+    }
+
+    @Test(timeout = 10000)
+    public void urlRewriterIsApplied() throws Exception {
+        mServer.enqueue("HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok", false);
+        KeepAliveHttpStack stack =
+                new KeepAliveHttpStack(
+                        new HurlStack.UrlRewriter() {
+                            @Override
+                            public String rewriteUrl(String originalUrl) {
+                                return mServer.url("/rewritten");
+                            }
+                        },
+                        /* sslSocketFactory= */ null,
+                        mPool);
+
+        stack.executeRequest(
+                new StringRequest(Request.Method.GET, "http://foo/", null, null),
+                Collections.<String, String>emptyMap());
+        assertEquals("GET /rewritten HTTP/1.1", mServer.takeRequest().mRequestLine);
+    }
+
+    private HttpResponse execute(Request<?> request) throws Exception {
+        return mStack.executeRequest(request, Collections.<String, String>emptyMap());
+    }
+
+    private StringRequest get(String path) {
+        return new StringRequest(Request.Method.GET, mServer.url(path), null, null);
+    }
+
+    private static String readBody(HttpResponse response) throws IOException {
+        InputStream in = response.getContent();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            out.write(buffer, 0, count);
+        }
+        in.close();
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.volley.toolbox;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** A blocking HTTP server on the loopback interface, with a thread per connection. */
+class LoopbackServer {
+
+    static class RecordedRequest {
+        String mRequestLine;
+        final Map<String, String> mHeaders = new HashMap<>();
+        String mBody;
+    }
+
+    /** A scripted response, written once the request was read. */
+    private static class ScriptedResponse {
+        final byte[] mBytes;
+        final boolean mClose;
+
+        ScriptedResponse(byte[] bytes, boolean close) {
+            mBytes = bytes;
+            mClose = close;
+        }
+    }
+
+    private final ServerSocket mServerSocket;
+    private final BlockingQueue<ScriptedResponse> mResponses = new LinkedBlockingQueue<>();
+    private final BlockingQueue<RecordedRequest> mRequests = new LinkedBlockingQueue<>();
+    private final AtomicInteger mConnections = new AtomicInteger();
+    private final AtomicInteger mClosedConnections = new AtomicInteger();
+    private final List<Socket> mSockets = Collections.synchronizedList(new ArrayList<Socket>());
+
+    LoopbackServer() throws IOException {
+        mServerSocket = new ServerSocket(0, 200, InetAddress.getByName("127.0.0.1"));
+        Thread acceptor =
+                new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            while (true) {
+                                final Socket socket = mServerSocket.accept();
+                                mConnections.incrementAndGet();
+                                mSockets.add(socket);
+                                new Thread() {
+                                    @Override
+                                    public void run() {
+                                        serve(socket);
+                                    }
+                                }.start();
+                            }
+                        } catch (IOException e) {
+                            // Closed.
+                        }
+                    }
+                };
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    int getPort() {
+        return mServerSocket.getLocalPort();
+    }
+
+    String url(String path) {
+        return "http://127.0.0.1:" + getPort() + path;
+    }
+
+    void enqueue(String response, boolean close) {
+        enqueue(response.getBytes(StandardCharsets.ISO_8859_1), close);
+    }
+
+    void enqueue(byte[] response, boolean close) {
+        mResponses.add(new ScriptedResponse(response, close));
+    }
+
+    /** Makes the server read the next request and never answer it. */
+    void enqueueSilence() {
+        mResponses.add(new ScriptedResponse(null, false));
+    }
+
+    RecordedRequest takeRequest() throws InterruptedException {
+        return mRequests.poll(5, TimeUnit.SECONDS);
+    }
+
+    int getConnectionCount() {
+        return mConnections.get();
+    }
+
+    void awaitClosedConnections(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (mClosedConnections.get() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        // Give the client's selector a moment to notice, though it copes if it doesn't.
+        Thread.sleep(50);
+    }
+
+    void close() throws IOException {
+        mServerSocket.close();
+        synchronized (mSockets) {
+            for (Socket socket : mSockets) {
+                socket.close();
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            InputStream in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+            while (true) {
+                RecordedRequest request = readRequest(in);
+                if (request == null) {
+                    return;
+                }
+                mRequests.add(request);
+                ScriptedResponse response = mResponses.take();
+                if (response.mBytes == null) {
+                    // Hold the connection open without answering.
+                    in.read();
+                    return;
+                }
+                out.write(response.mBytes);
+                out.flush();
+                if (response.mClose) {
+                    return;
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            // The client went away.
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Ignored.
+            }
+            mClosedConnections.incrementAndGet();
+        }
+    }
+
+    private static RecordedRequest readRequest(InputStream in) throws IOException {
+        String line = readLine(in);
+        if (line == null) {
+            return null;
+        }
+        RecordedRequest request = new RecordedRequest();
+        request.mRequestLine = line;
+        while (!(line = readLine(in)).isEmpty()) {
+            int colon = line.indexOf(':');
+            request.mHeaders.put(
+                    line.substring(0, colon).trim().toLowerCase(Locale.US),
+                    line.substring(colon + 1).trim());
+        }
+        String contentLength = request.mHeaders.get("content-length");
+        byte[] body = new byte[contentLength != null ? Integer.parseInt(contentLength) : 0];
+        int read = 0;
+        while (read < body.length) {
+            int count = in.read(body, read, body.length - read);
+            if (count == -1) {
+                throw new IOException("Truncated body");
+            }
+            read += count;
+        }
+        request.mBody = new String(body, StandardCharsets.UTF_8);
+        return request;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c == -1) {
+                return line.length() == 0 ? null : line.toString();
+            }
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        return line.toString();
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.android.volley.RequestBody;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class MultipartBodyTest {
+
+    @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void writesPartsWithKnownLength() throws Exception {
+        File file = temporaryFolder.newFile("log.txt");
+        FileOutputStream fos = new FileOutputStream(file);
+        fos.write("file contents".getBytes(StandardCharsets.UTF_8));
+        fos.close();
+
+        MultipartBody body =
+                new MultipartBody.Builder("BOUNDARY")
+                        .addFormField("title", "Crash log")
+                        .addFilePart("log", file, "text/plain")
+                        .build();
+
+        String expected =
+                "--BOUNDARY\r\n"
+                        + "Content-Disposition: form-data; name=\"title\"\r\n"
+                        + "\r\n"
+                        + "Crash log\r\n"
+                        + "--BOUNDARY\r\n"
+                        + "Content-Disposition: form-data; name=\"log\"; filename=\"log.txt\"\r\n"
+                        + "Content-Type: text/plain\r\n"
+                        + "\r\n"
+                        + "file contents\r\n"
+                        + "--BOUNDARY--\r\n";
+        assertEquals(expected, write(body));
+        assertEquals(expected.length(), body.getContentLength());
+        assertEquals("multipart/form-data; boundary=BOUNDARY", body.getContentType());
+        assertEquals(2, body.getPartCount());
+    }
+
+    @Test
+    public void lengthIsUnknownIfAPartsIs() {
+        RequestBody unknown =
+                new RequestBody() {
+                    @Override
+                    public String getContentType() {
+                        return "application/octet-stream";
+                    }
+
+                    @Override
+                    public long getContentLength() {
+                        return -1;
+                    }
+
+                    @Override
+                    public void writeTo(OutputStream out) {}
+                };
+
+        MultipartBody body =
+                new MultipartBody.Builder().addFormField("a", "b").addPart("data", "data.bin", unknown).build();
+
+        assertEquals(-1, body.getContentLength());
+    }
+
+    @Test
+    public void escapesNames() throws Exception {
+        MultipartBody body =
+                new MultipartBody.Builder("B")
+                        .addPart("na\"me", "a\r\nb", RequestBody.create("text/plain", new byte[0]))
+                        .build();
+
+        assertTrue(write(body).contains("name=\"na%22me\"; filename=\"a%0D%0Ab\""));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void needsAPart() {
+        new MultipartBody.Builder().build();
+    }
+
+    @Test
+    public void randomBoundariesDiffer() {
+        String first = new MultipartBody.Builder().addFormField("a", "b").build().getContentType();
+        String second = new MultipartBody.Builder().addFormField("a", "b").build().getContentType();
+        assertNotEquals(first, second);
+    }
+
+    private static String write(RequestBody body) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        body.writeTo(out);
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,346 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.android.volley.AuthFailureError;
+import com.android.volley.DefaultRetryPolicy;
+import com.android.volley.Header;
+import com.android.volley.Request;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class NioHttpStackTest {
+
+    private LoopbackServer mServer;
+    private NioHttpStack mStack;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new LoopbackServer();
+        mStack = new NioHttpStack(2, new HurlStack());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mStack.shutdown();
+        mServer.close();
+    }
+
+    @Test(timeout = 10000)
+    public void getReusesConnection() throws Exception {
+        mServer.enqueue("HTTP/1.1 200 OK\r\nContent-Length: 5\r\nX-Foo: bar\r\n\r\nhello", false);
+        mServer.enqueue("HTTP/1.1 200 OK\r\nContent-Length: 5\r\n\r\nworld", false);
+
+        HttpResponse response = mStack.executeRequest(get("/path?q=1"), Collections.<String, String>emptyMap());
+        assertEquals(200, response.getStatusCode());
+        assertEquals(5, response.getContentLength());
+        assertEquals(new Header("X-Foo", "bar"), response.getHeaders().get(1));
+        assertEquals("hello", readBody(response));
+        LoopbackServer.RecordedRequest recorded = mServer.takeRequest();
+        assertEquals("GET /path?q=1 HTTP/1.1", recorded.mRequestLine);
+        assertEquals("127.0.0.1:" + mServer.getPort(), recorded.mHeaders.get("host"));
+
+        assertEquals("world", readBody(mStack.executeRequest(get("/"), Collections.<String, String>emptyMap())));
+        assertEquals(1, mServer.getConnectionCount());
+    }
+
+    @Test(timeout = 10000)
+    public void chunkedBody() throws Exception {
+        mServer.enqueue(
+                "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n3\r\nfoo\r\n3\r\nbar\r\n0\r\n\r\n", false);
+
+        HttpResponse response = mStack.executeRequest(get("/"), Collections.<String, String>emptyMap());
+        assertEquals(-1, response.getContentLength());
+        assertEquals("foobar", readBody(response));
+    }
+
+    @Test(timeout = 10000)
+    public void postSendsBodyAndHeaders() throws Exception {
+        mServer.enqueue("HTTP/1.1 201 Created\r\nContent-Length: 0\r\n\r\n", false);
+        StringRequest request =
+                new StringRequest(Request.Method.POST, mServer.url("/upload"), null, null) {
+                    @Override
+                    public byte[] getBody() {
+                        return "a=b".getBytes(StandardCharsets.UTF_8);
+                    }
+                };
+        Map<String, String> additionalHeaders = new HashMap<>();
+        additionalHeaders.put("If-None-Match", "etag");
+
+        HttpResponse response = mStack.executeRequest(request, additionalHeaders);
+        assertEquals(201, response.getStatusCode());
+        LoopbackServer.RecordedRequest recorded = mServer.takeRequest();
+        assertEquals("POST /upload HTTP/1.1", recorded.mRequestLine);
+        assertEquals("3", recorded.mHeaders.get("content-length"));
+        assertEquals(request.getBodyContentType(), recorded.mHeaders.get("content-type"));
+        assertEquals("etag", recorded.mHeaders.get("if-none-match"));
+        assertEquals("a=b", recorded.mBody);
+    }
+
+    @Test(timeout = 10000)
+    public void noContentForHeadRequest() throws Exception {
+        mServer.enqueue("HTTP/1.1 200 OK\r\nContent-Length: 100\r\n\r\n", false);
+        mServer.enqueue("HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok", false);
+
+        HttpResponse response =
+                mStack.executeRequest(
+                        new StringRequest(Request.Method.HEAD, mServer.url("/"), null, null),
+                        Collections.<String, String>emptyMap());
+        assertNull(response.getContent());
+        // The connection is still in sync for the next request.
+        assertEquals("ok", readBody(mStack.executeRequest(get("/"), Collections.<String, String>emptyMap())));
+        assertEquals(1, mServer.getConnectionCount());
+    }
+
+    @Test(timeout = 10000)
+    public void connectionCloseOpensNewConnection() throws Exception {
+        mServer.enqueue("HTTP/1.1 200 OK\r\nConnection: close\r\nContent-Length: 1\r\n\r\na", true);
+        mServer.enqueue("HTTP/1.1 200 OK\r\nContent-Length: 1\r\n\r\nb", false);
+
+        assertEquals("a", readBody(mStack.executeRequest(get("/"), Collections.<String, String>emptyMap())));
+        assertEquals("b", readBody(mStack.executeRequest(get("/"), Collections.<String, String>emptyMap())));
+        assertEquals(2, mServer.getConnectionCount());
+    }
+
+    @Test(timeout = 10000)
+    public void staleConnectionIsRetried() throws Exception {
+        // The server closes the connection without saying so, as after an idle timeout.
+        mServer.enqueue("HTTP/1.1 200 OK\r\nContent-Length: 1\r\n\r\na", true);
+        mServer.enqueue("HTTP/1.1 200 OK\r\nContent-Length: 1\r\n\r\nb", false);
+
+        assertEquals("a", readBody(mStack.executeRequest(get("/"), Collections.<String, String>emptyMap())));
+        mServer.awaitClosedConnections(1);
+        assertEquals("b", readBody(mStack.executeRequest(get("/"), Collections.<String, String>emptyMap())));
+        assertEquals(2, mServer.getConnectionCount());
+    }
+
+    @Test(timeout = 10000)
+    public void timeout() throws Exception {
+        mServer.enqueueSilence();
+        StringRequest request = get("/");
+        request.setRetryPolicy(new DefaultRetryPolicy(200, 0, 1));
+        try {
+            mStack.executeRequest(request, Collections.<String, String>emptyMap());
+            fail("Expected a SocketTimeoutException");
+        } catch (SocketTimeoutException e) {
+            // Expected.
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void largeBodyIsStreamed() throws Exception {
+        byte[] body = new byte[1024 * 1024];
+        for (int i = 0; i < body.length; i++) {
+            body[i] = (byte) i;
+        }
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        response.write(("HTTP/1.1 200 OK\r\nContent-Length: " + body.length + "\r\n\r\n")
+                .getBytes(StandardCharsets.ISO_8859_1));
+        response.write(body);
+        mServer.enqueue(response.toByteArray(), false);
+
+        HttpResponse httpResponse = mStack.executeRequest(get("/"), Collections.<String, String>emptyMap());
+        // Read slowly enough for the buffer to fill up and the connection to stop reading.
+        InputStream in = httpResponse.getContent();
+        Thread.sleep(100);
+        ByteArrayOutputStream read = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1000];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            read.write(buffer, 0, count);
+        }
+        assertArrayEquals(body, read.toByteArray());
+    }
+
+    @Test(timeout = 10000)
+    public void manyConcurrentRequests() throws Exception {
+        final int requests = 100;
+        final AtomicInteger successes = new AtomicInteger();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final CountDownLatch done = new CountDownLatch(requests);
+        for (int i = 0; i < requests; i++) {
+            mServer.enqueue("HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok", false);
+        }
+        for (int i = 0; i < requests; i++) {
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        HttpResponse response = mStack.executeRequest(get("/"), Collections.<String, String>emptyMap());
+                        if ("ok".equals(readBody(response))) {
+                            successes.incrementAndGet();
+                        }
+                    } catch (Throwable t) {
+                        failure.set(t);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        done.await(30, TimeUnit.SECONDS);
+        assertNull(failure.get());
+        assertEquals(requests, successes.get());
+    }
+
+    @Test
+    public void httpsGoesToFallbackStack() throws Exception {
+        BaseHttpStack fallback = mock(BaseHttpStack.class);
+        HttpResponse fallbackResponse = new HttpResponse(200, Collections.<Header>emptyList());
+        StringRequest request = new StringRequest(Request.Method.GET, "https://foo/", null, null);
+        Map<String, String> headers = Collections.emptyMap();
+        when(fallback.executeRequest(request, headers)).thenReturn(fallbackResponse);
+        NioHttpStack stack = new NioHttpStack(1, fallback);
+
+        assertSame(fallbackResponse, stack.executeRequest(request, headers));
+        verify(fallback).executeRequest(request, headers);
+        stack.shutdown();
+    }
+
+    @Test
+    public void requestsFailAfterShutdown() throws Exception {
+        mStack.shutdown();
+        try {
+            mStack.executeRequest(get("/"), Collections.<String, String>emptyMap());
+            fail("Expected an IOException");
+        } catch (IOException e) {
+            // Expected.
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void asyncResponseArrivesWithWholeBody() throws Exception {
+        byte[] body = new byte[256 * 1024];
+        for (int i = 0; i < body.length; i++) {
+            body[i] = (byte) i;
+        }
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        response.write(("HTTP/1.1 200 OK\r\nContent-Length: " + body.length + "\r\n\r\n")
+                .getBytes(StandardCharsets.ISO_8859_1));
+        response.write(body);
+        mServer.enqueue(response.toByteArray(), false);
+        mServer.enqueue("HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok", false);
+
+        HttpResponse httpResponse = (HttpResponse) executeAsync(get("/"));
+        // The body was read in full before the response was reported, beyond what streaming buffers.
+        assertEquals(body.length, httpResponse.getContent().available());
+        ByteArrayOutputStream read = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int count;
+        while ((count = httpResponse.getContent().read(buffer)) != -1) {
+            read.write(buffer, 0, count);
+        }
+        assertArrayEquals(body, read.toByteArray());
+
+        assertEquals("ok", readBody((HttpResponse) executeAsync(get("/"))));
+        assertEquals(1, mServer.getConnectionCount());
+    }
+
+    @Test(timeout = 10000)
+    public void asyncConnectionRefused() throws Exception {
+        ServerSocket closed = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        int port = closed.getLocalPort();
+        closed.close();
+
+        Object outcome =
+                executeAsync(new StringRequest(Request.Method.GET, "http://127.0.0.1:" + port + "/", null, null));
+        assertTrue(outcome instanceof IOException);
+    }
+
+    @Test(timeout = 10000)
+    public void asyncTimeout() throws Exception {
+        mServer.enqueueSilence();
+        StringRequest request = get("/");
+        request.setRetryPolicy(new DefaultRetryPolicy(200, 0, 1));
+
+        assertTrue(executeAsync(request) instanceof SocketTimeoutException);
+    }
+
+    /** Executes the request asynchronously, returning its response or error. */
+    private Object executeAsync(Request<?> request) throws InterruptedException {
+        final BlockingQueue<Object> outcome = new LinkedBlockingQueue<>();
+        mStack.executeRequestAsync(
+                request,
+                Collections.<String, String>emptyMap(),
+                new AsyncHttpStack.OnRequestComplete() {
+                    @Override
+                    public void onSuccess(HttpResponse httpResponse) {
+                        outcome.add(httpResponse);
+                    }
+
+                    @Override
+                    public void onAuthError(AuthFailureError authFailureError) {
+                        outcome.add(authFailureError);
+                    }
+
+                    @Override
+                    public void onError(IOException ioException) {
+                        outcome.add(ioException);
+                    }
+                });
+        Object result = outcome.poll(5, TimeUnit.SECONDS);
+        assertNotNull("Request didn't complete", result);
+        return result;
+    }
+
+    private StringRequest get(String path) {
+        return new StringRequest(Request.Method.GET, mServer.url(path), null, null);
+    }
+
+    private static String readBody(HttpResponse response) throws IOException {
+        InputStream in = response.getContent();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            out.write(buffer, 0, count);
+        }
+        in.close();
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
@@ -16,8 +16,12 @@
 
 package com.android.volley.toolbox;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
+import com.android.volley.PooledBuffer;
 import java.io.IOException;
 import java.util.Arrays;
 import org.junit.Test;
@@ -55,6 +59,23 @@ public class PoolingByteArrayOutputStreamTest {
         writeBytesIndividually(pool);
     }
 
+    @Test
+    public void toPooledBufferHandsOverBuffer() throws IOException {
+        ByteArrayPool pool = new ByteArrayPool(32768);
+        PoolingByteArrayOutputStream os = new PoolingByteArrayOutputStream(pool, 64);
+        os.write(new byte[] {1, 2, 3});
+        PooledBuffer pooledBuffer = os.toPooledBuffer();
+        os.close();
+        assertEquals(3, pooledBuffer.getLength());
+        assertTrue(Arrays.equals(new byte[] {1, 2, 3}, pooledBuffer.toByteArray()));
+
+        // The buffer only goes back to the pool once released, not when the stream is closed.
+        byte[] buffer = pooledBuffer.getBuffer();
+        assertNotSame(buffer, pool.getBuf(64));
+        pooledBuffer.release();
+        assertSame(buffer, pool.getBuf(64));
+    }
+
     private void writeOneBuffer(ByteArrayPool pool) throws IOException {
         byte[] data = new byte[16384];
         for (int i = 0; i < data.length; i++) {
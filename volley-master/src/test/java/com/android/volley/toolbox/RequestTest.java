@@ -61,6 +61,8 @@ public class RequestTest {
         assertNotNull(Request.class.getDeclaredMethod("getParamsEncoding"));
         assertNotNull(Request.class.getMethod("getBodyContentType"));
         assertNotNull(Request.class.getMethod("getBody"));
+        assertNotNull(Request.class.getMethod("getStreamingBody"));
+        assertNotNull(Request.class.getMethod("acceptsPooledData"));
         assertNotNull(Request.class.getMethod("setShouldCache", boolean.class));
         assertNotNull(Request.class.getMethod("shouldCache"));
         assertNotNull(Request.class.getMethod("getPriority"));
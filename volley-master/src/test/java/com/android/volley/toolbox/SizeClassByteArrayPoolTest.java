@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+
+public class SizeClassByteArrayPoolTest {
+
+    @Test
+    public void reusesBuffer() {
+        ByteArrayPool pool = new SizeClassByteArrayPool(64);
+
+        byte[] buf1 = pool.getBuf(16);
+        byte[] buf2 = pool.getBuf(16);
+
+        pool.returnBuf(buf1);
+        pool.returnBuf(buf2);
+
+        byte[] buf3 = pool.getBuf(16);
+        byte[] buf4 = pool.getBuf(16);
+        assertTrue(buf3 == buf1 || buf3 == buf2);
+        assertTrue(buf4 == buf1 || buf4 == buf2);
+        assertTrue(buf3 != buf4);
+    }
+
+    @Test
+    public void roundsUpToSizeClass() {
+        ByteArrayPool pool = new SizeClassByteArrayPool(4096);
+
+        assertEquals(16, pool.getBuf(1).length);
+        assertEquals(1024, pool.getBuf(1024).length);
+        assertEquals(2048, pool.getBuf(1025).length);
+        // Beyond the largest class, buffers are allocated as asked.
+        assertEquals(5000, pool.getBuf(5000).length);
+    }
+
+    @Test
+    public void returnedBufferServesSmallerRequests() {
+        ByteArrayPool pool = new SizeClassByteArrayPool(4096);
+        byte[] odd = new byte[3000];
+
+        pool.returnBuf(odd);
+
+        assertNotSame(odd, pool.getBuf(3000));
+        assertSame(odd, pool.getBuf(2048));
+    }
+
+    @Test
+    public void buffersReturnedByOtherThreadsAreShared() throws Exception {
+        final SizeClassByteArrayPool pool = new SizeClassByteArrayPool(4096);
+        final byte[] kept = new byte[64];
+        final byte[] shared = new byte[64];
+        Thread other =
+                new Thread() {
+                    @Override
+                    public void run() {
+                        // The first stays with this thread, the second goes to the shared stack.
+                        pool.returnBuf(kept);
+                        pool.returnBuf(shared);
+                    }
+                };
+        other.start();
+        other.join();
+
+        assertSame(shared, pool.getBuf(64));
+        assertNotSame(kept, pool.getBuf(64));
+    }
+
+    @Test
+    public void obeysSizeLimitForSharedBuffers() throws Exception {
+        final SizeClassByteArrayPool pool = new SizeClassByteArrayPool(64);
+        final byte[][] bufs = {new byte[32], new byte[32], new byte[32], new byte[32]};
+        Thread other =
+                new Thread() {
+                    @Override
+                    public void run() {
+                        for (byte[] buf : bufs) {
+                            pool.returnBuf(buf);
+                        }
+                    }
+                };
+        other.start();
+        other.join();
+
+        // bufs[0] stayed with the other thread, bufs[1] and bufs[2] filled the shared stack.
+        byte[] first = pool.getBuf(32);
+        byte[] second = pool.getBuf(32);
+        byte[] third = pool.getBuf(32);
+        assertTrue(first == bufs[1] || first == bufs[2]);
+        assertTrue(second == bufs[1] || second == bufs[2]);
+        assertTrue(third != bufs[0] && third != bufs[1] && third != bufs[2] && third != bufs[3]);
+    }
+
+    @Test
+    public void buffersAreNeverHandedOutTwice() throws Exception {
+        final SizeClassByteArrayPool pool = new SizeClassByteArrayPool(64 * 1024);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            final byte id = (byte) (t + 1);
+            threads[t] =
+                    new Thread() {
+                        @Override
+                        public void run() {
+                            for (int i = 0; i < 20000; i++) {
+                                byte[] a = pool.getBuf(1000);
+                                byte[] b = pool.getBuf(1000);
+                                a[0] = id;
+                                b[0] = id;
+                                Thread.yield();
+                                if (a == b || a[0] != id || b[0] != id) {
+                                    failure.compareAndSet(null, new AssertionError("buffer shared"));
+                                    return;
+                                }
+                                pool.returnBuf(a);
+                                pool.returnBuf(b);
+                            }
+                        }
+                    };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.android.volley.Header;
+import com.android.volley.NetworkResponse;
+import com.android.volley.ParseError;
+import com.android.volley.Response;
+import com.android.volley.ServerError;
+import com.android.volley.mock.MockHttpStack;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class StreamingRequestTest {
+
+    private static final byte[] BODY = "0123456789".getBytes(StandardCharsets.UTF_8);
+
+    private MockHttpStack mHttpStack;
+    private BasicNetwork mNetwork;
+    private TrackingInputStream mBodyStream;
+
+    @Before
+    public void setUp() {
+        mHttpStack = new MockHttpStack();
+        mNetwork = new BasicNetwork(mHttpStack);
+        mBodyStream = new TrackingInputStream(BODY);
+    }
+
+    @Test
+    public void bodyIsStreamedToParser() throws Exception {
+        respondWith(200);
+        PrefixRequest request = new PrefixRequest(BODY.length);
+
+        NetworkResponse networkResponse = mNetwork.performRequest(request);
+        Response<String> response = request.parseNetworkResponse(networkResponse);
+
+        assertTrue(request.mReadFromNetwork);
+        assertEquals(0, networkResponse.data.length);
+        assertEquals("0123456789", response.result);
+        assertNull(response.cacheEntry);
+        assertTrue(mBodyStream.mClosed);
+    }
+
+    @Test
+    public void bodyWithinLimitIsKeptForCache() throws Exception {
+        respondWith(200);
+        // The parser stops early; the rest is still read for the cache.
+        PrefixRequest request = new PrefixRequest(3);
+        request.setCacheBodyLimit(BODY.length);
+
+        NetworkResponse networkResponse = mNetwork.performRequest(request);
+        Response<String> response = request.parseNetworkResponse(networkResponse);
+
+        assertEquals("012", response.result);
+        assertArrayEquals(BODY, networkResponse.data);
+        assertNotNull(response.cacheEntry);
+        assertArrayEquals(BODY, response.cacheEntry.data);
+    }
+
+    @Test
+    public void bodyOverLimitIsNotCached() throws Exception {
+        respondWith(200);
+        PrefixRequest request = new PrefixRequest(BODY.length);
+        request.setCacheBodyLimit(BODY.length - 1);
+
+        NetworkResponse networkResponse = mNetwork.performRequest(request);
+        Response<String> response = request.parseNetworkResponse(networkResponse);
+
+        assertEquals("0123456789", response.result);
+        assertEquals(0, networkResponse.data.length);
+        assertNull(response.cacheEntry);
+    }
+
+    @Test
+    public void cachedBodyIsParsedFromMemory() {
+        PrefixRequest request = new PrefixRequest(4);
+        request.setCacheBodyLimit(1024);
+
+        Response<String> response = request.parseNetworkResponse(new NetworkResponse(BODY));
+
+        assertEquals("0123", response.result);
+        assertNotNull(response.cacheEntry);
+    }
+
+    @Test
+    public void parseErrorIsReturned() throws Exception {
+        respondWith(200);
+        PrefixRequest request = new PrefixRequest(BODY.length + 1);
+
+        try {
+            mNetwork.performRequest(request);
+            fail();
+        } catch (ParseError expected) {
+        }
+        assertTrue(mBodyStream.mClosed);
+        assertTrue(request.parseNetworkResponse(new NetworkResponse(BODY)).error instanceof ParseError);
+    }
+
+    @Test
+    public void errorResponseIsBuffered() throws Exception {
+        respondWith(500);
+        PrefixRequest request = new PrefixRequest(BODY.length);
+
+        try {
+            mNetwork.performRequest(request);
+            fail();
+        } catch (ServerError e) {
+            assertArrayEquals(BODY, e.networkResponse.data);
+        }
+        assertFalse(request.mReadFromNetwork);
+    }
+
+    private void respondWith(int statusCode) {
+        mHttpStack.setResponseToReturn(
+                new HttpResponse(statusCode, Collections.<Header>emptyList(), BODY.length, mBodyStream));
+    }
+
+    /** Parses the first bytes of the body as a string, and fails if there are fewer. */
+    private static class PrefixRequest extends StreamingRequest<String> {
+        private final int mLength;
+        boolean mReadFromNetwork = false;
+
+        PrefixRequest(int length) {
+            super("http://foo", null, null);
+            mLength = length;
+        }
+
+        @Override
+        protected String parseStream(NetworkResponse response, InputStream body) throws IOException, ParseError {
+            if (response.data == null) {
+                mReadFromNetwork = true;
+            }
+            byte[] prefix = new byte[mLength];
+            int read = 0;
+            while (read < mLength) {
+                int n = body.read(prefix, read, mLength - read);
+                if (n == -1) {
+                    throw new ParseError();
+                }
+                read += n;
+            }
+            return new String(prefix, StandardCharsets.UTF_8);
+        }
+    }
+
+    private static class TrackingInputStream extends ByteArrayInputStream {
+        boolean mClosed = false;
+
+        TrackingInputStream(byte[] data) {
+            super(data);
+        }
+
+        @Override
+        public void close() throws IOException {
+            mClosed = true;
+            super.close();
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+import com.android.volley.Cache;
+import com.android.volley.ConcurrentInitCache;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class TwoTierCacheTest {
+
+    @Mock private ConcurrentInitCache mDiskCache;
+
+    @Before
+    public void setUp() {
+        initMocks(this);
+    }
+
+    @Test
+    public void diskHitIsPromotedToMemory() {
+        Cache.Entry entry = entry(100);
+        when(mDiskCache.get("key")).thenReturn(entry);
+        TwoTierCache cache = new TwoTierCache(mDiskCache, 1000, false);
+
+        assertSame(entry, cache.get("key"));
+        assertSame(entry, cache.get("key"));
+        assertSame(entry, cache.get("key"));
+
+        verify(mDiskCache, times(1)).get("key");
+        assertEquals(100, cache.getMemorySize());
+    }
+
+    @Test
+    public void memoryHitIsReportedToDiskBasedCache() {
+        DiskBasedCache diskCache = mock(DiskBasedCache.class);
+        Cache.Entry entry = entry(100);
+        when(diskCache.get("key")).thenReturn(entry);
+        TwoTierCache cache = new TwoTierCache(diskCache, 1000, false);
+
+        cache.get("key");
+        cache.get("key");
+        cache.get("key");
+
+        verify(diskCache, times(1)).get("key");
+        verify(diskCache, times(2)).recordAccess("key");
+    }
+
+    @Test
+    public void putWritesThrough() {
+        Cache.Entry entry = entry(100);
+        TwoTierCache cache = new TwoTierCache(mDiskCache, 1000, true);
+
+        cache.put("key", entry);
+
+        verify(mDiskCache).put("key", entry);
+        assertSame(entry, cache.get("key"));
+        verify(mDiskCache, never()).get("key");
+    }
+
+    @Test
+    public void putWithoutCacheOnWriteDropsStaleMemoryEntry() {
+        Cache.Entry oldEntry = entry(100);
+        Cache.Entry newEntry = entry(100);
+        when(mDiskCache.get("key")).thenReturn(oldEntry);
+        TwoTierCache cache = new TwoTierCache(mDiskCache, 1000, false);
+        cache.get("key");
+
+        cache.put("key", newEntry);
+        when(mDiskCache.get("key")).thenReturn(newEntry);
+
+        assertEquals(0, cache.getMemorySize());
+        assertSame(newEntry, cache.get("key"));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        TwoTierCache cache = new TwoTierCache(mDiskCache, 800, true);
+        Cache.Entry first = entry(100);
+        cache.put("first", first);
+        cache.put("second", entry(100));
+        cache.get("first");
+        for (int i = 0; i < 7; i++) {
+            cache.put("filler" + i, entry(100));
+        }
+
+        // "second" is the least recently used; "first" was read after it.
+        assertEquals(800, cache.getMemorySize());
+        assertSame(first, cache.get("first"));
+        assertNull(cache.get("second"));
+        verify(mDiskCache).get("second");
+    }
+
+    @Test
+    public void largeEntriesStayOnDisk() {
+        Cache.Entry large = entry(200);
+        TwoTierCache cache = new TwoTierCache(mDiskCache, 1000, true);
+
+        cache.put("large", large);
+
+        verify(mDiskCache).put("large", large);
+        assertEquals(0, cache.getMemorySize());
+    }
+
+    @Test
+    public void invalidateAndRemoveDropMemoryEntry() {
+        TwoTierCache cache = new TwoTierCache(mDiskCache, 1000, true);
+        cache.put("a", entry(100));
+        cache.put("b", entry(100));
+
+        cache.invalidate("a", true);
+        cache.remove("b");
+
+        assertEquals(0, cache.getMemorySize());
+        verify(mDiskCache).invalidate("a", true);
+        verify(mDiskCache).remove("b");
+    }
+
+    @Test
+    public void clearEmptiesBothTiers() {
+        TwoTierCache cache = new TwoTierCache(mDiskCache, 1000, true);
+        cache.put("key", entry(100));
+
+        cache.clear();
+
+        assertEquals(0, cache.getMemorySize());
+        assertNull(cache.get("key"));
+        verify(mDiskCache).clear();
+    }
+
+    private static Cache.Entry entry(int size) {
+        Cache.Entry entry = new Cache.Entry();
+        entry.data = new byte[size];
+        return entry;
+    }
+}